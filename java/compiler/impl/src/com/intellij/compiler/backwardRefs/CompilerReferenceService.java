@@ -0,0 +1,228 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.backwardRefs;
+
+import com.intellij.compiler.server.BuildManager;
+import com.intellij.compiler.server.BuildManagerListener;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.builders.java.dependencyView.BackwardReferenceIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reads the index of references found in the compiled classes, which is built by the build process
+ * if "compiler.build.backward.reference.index" registry key is on.
+ * The index is kept open between queries, but it is closed while a build is running, because the build process writes it.
+ * It is not used until a rebuild of the project has filled it, see {@link BackwardReferenceIndex#isComplete()}.
+ *
+ * @see BackwardReferenceIndex
+ */
+public class CompilerReferenceService implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.backwardRefs.CompilerReferenceService");
+
+  private final Project myProject;
+  private final Object myLock = new Object();
+  private int myActiveBuilds;
+  @Nullable private BackwardReferenceIndex myIndex;
+  /**
+   * stamps of the source files described by the index, read once after each build
+   */
+  @Nullable private Map<File, Long> mySourceStamps;
+
+  public CompilerReferenceService(@NotNull Project project) {
+    myProject = project;
+    Disposer.register(project, this);
+    ApplicationManager.getApplication().getMessageBus().connect(this).subscribe(BuildManagerListener.TOPIC, new BuildManagerListener() {
+      @Override
+      public void buildStarted(Project project, UUID sessionId, boolean isAutomake) {
+        if (project == myProject) {
+          synchronized (myLock) {
+            myActiveBuilds++;
+            closeIndex();
+          }
+        }
+      }
+
+      @Override
+      public void buildFinished(Project project, UUID sessionId, boolean isAutomake) {
+        if (project == myProject) {
+          synchronized (myLock) {
+            myActiveBuilds = Math.max(0, myActiveBuilds - 1);
+            closeIndex();
+          }
+        }
+      }
+    });
+  }
+
+  public static CompilerReferenceService getInstance(@NotNull Project project) {
+    return ServiceManager.getService(project, CompilerReferenceService.class);
+  }
+
+  public static boolean isEnabled() {
+    return Registry.is("compiler.build.backward.reference.index");
+  }
+
+  /**
+   * @param className internal name of the class the member is declared in
+   * @param memberName name of the member or null to find references to the class itself
+   * @param filesToSearch files which may refer to the member in a way the index does not know about, e.g. from javadoc
+   * @return java files which are described by the index and do not refer to the member neither through the class
+   * nor through any of its compiled subclasses, or null if the index is not available or does not describe the whole project
+   */
+  @Nullable
+  public GlobalSearchScope getScopeWithoutReferences(@NotNull String className, @Nullable String memberName,
+                                                     @NotNull Set<VirtualFile> filesToSearch) {
+    synchronized (myLock) {
+      final BackwardReferenceIndex index = getIndex();
+      if (index == null) {
+        return null;
+      }
+
+      final Set<File> referringSources = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+      try {
+        if (mySourceStamps == null) {
+          mySourceStamps = index.getSourceStamps();
+        }
+
+        final Set<String> visited = new HashSet<String>();
+        final Queue<String> queue = new LinkedList<String>();
+        visited.add(className);
+        queue.add(className);
+        while (!queue.isEmpty()) {
+          final String name = queue.remove();
+          referringSources.addAll(index.getReferringSources(name, memberName));
+          for (String subclass : index.getDirectSubclasses(name)) {
+            if (visited.add(subclass)) {
+              queue.add(subclass);
+            }
+          }
+        }
+      }
+      catch (RuntimeException e) {
+        LOG.info(e);
+        closeIndex();
+        return null;
+      }
+
+      return new IndexedFilesScope(myProject, mySourceStamps, referringSources, filesToSearch);
+    }
+  }
+
+  @Nullable
+  private BackwardReferenceIndex getIndex() {
+    if (myIndex == null && myActiveBuilds == 0) {
+      final File projectSystemDir = BuildManager.getInstance().getProjectSystemDirectory(myProject);
+      if (projectSystemDir == null) {
+        return null;
+      }
+      final File indexRoot = new File(projectSystemDir, BackwardReferenceIndex.STORAGE_NAME);
+      if (!BackwardReferenceIndex.isComplete(indexRoot)) {
+        return null;
+      }
+      try {
+        myIndex = new BackwardReferenceIndex(indexRoot);
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+    }
+    return myIndex;
+  }
+
+  private void closeIndex() {
+    mySourceStamps = null;
+    final BackwardReferenceIndex index = myIndex;
+    if (index != null) {
+      myIndex = null;
+      try {
+        index.close();
+      }
+      catch (RuntimeException e) {
+        LOG.info(e);
+      }
+    }
+  }
+
+  @Override
+  public void dispose() {
+    synchronized (myLock) {
+      closeIndex();
+    }
+  }
+
+  private static class IndexedFilesScope extends GlobalSearchScope {
+    private final Map<File, Long> mySourceStamps;
+    private final Set<File> myReferringSources;
+    private final Set<VirtualFile> myFilesToSearch;
+
+    private IndexedFilesScope(@NotNull Project project, @NotNull Map<File, Long> sourceStamps, @NotNull Set<File> referringSources,
+                              @NotNull Set<VirtualFile> filesToSearch) {
+      super(project);
+      mySourceStamps = sourceStamps;
+      myReferringSources = referringSources;
+      myFilesToSearch = filesToSearch;
+    }
+
+    @Override
+    public boolean contains(VirtualFile file) {
+      if (!file.isInLocalFileSystem() || file.getFileType() != JavaFileType.INSTANCE || myFilesToSearch.contains(file)) {
+        return false;
+      }
+      final File ioFile = VfsUtilCore.virtualToIoFile(file);
+      final Long stamp = mySourceStamps.get(ioFile);
+      if (stamp == null || stamp.longValue() != file.getTimeStamp() || myReferringSources.contains(ioFile)) {
+        return false;
+      }
+      return !FileDocumentManager.getInstance().isFileModified(file);
+    }
+
+    @Override
+    public int compare(VirtualFile file1, VirtualFile file2) {
+      return 0;
+    }
+
+    // this scope is used to be excluded from other scopes, so it must not narrow them down
+
+    @Override
+    public boolean isSearchInModuleContent(@NotNull Module aModule) {
+      return true;
+    }
+
+    @Override
+    public boolean isSearchInLibraries() {
+      return true;
+    }
+  }
+}
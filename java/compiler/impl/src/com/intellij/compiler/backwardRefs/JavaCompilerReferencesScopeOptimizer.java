@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.backwardRefs;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchHelper;
+import com.intellij.psi.search.UseScopeOptimizer;
+import com.intellij.psi.util.ClassUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Excludes from the search for usages of java methods and fields the compiled files which do not refer to them.
+ * <p/>
+ * Only references which javac always keeps in class files are trusted: class references are not (e.g. types of local variables
+ * are not kept), neither are compile-time constants (they are inlined) nor annotation methods.
+ * References from javadoc are not compiled at all, so the files which have the member name in comments are always searched.
+ *
+ * @see CompilerReferenceService
+ */
+public class JavaCompilerReferencesScopeOptimizer extends UseScopeOptimizer {
+  @Nullable
+  @Override
+  public GlobalSearchScope getScopeToExclude(@NotNull PsiElement element) {
+    if (!CompilerReferenceService.isEnabled() || !(element instanceof PsiMethod || element instanceof PsiField)) {
+      return null;
+    }
+
+    if (element instanceof PsiField) {
+      final PsiField field = (PsiField)element;
+      if (field.hasModifierProperty(PsiModifier.FINAL) && field.hasInitializer()) {
+        return null;
+      }
+    }
+
+    final PsiMember member = (PsiMember)element;
+    final PsiClass aClass = member.getContainingClass();
+    if (aClass == null || aClass.isAnnotationType()) {
+      return null;
+    }
+
+    // members of library classes may be referred through library subclasses which are not indexed
+    final PsiFile file = aClass.getContainingFile();
+    final VirtualFile vFile = file != null ? file.getVirtualFile() : null;
+    if (vFile == null || !ProjectRootManager.getInstance(element.getProject()).getFileIndex().isInSourceContent(vFile)) {
+      return null;
+    }
+
+    final String className = ClassUtil.getJVMClassName(aClass);
+    final String memberName = member instanceof PsiMethod && ((PsiMethod)member).isConstructor() ? "<init>" : member.getName();
+    if (className == null || memberName == null) {
+      return null;
+    }
+    final Project project = element.getProject();
+    final Set<VirtualFile> filesWithComments = new THashSet<VirtualFile>();
+    PsiSearchHelper.SERVICE.getInstance(project).processAllFilesWithWordInComments(
+      member.getName(), GlobalSearchScope.projectScope(project), new Processor<PsiFile>() {
+      @Override
+      public boolean process(PsiFile psiFile) {
+        ContainerUtil.addIfNotNull(psiFile.getVirtualFile(), filesWithComments);
+        return true;
+      }
+    });
+    return CompilerReferenceService.getInstance(project).getScopeWithoutReferences(className.replace('.', '/'), memberName, filesWithComments);
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.Alarm;
+import org.jboss.netty.channel.Channel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Build processes running in the daemon mode (see {@link org.jetbrains.jps.api.GlobalOptions#BUILD_DAEMON_OPTION}).
+ * After a build such a process stays connected and waits for the next build session of the same project.
+ * Only the JVM with the loaded and JIT-compiled builders' code is reused: every session still loads the JPS model
+ * (see {@link org.jetbrains.jps.api.GlobalOptions#JPS_MODEL_CACHE_OPTION}) and opens the build data storages, which are closed when it ends.
+ * <p/>
+ * A daemon is reused only by a build which would launch the build process with the same command line, so changes of the JDK, heap size
+ * or plugins classpath are picked up. Daemons of a project are shut down when its configuration changes (a daemon busy with a build is shut down
+ * when the build is finished), and idle daemons are shut down after {@code compiler.process.daemon.idle.timeout} seconds.
+ * The daemon itself exits after a build if too much of its heap is still used.
+ */
+class BuildDaemonPool {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.BuildDaemonPool");
+  private final Set<Daemon> myDaemons = new HashSet<Daemon>();
+  private final Alarm myExpirationAlarm = new Alarm(Alarm.ThreadToUse.SHARED_THREAD);
+  private final Runnable myExpirationTask = new Runnable() {
+    @Override
+    public void run() {
+      shutdownExpired();
+    }
+  };
+
+  /**
+   * @return an idle daemon launched with the same command line, or null if a new build process has to be launched
+   */
+  @Nullable
+  public Daemon acquire(@NotNull String projectPath, @NotNull List<String> commandLine) {
+    final List<Daemon> unusable = new ArrayList<Daemon>();
+    Daemon result = null;
+    synchronized (myDaemons) {
+      for (Daemon daemon : myDaemons) {
+        if (daemon.myIdle && daemon.myProjectPath.equals(projectPath)) {
+          if (result == null && daemon.isAlive() && daemon.myCommandLine.equals(commandLine)) {
+            daemon.myIdle = false;
+            result = daemon;
+          }
+          else {
+            unusable.add(daemon);
+          }
+        }
+      }
+      myDaemons.removeAll(unusable);
+    }
+    for (Daemon daemon : unusable) {
+      daemon.shutdown();
+    }
+    if (result != null) {
+      // the output of the previous sessions must not be reported as the reason of a failure of this one
+      synchronized (result.myStdErrOutput) {
+        result.myStdErrOutput.setLength(0);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return a daemon which is added to the pool when its process is started
+   */
+  @NotNull
+  public Daemon create(@NotNull String projectPath, @NotNull List<String> commandLine) {
+    return new Daemon(projectPath, commandLine);
+  }
+
+  /**
+   * Shuts down the idle daemons of the project and the busy ones as soon as their builds are finished
+   */
+  public void shutdown(@NotNull String projectPath) {
+    shutdownDaemons(projectPath);
+  }
+
+  public void shutdownAll() {
+    shutdownDaemons(null);
+  }
+
+  private void shutdownDaemons(@Nullable String projectPath) {
+    final List<Daemon> idle = new ArrayList<Daemon>();
+    synchronized (myDaemons) {
+      for (Daemon daemon : myDaemons) {
+        if (projectPath == null || daemon.myProjectPath.equals(projectPath)) {
+          daemon.myObsolete = true;
+          if (daemon.myIdle) {
+            idle.add(daemon);
+          }
+        }
+      }
+      myDaemons.removeAll(idle);
+    }
+    for (Daemon daemon : idle) {
+      daemon.shutdown();
+    }
+  }
+
+  private void release(@NotNull Daemon daemon) {
+    synchronized (myDaemons) {
+      if (!daemon.myObsolete && myDaemons.contains(daemon)) {
+        daemon.myIdle = true;
+        daemon.myIdleSince = System.currentTimeMillis();
+        daemon = null;
+      }
+      else {
+        myDaemons.remove(daemon);
+      }
+    }
+    if (daemon != null) {
+      daemon.shutdown();
+    }
+    else {
+      myExpirationAlarm.cancelAllRequests();
+      myExpirationAlarm.addRequest(myExpirationTask, getIdleTimeout());
+    }
+  }
+
+  private void remove(@NotNull Daemon daemon) {
+    synchronized (myDaemons) {
+      myDaemons.remove(daemon);
+    }
+  }
+
+  private void shutdownExpired() {
+    final long now = System.currentTimeMillis();
+    final List<Daemon> expired = new ArrayList<Daemon>();
+    boolean hasIdle = false;
+    synchronized (myDaemons) {
+      for (Daemon daemon : myDaemons) {
+        if (daemon.myIdle) {
+          if (now - daemon.myIdleSince >= getIdleTimeout()) {
+            expired.add(daemon);
+          }
+          else {
+            hasIdle = true;
+          }
+        }
+      }
+      myDaemons.removeAll(expired);
+    }
+    for (Daemon daemon : expired) {
+      daemon.shutdown();
+    }
+    if (hasIdle) {
+      myExpirationAlarm.addRequest(myExpirationTask, getIdleTimeout());
+    }
+  }
+
+  @TestOnly
+  @NotNull
+  List<Daemon> getDaemons(@NotNull String projectPath) {
+    final List<Daemon> result = new ArrayList<Daemon>();
+    synchronized (myDaemons) {
+      for (Daemon daemon : myDaemons) {
+        if (daemon.myProjectPath.equals(projectPath)) {
+          result.add(daemon);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int getIdleTimeout() {
+    return Math.max(1, Registry.intValue("compiler.process.daemon.idle.timeout")) * 1000;
+  }
+
+  class Daemon {
+    private final String myProjectPath;
+    private final List<String> myCommandLine;
+    private final StringBuilder myStdErrOutput = new StringBuilder();
+    private volatile OSProcessHandler myProcessHandler;
+    private volatile Channel myChannel;
+    // guarded by myDaemons
+    private boolean myIdle;
+    private boolean myObsolete;
+    private long myIdleSince;
+
+    private Daemon(@NotNull String projectPath, @NotNull List<String> commandLine) {
+      myProjectPath = projectPath;
+      myCommandLine = commandLine;
+    }
+
+    public OSProcessHandler getProcessHandler() {
+      return myProcessHandler;
+    }
+
+    public void setProcessHandler(@NotNull OSProcessHandler processHandler) {
+      myProcessHandler = processHandler;
+      synchronized (myDaemons) {
+        myDaemons.add(this);
+      }
+    }
+
+    public Channel getChannel() {
+      return myChannel;
+    }
+
+    /**
+     * The first 1024 characters the process has written to stderr during the current session
+     */
+    @NotNull
+    public StringBuilder getStdErrOutput() {
+      return myStdErrOutput;
+    }
+
+    /**
+     * Called when the daemon has finished a session and is ready for the next one
+     */
+    public void sessionFinished(@NotNull Channel channel) {
+      myChannel = channel;
+      release(this);
+    }
+
+    public void channelClosed() {
+      remove(this);
+    }
+
+    private boolean isAlive() {
+      final Channel channel = myChannel;
+      final OSProcessHandler processHandler = myProcessHandler;
+      return channel != null && channel.isConnected() && processHandler != null && !processHandler.isProcessTerminated();
+    }
+
+    private void shutdown() {
+      LOG.info("Shutting down build daemon for " + myProjectPath);
+      // a daemon is shut down between sessions only: the build data has been saved and the storages and the pooled
+      // javac file managers have been closed by the end of the previous session (see BuildMain)
+      final Channel channel = myChannel;
+      if (channel != null) {
+        channel.close();
+      }
+      final OSProcessHandler processHandler = myProcessHandler;
+      if (processHandler != null) {
+        processHandler.destroyProcess();
+      }
+    }
+  }
+}
@@ -59,6 +59,7 @@ import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.startup.StartupManager;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.ShutDownTracker;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtil;
@@ -68,6 +69,7 @@ import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.impl.FileNameCache;
 import com.intellij.util.Alarm;
@@ -108,9 +110,11 @@ import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.jetbrains.jps.api.CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage.TargetTypeBuildScope;
 
@@ -124,6 +128,10 @@ public class BuildManager implements ApplicationComponent{
 
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.BuildManager");
   private static final String COMPILER_PROCESS_JDK_PROPERTY = "compiler.process.jdk";
+  private static final String FS_JOURNAL_PROPERTY = "compiler.build.fs.journal";
+  private static final String BUILD_DAEMON_PROPERTY = "compiler.process.daemon";
+  private static final long FS_JOURNAL_SAVE_TIMEOUT = 3000L;
+  private static final int FS_JOURNAL_MAX_SIZE = 50000;
   public static final String SYSTEM_ROOT = "compile-server";
   public static final String TEMP_DIR_NAME = "_temp_";
   private static final int MAKE_TRIGGER_DELAY = 300 /*300 ms*/;
@@ -156,6 +164,9 @@ public class BuildManager implements ApplicationComponent{
   private final Executor myPooledThreadExecutor = new PooledThreadExecutor();
   private final SequentialTaskExecutor myRequestsProcessor = new SequentialTaskExecutor(myPooledThreadExecutor);
   private final Map<String, ProjectData> myProjectDataMap = Collections.synchronizedMap(new HashMap<String, ProjectData>());
+  // closed projects whose changes are still recorded to be saved in the FS changes journal -> (project system dir, VFS creation stamp)
+  // guarded by myProjectDataMap
+  private final Map<String, Pair<File, Long>> myClosedProjects = new HashMap<String, Pair<File, Long>>();
 
   private final BuildManagerPeriodicTask myAutoMakeTask = new BuildManagerPeriodicTask() {
     @Override
@@ -209,6 +220,7 @@ public class BuildManager implements ApplicationComponent{
 
   private final ChannelGroup myAllOpenChannels = new DefaultChannelGroup("build-manager");
   private final BuildMessageDispatcher myMessageDispatcher = new BuildMessageDispatcher();
+  private final BuildDaemonPool myDaemonPool = new BuildDaemonPool();
   private volatile int myListenPort = -1;
   @Nullable
   private final Charset mySystemCharset;
@@ -376,6 +388,7 @@ public class BuildManager implements ApplicationComponent{
         data.dropChanges();
       }
     }
+    myDaemonPool.shutdown(projectPath);
     scheduleAutoMake();
   }
 
@@ -408,7 +421,7 @@ public class BuildManager implements ApplicationComponent{
   }
 
   @Nullable
-  private static String getProjectPath(final Project project) {
+  static String getProjectPath(final Project project) {
     final String url = project.getPresentableUrl();
     if (url == null) {
       return null;
@@ -505,9 +518,13 @@ public class BuildManager implements ApplicationComponent{
     final String projectPath = getProjectPath(project);
     final UUID sessionId = UUID.randomUUID();
     final boolean isAutomake = messageHandler instanceof AutoMakeMessageHandler;
+    final AtomicLong launchTime = new AtomicLong();
+    final AtomicBoolean usesWarmDaemon = new AtomicBoolean();
     final BuilderMessageHandler handler = new MessageHandlerWrapper(messageHandler) {
       @Override
       public void buildStarted(UUID sessionId) {
+        LOG.info("Build session started in " + (System.currentTimeMillis() - launchTime.get()) + " ms" +
+                 (usesWarmDaemon.get() ? " by a warm build daemon" : ""));
         super.buildStarted(sessionId);
         try {
           ApplicationManager.getApplication().getMessageBus().syncPublisher(BuildManagerListener.TOPIC).buildStarted(project, sessionId, isAutomake);
@@ -581,6 +598,10 @@ public class BuildManager implements ApplicationComponent{
             if (isRebuild) {
               data.dropChanges();
             }
+            else if (data.myAwaitingInitialRefresh) {
+              LOG.info("FS changes journal of " + projectPath + " is dropped: the initial VFS refresh has not finished yet");
+              data.dropChanges();
+            }
             if (IS_UNIT_TEST_MODE) {
               LOG.info("Scheduling build for " +
                        projectPath +
@@ -627,39 +648,34 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
-                  final OSProcessHandler processHandler = launchBuildProcess(project, myListenPort, sessionId);
-                  final StringBuilder stdErrOutput = new StringBuilder();
-                  processHandler.addProcessListener(new ProcessAdapter() {
-                    @Override
-                    public void onTextAvailable(ProcessEvent event, Key outputType) {
-                      // re-translate builder's output to idea.log
-                      final String text = event.getText();
-                      if (!StringUtil.isEmptyOrSpaces(text)) {
-                        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
-                        if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
-                          stdErrOutput.append(text);
-                        }
-                      }
+                  launchTime.set(System.currentTimeMillis());
+                  final boolean useDaemon = Registry.is(BUILD_DAEMON_PROPERTY);
+                  final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, sessionId, useDaemon);
+                  if (useDaemon) {
+                    final List<String> daemonCommandLine = getDaemonCommandLine(cmdLine, sessionId);
+                    BuildDaemonPool.Daemon daemon = myDaemonPool.acquire(projectPath, daemonCommandLine);
+                    if (daemon != null) {
+                      usesWarmDaemon.set(true);
+                      myMessageDispatcher.startDaemonSession(sessionId, daemon);
                     }
-                  });
-                  processHandler.startNotify();
-                  final boolean terminated = processHandler.waitFor();
-                  if (terminated) {
-                    final int exitValue = processHandler.getProcess().exitValue();
-                    if (exitValue != 0) {
-                      final StringBuilder msg = new StringBuilder();
-                      msg.append("Abnormal build process termination: ");
-                      if (stdErrOutput.length() > 0) {
-                        msg.append("\n").append(stdErrOutput);
-                      }
-                      else {
-                        msg.append("unknown error");
+                    else {
+                      daemon = myDaemonPool.create(projectPath, daemonCommandLine);
+                      myMessageDispatcher.setDaemon(sessionId, daemon);
+                      daemon.setProcessHandler(startBuildProcess(cmdLine, daemon.getStdErrOutput()));
+                    }
+                    // the daemon is not terminated after the build, so the end of the session is awaited instead
+                    final OSProcessHandler processHandler = daemon.getProcessHandler();
+                    while (!future.waitFor(100, TimeUnit.MILLISECONDS)) {
+                      if (processHandler.isProcessTerminated()) {
+                        checkProcessTermination(handler, sessionId, processHandler, daemon.getStdErrOutput());
+                        break;
                       }
-                      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
                     }
                   }
                   else {
-                    handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure("Disconnected from build process", null));
+                    final StringBuilder stdErrOutput = new StringBuilder();
+                    final OSProcessHandler processHandler = startBuildProcess(cmdLine, stdErrOutput);
+                    checkProcessTermination(handler, sessionId, processHandler, stdErrOutput);
                   }
                 }
                 catch (Throwable e) {
@@ -667,9 +683,10 @@ public class BuildManager implements ApplicationComponent{
                 }
                 finally {
                   myBuildsInProgress.remove(projectPath);
-                  if (myMessageDispatcher.getAssociatedChannel(sessionId) == null) {
-                    // either the connection has never been established (process not started or execution failed), or no messages were sent from the launched process.
-                    // in this case the session cannot be unregistered by the message dispatcher
+                  if (myMessageDispatcher.getConnectedChannel(sessionId) == null) {
+                    // either the connection has never been established (process not started or execution failed), or no messages were sent from the launched process,
+                    // or the connection is already closed. In the first cases the session cannot be unregistered by the message dispatcher,
+                    // in the last one it has been unregistered already or is unregistered here, whichever comes first
                     final BuilderMessageHandler unregistered = myMessageDispatcher.unregisterBuildMessageHandler(sessionId);
                     if (unregistered != null) {
                       if (execFailure != null) {
@@ -704,10 +721,17 @@ public class BuildManager implements ApplicationComponent{
 
   @Override
   public void initComponent() {
+    if (Registry.is(FS_JOURNAL_PROPERTY)) {
+      loadChangesJournals();
+    }
   }
 
   @Override
   public void disposeComponent() {
+    if (Registry.is(FS_JOURNAL_PROPERTY)) {
+      saveChangesJournals();
+    }
+    myDaemonPool.shutdownAll();
     stopListening();
   }
 
@@ -717,7 +741,66 @@ public class BuildManager implements ApplicationComponent{
     return "com.intellij.compiler.server.BuildManager";
   }
 
-  private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+  private static void checkProcessTermination(BuilderMessageHandler handler, UUID sessionId, OSProcessHandler processHandler, StringBuilder stdErrOutput) {
+    final boolean terminated = processHandler.waitFor();
+    if (terminated) {
+      final int exitValue = processHandler.getProcess().exitValue();
+      if (exitValue != 0) {
+        final StringBuilder msg = new StringBuilder();
+        msg.append("Abnormal build process termination: ");
+        if (stdErrOutput.length() > 0) {
+          msg.append("\n").append(stdErrOutput);
+        }
+        else {
+          msg.append("unknown error");
+        }
+        handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
+      }
+    }
+    else {
+      handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure("Disconnected from build process", null));
+    }
+  }
+
+  private OSProcessHandler startBuildProcess(GeneralCommandLine cmdLine, final StringBuilder stdErrOutput) throws ExecutionException {
+    final Process process = cmdLine.createProcess();
+    final OSProcessHandler processHandler = new OSProcessHandler(process, null, mySystemCharset) {
+      @Override
+      protected boolean shouldDestroyProcessRecursively() {
+        return true;
+      }
+    };
+    processHandler.addProcessListener(new ProcessAdapter() {
+      @Override
+      public void onTextAvailable(ProcessEvent event, Key outputType) {
+        // re-translate builder's output to idea.log
+        final String text = event.getText();
+        if (!StringUtil.isEmptyOrSpaces(text)) {
+          LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+          synchronized (stdErrOutput) {
+            if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
+              stdErrOutput.append(text);
+            }
+          }
+        }
+      }
+    });
+    processHandler.startNotify();
+    return processHandler;
+  }
+
+  /**
+   * @return the command line without the id of the session, the daemon launched with it can run the sessions of any build with the same command line
+   */
+  private static List<String> getDaemonCommandLine(GeneralCommandLine cmdLine, UUID sessionId) {
+    final List<String> result = new ArrayList<String>();
+    result.add(cmdLine.getExePath());
+    result.addAll(cmdLine.getParametersList().getList());
+    result.remove(sessionId.toString());
+    return result;
+  }
+
+  private GeneralCommandLine createBuildProcessCommandLine(Project project, final int port, final UUID sessionId, boolean daemon) throws ExecutionException {
     final String compilerPath;
     final String vmExecutablePath;
     JavaSdkVersion sdkVersion = null;
@@ -858,6 +941,33 @@ public class BuildManager implements ApplicationComponent{
     if (Registry.is("compiler.process.use.external.javac")) {
       cmdLine.addParameter("-D"+ GlobalOptions.USE_EXTERNAL_JAVAC_OPTION);
     }
+    if (Registry.is("compiler.process.keep.javac.warm")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.KEEP_JAVAC_WARM_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.pipelined.parallel.build")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.COMPILE_PARALLEL_PIPELINED_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.parallel.differentiate")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.DIFFERENTIATE_PARALLEL_OPTION + "=true");
+    }
+    if (Registry.is("compiler.build.backward.reference.index")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.BUILD_BACKWARD_REFERENCE_INDEX_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.content.hash.timestamps")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.CONTENT_HASH_TIMESTAMPS_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.incremental.artifact.packing")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.INCREMENTAL_ARTIFACT_PACKING_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.resources.hard.links")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.RESOURCES_HARD_LINKS_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.jps.model.cache")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.JPS_MODEL_CACHE_OPTION + "=true");
+    }
+    if (daemon) {
+      cmdLine.addParameter("-D"+ GlobalOptions.BUILD_DAEMON_OPTION + "=true");
+    }
 
     // javac's VM should use the same default locale that IDEA uses in order for javac to print messages in 'correct' language
     if (mySystemCharset != null) {
@@ -902,15 +1012,7 @@ public class BuildManager implements ApplicationComponent{
     cmdLine.addParameter(FileUtil.toSystemIndependentName(workDirectory.getPath()));
 
     cmdLine.setWorkDirectory(workDirectory);
-
-    final Process process = cmdLine.createProcess();
-
-    return new OSProcessHandler(process, null, mySystemCharset) {
-      @Override
-      protected boolean shouldDestroyProcessRecursively() {
-        return true;
-      }
-    };
+    return cmdLine;
   }
 
   public File getBuildSystemDirectory() {
@@ -992,11 +1094,28 @@ public class BuildManager implements ApplicationComponent{
     return listenPort;
   }
 
+  @TestOnly
+  BuildDaemonPool getDaemonPool() {
+    return myDaemonPool;
+  }
+
   @TestOnly
   public void stopWatchingProject(Project project) {
     myProjectDataMap.remove(getProjectPath(project));
   }
 
+  @TestOnly
+  public void simulateProjectReopening(Project project, boolean restartIde, Runnable whileClosed) {
+    keepChangesOfClosedProject(project);
+    removeProjectData(getProjectPath(project));
+    if (restartIde) {
+      saveChangesJournals();
+      loadChangesJournals();
+    }
+    whileClosed.run();
+    restoreChangesJournal(project, getProjectPath(project));
+  }
+
   private static String classpathToString(List<String> cp) {
     StringBuilder builder = new StringBuilder();
     for (String file : cp) {
@@ -1077,10 +1196,13 @@ public class BuildManager implements ApplicationComponent{
         }
       });
       final String projectPath = getProjectPath(project);
+      if (Registry.is(FS_JOURNAL_PROPERTY)) {
+        restoreChangesJournal(project, projectPath);
+      }
       Disposer.register(project, new Disposable() {
         @Override
         public void dispose() {
-          myProjectDataMap.remove(projectPath);
+          removeProjectData(projectPath);
         }
       });
       StartupManager.getInstance(project).registerPostStartupActivity(new Runnable() {
@@ -1106,7 +1228,12 @@ public class BuildManager implements ApplicationComponent{
 
     @Override
     public void projectClosed(Project project) {
-      myProjectDataMap.remove(getProjectPath(project));
+      if (Registry.is(FS_JOURNAL_PROPERTY)) {
+        keepChangesOfClosedProject(project);
+      }
+      final String projectPath = getProjectPath(project);
+      removeProjectData(projectPath);
+      myDaemonPool.shutdown(projectPath);
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1114,12 +1241,113 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  private void removeProjectData(String projectPath) {
+    synchronized (myProjectDataMap) {
+      if (!myClosedProjects.containsKey(projectPath)) {
+        myProjectDataMap.remove(projectPath);
+      }
+    }
+  }
+
+  /**
+   * The changes made while the project is closed are recorded as well: they are reported by the VFS only once,
+   * so they would be missing from the journal otherwise.
+   */
+  private void keepChangesOfClosedProject(Project project) {
+    final String projectPath = getProjectPath(project);
+    final File projectSystemDir = getProjectSystemDirectory(project);
+    if (projectPath == null || projectSystemDir == null) {
+      return;
+    }
+    final long vfsStamp = ManagingFS.getInstance().getCreationTimestamp();
+    synchronized (myProjectDataMap) {
+      final ProjectData data = myProjectDataMap.get(projectPath);
+      if (data != null && !data.myNeedRescan && !myBuildsInProgress.containsKey(projectPath)) {
+        myClosedProjects.put(projectPath, Pair.create(projectSystemDir, vfsStamp));
+      }
+    }
+  }
+
+  private void restoreChangesJournal(Project project, String projectPath) {
+    synchronized (myProjectDataMap) {
+      if (myClosedProjects.remove(projectPath) != null) {
+        final ProjectData data = myProjectDataMap.get(projectPath);
+        if (data != null && data.myAwaitingInitialRefresh) {
+          // the changes made while the IDE was not running are only known after the VFS is refreshed
+          VirtualFileManager.getInstance().asyncRefresh(new Runnable() {
+            @Override
+            public void run() {
+              synchronized (myProjectDataMap) {
+                data.myAwaitingInitialRefresh = false;
+              }
+            }
+          });
+        }
+        return;
+      }
+    }
+    // the journal has not been loaded on startup, so the changes made since then are not in it
+    final File projectSystemDir = getProjectSystemDirectory(project);
+    if (projectSystemDir != null) {
+      FSChangesJournal.delete(projectSystemDir);
+    }
+  }
+
+  private void loadChangesJournals() {
+    final File[] dirs = getBuildSystemDirectory().listFiles();
+    if (dirs == null) {
+      return;
+    }
+    final long vfsStamp = ManagingFS.getInstance().getCreationTimestamp();
+    synchronized (myProjectDataMap) {
+      for (File dir : dirs) {
+        final FSChangesJournal journal = FSChangesJournal.load(dir, vfsStamp);
+        if (journal != null && !myProjectDataMap.containsKey(journal.projectPath)) {
+          final ProjectData data = new ProjectData(new SequentialTaskExecutor(myPooledThreadExecutor));
+          data.restore(journal);
+          myProjectDataMap.put(journal.projectPath, data);
+          myClosedProjects.put(journal.projectPath, Pair.create(dir, vfsStamp));
+        }
+      }
+    }
+  }
+
+  private void saveChangesJournals() {
+    // the events already queued have to get into the journals, so they are saved by the same executor after them;
+    // if a journal is not saved in time, the next build after the project is reopened will scan the file system
+    final Future<?> future = myRequestsProcessor.submit(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (myProjectDataMap) {
+          for (Map.Entry<String, Pair<File, Long>> entry : myClosedProjects.entrySet()) {
+            final ProjectData data = myProjectDataMap.get(entry.getKey());
+            if (data != null && !data.myNeedRescan && data.myChanged.size() + data.myDeleted.size() <= FS_JOURNAL_MAX_SIZE) {
+              final Pair<File, Long> dirAndStamp = entry.getValue();
+              FSChangesJournal.save(dirAndStamp.getFirst(), dirAndStamp.getSecond(), entry.getKey(), data.myNextEventOrdinal,
+                                    convertToStringPaths(data.myChanged), convertToStringPaths(data.myDeleted));
+            }
+            myProjectDataMap.remove(entry.getKey());
+          }
+          myClosedProjects.clear();
+        }
+      }
+    });
+    try {
+      future.get(FS_JOURNAL_SAVE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    catch (Exception e) {
+      LOG.info("FS changes journals are not saved", e);
+    }
+  }
+
   private static class ProjectData {
     final SequentialTaskExecutor taskQueue;
     private final Set<InternedPath> myChanged = new THashSet<InternedPath>();
     private final Set<InternedPath> myDeleted = new THashSet<InternedPath>();
     private long myNextEventOrdinal = 0L;
     private boolean myNeedRescan = true;
+    // the changes restored from a journal are incomplete until the VFS has reported the changes made while the IDE was not running
+    private boolean myAwaitingInitialRefresh;
 
     private ProjectData(SequentialTaskExecutor taskQueue) {
       this.taskQueue = taskQueue;
@@ -1163,6 +1391,14 @@ public class BuildManager implements ApplicationComponent{
       return builder.build();
     }
 
+    public void restore(FSChangesJournal journal) {
+      myNeedRescan = false;
+      myAwaitingInitialRefresh = true;
+      myNextEventOrdinal = journal.lastEventOrdinal;
+      addChanged(journal.changed);
+      addDeleted(journal.deleted);
+    }
+
     public boolean getAndResetRescanFlag() {
       final boolean rescan = myNeedRescan;
       myNeedRescan = false;
@@ -1171,6 +1407,7 @@ public class BuildManager implements ApplicationComponent{
 
     public void dropChanges() {
       myNeedRescan = true;
+      myAwaitingInitialRefresh = false;
       myNextEventOrdinal = 0L;
       myChanged.clear();
       myDeleted.clear();
@@ -43,6 +43,44 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params));
   }
 
+  /**
+   * Marks the session as served by a build daemon: the daemon reports the end of the session by requesting the parameters again
+   * and keeps the connection for the next sessions.
+   */
+  public void setDaemon(UUID sessionId, BuildDaemonPool.Daemon daemon) {
+    final SessionData data = myMessageHandlers.get(sessionId);
+    if (data != null) {
+      data.daemon = daemon;
+    }
+  }
+
+  /**
+   * Sends the session parameters to the idle daemon connected to the IDE
+   */
+  public void startDaemonSession(UUID sessionId, BuildDaemonPool.Daemon daemon) {
+    final SessionData data = myMessageHandlers.get(sessionId);
+    final Channel channel = daemon.getChannel();
+    final CmdlineRemoteProto.Message.ControllerMessage params = data != null? data.params : null;
+    if (params == null) {
+      daemon.sessionFinished(channel);
+      return;
+    }
+    data.daemon = daemon;
+    data.channel = channel;
+    data.params = null;
+    // the connection is still attached to the previous session, if the daemon dies before it sends a message of this one,
+    // the closing of the connection must terminate this session
+    final ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+    if (ctx != null) {
+      ctx.setAttachment(data);
+    }
+    data.handler.buildStarted(sessionId);
+    Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, params));
+    if (myCanceledSessions.contains(sessionId)) {
+      Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
+    }
+  }
+
   @Nullable
   public BuilderMessageHandler unregisterBuildMessageHandler(UUID sessionId) {
     myCanceledSessions.remove(sessionId);
@@ -93,6 +131,18 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
         Channels.write(ctx.getChannel(), CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
       }
     }
+    else if (sessionData.daemon != null) {
+      // a daemon serves several sessions over the same connection, the attachment is the data of the latest one
+      final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+      sessionId = new UUID(id.getMostSigBits(), id.getLeastSigBits());
+      if (!sessionId.equals(sessionData.sessionId)) {
+        final SessionData data = myMessageHandlers.get(sessionId);
+        if (data != null) {
+          ctx.setAttachment(data);
+        }
+        sessionData = data;
+      }
+    }
     else {
       sessionId = sessionData.sessionId;
     }
@@ -120,6 +170,14 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
             sessionData.params = null;
             Channels.write(ctx.getChannel(), CmdlineProtoUtil.toMessage(sessionId, params));
           }
+          else if (sessionData.daemon != null) {
+            // the daemon has finished the session; it is returned to the pool first, so that the next build can use it
+            sessionData.daemon.sessionFinished(ctx.getChannel());
+            final BuilderMessageHandler finished = unregisterBuildMessageHandler(sessionId);
+            if (finished != null) {
+              finished.sessionTerminated(sessionId);
+            }
+          }
           else {
             cancelSession(sessionId);
           }
@@ -148,6 +206,9 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
           // notify the handler only if it has not been notified yet
           handler.sessionTerminated(sessionData.sessionId);
         }
+        if (sessionData.daemon != null) {
+          sessionData.daemon.channelClosed();
+        }
       }
     }
   }
@@ -185,6 +246,7 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     final BuilderMessageHandler handler;
     volatile CmdlineRemoteProto.Message.ControllerMessage params;
     volatile Channel channel;
+    volatile BuildDaemonPool.Daemon daemon;
 
     private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params) {
       this.sessionId = sessionId;
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IOUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * File system changes the IDE has registered for a closed project but has not yet passed to the build process, saved when the IDE exits.
+ * The changes keep being recorded while the project is closed, and the journal is loaded when the IDE starts,
+ * so the next build after the project is opened again continues the sequence of FS events
+ * instead of making the build process scan all the source roots.
+ * <p/>
+ * Changes made while the IDE is not running are reported by the initial VFS refresh like any other change,
+ * so the journal is only trusted if the VFS it was recorded against still exists, and only once the project has been opened
+ * and the VFS refreshed: a build started before that scans the source roots. The journal is deleted as soon as it is read:
+ * if the IDE terminates without saving it again, the continuity is lost and the next build falls back to the scan.
+ * The build process makes its own check as well: the ordinal of the first event must follow the last ordinal it has processed.
+ *
+ * @see org.jetbrains.jps.cmdline.BuildSession
+ */
+final class FSChangesJournal {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.FSChangesJournal");
+  private static final String FILE_NAME = "fs_journal.dat";
+  private static final int VERSION = 2;
+
+  final String projectPath;
+  final long lastEventOrdinal;
+  final List<String> changed;
+  final List<String> deleted;
+
+  private FSChangesJournal(String projectPath, long lastEventOrdinal, List<String> changed, List<String> deleted) {
+    this.projectPath = projectPath;
+    this.lastEventOrdinal = lastEventOrdinal;
+    this.changed = changed;
+    this.deleted = deleted;
+  }
+
+  /**
+   * @param vfsStamp creation timestamp of the VFS the events are coming from
+   */
+  static void save(@NotNull File projectSystemDir, long vfsStamp, @NotNull String projectPath, long lastEventOrdinal,
+                   @NotNull Collection<String> changed, @NotNull Collection<String> deleted) {
+    final File file = new File(projectSystemDir, FILE_NAME);
+    try {
+      FileUtil.createParentDirs(file);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        out.writeInt(VERSION);
+        out.writeLong(vfsStamp);
+        IOUtil.writeString(projectPath, out);
+        out.writeLong(lastEventOrdinal);
+        writePaths(out, changed);
+        writePaths(out, deleted);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot save FS changes journal to " + file.getPath(), e);
+      FileUtil.delete(file);
+    }
+  }
+
+  /**
+   * Reads and deletes the journal.
+   *
+   * @return null if there is no journal or if it cannot be trusted
+   */
+  @Nullable
+  static FSChangesJournal load(@NotNull File projectSystemDir, long vfsStamp) {
+    final File file = new File(projectSystemDir, FILE_NAME);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION || in.readLong() != vfsStamp) {
+          return null;
+        }
+        final String projectPath = IOUtil.readString(in);
+        final long ordinal = in.readLong();
+        final List<String> changed = readPaths(in);
+        final List<String> deleted = readPaths(in);
+        return new FSChangesJournal(projectPath, ordinal, changed, deleted);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot load FS changes journal from " + file.getPath(), e);
+      return null;
+    }
+    finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  static void delete(@NotNull File projectSystemDir) {
+    FileUtil.delete(new File(projectSystemDir, FILE_NAME));
+  }
+
+  private static void writePaths(DataOutput out, Collection<String> paths) throws IOException {
+    out.writeInt(paths.size());
+    for (String path : paths) {
+      IOUtil.writeString(path, out);
+    }
+  }
+
+  private static List<String> readPaths(DataInput in) throws IOException {
+    int count = in.readInt();
+    final List<String> paths = new ArrayList<String>(count);
+    while (count-- > 0) {
+      paths.add(IOUtil.readString(in));
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.compiler.BaseCompilerTestCase;
+import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.List;
+
+public class BuildDaemonTest extends BaseCompilerTestCase {
+  @Override
+  protected boolean useExternalCompiler() {
+    return true;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Registry.get("compiler.process.daemon").setValue(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      BuildManager.getInstance().getDaemonPool().shutdownAll();
+      Registry.get("compiler.process.daemon").resetToDefault();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testDaemonIsReusedByNextBuild() {
+    VirtualFile a = createFile("src/A.java", "class A{}");
+    Module module = addModule("a", a.getParent());
+    make(module);
+    BuildDaemonPool.Daemon daemon = assertOneDaemon();
+    OSProcessHandler processHandler = daemon.getProcessHandler();
+    assertFalse(processHandler.isProcessTerminated());
+
+    // the output written during the previous session is not reported for the next one
+    synchronized (daemon.getStdErrOutput()) {
+      daemon.getStdErrOutput().append("stale output");
+    }
+    changeFile(a, "class A{ int a; }");
+    make(module).assertRecompiled("src/A.java");
+    assertSame(daemon, assertOneDaemon());
+    assertSame(processHandler, daemon.getProcessHandler());
+    assertFalse(daemon.getStdErrOutput().toString().contains("stale output"));
+  }
+
+  public void testDaemonIsShutDownWhenProjectConfigurationChanges() {
+    VirtualFile a = createFile("src/A.java", "class A{}");
+    Module module = addModule("a", a.getParent());
+    make(module);
+    OSProcessHandler processHandler = assertOneDaemon().getProcessHandler();
+
+    BuildManager.getInstance().clearState(myProject);
+    assertTrue(getDaemons().isEmpty());
+    assertTrue(processHandler.waitFor(10000));
+
+    changeFile(a, "class A{ int a; }");
+    make(module).assertRecompiled("src/A.java");
+    assertNotSame(processHandler, assertOneDaemon().getProcessHandler());
+  }
+
+  private BuildDaemonPool.Daemon assertOneDaemon() {
+    List<BuildDaemonPool.Daemon> daemons = getDaemons();
+    assertEquals(1, daemons.size());
+    return daemons.get(0);
+  }
+
+  private List<BuildDaemonPool.Daemon> getDaemons() {
+    return BuildManager.getInstance().getDaemonPool().getDaemons(BuildManager.getProjectPath(myProject));
+  }
+}
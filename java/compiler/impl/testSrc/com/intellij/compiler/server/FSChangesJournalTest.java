@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.compiler.BaseCompilerTestCase;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
+
+public class FSChangesJournalTest extends BaseCompilerTestCase {
+  @Override
+  protected boolean useExternalCompiler() {
+    return true;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Registry.get("compiler.build.fs.journal").setValue(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Registry.get("compiler.build.fs.journal").resetToDefault();
+    super.tearDown();
+  }
+
+  public void testFileChangedWhileProjectIsClosed() {
+    doTestChangeWhileClosed(false);
+  }
+
+  public void testFileChangedAfterRestartBeforeProjectIsOpened() {
+    doTestChangeWhileClosed(true);
+  }
+
+  private void doTestChangeWhileClosed(boolean restartIde) {
+    final VirtualFile a = createFile("src/A.java", "class A{}");
+    createFile("src/B.java", "class B{}");
+    final Module module = addModule("a", a.getParent());
+    make(module);
+    make(module).assertUpToDate();
+
+    BuildManager.getInstance().simulateProjectReopening(myProject, restartIde, new Runnable() {
+      @Override
+      public void run() {
+        changeFile(a, "class A{ int a; }");
+      }
+    });
+    make(module).assertRecompiled("src/A.java");
+    make(module).assertUpToDate();
+  }
+}
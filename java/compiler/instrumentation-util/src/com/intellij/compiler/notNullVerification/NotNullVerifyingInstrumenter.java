@@ -40,6 +40,8 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
   private static final String NULL_ARG_MESSAGE = "Argument %s for @NotNull parameter of %s.%s must not be null";
   private static final String NULL_RESULT_MESSAGE = "@NotNull method %s.%s must not return null";
   @SuppressWarnings("SSBasedInspection") private static final String[] EMPTY_STRING_ARRAY = new String[0];
+  private static final byte[] NOT_NULL_TYPE_BYTES = toAsciiBytes(NOT_NULL_TYPE);
+  private static final int CONSTANT_UTF8_TAG = 1;
 
   private String myClassName;
   private boolean myIsModification = false;
@@ -53,6 +55,43 @@ public class NotNullVerifyingInstrumenter extends ClassVisitor implements Opcode
     return myIsModification;
   }
 
+  /**
+   * Checks the constant pool of the class for the descriptor of the annotation, which is much cheaper than visiting the class.
+   *
+   * @return false if the class certainly has nothing to instrument
+   */
+  public static boolean mayHaveNotNullAnnotations(ClassReader reader) {
+    final byte[] b = reader.b;
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      final int offset = reader.getItem(i);
+      // the second slot of long and double constants has no item
+      if (offset == 0 || b[offset - 1] != CONSTANT_UTF8_TAG) {
+        continue;
+      }
+      if (reader.readUnsignedShort(offset) == NOT_NULL_TYPE_BYTES.length && regionMatches(b, offset + 2, NOT_NULL_TYPE_BYTES)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean regionMatches(byte[] b, int offset, byte[] expected) {
+    for (int i = 0; i < expected.length; i++) {
+      if (b[offset + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] toAsciiBytes(String s) {
+    final byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)s.charAt(i);
+    }
+    return bytes;
+  }
+
   @Override
   public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
     super.visit(version, access, name, signature, superName, interfaces);
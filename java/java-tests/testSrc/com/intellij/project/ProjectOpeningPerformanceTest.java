@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.project;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.module.StdModuleTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ex.ProjectManagerEx;
+import com.intellij.openapi.project.impl.ProjectImpl;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.PsiTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.io.File;
+
+/**
+ * Opening of a project having many modules. Run with -Didea.lazy.project.components=true to measure it
+ * with the deferrable project components created on demand.
+ */
+public class ProjectOpeningPerformanceTest extends PlatformTestCase {
+  private static final int MODULE_COUNT = 500;
+
+  public void testOpenProjectWithManyModules() throws Throwable {
+    File projectDir = createTempDirectory();
+    final String projectPath = new File(projectDir, "many-modules.ipr").getPath();
+    createProjectWithModules(projectDir, projectPath);
+
+    PlatformTestUtil.startPerformanceTest("opening project with " + MODULE_COUNT + " modules (lazy components: " +
+                                          ProjectImpl.LAZY_COMPONENTS + ")", 20000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        Project project = ProjectManagerEx.getInstanceEx().loadAndOpenProject(projectPath);
+        assertNotNull(project);
+        assertEquals(MODULE_COUNT, ModuleManager.getInstance(project).getModules().length);
+        ProjectManagerEx.getInstanceEx().closeAndDispose(project);
+      }
+    }).attempts(2).assertTiming();
+  }
+
+  private static void createProjectWithModules(File projectDir, String projectPath) {
+    final Project project = createProject(new File(projectPath), "ProjectOpeningPerformanceTest");
+    try {
+      for (int i = 0; i < MODULE_COUNT; i++) {
+        File moduleDir = new File(projectDir, "module" + i);
+        File sourceDir = new File(moduleDir, "src");
+        assertTrue(sourceDir.mkdirs());
+        VirtualFile moduleRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(moduleDir);
+        VirtualFile sourceRoot = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(sourceDir);
+        assertNotNull(moduleRoot);
+        assertNotNull(sourceRoot);
+
+        final String moduleFilePath = new File(moduleDir, "module" + i + ".iml").getPath();
+        Module module = ApplicationManager.getApplication().runWriteAction(new Computable<Module>() {
+          @Override
+          public Module compute() {
+            return ModuleManager.getInstance(project).newModule(moduleFilePath, StdModuleTypes.JAVA.getId());
+          }
+        });
+        PsiTestUtil.addContentRoot(module, moduleRoot);
+        PsiTestUtil.addSourceRoot(module, sourceRoot);
+      }
+      project.save();
+    }
+    finally {
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          Disposer.dispose(project);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.search;
+
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.PsiTestCase;
+import com.intellij.util.Function;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.text.StringSearcher;
+import com.intellij.util.ui.UIUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelinedFileProcessorTest extends PsiTestCase {
+  private static final int MANY_FILES = 300;
+
+  public void testFilesWithoutWordsAreSkipped() throws Exception {
+    List<VirtualFile> files = new ArrayList<VirtualFile>();
+    files.add(createFile("a.txt", "some word here").getVirtualFile());
+    files.add(createFile("b.txt", "nothing").getVirtualFile());
+    files.add(createFile("c.txt", "Word in another case").getVirtualFile());
+
+    final Set<String> processed = Collections.synchronizedSet(ContainerUtil.<String>newHashSet());
+    assertTrue(process(files, new Processor<PsiElement>() {
+      @Override
+      public boolean process(PsiElement element) {
+        processed.add(((PsiFile)element).getName());
+        return true;
+      }
+    }));
+    assertEquals(ContainerUtil.newHashSet("a.txt"), processed);
+  }
+
+  public void testUnsavedDocumentIsNotSkipped() throws Exception {
+    PsiFile file = createFile("a.txt", "nothing");
+    final Document document = FileDocumentManager.getInstance().getDocument(file.getVirtualFile());
+    assertNotNull(document);
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        document.insertString(0, "word ");
+      }
+    }.execute();
+
+    final AtomicInteger processed = new AtomicInteger();
+    assertTrue(process(Collections.singletonList(file.getVirtualFile()), new Processor<PsiElement>() {
+      @Override
+      public boolean process(PsiElement element) {
+        processed.incrementAndGet();
+        return true;
+      }
+    }));
+    assertEquals(1, processed.get());
+  }
+
+  public void testStoppedByRootProcessor() throws Exception {
+    final AtomicInteger processed = new AtomicInteger();
+    assertFalse(runInBackground(createFiles(), new Processor<PsiElement>() {
+      @Override
+      public boolean process(PsiElement element) {
+        processed.incrementAndGet();
+        return false;
+      }
+    }));
+    assertTrue(processed.get() < MANY_FILES);
+  }
+
+  public void testFailureIsRethrown() throws Exception {
+    try {
+      runInBackground(createFiles(), new Processor<PsiElement>() {
+        @Override
+        public boolean process(PsiElement element) {
+          throw new IllegalStateException("expected");
+        }
+      });
+      fail();
+    }
+    catch (IllegalStateException e) {
+      assertEquals("expected", e.getMessage());
+    }
+  }
+
+  public void testFileInOtherEncodingIsNotSkipped() throws Exception {
+    final VirtualFile file = createFile("u.txt", "").getVirtualFile();
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        byte[] text = "some word here".getBytes("UTF-16LE");
+        byte[] content = new byte[text.length + 2];
+        content[0] = (byte)0xFF;
+        content[1] = (byte)0xFE;
+        System.arraycopy(text, 0, content, 2, text.length);
+        file.setBinaryContent(content);
+      }
+    }.execute();
+
+    final AtomicInteger processed = new AtomicInteger();
+    assertTrue(process(Collections.singletonList(file), new Processor<PsiElement>() {
+      @Override
+      public boolean process(PsiElement element) {
+        processed.incrementAndGet();
+        return true;
+      }
+    }));
+    assertEquals(1, processed.get());
+  }
+
+  // the workers must not wait for a write action which itself waits for the read action of the caller
+  public void testPendingWriteActionWhileCallerHoldsReadAction() throws Exception {
+    final List<VirtualFile> files = createFiles();
+    final CountDownLatch writeActionPending = new CountDownLatch(1);
+    ApplicationManager.getApplication().addApplicationListener(new ApplicationAdapter() {
+      @Override
+      public void beforeWriteActionStart(Object action) {
+        writeActionPending.countDown();
+      }
+    }, getTestRootDisposable());
+
+    final AtomicBoolean writeActionRequested = new AtomicBoolean();
+    final Processor<PsiElement> processor = new Processor<PsiElement>() {
+      @Override
+      public boolean process(PsiElement element) {
+        if (writeActionRequested.compareAndSet(false, true)) {
+          ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              ApplicationManager.getApplication().runWriteAction(new Runnable() {
+                @Override
+                public void run() {
+                }
+              });
+            }
+          });
+          try {
+            assertTrue(writeActionPending.await(10, TimeUnit.SECONDS));
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return true;
+      }
+    };
+    Future<Boolean> future = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+          @Override
+          public Boolean compute() {
+            try {
+              return newProcessor("word", processor).process(files).get();
+            }
+            catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+      }
+    });
+    long deadline = System.currentTimeMillis() + 60 * 1000;
+    while (!future.isDone() && System.currentTimeMillis() < deadline) {
+      UIUtil.dispatchAllInvocationEvents();
+      Thread.sleep(10);
+    }
+    assertTrue(future.get(1, TimeUnit.SECONDS));
+    assertTrue(writeActionRequested.get());
+  }
+
+  private List<VirtualFile> createFiles() throws Exception {
+    List<VirtualFile> files = new ArrayList<VirtualFile>();
+    for (int i = 0; i < MANY_FILES; i++) {
+      files.add(createFile("f" + i + ".txt", "word " + i).getVirtualFile());
+    }
+    return files;
+  }
+
+  // the processing hanging would hang the test otherwise
+  private boolean runInBackground(final List<VirtualFile> files, final Processor<PsiElement> processor) throws Exception {
+    Future<Boolean> future = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return process(files, processor);
+      }
+    });
+    try {
+      return future.get(60, TimeUnit.SECONDS);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+      throw e;
+    }
+  }
+
+  private boolean process(List<VirtualFile> files, Processor<PsiElement> processor) throws Exception {
+    try {
+      return newProcessor("word", processor).process(files).get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+      throw e;
+    }
+  }
+
+  private PipelinedFileProcessor newProcessor(String word, Processor<PsiElement> processor) {
+    final Collection<StringSearcher> searchers = Collections.singletonList(new StringSearcher(word, true, true));
+    return new PipelinedFileProcessor(myPsiManager, new Function<VirtualFile, Collection<StringSearcher>>() {
+      @Override
+      public Collection<StringSearcher> fun(VirtualFile file) {
+        return searchers;
+      }
+    }, processor, null);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.search;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiReference;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.PsiTestCase;
+import com.intellij.testFramework.PsiTestUtil;
+import com.intellij.testFramework.fixtures.TempDirTestFixture;
+import com.intellij.testFramework.fixtures.impl.LightTempDirTestFixtureImpl;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many words searched in the same candidate files (e.g. usages of a method with lots of overriders)
+ * should be found in a single pass over each file.
+ */
+public class MultiWordSearchPerformanceTest extends PsiTestCase {
+  private static final int FILE_COUNT = 10000;
+  private static final int WORD_COUNT = 20;
+
+  public void testManyWordsInManyFiles() throws Throwable {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      StringBuilder body = new StringBuilder();
+      for (int i = 0; i < WORD_COUNT; i++) {
+        body.append("  void m").append(i).append("() { word").append(i).append("(); /* word").append(i).append(" */ }\n");
+      }
+      String sampleText = StringUtil.repeat(body.toString(), 5);
+      for (int i = 0; i < FILE_COUNT; i++) {
+        fixture.createFile("p/C" + i + ".java", "package p;\nclass C" + i + " {\n" + sampleText + "}\n");
+      }
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      final GlobalSearchScope scope = GlobalSearchScope.projectScope(myProject);
+      final AtomicInteger occurrences = new AtomicInteger();
+      final RequestResultProcessor counter = new RequestResultProcessor() {
+        @Override
+        public boolean processTextOccurrence(@NotNull PsiElement element, int offsetInElement, @NotNull Processor<PsiReference> consumer) {
+          occurrences.incrementAndGet();
+          return true;
+        }
+      };
+
+      ThrowableRunnable test = new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          occurrences.set(0);
+          SearchRequestCollector collector = new SearchRequestCollector(new SearchSession());
+          for (int i = 0; i < WORD_COUNT; i++) {
+            collector.searchWord("word" + i, scope, UsageSearchContext.IN_CODE, true, counter);
+          }
+          assertTrue(PsiSearchHelper.SERVICE.getInstance(myProject)
+                       .processRequests(collector, new CommonProcessors.CollectProcessor<PsiReference>()));
+          assertTrue(occurrences.get() > 0);
+        }
+      };
+
+      PlatformTestUtil.startPerformanceTest("multi-word search in " + FILE_COUNT + " files", 30000, test)
+        .attempts(2).cpuBound().usesAllCPUCores().assertTiming();
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+}
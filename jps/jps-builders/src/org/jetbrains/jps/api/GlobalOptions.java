@@ -22,9 +22,18 @@ package org.jetbrains.jps.api;
 public interface GlobalOptions {
   String USE_MEMORY_TEMP_CACHE_OPTION = "use.memory.temp.cache";
   String USE_EXTERNAL_JAVAC_OPTION = "use.external.javac.process";
+  String KEEP_JAVAC_WARM_OPTION = "keep.javac.warm";
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String COMPILE_PARALLEL_PIPELINED_OPTION = "compile.parallel.pipelined";
+  String DIFFERENTIATE_PARALLEL_OPTION = "differentiate.parallel";
   String REBUILD_ON_DEPENDENCY_CHANGE_OPTION = "rebuild.on.dependency.change";
   String LOG_DIR_OPTION = "log.dir";
+  String BUILD_BACKWARD_REFERENCE_INDEX_OPTION = "build.backward.reference.index";
+  String CONTENT_HASH_TIMESTAMPS_OPTION = "content.hash.timestamps";
+  String INCREMENTAL_ARTIFACT_PACKING_OPTION = "incremental.artifact.packing";
+  String RESOURCES_HARD_LINKS_OPTION = "resources.hard.links";
+  String JPS_MODEL_CACHE_OPTION = "jps.model.cache";
+  String BUILD_DAEMON_OPTION = "build.daemon";
 }
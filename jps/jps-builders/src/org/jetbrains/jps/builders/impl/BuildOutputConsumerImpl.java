@@ -16,16 +16,20 @@
 package org.jetbrains.jps.builders.impl;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.SmartList;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
 import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.incremental.messages.FileGeneratedEvent;
+import org.jetbrains.jps.incremental.storage.SourceToOutputMappingImpl;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Map;
 
 /**
 * @author Eugene Zhuravlev
@@ -48,14 +52,7 @@ public class BuildOutputConsumerImpl implements BuildOutputConsumer {
   @Override
   public void registerOutputFile(final File outputFile, Collection<String> sourcePaths) throws IOException {
     final String outputFilePath = FileUtil.toSystemIndependentName(outputFile.getPath());
-    for (File outputRoot : myOutputs) {
-      String outputRootPath = FileUtil.toSystemIndependentName(outputRoot.getPath());
-      final String relativePath = FileUtil.getRelativePath(outputRootPath, outputFilePath, '/');
-      if (relativePath != null && !relativePath.startsWith("../")) {
-        // the relative path must be under the root or equal to it
-        myFileGeneratedEvent.add(outputRootPath, relativePath);
-      }
-    }
+    addGeneratedFile(outputFilePath);
     final SourceToOutputMapping mapping = myContext.getProjectDescriptor().dataManager.getSourceToOutputMap(myTarget);
     for (String sourcePath : sourcePaths) {
       if (myRegisteredSources.add(FileUtil.toSystemIndependentName(sourcePath))) {
@@ -67,6 +64,56 @@ public class BuildOutputConsumerImpl implements BuildOutputConsumer {
     }
   }
 
+  /**
+   * Same as calling {@link #registerOutputFile} for every entry, but the outputs of the sources which are registered for the first time
+   * are written to the source-to-output mapping in a single update.
+   */
+  public void registerOutputFiles(Map<File, Collection<String>> outputToSources) throws IOException {
+    final SourceToOutputMapping mapping = myContext.getProjectDescriptor().dataManager.getSourceToOutputMap(myTarget);
+    final Map<String, Collection<String>> newMappings = new THashMap<String, Collection<String>>(FileUtil.PATH_HASHING_STRATEGY);
+    for (Map.Entry<File, Collection<String>> entry : outputToSources.entrySet()) {
+      final String outputFilePath = FileUtil.toSystemIndependentName(entry.getKey().getPath());
+      addGeneratedFile(outputFilePath);
+      for (String sourcePath : entry.getValue()) {
+        final String path = FileUtil.toSystemIndependentName(sourcePath);
+        if (myRegisteredSources.add(path)) {
+          newMappings.put(path, new SmartList<String>(outputFilePath));
+        }
+        else {
+          final Collection<String> outputs = newMappings.get(path);
+          if (outputs != null) {
+            outputs.add(outputFilePath);
+          }
+          else {
+            mapping.appendOutput(sourcePath, outputFilePath);
+          }
+        }
+      }
+    }
+    if (newMappings.isEmpty()) {
+      return;
+    }
+    if (mapping instanceof SourceToOutputMappingImpl) {
+      ((SourceToOutputMappingImpl)mapping).setOutputs(newMappings);
+    }
+    else {
+      for (Map.Entry<String, Collection<String>> entry : newMappings.entrySet()) {
+        mapping.setOutputs(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void addGeneratedFile(String outputFilePath) {
+    for (File outputRoot : myOutputs) {
+      String outputRootPath = FileUtil.toSystemIndependentName(outputRoot.getPath());
+      final String relativePath = FileUtil.getRelativePath(outputRootPath, outputFilePath, '/');
+      if (relativePath != null && !relativePath.startsWith("../")) {
+        // the relative path must be under the root or equal to it
+        myFileGeneratedEvent.add(outputRootPath, relativePath);
+      }
+    }
+  }
+
   public void fireFileGeneratedEvent() {
     if (!myFileGeneratedEvent.getPaths().isEmpty()) {
       myContext.processMessage(myFileGeneratedEvent);
@@ -174,6 +174,7 @@ public class JavaBuilderUtil {
 
       context.processMessage(new ProgressMessage("Updating dependency information... [" + chunk.getName() + "]"));
 
+      delta.setCompilationStartStamp(context.getCompilationStartStamp());
       globalMappings.integrate(delta);
 
       return additionalPassRequired;
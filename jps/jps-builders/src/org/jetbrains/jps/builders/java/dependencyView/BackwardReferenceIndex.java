@@ -0,0 +1,379 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.IntInlineKeyDescriptor;
+import com.intellij.util.io.PersistentStringEnumerator;
+import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of references found in the compiled classes. For every class produced by the java builder it keeps the classes and members
+ * the class refers to and the classes it extends, so that the classes referring to a symbol are found without any text search.
+ * <p/>
+ * Members are identified by the internal name of the class they are referred through and by their name only,
+ * so all the overloads of a method share the same entry.
+ * The index has its own name table, so it can be read outside of the build process (while no build is running).
+ * It is filled as the classes get compiled, so a rebuild is needed to make it describe the whole project:
+ * until then the index is not marked {@link #isComplete() complete} and must not be used to narrow any search.
+ * Javac drops code under constant conditions together with the references in it, so the sources where such code may be
+ * are {@link #removeSource(File) left out} of the index.
+ *
+ * @see Mappings#setBackwardReferenceIndex(BackwardReferenceIndex)
+ */
+public class BackwardReferenceIndex {
+  public static final String STORAGE_NAME = "backward-refs";
+  private static final String NAMES = "names.tab";
+  private static final String REFERENCE_TO_CLASSES = "referenceToClasses.tab";
+  private static final String CLASS_TO_REFERENCES = "classToReferences.tab";
+  private static final String CLASS_TO_SUBCLASSES = "classToSubclasses.tab";
+  private static final String CLASS_TO_SUPERS = "classToSupers.tab";
+  private static final String CLASS_TO_SOURCE = "classToSource.tab";
+  private static final String SOURCE_STAMPS = "sourceStamps.tab";
+  private static final String COMPLETE_MARKER = "complete";
+  private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
+  private static final char MEMBER_SEPARATOR = '.';
+
+  private final File myRootDir;
+  private final Object myLock = new Object();
+  private PersistentStringEnumerator myNames;
+  private IntIntMultiMaplet myReferenceToClasses;
+  private IntIntMultiMaplet myClassToReferences;
+  private IntIntMultiMaplet myClassToSubclasses;
+  private IntIntMultiMaplet myClassToSupers;
+  private IntObjectMaplet<File> myClassToSource;
+  /**
+   * key: path of a source file; value: modification stamp the file had when its classes were indexed
+   */
+  private IntObjectMaplet<Long> mySourceStamps;
+
+  public BackwardReferenceIndex(@NotNull File rootDir) throws IOException {
+    myRootDir = rootDir;
+    open();
+  }
+
+  private void open() throws IOException {
+    myNames = new PersistentStringEnumerator(DependencyContext.getTableFile(myRootDir, NAMES), true);
+    myReferenceToClasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, REFERENCE_TO_CLASSES), INT_KEY_DESCRIPTOR);
+    myClassToReferences = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_REFERENCES), INT_KEY_DESCRIPTOR);
+    myClassToSubclasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
+    myClassToSupers = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUPERS), INT_KEY_DESCRIPTOR);
+    myClassToSource = new IntObjectPersistentMaplet<File>(DependencyContext.getTableFile(myRootDir, CLASS_TO_SOURCE), new FileKeyDescriptor());
+    mySourceStamps = new IntObjectPersistentMaplet<Long>(DependencyContext.getTableFile(myRootDir, SOURCE_STAMPS), new DataExternalizer<Long>() {
+      @Override
+      public void save(DataOutput out, Long value) throws IOException {
+        out.writeLong(value);
+      }
+
+      @Override
+      public Long read(DataInput in) throws IOException {
+        return in.readLong();
+      }
+    });
+  }
+
+  public static boolean exists(@NotNull File rootDir) {
+    return new File(rootDir, NAMES).exists();
+  }
+
+  /**
+   * @return true if the index in the directory has been filled by a rebuild of the project and kept up to date by every build since then
+   */
+  public static boolean isComplete(@NotNull File rootDir) {
+    return exists(rootDir) && new File(rootDir, COMPLETE_MARKER).exists();
+  }
+
+  public boolean isComplete() {
+    return isComplete(myRootDir);
+  }
+
+  /**
+   * The marker is removed before each build and restored only after the build has updated the index successfully,
+   * so the index is not trusted if a build has been interrupted.
+   */
+  public void setComplete(boolean complete) throws IOException {
+    final File marker = new File(myRootDir, COMPLETE_MARKER);
+    if (complete) {
+      if (!FileUtil.createIfDoesntExist(marker)) {
+        throw new IOException("Cannot create " + marker.getPath());
+      }
+    }
+    else if (!FileUtil.delete(marker)) {
+      throw new IOException("Cannot delete " + marker.getPath());
+    }
+  }
+
+  @NotNull
+  public File getRootDir() {
+    return myRootDir;
+  }
+
+  /**
+   * @param className internal name of a class, e.g. "java/util/Map$Entry"
+   * @param memberName name of a field or method, "&lt;init&gt;" for constructors, or null to find references to the class itself
+   * @return source files of the compiled classes referring to the symbol
+   */
+  @NotNull
+  public Set<File> getReferringSources(@NotNull String className, @Nullable String memberName) {
+    synchronized (myLock) {
+      final Set<File> result = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+      final int reference = find(getReferenceName(className, memberName));
+      if (reference != 0) {
+        final TIntHashSet classes = myReferenceToClasses.get(reference);
+        if (classes != null) {
+          classes.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int aClass) {
+              final File source = myClassToSource.get(aClass);
+              if (source != null) {
+                result.add(source);
+              }
+              return true;
+            }
+          });
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @return internal names of the compiled classes directly extending or implementing the class
+   */
+  @NotNull
+  public Set<String> getDirectSubclasses(@NotNull String className) {
+    synchronized (myLock) {
+      final Set<String> result = new HashSet<String>();
+      final int name = find(className);
+      final TIntHashSet subclasses = name != 0 ? myClassToSubclasses.get(name) : null;
+      if (subclasses != null) {
+        subclasses.forEach(new TIntProcedure() {
+          @Override
+          public boolean execute(int subclass) {
+            ContainerUtil.addIfNotNull(valueOf(subclass), result);
+            return true;
+          }
+        });
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Classes are indexed when they are compiled, so a source file which has not been compiled since the index was created,
+   * or which has been changed after its last successful compilation, is not described by the index.
+   *
+   * @return modification stamps the indexed source files had when their classes were indexed;
+   * a source file is described by the index only while its modification stamp is the same
+   */
+  @NotNull
+  public Map<File, Long> getSourceStamps() {
+    synchronized (myLock) {
+      final Map<File, Long> result = new THashMap<File, Long>(FileUtil.FILE_HASHING_STRATEGY);
+      mySourceStamps.forEachEntry(new TIntObjectProcedure<Long>() {
+        @Override
+        public boolean execute(int source, Long stamp) {
+          final String path = valueOf(source);
+          if (path != null) {
+            result.put(new File(path), stamp);
+          }
+          return true;
+        }
+      });
+      return result;
+    }
+  }
+
+  /**
+   * @param compilationStartStamp time the compilation of the source started: if the source has been modified since then,
+   *                              it may differ from what has been compiled, so its stamp is not recorded and it is not described by the index
+   */
+  void update(@NotNull String className, @NotNull File source, long compilationStartStamp,
+              @NotNull Collection<String> supers, @NotNull Collection<String> references) {
+    synchronized (myLock) {
+      final int name = enumerate(className);
+      removeClass(name);
+
+      myClassToSource.put(name, source);
+      final int sourceName = enumerate(getSourceName(source));
+      final long stamp = source.lastModified();
+      if (stamp <= compilationStartStamp) {
+        mySourceStamps.put(sourceName, stamp);
+      }
+      else {
+        mySourceStamps.remove(sourceName);
+      }
+
+      final TIntHashSet superNames = new TIntHashSet();
+      for (String superName : supers) {
+        final int superId = enumerate(superName);
+        superNames.add(superId);
+        myClassToSubclasses.put(superId, name);
+      }
+      myClassToSupers.replace(name, superNames);
+
+      final TIntHashSet referenceNames = new TIntHashSet();
+      for (String reference : references) {
+        final int referenceId = enumerate(reference);
+        referenceNames.add(referenceId);
+        myReferenceToClasses.put(referenceId, name);
+      }
+      myClassToReferences.replace(name, referenceNames);
+    }
+  }
+
+  void remove(@NotNull String className) {
+    synchronized (myLock) {
+      removeClass(enumerate(className));
+    }
+  }
+
+  /**
+   * Makes the source not described by the index until its classes are indexed again.
+   */
+  public void removeSource(@NotNull File source) {
+    synchronized (myLock) {
+      final int sourceName = find(getSourceName(source));
+      if (sourceName != 0) {
+        mySourceStamps.remove(sourceName);
+      }
+    }
+  }
+
+  private void removeClass(final int name) {
+    final TIntHashSet references = myClassToReferences.get(name);
+    if (references != null) {
+      references.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int reference) {
+          myReferenceToClasses.removeFrom(reference, name);
+          return true;
+        }
+      });
+      myClassToReferences.remove(name);
+    }
+
+    final TIntHashSet supers = myClassToSupers.get(name);
+    if (supers != null) {
+      supers.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int superName) {
+          myClassToSubclasses.removeFrom(superName, name);
+          return true;
+        }
+      });
+      myClassToSupers.remove(name);
+    }
+
+    myClassToSource.remove(name);
+  }
+
+  @NotNull
+  static String getReferenceName(@NotNull String className, @Nullable String memberName) {
+    return memberName == null ? className : className + MEMBER_SEPARATOR + memberName;
+  }
+
+  @NotNull
+  private static String getSourceName(@NotNull File source) {
+    return FileUtil.toSystemIndependentName(source.getPath());
+  }
+
+  private int enumerate(@NotNull String name) {
+    try {
+      return myNames.enumerate(name);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Unlike {@link #enumerate(String)} never modifies the name table, so it is safe to use when the index is only read.
+   *
+   * @return id of the name or 0 if the name is unknown
+   */
+  private int find(@NotNull String name) {
+    try {
+      return myNames.tryEnumerate(name);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Nullable
+  private String valueOf(int id) {
+    try {
+      return myNames.valueOf(id);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void clean() throws IOException {
+    synchronized (myLock) {
+      close();
+      FileUtil.delete(myRootDir);
+      open();
+    }
+  }
+
+  public void flush(boolean memoryCachesOnly) {
+    synchronized (myLock) {
+      myReferenceToClasses.flush(memoryCachesOnly);
+      myClassToReferences.flush(memoryCachesOnly);
+      myClassToSubclasses.flush(memoryCachesOnly);
+      myClassToSupers.flush(memoryCachesOnly);
+      myClassToSource.flush(memoryCachesOnly);
+      mySourceStamps.flush(memoryCachesOnly);
+      if (!memoryCachesOnly) {
+        myNames.force();
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (myLock) {
+      myReferenceToClasses.close();
+      myClassToReferences.close();
+      myClassToSubclasses.close();
+      myClassToSupers.close();
+      myClassToSource.close();
+      mySourceStamps.close();
+      try {
+        myNames.close();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -22,25 +22,44 @@ import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TIntObjectProcedure;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 
 /**
+ * Changes are not written to the storage at once: they are collected in memory and written sorted by key
+ * when the maplet is flushed or when there are too many of them.
+ *
  * @author: db
  * Date: 08.03.11
  */
 class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   private static final TIntHashSet NULL_COLLECTION = new TIntHashSet();
-  private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<Integer, TIntHashSet> myMap;
   private final SLRUCache<Integer, TIntHashSet> myCache;
+  /**
+   * key -> complete new value of the key; an empty set means the key is removed
+   */
+  private final TIntObjectHashMap<TIntHashSet> myReplaced = new TIntObjectHashMap<TIntHashSet>();
+  /**
+   * key -> values to be appended to the stored value of the key; a key is never contained in both maps
+   */
+  private final TIntObjectHashMap<TIntHashSet> myAppended = new TIntObjectHashMap<TIntHashSet>();
+  private final int myWriteBehindLimit;
+  private int myPendingSize;
 
   public IntIntPersistentMultiMaplet(final File file, final KeyDescriptor<Integer> keyExternalizer) throws IOException {
+    this(file, keyExternalizer, MapletCacheSizes.WRITE_BEHIND_INTS);
+  }
+
+  IntIntPersistentMultiMaplet(final File file, final KeyDescriptor<Integer> keyExternalizer, final int writeBehindLimit) throws IOException {
+    myWriteBehindLimit = writeBehindLimit;
     myMap = new PersistentHashMap<Integer, TIntHashSet>(file, keyExternalizer, new IntSetExternalizer());
-    myCache = new SLRUCache<Integer, TIntHashSet>(CACHE_SIZE, CACHE_SIZE) {
+    myCache = new SLRUCache<Integer, TIntHashSet>(MapletCacheSizes.READ_CACHE_SIZE, MapletCacheSizes.READ_CACHE_SIZE) {
       @NotNull
       @Override
       public TIntHashSet createValue(Integer key) {
@@ -57,6 +76,13 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
 
   @Override
   public boolean containsKey(final int key) {
+    final TIntHashSet replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return !replaced.isEmpty();
+    }
+    if (myAppended.containsKey(key)) {
+      return true;
+    }
     try {
       return myMap.containsMapping(key);
     }
@@ -67,125 +93,109 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
 
   @Override
   public TIntHashSet get(final int key) {
+    final TIntHashSet replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return replaced.isEmpty()? null : replaced;
+    }
+    if (myAppended.containsKey(key)) {
+      return getForUpdate(key);
+    }
     final TIntHashSet collection = myCache.get(key);
     return collection == NULL_COLLECTION? null : collection;
   }
 
-  @Override
-  public void replace(int key, TIntHashSet value) {
-    try {
-      myCache.remove(key);
-      if (value == null || value.isEmpty()) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
+  /**
+   * @return the pending complete value of the key, created from the stored and the appended values if needed.
+   * The pending changes are never written here: the caller changes the returned set and then calls {@link #pendingChanged(int)},
+   * otherwise the changes would go to a set which is already written and forgotten.
+   */
+  @NotNull
+  private TIntHashSet getForUpdate(final int key) {
+    TIntHashSet value = myReplaced.get(key);
+    if (value == null) {
+      final TIntHashSet stored = myCache.get(key);
+      value = stored == NULL_COLLECTION? new TIntHashSet() : (TIntHashSet)stored.clone();
+      final TIntHashSet appended = myAppended.remove(key);
+      if (appended != null) {
+        value.addAll(appended.toArray());
       }
+      myCache.remove(key);
+      myReplaced.put(key, value);
+      myPendingSize += value.size();
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return value;
+  }
+
+  @Override
+  public void replace(int key, TIntHashSet value) {
+    myAppended.remove(key);
+    myCache.remove(key);
+    myReplaced.put(key, value == null? new TIntHashSet() : (TIntHashSet)value.clone());
+    pendingChanged(value == null? 1 : value.size());
   }
 
   @Override
   public void put(final int key, final TIntHashSet value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          final Ref<IOException> exRef = new Ref<IOException>();
-          value.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int value) {
-              try {
-                out.writeInt(value);
-              }
-              catch (IOException e) {
-                exRef.set(e);
-                return false;
-              }
-              return true;
-            }
-          });
-          final IOException exception = exRef.get();
-          if (exception != null) {
-            throw exception;
-          }
-        }
-      });
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    getPendingValues(key).addAll(value.toArray());
+    pendingChanged(value.size());
   }
 
   @Override
   public void put(final int key, final int value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          out.writeInt(value);
-        }
-      });
+    getPendingValues(key).add(value);
+    pendingChanged(1);
+  }
+
+  /**
+   * @return a set the values to be added to the key should be put to
+   */
+  @NotNull
+  private TIntHashSet getPendingValues(final int key) {
+    final TIntHashSet replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return replaced;
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    TIntHashSet appended = myAppended.get(key);
+    if (appended == null) {
+      appended = new TIntHashSet();
+      myAppended.put(key, appended);
     }
+    return appended;
   }
 
   @Override
   public void removeAll(int key, TIntHashSet values) {
-    try {
-      final TIntHashSet collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values.toArray())) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final TIntHashSet collection = get(key);
+    if (collection != null && containsAny(collection, values)) {
+      getForUpdate(key).removeAll(values.toArray());
+      pendingChanged(values.size());
     }
   }
 
   @Override
   public void removeFrom(final int key, final int value) {
-    try {
-      final TIntHashSet collection = myCache.get(key);
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final TIntHashSet collection = get(key);
+    if (collection != null && collection.contains(value)) {
+      getForUpdate(key).remove(value);
+      pendingChanged(1);
     }
   }
 
   @Override
   public void remove(final int key) {
-    try {
-      myCache.remove(key);
-      myMap.remove(key);
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    myAppended.remove(key);
+    myCache.remove(key);
+    myReplaced.put(key, new TIntHashSet());
+    pendingChanged(1);
+  }
+
+  private static boolean containsAny(final TIntHashSet collection, final TIntHashSet values) {
+    return !values.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        return !collection.contains(value);
+      }
+    });
   }
 
   @Override
@@ -210,18 +220,92 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
     });
   }
 
-  @Override
-  public void close() {
+  private void pendingChanged(int size) {
+    myPendingSize += size;
+    if (myPendingSize > myWriteBehindLimit) {
+      writePendingChanges();
+    }
+  }
+
+  /**
+   * Writes the collected changes sorted by key, so that the related records are written close to each other.
+   * A change is forgotten only when it has been written, so the changes not written because of a failure are written next time.
+   */
+  private void writePendingChanges() {
+    if (myReplaced.isEmpty() && myAppended.isEmpty()) {
+      return;
+    }
     try {
-      myCache.clear();
-      myMap.close();
+      final int[] replacedKeys = myReplaced.keys();
+      Arrays.sort(replacedKeys);
+      for (int key : replacedKeys) {
+        final TIntHashSet value = myReplaced.get(key);
+        if (value.isEmpty()) {
+          myMap.remove(key);
+        }
+        else {
+          myMap.put(key, value);
+        }
+        myReplaced.remove(key);
+      }
+
+      final int[] appendedKeys = myAppended.keys();
+      Arrays.sort(appendedKeys);
+      for (int key : appendedKeys) {
+        myCache.remove(key);
+        appendValues(key, myAppended.get(key));
+        myAppended.remove(key);
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
+    myPendingSize = 0;
+  }
+
+  private void appendValues(final int key, final TIntHashSet values) throws IOException {
+    myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+      public void append(final DataOutput out) throws IOException {
+        final Ref<IOException> exRef = new Ref<IOException>();
+        values.forEach(new TIntProcedure() {
+          @Override
+          public boolean execute(int value) {
+            try {
+              out.writeInt(value);
+            }
+            catch (IOException e) {
+              exRef.set(e);
+              return false;
+            }
+            return true;
+          }
+        });
+        final IOException exception = exRef.get();
+        if (exception != null) {
+          throw exception;
+        }
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    try {
+      writePendingChanges();
+    }
+    finally {
+      try {
+        myCache.clear();
+        myMap.close();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
   public void flush(boolean memoryCachesOnly) {
+    writePendingChanges();
     if (memoryCachesOnly) {
       if (myMap.isDirty()) {
         myMap.dropMemoryCaches();
@@ -234,6 +318,7 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
 
   @Override
   public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    writePendingChanges();
     try {
       myMap.processKeysWithExistingMapping(new Processor<Integer>() {
         @Override
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+/**
+ * Sizes of the in-memory caches of the persistent maplets, derived from the maximum heap size of the process.
+ */
+class MapletCacheSizes {
+  private static final long MAX_MEMORY = Runtime.getRuntime().maxMemory();
+
+  /**
+   * Number of the values read from a storage kept in memory.
+   */
+  static final int READ_CACHE_SIZE = clamp(MAX_MEMORY / (2 * 1024 * 1024), 128, 4096);
+
+  /**
+   * Number of the changed ints a maplet with primitive values may keep in memory before writing them to the storage.
+   */
+  static final int WRITE_BEHIND_INTS = clamp(MAX_MEMORY / 64 / 32, 16 * 1024, 4 * 1024 * 1024);
+
+  /**
+   * Number of the changed objects a maplet may keep in memory before writing them to the storage.
+   */
+  static final int WRITE_BEHIND_OBJECTS = clamp(MAX_MEMORY / 64 / 4096, 256, 64 * 1024);
+
+  private MapletCacheSizes() {
+  }
+
+  private static int clamp(long value, int min, int max) {
+    return (int)Math.max(min, Math.min(max, value));
+  }
+}
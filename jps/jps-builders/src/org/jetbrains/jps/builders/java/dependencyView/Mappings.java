@@ -26,6 +26,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -33,8 +34,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
 
 /**
  * @author: db
@@ -50,6 +50,8 @@ public class Mappings {
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static final int DEPENDANTS_PER_TASK = 256;
+  private static final int MIN_DEPENDANTS_FOR_PARALLEL_ANALYSIS = 4 * DEPENDANTS_PER_TASK;
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -89,6 +91,12 @@ public class Mappings {
   @Nullable
   private Collection<String> myRemovedFiles;
 
+  @Nullable
+  private BackwardReferenceIndex myBackwardReferenceIndex;
+  // for a delta: the time the compilation of its sources started
+  private long myCompilationStartStamp = Long.MAX_VALUE;
+  private boolean myParallelDifferentiation = false;
+
   private Mappings(final Mappings base) throws IOException {
     myLock = base.myLock;
     myIsDelta = true;
@@ -199,6 +207,32 @@ public class Mappings {
     }
   }
 
+  /**
+   * @param index index to be kept in sync with the integrated data, null to stop updating it
+   */
+  public void setBackwardReferenceIndex(@Nullable BackwardReferenceIndex index) {
+    synchronized (myLock) {
+      myBackwardReferenceIndex = index;
+    }
+  }
+
+  /**
+   * @param parallel if true, files depending on the changed classes are checked by several threads when there are many of them
+   */
+  public void setParallelDifferentiation(boolean parallel) {
+    synchronized (myLock) {
+      myParallelDifferentiation = parallel;
+    }
+  }
+
+  /**
+   * Sources modified after the compilation started may differ from what has been compiled,
+   * so the backward reference index does not describe them.
+   */
+  public void setCompilationStartStamp(long stamp) {
+    myCompilationStartStamp = stamp;
+  }
+
   public IntIntTransientMultiMaplet getRemovedSuperClasses() {
     return myRemovedSuperClasses;
   }
@@ -222,6 +256,7 @@ public class Mappings {
   }
 
   private static final ClassRepr MOCK_CLASS = null;
+  private static final Object NULL_SOURCE = new Object();
   private static final MethodRepr MOCK_METHOD = null;
 
   private interface MemberComparator {
@@ -797,6 +832,50 @@ public class Mappings {
     boolean belongsToCurrentTargetChunk(File file);
   }
 
+  /**
+   * Read-only view of the class-to-source and source-to-classes maplets for the threads checking the dependent files.
+   * The maplets are not changed while the snapshot is in use, but persistent maplets are not thread-safe,
+   * so every read of a maplet is serialized and its result is memoized for the lifetime of the snapshot.
+   * Class representations are only deserialized under the lock of the source-to-classes maplet,
+   * so the interning caches of {@link DependencyContext} are never accessed concurrently.
+   */
+  private class MapletSnapshot {
+    private final ConcurrentMap<Integer, Object> mySources = new ConcurrentHashMap<Integer, Object>();
+    private final ConcurrentMap<File, Collection<ClassRepr>> myClasses = new ConcurrentHashMap<File, Collection<ClassRepr>>();
+
+    @Nullable
+    File getSourceFile(final int className) {
+      Object source = mySources.get(className);
+      if (source == null) {
+        synchronized (myClassToSourceFile) {
+          source = myClassToSourceFile.get(className);
+        }
+        mySources.put(className, source != null ? source : NULL_SOURCE);
+      }
+      return source == NULL_SOURCE ? null : (File)source;
+    }
+
+    @Nullable
+    ClassRepr getReprByName(@NotNull final File source, final int className) {
+      Collection<ClassRepr> reprs = myClasses.get(source);
+      if (reprs == null) {
+        synchronized (mySourceFileToClasses) {
+          reprs = mySourceFileToClasses.get(source);
+        }
+        if (reprs == null) {
+          reprs = Collections.emptyList();
+        }
+        myClasses.put(source, reprs);
+      }
+      for (ClassRepr repr : reprs) {
+        if (repr.name == className) {
+          return repr;
+        }
+      }
+      return null;
+    }
+  }
+
   private class Differential {
     private static final int DESPERATE_MASK = Opcodes.ACC_STATIC | Opcodes.ACC_FINAL;
 
@@ -922,6 +1001,103 @@ public class Mappings {
       }
     }
 
+    private class ConstrainedDependant {
+      final File myFile;
+      final int myClassName;
+      final Collection<Util.UsageConstraint> myConstraints;
+
+      private ConstrainedDependant(File file, int className, Collection<Util.UsageConstraint> constraints) {
+        myFile = file;
+        myClassName = className;
+        myConstraints = constraints;
+      }
+
+      boolean isSatisfied() {
+        for (Util.UsageConstraint constraint : myConstraints) {
+          if (constraint.checkResidence(myClassName)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+
+    /**
+     * Checks a portion of dependent classes the same way as {@link Differential#calculateAffectedFiles(DiffState)} does,
+     * but collects the affected files into its own set and leaves the usage constraints to be checked later,
+     * since they walk the class hierarchy through the maplets which are not covered by the snapshot.
+     */
+    private class AffectedFilesWorker implements Runnable {
+      private final Queue<Pair<DiffState, int[]>> myWork;
+      private final MapletSnapshot mySnapshot;
+      final Set<File> myAffected = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+      final List<ConstrainedDependant> myConstrained = new ArrayList<ConstrainedDependant>();
+
+      private AffectedFilesWorker(Queue<Pair<DiffState, int[]>> work, MapletSnapshot snapshot) {
+        myWork = work;
+        mySnapshot = snapshot;
+      }
+
+      @Override
+      public void run() {
+        for (Pair<DiffState, int[]> portion = myWork.poll(); portion != null; portion = myWork.poll()) {
+          for (int depClass : portion.second) {
+            checkDependant(portion.first, depClass);
+          }
+        }
+      }
+
+      private void checkDependant(final DiffState state, final int depClass) {
+        final File depFile = mySnapshot.getSourceFile(depClass);
+
+        if (depFile == null || myAffected.contains(depFile) || myAffectedFiles.contains(depFile) || myCompiledFiles.contains(depFile)) {
+          return;
+        }
+
+        final ClassRepr classRepr = mySnapshot.getReprByName(depFile, depClass);
+
+        if (classRepr == null) {
+          return;
+        }
+
+        final Set<UsageRepr.Usage> depUsages = classRepr.getUsages();
+
+        if (depUsages == null || depUsages.isEmpty()) {
+          return;
+        }
+
+        List<Util.UsageConstraint> constraints = null;
+
+        for (UsageRepr.Usage usage : depUsages) {
+          if (usage instanceof UsageRepr.AnnotationUsage) {
+            for (final UsageRepr.AnnotationUsage query : state.myAnnotationQuery) {
+              if (query.satisfies(usage)) {
+                myAffected.add(depFile);
+                return;
+              }
+            }
+          }
+          else if (state.myAffectedUsages.contains(usage)) {
+            final Util.UsageConstraint constraint = state.myUsageConstraints.get(usage);
+
+            if (constraint == null) {
+              myAffected.add(depFile);
+              return;
+            }
+
+            if (constraints == null) {
+              constraints = new ArrayList<Util.UsageConstraint>(1);
+            }
+            constraints.add(constraint);
+          }
+        }
+
+        if (constraints != null) {
+          myConstrained.add(new ConstrainedDependant(depFile, depClass, constraints));
+        }
+      }
+    }
+
     private Differential(final Mappings delta) {
       this.myDelta = delta;
       this.myFilesToCompile = null;
@@ -1877,6 +2053,63 @@ public class Mappings {
       });
     }
 
+    /**
+     * Has the same effect as {@link #calculateAffectedFiles(DiffState)} called for every state.
+     * The dependent classes are checked concurrently against a {@link MapletSnapshot}; the affected files found by the workers
+     * are merged afterwards, then the usage constraints of the remaining candidates are checked in this thread.
+     */
+    private void calculateAffectedFilesInParallel(final Collection<DiffState> states) {
+      final Queue<Pair<DiffState, int[]>> work = new ConcurrentLinkedQueue<Pair<DiffState, int[]>>();
+      for (DiffState state : states) {
+        final int[] dependants = state.myDependants.toArray();
+        for (int from = 0; from < dependants.length; from += DEPENDANTS_PER_TASK) {
+          work.add(Pair.create(state, Arrays.copyOfRange(dependants, from, Math.min(dependants.length, from + DEPENDANTS_PER_TASK))));
+        }
+      }
+
+      final MapletSnapshot snapshot = new MapletSnapshot();
+      final int workerCount = Math.max(1, Math.min(work.size(), Runtime.getRuntime().availableProcessors()));
+      final List<AffectedFilesWorker> workers = new ArrayList<AffectedFilesWorker>(workerCount);
+      final List<Future<?>> futures = new ArrayList<Future<?>>(workerCount);
+      for (int i = 0; i < workerCount; i++) {
+        final AffectedFilesWorker worker = new AffectedFilesWorker(work, snapshot);
+        workers.add(worker);
+        if (i > 0) {
+          futures.add(SharedThreadPool.getInstance().executeOnPooledThread(worker));
+        }
+      }
+      debug("Checking dependent classes, workers: ", String.valueOf(workerCount));
+
+      workers.get(0).run();
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+
+      for (AffectedFilesWorker worker : workers) {
+        myAffectedFiles.addAll(worker.myAffected);
+      }
+      for (AffectedFilesWorker worker : workers) {
+        for (ConstrainedDependant dependant : worker.myConstrained) {
+          if (!myAffectedFiles.contains(dependant.myFile) && dependant.isSatisfied()) {
+            debug("Added file with satisfied constraint");
+            myAffectedFiles.add(dependant.myFile);
+          }
+        }
+      }
+    }
+
+    private void debugTiming(final String phase, final long start) {
+      debug(phase + " took ms: ", String.valueOf(System.currentTimeMillis() - start));
+    }
+
     boolean differentiate() {
       synchronized (myLock) {
         myDelta.myIsDifferentiated = true;
@@ -1888,7 +2121,9 @@ public class Mappings {
         debug("Begin of Differentiate:");
         debug("Easy mode: ", myEasyMode);
 
+        long phaseStart = System.currentTimeMillis();
         processDisappearedClasses();
+        debugTiming("Processing disappeared classes", phaseStart);
 
         final List<FileClasses> newClasses = new ArrayList<FileClasses>();
         myDelta.mySourceFileToClasses.forEachEntry(new TObjectObjectProcedure<File, Collection<ClassRepr>>() {
@@ -1899,6 +2134,12 @@ public class Mappings {
           }
         });
 
+        // in parallel mode the dependent files are checked after all the class differences have been processed
+        final boolean parallel = myParallelDifferentiation && !myEasyMode;
+        final List<DiffState> statesToCheck = new ArrayList<DiffState>();
+        int dependantsToCheck = 0;
+
+        phaseStart = System.currentTimeMillis();
         for (final FileClasses compiledFile : newClasses) {
           final File fileName = compiledFile.myFileName;
           final Set<ClassRepr> classes = compiledFile.myFileClasses;
@@ -1915,10 +2156,28 @@ public class Mappings {
           processRemovedClases(state);
           processAddedClasses(state, fileName);
 
-          if (!myEasyMode) {
+          if (parallel) {
+            statesToCheck.add(state);
+            dependantsToCheck += state.myDependants.size();
+          }
+          else if (!myEasyMode) {
             calculateAffectedFiles(state);
           }
         }
+        debugTiming(parallel ? "Processing class differences" : "Processing class differences and dependent classes", phaseStart);
+
+        if (parallel) {
+          phaseStart = System.currentTimeMillis();
+          if (dependantsToCheck >= MIN_DEPENDANTS_FOR_PARALLEL_ANALYSIS) {
+            calculateAffectedFilesInParallel(statesToCheck);
+          }
+          else {
+            for (DiffState state : statesToCheck) {
+              calculateAffectedFiles(state);
+            }
+          }
+          debugTiming("Checking " + dependantsToCheck + " dependent classes", phaseStart);
+        }
 
         debug("End of Differentiate.");
 
@@ -1932,7 +2191,10 @@ public class Mappings {
             myAffectedFiles.remove(new File(r));
           }
         }
-        return myDelayedWorks.doWork(myAffectedFiles);
+        phaseStart = System.currentTimeMillis();
+        final boolean incremental = myDelayedWorks.doWork(myAffectedFiles);
+        debugTiming("Delayed works", phaseStart);
+        return incremental;
       }
     }
   }
@@ -1993,6 +2255,55 @@ public class Mappings {
     myClassToSourceFile.remove(className);
   }
 
+  private void removeFromBackwardReferenceIndex(@NotNull ClassRepr aClass) {
+    final BackwardReferenceIndex index = myBackwardReferenceIndex;
+    if (index != null) {
+      index.remove(myContext.getValue(aClass.name));
+    }
+  }
+
+  private void removeSourceFromBackwardReferenceIndex(@NotNull File source) {
+    final BackwardReferenceIndex index = myBackwardReferenceIndex;
+    if (index != null) {
+      index.removeSource(source);
+    }
+  }
+
+  private void updateBackwardReferenceIndex(final Mappings delta) {
+    final BackwardReferenceIndex index = myBackwardReferenceIndex;
+    if (index == null) {
+      return;
+    }
+
+    delta.mySourceFileToClasses.forEachEntry(new TObjectObjectProcedure<File, Collection<ClassRepr>>() {
+      @Override
+      public boolean execute(final File source, final Collection<ClassRepr> classes) {
+        for (final ClassRepr aClass : classes) {
+          final List<String> supers = new ArrayList<String>();
+          for (final int superName : aClass.getSupers()) {
+            supers.add(myContext.getValue(superName));
+          }
+
+          final Set<String> references = new HashSet<String>();
+          for (final UsageRepr.Usage usage : aClass.getUsages()) {
+            final String owner = myContext.getValue(usage.getOwner());
+            if (owner == null) {
+              continue;
+            }
+            // class usages are implied by member usages, so that a search for the class itself finds them too
+            references.add(owner);
+            if (usage instanceof UsageRepr.FMUsage) {
+              references.add(BackwardReferenceIndex.getReferenceName(owner, myContext.getValue(((UsageRepr.FMUsage)usage).myName)));
+            }
+          }
+
+          index.update(myContext.getValue(aClass.name), source, delta.myCompilationStartStamp, supers, references);
+        }
+        return true;
+      }
+    });
+  }
+
   public void integrate(final Mappings delta) {
     synchronized (myLock) {
       try {
@@ -2012,15 +2323,18 @@ public class Mappings {
             if (fileClasses != null) {
               for (final ClassRepr aClass : fileClasses) {
                 cleanupRemovedClass(delta, aClass, aClass.getUsages(), dependenciesTrashBin);
+                removeFromBackwardReferenceIndex(aClass);
               }
               mySourceFileToClasses.remove(fileName);
             }
+            removeSourceFromBackwardReferenceIndex(fileName);
           }
         }
 
         if (!delta.isRebuild()) {
           for (final ClassRepr repr : delta.getDeletedClasses()) {
             cleanupRemovedClass(delta, repr, repr.getUsages(), dependenciesTrashBin);
+            removeFromBackwardReferenceIndex(repr);
           }
 
           final TIntHashSet superClasses = new TIntHashSet();
@@ -2089,6 +2403,8 @@ public class Mappings {
           mySourceFileToClasses.replaceAll(delta.mySourceFileToClasses);
         }
 
+        updateBackwardReferenceIndex(delta);
+
         // updating classToClass dependencies
 
         final TIntHashSet affectedClasses = new TIntHashSet();
@@ -20,31 +20,71 @@ import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.THashMap;
+import gnu.trove.TObjectHashingStrategy;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
 /**
+ * Changes are not written to the storage at once: they are collected in memory and written sorted by key
+ * when the maplet is flushed or when there are too many of them.
+ *
  * @author Eugene Zhuravlev
  *         Date: 9/10/12
  */
 public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends ObjectObjectMultiMaplet<K, V>{
   private static final Collection NULL_COLLECTION = Collections.emptySet();
-  private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<K, Collection<V>> myMap;
   private final DataExternalizer<V> myValueExternalizer;
+  private final CollectionFactory<V> myCollectionFactory;
   private final SLRUCache<K, Collection> myCache;
+  /**
+   * key -> complete new value of the key; an empty collection means the key is removed
+   */
+  private final THashMap<K, Collection<V>> myReplaced;
+  /**
+   * key -> values to be appended to the stored value of the key; a key is never contained in both maps
+   */
+  private final THashMap<K, Collection<V>> myAppended;
+  private final int myWriteBehindLimit;
+  private int myPendingSize;
 
   public ObjectObjectPersistentMultiMaplet(final File file,
                                         final KeyDescriptor<K> keyExternalizer,
                                         final DataExternalizer<V> valueExternalizer,
                                         final CollectionFactory<V> collectionFactory) throws IOException {
+    this(file, keyExternalizer, valueExternalizer, collectionFactory, MapletCacheSizes.WRITE_BEHIND_OBJECTS);
+  }
+
+  ObjectObjectPersistentMultiMaplet(final File file,
+                                    final KeyDescriptor<K> keyExternalizer,
+                                    final DataExternalizer<V> valueExternalizer,
+                                    final CollectionFactory<V> collectionFactory,
+                                    final int writeBehindLimit) throws IOException {
+    myWriteBehindLimit = writeBehindLimit;
     myValueExternalizer = valueExternalizer;
+    myCollectionFactory = collectionFactory;
     myMap = new PersistentHashMap<K, Collection<V>>(file, keyExternalizer, new CollectionDataExternalizer<V>(valueExternalizer, collectionFactory));
-    myCache = new SLRUCache<K, Collection>(CACHE_SIZE, CACHE_SIZE) {
+    // pending keys must be matched the same way the storage matches them
+    final TObjectHashingStrategy<K> keyStrategy = new TObjectHashingStrategy<K>() {
+      @Override
+      public int computeHashCode(K key) {
+        return keyExternalizer.getHashCode(key);
+      }
+
+      @Override
+      public boolean equals(K key1, K key2) {
+        return keyExternalizer.isEqual(key1, key2);
+      }
+    };
+    myReplaced = new THashMap<K, Collection<V>>(keyStrategy);
+    myAppended = new THashMap<K, Collection<V>>(keyStrategy);
+    myCache = new SLRUCache<K, Collection>(MapletCacheSizes.READ_CACHE_SIZE, MapletCacheSizes.READ_CACHE_SIZE) {
       @NotNull
       @Override
       public Collection createValue(K key) {
@@ -62,6 +102,13 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
 
   @Override
   public boolean containsKey(final K key) {
+    final Collection<V> replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return !replaced.isEmpty();
+    }
+    if (myAppended.containsKey(key)) {
+      return true;
+    }
     try {
       return myMap.containsMapping(key);
     }
@@ -72,41 +119,56 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
 
   @Override
   public Collection<V> get(final K key) {
+    final Collection<V> replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return replaced.isEmpty()? null : replaced;
+    }
+    if (myAppended.containsKey(key)) {
+      return getForUpdate(key);
+    }
     final Collection<V> collection = myCache.get(key);
     return collection == NULL_COLLECTION? null : collection;
   }
 
-  @Override
-  public void replace(K key, Collection<V> value) {
-    try {
-      myCache.remove(key);
-      if (value == null || value.isEmpty()) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
+  /**
+   * @return the pending complete value of the key, created from the stored and the appended values if needed.
+   * The pending changes are never written here: the caller changes the returned collection and then calls {@link #pendingChanged(int)},
+   * otherwise the changes would go to a collection which is already written and forgotten.
+   */
+  @NotNull
+  private Collection<V> getForUpdate(final K key) {
+    Collection<V> value = myReplaced.get(key);
+    if (value == null) {
+      value = myCollectionFactory.create();
+      final Collection<V> stored = myCache.get(key);
+      value.addAll(stored);
+      final Collection<V> appended = myAppended.remove(key);
+      if (appended != null) {
+        value.addAll(appended);
       }
+      myCache.remove(key);
+      myReplaced.put(key, value);
+      myPendingSize += value.size();
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    return value;
+  }
+
+  @Override
+  public void replace(K key, Collection<V> value) {
+    myAppended.remove(key);
+    myCache.remove(key);
+    final Collection<V> copy = myCollectionFactory.create();
+    if (value != null) {
+      copy.addAll(value);
     }
+    myReplaced.put(key, copy);
+    pendingChanged(Math.max(1, copy.size()));
   }
 
   @Override
   public void put(final K key, final Collection<V> value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(DataOutput out) throws IOException {
-          for (V v : value) {
-            myValueExternalizer.save(out, v);
-          }
-        }
-      });
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    getPendingValues(key).addAll(value);
+    pendingChanged(value.size());
   }
 
   @Override
@@ -114,59 +176,47 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
     put(key, Collections.singleton(value));
   }
 
+  /**
+   * @return a collection the values to be added to the key should be put to
+   */
+  @NotNull
+  private Collection<V> getPendingValues(final K key) {
+    final Collection<V> replaced = myReplaced.get(key);
+    if (replaced != null) {
+      return replaced;
+    }
+    Collection<V> appended = myAppended.get(key);
+    if (appended == null) {
+      appended = myCollectionFactory.create();
+      myAppended.put(key, appended);
+    }
+    return appended;
+  }
+
   @Override
   public void removeAll(K key, Collection<V> values) {
-    try {
-      final Collection collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final Collection<V> collection = get(key);
+    if (collection != null && !Collections.disjoint(collection, values)) {
+      getForUpdate(key).removeAll(values);
+      pendingChanged(values.size());
     }
   }
 
   @Override
   public void removeFrom(final K key, final V value) {
-    try {
-      final Collection collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final Collection<V> collection = get(key);
+    if (collection != null && collection.contains(value)) {
+      getForUpdate(key).remove(value);
+      pendingChanged(1);
     }
   }
 
   @Override
   public void remove(final K key) {
-    try {
-      myCache.remove(key);
-      myMap.remove(key);
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    myAppended.remove(key);
+    myCache.remove(key);
+    myReplaced.put(key, myCollectionFactory.create());
+    pendingChanged(1);
   }
 
   @Override
@@ -191,18 +241,79 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
     });
   }
 
-  @Override
-  public void close() {
+  private void pendingChanged(int size) {
+    myPendingSize += size;
+    if (myPendingSize > myWriteBehindLimit) {
+      writePendingChanges();
+    }
+  }
+
+  /**
+   * Writes the collected changes; comparable keys (e.g. files) are written in their natural order.
+   * A change is forgotten only when it has been written, so the changes not written because of a failure are written next time.
+   */
+  private void writePendingChanges() {
+    if (myReplaced.isEmpty() && myAppended.isEmpty()) {
+      return;
+    }
     try {
-      myCache.clear();
-      myMap.close();
+      for (K key : sortedKeys(myReplaced)) {
+        final Collection<V> value = myReplaced.get(key);
+        if (value.isEmpty()) {
+          myMap.remove(key);
+        }
+        else {
+          myMap.put(key, value);
+        }
+        myReplaced.remove(key);
+      }
+
+      for (K key : sortedKeys(myAppended)) {
+        final Collection<V> values = myAppended.get(key);
+        myCache.remove(key);
+        myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+          public void append(DataOutput out) throws IOException {
+            for (V v : values) {
+              myValueExternalizer.save(out, v);
+            }
+          }
+        });
+        myAppended.remove(key);
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
+    myPendingSize = 0;
+  }
+
+  private K[] sortedKeys(THashMap<K, Collection<V>> map) {
+    //noinspection unchecked
+    final K[] keys = (K[])map.keySet().toArray();
+    if (keys.length > 1 && keys[0] instanceof Comparable) {
+      Arrays.sort(keys);
+    }
+    return keys;
+  }
+
+  @Override
+  public void close() {
+    try {
+      writePendingChanges();
+    }
+    finally {
+      try {
+        myCache.clear();
+        myMap.close();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
   public void flush(boolean memoryCachesOnly) {
+    writePendingChanges();
     if (memoryCachesOnly) {
       if (myMap.isDirty()) {
         myMap.dropMemoryCaches();
@@ -215,6 +326,7 @@ public class ObjectObjectPersistentMultiMaplet<K, V extends Streamable> extends
 
   @Override
   public void forEachEntry(final TObjectObjectProcedure<K, Collection<V>> procedure) {
+    writePendingChanges();
     try {
       myMap.processKeysWithExistingMapping(new Processor<K>() {
         @Override
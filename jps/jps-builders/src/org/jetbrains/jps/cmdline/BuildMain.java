@@ -35,6 +35,7 @@ import org.jetbrains.jps.api.CmdlineProtoUtil;
 import org.jetbrains.jps.api.CmdlineRemoteProto;
 import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.Utils;
+import org.jetbrains.jps.javac.FileManagerPool;
 import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.*;
@@ -56,6 +57,16 @@ public class BuildMain {
     LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.BuildMain");
   }
 
+  /**
+   * In the daemon mode the process is not terminated after the build: it asks the IDE for the next session over the same connection,
+   * so the JVM startup and class loading are paid once and the builders' code stays JIT-compiled.
+   */
+  private static final boolean DAEMON_MODE = Boolean.parseBoolean(System.getProperty(GlobalOptions.BUILD_DAEMON_OPTION));
+  /**
+   * The daemon exits if after a build more than this part of the maximum heap is still used
+   */
+  private static final double DAEMON_MAX_USED_MEMORY_RATIO = 0.6;
+
   private static NioClientSocketChannelFactory ourChannelFactory;
 
   public static void main(String[] args){
@@ -121,17 +132,31 @@ public class BuildMain {
 
           case BUILD_PARAMETERS: {
             if (mySession == null) {
+              // a daemon gets the parameters of every next session under the id of that session
+              final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+              final UUID sessionId = DAEMON_MODE ? new UUID(id.getMostSigBits(), id.getLeastSigBits()) : mySessionId;
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
-              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
+              final BuildSession session = new BuildSession(sessionId, channel, controllerMessage.getParamsMessage(), delta);
               mySession = session;
               SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
                 public void run() {
+                  boolean waitForNextSession = false;
                   try {
                     session.run();
+                    waitForNextSession = DAEMON_MODE && channel.isConnected() && !isMemoryLow();
                   }
                   finally {
-                    channel.close();
-                    System.exit(0);
+                    if (waitForNextSession) {
+                      // the classpath archives are not kept open between sessions, they may be changed or deleted meanwhile
+                      FileManagerPool.clear();
+                      mySession = null;
+                      // the repeated request for parameters tells the IDE the session is over and the daemon is ready for the next one
+                      Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createParamRequest()));
+                    }
+                    else {
+                      channel.close();
+                      System.exit(0);
+                    }
                   }
                 }
               });
@@ -163,7 +188,7 @@ public class BuildMain {
             if (session != null) {
               session.cancel();
             }
-            else {
+            else if (!DAEMON_MODE) {
               LOG.info("Cannot cancel build: no build session is running");
               channel.close();
             }
@@ -205,6 +230,17 @@ public class BuildMain {
     }
   }
 
+  private static boolean isMemoryLow() {
+    System.gc();
+    final Runtime runtime = Runtime.getRuntime();
+    final long used = runtime.totalMemory() - runtime.freeMemory();
+    if (used > runtime.maxMemory() * DAEMON_MAX_USED_MEMORY_RATIO) {
+      LOG.info("Build daemon exits: " + (used >> 20) + " Mb of " + (runtime.maxMemory() >> 20) + " Mb heap are used after the build");
+      return true;
+    }
+    return false;
+  }
+
   private static void initLoggers() {
     try {
       final String logDir = System.getProperty(GlobalOptions.LOG_DIR_OPTION, null);
@@ -349,8 +349,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             if (fileStamp == -1L) {
               fileStamp = FileSystemUtil.lastModified(file); // lazy init
             }
-            final long stamp = timestamps.getStamp(file, descriptor.getTarget());
-            if (stamp != fileStamp) {
+            if (!timestamps.isUpToDate(file, descriptor.getTarget(), fileStamp)) {
               if (!cacheCleared) {
                 pd.getFSCache().clear();
                 cacheCleared = true;
@@ -359,7 +358,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             }
             else {
               if (LOG.isDebugEnabled()) {
-                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + stamp);
+                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + fileStamp);
               }
             }
           }
@@ -18,9 +18,13 @@ package org.jetbrains.jps.cmdline;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.ParameterizedRunnable;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.incremental.Utils;
 import org.jetbrains.jps.model.JpsModel;
 import org.jetbrains.jps.model.serialization.JpsSerializationManager;
+import org.jetbrains.jps.model.serialization.JpsXmlFileCache;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -30,6 +34,8 @@ public class JpsModelLoaderImpl implements JpsModelLoader {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.JpsModelLoaderImpl");
   private final String myProjectPath;
   private final String myGlobalOptionsPath;
+  private static final boolean USE_MODEL_CACHE = Boolean.parseBoolean(System.getProperty(GlobalOptions.JPS_MODEL_CACHE_OPTION));
+  private static final String MODEL_CACHE_FILE_NAME = "model-cache.dat";
   private final ParameterizedRunnable<JpsModel> myModelInitializer;
 
   public JpsModelLoaderImpl(String projectPath, String globalOptionsPath, @Nullable ParameterizedRunnable<JpsModel> initializer) {
@@ -42,7 +48,8 @@ public class JpsModelLoaderImpl implements JpsModelLoader {
   public JpsModel loadModel() throws IOException {
     final long start = System.currentTimeMillis();
     LOG.info("Loading model: project path = " + myProjectPath + ", global options path = " + myGlobalOptionsPath);
-    final JpsModel model = JpsSerializationManager.getInstance().loadModel(myProjectPath, myGlobalOptionsPath);
+    final JpsXmlFileCache projectFilesCache = USE_MODEL_CACHE ? JpsXmlFileCache.open(getModelCacheFile()) : null;
+    final JpsModel model = JpsSerializationManager.getInstance().loadModel(myProjectPath, myGlobalOptionsPath, projectFilesCache);
     if (myModelInitializer != null) {
       myModelInitializer.run(model);
     }
@@ -51,4 +58,8 @@ public class JpsModelLoaderImpl implements JpsModelLoader {
     LOG.info("Project has " + model.getProject().getModules().size() + " modules, " + model.getProject().getLibraryCollection().getLibraries().size() + " libraries");
     return model;
   }
+
+  private File getModelCacheFile() {
+    return new File(Utils.getDataStorageRoot(myProjectPath), MODEL_CACHE_FILE_NAME);
+  }
 }
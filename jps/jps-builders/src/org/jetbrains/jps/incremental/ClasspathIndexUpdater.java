@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.lang.ClasspathIndex;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the {@link ClasspathIndex} of every module output directory up to date: the directories where the builders have generated
+ * or deleted files are listed again when the build is finished, and the output directories without an index are indexed completely.
+ * The indices are marked dirty before the build and the mark is removed only when an index is saved, so an index left dirty
+ * by an interrupted build is neither used by class loaders nor updated incrementally by the next build.
+ *
+ * @see org.jetbrains.jps.api.GlobalOptions#GENERATE_CLASSPATH_INDEX_OPTION
+ */
+class ClasspathIndexUpdater implements BuildListener {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.ClasspathIndexUpdater");
+  private final Set<String> myOutputRoots = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+  /**
+   * key: output root; value: paths of the changed directories relative to the root
+   */
+  private final Map<String, Set<String>> myChangedDirectories = new THashMap<String, Set<String>>(FileUtil.PATH_HASHING_STRATEGY);
+  /**
+   * output roots whose indices were up to date before the build
+   */
+  private final Set<String> myValidIndexRoots = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+
+  public ClasspathIndexUpdater(ProjectDescriptor pd) {
+    for (BuildTarget<?> target : pd.getBuildTargetIndex().getAllTargets()) {
+      if (target instanceof ModuleBuildTarget) {
+        final File outputDir = ((ModuleBuildTarget)target).getOutputDir();
+        if (outputDir != null) {
+          myOutputRoots.add(FileUtil.toSystemIndependentName(outputDir.getPath()));
+        }
+      }
+    }
+  }
+
+  public void markIndicesDirty() {
+    for (String rootPath : myOutputRoots) {
+      final File root = new File(rootPath);
+      if (!new File(root, ClasspathIndex.FILE_NAME).isFile() || ClasspathIndex.isDirty(root)) {
+        continue;
+      }
+      try {
+        ClasspathIndex.markDirty(root);
+        myValidIndexRoots.add(rootPath);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot mark classpath index dirty for " + rootPath, e);
+        FileUtil.delete(new File(root, ClasspathIndex.FILE_NAME));
+      }
+    }
+  }
+
+  @Override
+  public void filesGenerated(Collection<Pair<String, String>> paths) {
+    synchronized (myChangedDirectories) {
+      for (Pair<String, String> pair : paths) {
+        final String root = pair.getFirst();
+        if (myOutputRoots.contains(root)) {
+          addChangedDirectory(root, getParentPath(pair.getSecond()));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void filesDeleted(Collection<String> paths) {
+    synchronized (myChangedDirectories) {
+      for (String path : paths) {
+        final String filePath = FileUtil.toSystemIndependentName(path);
+        for (String parent = getParentPath(filePath); !parent.isEmpty(); parent = getParentPath(parent)) {
+          if (myOutputRoots.contains(parent)) {
+            addChangedDirectory(parent, getParentPath(filePath.substring(parent.length() + 1)));
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private void addChangedDirectory(String root, String directory) {
+    Set<String> directories = myChangedDirectories.get(root);
+    if (directories == null) {
+      directories = new THashSet<String>();
+      myChangedDirectories.put(root, directories);
+    }
+    directories.add(directory);
+  }
+
+  public void saveIndices() {
+    synchronized (myChangedDirectories) {
+      for (String rootPath : myOutputRoots) {
+        final File root = new File(rootPath);
+        if (!root.isDirectory()) {
+          continue;
+        }
+        final Set<String> changed = myChangedDirectories.get(rootPath);
+        final boolean valid = myValidIndexRoots.contains(rootPath);
+        if (changed == null && valid) {
+          ClasspathIndex.clearDirty(root);
+          continue;
+        }
+        ClasspathIndex index = changed != null && valid ? ClasspathIndex.load(root, true) : null;
+        if (index == null) {
+          index = ClasspathIndex.build(root);
+        }
+        else {
+          index.update(root, changed);
+        }
+        try {
+          index.save(root);
+        }
+        catch (IOException e) {
+          LOG.info("Cannot save classpath index for " + rootPath, e);
+          FileUtil.delete(new File(root, ClasspathIndex.FILE_NAME));
+        }
+        ClasspathIndex.clearDirty(root);
+      }
+      myChangedDirectories.clear();
+      myValidIndexRoots.clear();
+    }
+  }
+
+  private static String getParentPath(String relativePath) {
+    final int idx = relativePath.lastIndexOf('/');
+    return idx > 0 ? relativePath.substring(0, idx) : "";
+  }
+}
@@ -51,6 +51,22 @@ public class CompiledClass extends UserDataHolderBase{
     myIsDirty = false;
   }
 
+  /**
+   * Writes the content to a temporary file and then replaces the output file with it, so that the class file may be read
+   * by another thread at the same time. Falls back to {@link #save()} if the output file cannot be replaced.
+   */
+  public void saveAtomically() throws IOException {
+    final File tempFile = new File(myOutputFile.getPath() + ".tmp");
+    myContent.saveToFile(tempFile);
+    if (tempFile.renameTo(myOutputFile)) {
+      myIsDirty = false;
+    }
+    else {
+      FileUtil.delete(tempFile);
+      save();
+    }
+  }
+
   @NotNull
   public File getOutputFile() {
     return myOutputFile;
@@ -16,7 +16,10 @@
 package org.jetbrains.jps.incremental;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.LowMemoryWatcher;
+import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.UserDataHolder;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.io.FileUtil;
@@ -24,6 +27,7 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.SmartList;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ConcurrentHashSet;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.containers.MultiMapBasedOnSet;
 import com.intellij.util.io.MappingFailedException;
@@ -42,6 +46,7 @@ import org.jetbrains.jps.builders.impl.BuildTargetChunk;
 import org.jetbrains.jps.builders.impl.DirtyFilesHolderBase;
 import org.jetbrains.jps.builders.java.JavaBuilderUtil;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.java.dependencyView.BackwardReferenceIndex;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
 import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
@@ -51,6 +56,7 @@ import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.java.ExternalJavacDescriptor;
 import org.jetbrains.jps.incremental.messages.*;
 import org.jetbrains.jps.incremental.storage.BuildTargetConfiguration;
+import org.jetbrains.jps.incremental.storage.BuildTargetsState;
 import org.jetbrains.jps.incremental.storage.OneToManyPathsMapping;
 import org.jetbrains.jps.indices.ModuleExcludeIndex;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
@@ -59,9 +65,7 @@ import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.service.SharedThreadPool;
 import org.jetbrains.jps.util.JpsPathUtil;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
@@ -78,9 +82,26 @@ import java.util.concurrent.atomic.AtomicReference;
 public class IncProjectBuilder {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.IncProjectBuilder");
 
-  private static final String CLASSPATH_INDEX_FINE_NAME = "classpath.index";
-  private static final boolean GENERATE_CLASSPATH_INDEX = Boolean.parseBoolean(System.getProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION, "false"));
   private static final GlobalContextKey<Set<BuildTarget<?>>> TARGET_WITH_CLEARED_OUTPUT = GlobalContextKey.create("_targets_with_cleared_output_");
+  /**
+   * If set in the chunk-local context, it is run as soon as the class files of the chunk are ready to be used by dependent chunks
+   */
+  private static final Key<Runnable> CHUNK_OUTPUTS_READY_CALLBACK = Key.create("_chunk_outputs_ready_callback_");
+  /**
+   * If set in the chunk-local context, it is run when the class files of the chunk are going to be recompiled
+   * after they have been made available to dependent chunks
+   */
+  private static final Key<Runnable> CHUNK_OUTPUTS_CHANGED_CALLBACK = Key.create("_chunk_outputs_changed_callback_");
+  /**
+   * If set in the chunk-local context, it waits until the dependencies whose class files the chunk was started with are built,
+   * and tells if any of them has recompiled its class files after making them available, so that the chunk has to be compiled again
+   */
+  private static final Key<Computable<Boolean>> DEPENDENCY_OUTPUTS_CHANGED_CHECK = Key.create("_dependency_outputs_changed_check_");
+  private static final boolean PIPELINED_BUILD = Boolean.parseBoolean(System.getProperty(GlobalOptions.COMPILE_PARALLEL_PIPELINED_OPTION, "false"));
+  /**
+   * Class files rewritten by instrumenters may be read by dependent chunks at the same time only if a file can be replaced atomically
+   */
+  private static final boolean RELEASE_OUTPUTS_BEFORE_INSTRUMENTATION = !SystemInfo.isWindows;
   public static final int MAX_BUILDER_THREADS;
   static {
     int maxThreads = 6;
@@ -177,14 +198,23 @@ public class IncProjectBuilder {
     
     startTempDirectoryCleanupTask();
     
+    final BackwardReferenceIndex referenceIndex = myProjectDescriptor.dataManager.getBackwardReferenceIndex();
+    boolean referenceIndexWasComplete = false;
+    boolean referenceIndexComplete = false;
     CompileContextImpl context = null;
     try {
+      if (referenceIndex != null) {
+        referenceIndexWasComplete = referenceIndex.isComplete() && markReferenceIndex(referenceIndex, false);
+      }
       context = createContext(scope);
       runBuild(context, forceCleanCaches);
       myProjectDescriptor.dataManager.saveVersion();
       reportRebuiltModules(context);
+      referenceIndexComplete = referenceIndexWasComplete || context.isProjectRebuild();
     }
     catch (StopBuildException e) {
+      // the sources which have not been compiled keep their old stamps in the index, so it still describes them correctly
+      referenceIndexComplete = referenceIndexWasComplete;
       reportRebuiltModules(context);
       // some builder decided to stop the build
       // report optional progress message if any
@@ -223,7 +253,11 @@ public class IncProjectBuilder {
     }
     finally {
       memWatcher.stop();
+      reportUnchangedContent(context);
       flushContext(context);
+      if (referenceIndexComplete) {
+        markReferenceIndex(referenceIndex, true);
+      }
       // wait for async tasks
       final CanceledStatus status = context == null? CanceledStatus.NULL : context.getCancelStatus();
       synchronized (myAsyncTasks) {
@@ -291,6 +325,26 @@ public class IncProjectBuilder {
     context.processMessage(new CompilerMessage("", BuildMessage.Kind.INFO, message.toString()));
   }
 
+  private static void reportUnchangedContent(@Nullable CompileContext context) {
+    if (context != null) {
+      final int count = context.getProjectDescriptor().timestamps.getStorage().getUnchangedContentCount();
+      if (count > 0) {
+        LOG.info(count + " file(s) with changed timestamps were not recompiled because their content was not changed");
+      }
+    }
+  }
+
+  private static boolean markReferenceIndex(BackwardReferenceIndex index, boolean complete) {
+    try {
+      index.setComplete(complete);
+      return true;
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return false;
+    }
+  }
+
   private static void flushContext(CompileContext context) {
     if (context != null) {
       final ProjectDescriptor pd = context.getProjectDescriptor();
@@ -322,6 +376,12 @@ public class IncProjectBuilder {
              BuildRunner.PARALLEL_BUILD_ENABLED);
 
     context.addBuildListener(new ChainedTargetsBuildListener(context));
+    final ClasspathIndexUpdater classpathIndexUpdater =
+      Boolean.parseBoolean(System.getProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION)) ? new ClasspathIndexUpdater(myProjectDescriptor) : null;
+    if (classpathIndexUpdater != null) {
+      classpathIndexUpdater.markIndicesDirty();
+      context.addBuildListener(classpathIndexUpdater);
+    }
 
     for (TargetBuilder builder : myBuilderRegistry.getTargetBuilders()) {
       builder.buildStarted(context);
@@ -354,6 +414,9 @@ public class IncProjectBuilder {
       for (ModuleLevelBuilder builder : myBuilderRegistry.getModuleLevelBuilders()) {
         builder.buildFinished(context);
       }
+      if (classpathIndexUpdater != null) {
+        classpathIndexUpdater.saveIndices();
+      }
       context.processMessage(new ProgressMessage("Finished, saving caches..."));
     }
 
@@ -598,6 +661,15 @@ public class IncProjectBuilder {
     private final BuildTargetChunk myChunk;
     private final Set<BuildChunkTask> myNotBuiltDependencies = new THashSet<BuildChunkTask>();
     private final List<BuildChunkTask> myTasksDependsOnThis = new ArrayList<BuildChunkTask>();
+    private final List<BuildChunkTask> myTasksDependsOnThisOutputs = new ArrayList<BuildChunkTask>();
+    private final List<BuildChunkTask> myOutputsDependencies = new ArrayList<BuildChunkTask>();
+    private final CountDownLatch myFinished = new CountDownLatch(1);
+    private boolean myOutputsReady;
+    private volatile boolean myOutputsChangedAfterReady;
+    /**
+     * estimated time of building this chunk and the longest chain of chunks depending on it
+     */
+    private long myCriticalPathLength;
 
     private BuildChunkTask(BuildTargetChunk chunk) {
       myChunk = chunk;
@@ -611,15 +683,62 @@ public class IncProjectBuilder {
       return myNotBuiltDependencies.isEmpty();
     }
 
-    public void addDependency(BuildChunkTask dependency) {
+    /**
+     * @param outputsOnly true if this task may be started as soon as the class files of the dependency are ready,
+     *                    without waiting for the rest of its build
+     */
+    public void addDependency(BuildChunkTask dependency, boolean outputsOnly) {
       if (myNotBuiltDependencies.add(dependency)) {
-        dependency.myTasksDependsOnThis.add(this);
+        (outputsOnly ? dependency.myTasksDependsOnThisOutputs : dependency.myTasksDependsOnThis).add(this);
+        if (outputsOnly) {
+          myOutputsDependencies.add(dependency);
+        }
       }
     }
 
-    public List<BuildChunkTask> markAsFinishedAndGetNextReadyTasks() {
+    /**
+     * Waits until the dependencies whose class files this task may have been started with are built
+     *
+     * @return true if any of them has changed its class files after it has made them available to this task
+     */
+    public boolean waitForOutputsDependencies() {
+      boolean changed = false;
+      for (Iterator<BuildChunkTask> iterator = myOutputsDependencies.iterator(); iterator.hasNext(); ) {
+        final BuildChunkTask dependency = iterator.next();
+        try {
+          dependency.myFinished.await();
+        }
+        catch (InterruptedException e) {
+          LOG.info(e);
+          break;
+        }
+        iterator.remove();
+        changed |= dependency.myOutputsChangedAfterReady;
+      }
+      return changed;
+    }
+
+    public List<BuildChunkTask> getDependentTasks() {
+      return ContainerUtil.concat(myTasksDependsOnThis, myTasksDependsOnThisOutputs);
+    }
+
+    public List<BuildChunkTask> markOutputsReadyAndGetNextReadyTasks() {
       List<BuildChunkTask> nextTasks = new SmartList<BuildChunkTask>();
-      for (BuildChunkTask task : myTasksDependsOnThis) {
+      if (!myOutputsReady) {
+        myOutputsReady = true;
+        removeFromDependencies(myTasksDependsOnThisOutputs, nextTasks);
+      }
+      return nextTasks;
+    }
+
+    public List<BuildChunkTask> markAsFinishedAndGetNextReadyTasks() {
+      List<BuildChunkTask> nextTasks = markOutputsReadyAndGetNextReadyTasks();
+      removeFromDependencies(myTasksDependsOnThis, nextTasks);
+      return nextTasks;
+    }
+
+    private void removeFromDependencies(List<BuildChunkTask> dependentTasks, List<BuildChunkTask> nextTasks) {
+      for (BuildChunkTask task : dependentTasks) {
         final boolean removed = task.myNotBuiltDependencies.remove(this);
         LOG.assertTrue(removed, task.getChunk().toString() + " didn't have " + getChunk().toString());
 
@@ -627,7 +746,6 @@ public class IncProjectBuilder {
           nextTasks.add(task);
         }
       }
-      return nextTasks;
     }
   }
 
@@ -640,6 +758,13 @@ public class IncProjectBuilder {
     private final Object myQueueLock = new Object();
     private final CountDownLatch myTasksCountDown;
     private final List<BuildChunkTask> myTasks;
+    // ready tasks, the ones starting the longest chains of dependent chunks go first
+    private final PriorityQueue<BuildChunkTask> myReadyTasks = new PriorityQueue<BuildChunkTask>(11, new Comparator<BuildChunkTask>() {
+      @Override
+      public int compare(BuildChunkTask o1, BuildChunkTask o2) {
+        return o1.myCriticalPathLength < o2.myCriticalPathLength ? 1 : o1.myCriticalPathLength == o2.myCriticalPathLength ? 0 : -1;
+      }
+    });
 
     private BuildParallelizer(CompileContext context) {
       myContext = context;
@@ -662,15 +787,39 @@ public class IncProjectBuilder {
           for (BuildTarget<?> dependency : targetIndex.getDependencies(target, myContext)) {
             BuildChunkTask depTask = targetToTask.get(dependency);
             if (depTask != null && depTask != task) {
-              task.addDependency(depTask);
+              // compilation of a module needs only class files of the modules it depends on, other targets need complete outputs
+              task.addDependency(depTask, PIPELINED_BUILD && isModuleChunk(task.getChunk()) && isModuleChunk(depTask.getChunk()));
             }
           }
         }
       }
 
+      computeCriticalPaths(pd);
       myTasksCountDown = new CountDownLatch(myTasks.size());
     }
 
+    private void computeCriticalPaths(ProjectDescriptor pd) {
+      final List<BuildTarget<?>> targets = new ArrayList<BuildTarget<?>>();
+      for (BuildChunkTask task : myTasks) {
+        targets.addAll(task.getChunk().getTargets());
+      }
+      final Map<BuildTarget<?>, Long> times = pd.getTargetsState().estimateBuildTimes(targets);
+
+      // tasks are sorted so that dependencies go before dependent tasks
+      for (int i = myTasks.size() - 1; i >= 0; i--) {
+        final BuildChunkTask task = myTasks.get(i);
+        long chunkTime = 0;
+        for (BuildTarget<?> target : task.getChunk().getTargets()) {
+          chunkTime += times.get(target);
+        }
+        long longestDependentPath = 0;
+        for (BuildChunkTask dependent : task.getDependentTasks()) {
+          longestDependentPath = Math.max(longestDependentPath, dependent.myCriticalPathLength);
+        }
+        task.myCriticalPathLength = chunkTime + longestDependentPath;
+      }
+    }
+
     public void buildInParallel() throws IOException, ProjectBuildException {
       List<BuildChunkTask> initialTasks = new ArrayList<BuildChunkTask>();
       for (BuildChunkTask task : myTasks) {
@@ -698,11 +847,24 @@ public class IncProjectBuilder {
 
     private void queueTasks(List<BuildChunkTask> tasks) {
       List<BuildTargetChunk> chunksToLog = LOG.isDebugEnabled() ? new ArrayList<BuildTargetChunk>() : null;
+      synchronized (myQueueLock) {
+        myReadyTasks.addAll(tasks);
+      }
       for (BuildChunkTask task : tasks) {
         if (chunksToLog != null) {
           chunksToLog.add(task.getChunk());
         }
-        queueTask(task);
+        // each runnable builds the most important of the ready tasks at the moment it is started
+        myParallelBuildExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            final BuildChunkTask task;
+            synchronized (myQueueLock) {
+              task = myReadyTasks.poll();
+            }
+            buildTask(task);
+          }
+        });
       }
 
       if (chunksToLog != null && !chunksToLog.isEmpty()) {
@@ -719,43 +881,73 @@ public class IncProjectBuilder {
       }
     }
 
-    private void queueTask(final BuildChunkTask task) {
+    private void buildTask(final BuildChunkTask task) {
       final CompileContext chunkLocalContext = createContextWrapper(myContext);
-      myParallelBuildExecutor.execute(new Runnable() {
+      CHUNK_OUTPUTS_CHANGED_CALLBACK.set(chunkLocalContext, new Runnable() {
         @Override
         public void run() {
-          try {
-            try {
-              if (myException.get() == null) {
-                buildChunkIfAffected(chunkLocalContext, myContext.getScope(), task.getChunk());
-              }
-            }
-            finally {
-              myContext.updateCompilationStartStamp();
-              myProjectDescriptor.dataManager.closeSourceToOutputStorages(Collections.singletonList(task.getChunk()));
-              myProjectDescriptor.dataManager.flush(true);
-            }
+          task.myOutputsChangedAfterReady = true;
+        }
+      });
+      DEPENDENCY_OUTPUTS_CHANGED_CHECK.set(chunkLocalContext, new Computable<Boolean>() {
+        @Override
+        public Boolean compute() {
+          return task.waitForOutputsDependencies();
+        }
+      });
+      CHUNK_OUTPUTS_READY_CALLBACK.set(chunkLocalContext, new Runnable() {
+        @Override
+        public void run() {
+          LOG.debug("Class files of " + task.getChunk().toString() + " are ready");
+          List<BuildChunkTask> nextTasks;
+          synchronized (myQueueLock) {
+            nextTasks = task.markOutputsReadyAndGetNextReadyTasks();
           }
-          catch (Throwable e) {
-            myException.compareAndSet(null, e);
-            LOG.info(e);
-          }
-          finally {
-            LOG.debug("Finished compilation of " + task.getChunk().toString());
-            myTasksCountDown.countDown();
-            List<BuildChunkTask> nextTasks;
-            synchronized (myQueueLock) {
-              nextTasks = task.markAsFinishedAndGetNextReadyTasks();
-            }
-            if (!nextTasks.isEmpty()) {
-              queueTasks(nextTasks);
-            }
+          if (!nextTasks.isEmpty()) {
+            queueTasks(nextTasks);
           }
         }
       });
+      try {
+        try {
+          if (myException.get() == null) {
+            buildChunkIfAffected(chunkLocalContext, myContext.getScope(), task.getChunk());
+          }
+        }
+        finally {
+          myContext.updateCompilationStartStamp();
+          myProjectDescriptor.dataManager.closeSourceToOutputStorages(Collections.singletonList(task.getChunk()));
+          myProjectDescriptor.dataManager.flush(true);
+        }
+      }
+      catch (Throwable e) {
+        myException.compareAndSet(null, e);
+        LOG.info(e);
+      }
+      finally {
+        LOG.debug("Finished compilation of " + task.getChunk().toString());
+        task.myFinished.countDown();
+        myTasksCountDown.countDown();
+        List<BuildChunkTask> nextTasks;
+        synchronized (myQueueLock) {
+          nextTasks = task.markAsFinishedAndGetNextReadyTasks();
+        }
+        if (!nextTasks.isEmpty()) {
+          queueTasks(nextTasks);
+        }
+      }
     }
   }
 
+  private static boolean isModuleChunk(BuildTargetChunk chunk) {
+    for (BuildTarget<?> target : chunk.getTargets()) {
+      if (!(target instanceof ModuleBuildTarget)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private void buildChunkIfAffected(CompileContext context, CompileScope scope, BuildTargetChunk chunk) throws ProjectBuildException {
     if (isAffected(scope, chunk)) {
       buildTargetsChunk(context, chunk);
@@ -822,22 +1014,22 @@ public class IncProjectBuilder {
         BuildOperations.ensureFSStateInitialized(context, target);
       }
 
+      final long start = System.currentTimeMillis();
       doneSomething = processDeletedPaths(context, chunk.getTargets());
 
       myProjectDescriptor.fsState.beforeChunkBuildStart(context, chunk);
 
       doneSomething |= runBuildersForChunk(context, chunk);
 
-      onChunkBuildComplete(context, chunk);
+      if (doneSomething) {
+        final Set<? extends BuildTarget<?>> targets = chunk.getTargets();
+        final long timePerTarget = (System.currentTimeMillis() - start) / targets.size();
+        for (BuildTarget<?> target : targets) {
+          myProjectDescriptor.getTargetsState().updateAverageBuildTime(target, timePerTarget);
+        }
+      }
 
-      //if (doneSomething && GENERATE_CLASSPATH_INDEX) {
-      //  myAsyncTasks.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
-      //    @Override
-      //    public void run() {
-      //      createClasspathIndex(chunk);
-      //    }
-      //  }));
-      //}
+      onChunkBuildComplete(context, chunk);
     }
     catch (ProjectBuildException e) {
       throw e;
@@ -879,42 +1071,6 @@ public class IncProjectBuilder {
     myMessageDispatcher.processMessage(new BuildingTargetProgressMessage(targets, event));
   }
 
-  private static void createClasspathIndex(final BuildTargetChunk chunk) {
-    final Set<File> outputDirs = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
-    for (BuildTarget<?> target : chunk.getTargets()) {
-      if (target instanceof ModuleBuildTarget) {
-        File outputDir = ((ModuleBuildTarget)target).getOutputDir();
-        if (outputDir != null && outputDirs.add(outputDir)) {
-          try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputDir, CLASSPATH_INDEX_FINE_NAME)));
-            try {
-              writeIndex(writer, outputDir, "");
-            }
-            finally {
-              writer.close();
-            }
-          }
-          catch (IOException e) {
-            // Ignore. Failed to create optional classpath index
-          }
-        }
-      }
-    }
-  }
-
-  private static void writeIndex(final BufferedWriter writer, final File file, final String path) throws IOException {
-    writer.write(path);
-    writer.write('\n');
-    final File[] files = file.listFiles();
-    if (files != null) {
-      for (File child : files) {
-        final String _path = path.isEmpty() ? child.getName() : path + "/" + child.getName();
-        writeIndex(writer, child, _path);
-      }
-    }
-  }
-
-
   private boolean processDeletedPaths(CompileContext context, final Set<? extends BuildTarget<?>> targets) throws ProjectBuildException {
     boolean doneSomething = false;
     try {
@@ -1025,6 +1181,7 @@ public class IncProjectBuilder {
     final int modulesInChunk = chunk.getModules().size();
     int buildersPassed = 0;
     boolean nextPassRequired;
+    boolean outputsReleased = false;
     ChunkBuildOutputConsumerImpl outputConsumer = new ChunkBuildOutputConsumerImpl(context);
     try {
       do {
@@ -1057,9 +1214,15 @@ public class IncProjectBuilder {
         BUILDER_CATEGORY_LOOP:
         for (BuilderCategory category : BuilderCategory.values()) {
           final List<ModuleLevelBuilder> builders = myBuilderRegistry.getBuilders(category);
+          if (category == BuilderCategory.CLASS_INSTRUMENTER && RELEASE_OUTPUTS_BEFORE_INSTRUMENTATION && !nextPassRequired) {
+            outputsReleased |= releaseChunkOutputs(context);
+          }
           if (category == BuilderCategory.CLASS_POST_PROCESSOR) {
             // ensure changes from instrumenters are visible to class post-processors
-            saveInstrumentedClasses(outputConsumer);
+            saveInstrumentedClasses(outputConsumer, outputsReleased);
+            if (!nextPassRequired) {
+              outputsReleased |= releaseChunkOutputs(context);
+            }
           }
           if (builders.isEmpty()) {
             continue;
@@ -1076,6 +1239,11 @@ public class IncProjectBuilder {
             }
             context.checkCanceled();
             if (buildResult == ModuleLevelBuilder.ExitCode.ADDITIONAL_PASS_REQUIRED) {
+              if (outputsReleased) {
+                LOG.info("Builder " + builder.getPresentableName() + " requested additional pass for " + chunk.getName() +
+                         " after its class files were made available to dependent chunks, they will be compiled again");
+                notifyChunkOutputsChanged(context);
+              }
               if (!nextPassRequired) {
                 // recalculate basis
                 myTargetsProcessed -= (buildersPassed * modulesInChunk) / stageCount;
@@ -1115,10 +1283,10 @@ public class IncProjectBuilder {
           }
         }
       }
-      while (nextPassRequired);
+      while (nextPassRequired || (nextPassRequired = recompileIfDependencyOutputsChanged(context, chunk, outputsReleased)));
     }
     finally {
-      saveInstrumentedClasses(outputConsumer);
+      saveInstrumentedClasses(outputConsumer, outputsReleased);
       outputConsumer.fireFileGeneratedEvents();
       outputConsumer.clear();
       for (BuilderCategory category : BuilderCategory.values()) {
@@ -1131,10 +1299,65 @@ public class IncProjectBuilder {
     return doneSomething;
   }
 
-  private static void saveInstrumentedClasses(ChunkBuildOutputConsumerImpl outputConsumer) throws IOException {
+  /**
+   * @return true if the dependent chunks have been notified that the class files of the chunk are ready
+   */
+  private static boolean releaseChunkOutputs(CompileContext context) {
+    final Runnable callback = CHUNK_OUTPUTS_READY_CALLBACK.get(context);
+    if (callback == null) {
+      return false;
+    }
+    CHUNK_OUTPUTS_READY_CALLBACK.set(context, null);
+    callback.run();
+    return true;
+  }
+
+  private static void notifyChunkOutputsChanged(CompileContext context) {
+    final Runnable callback = CHUNK_OUTPUTS_CHANGED_CALLBACK.get(context);
+    if (callback != null) {
+      CHUNK_OUTPUTS_CHANGED_CALLBACK.set(context, null);
+      callback.run();
+    }
+  }
+
+  /**
+   * The chunk may have been compiled against the class files of a dependency which the dependency has recompiled after making them available.
+   * In this case all the sources of the chunk are marked dirty to be compiled again against the final class files.
+   *
+   * @return true if another pass is required
+   */
+  private static boolean recompileIfDependencyOutputsChanged(CompileContext context, ModuleChunk chunk, boolean outputsReleased)
+    throws ProjectBuildException {
+    final Computable<Boolean> check = DEPENDENCY_OUTPUTS_CHANGED_CHECK.get(context);
+    if (check == null || !check.compute()) {
+      return false;
+    }
+    LOG.info("Class files used to compile " + chunk.getName() + " were changed by an additional pass, it will be compiled again");
+    if (outputsReleased) {
+      notifyChunkOutputsChanged(context);
+    }
+    try {
+      context.getProjectDescriptor().fsState.clearContextRoundData(context);
+      FSOperations.markDirty(context, chunk, null);
+    }
+    catch (IOException e) {
+      throw new ProjectBuildException(e);
+    }
+    return true;
+  }
+
+  /**
+   * @param atomically true if the class files may be read by the builds of dependent chunks at the same time
+   */
+  private static void saveInstrumentedClasses(ChunkBuildOutputConsumerImpl outputConsumer, boolean atomically) throws IOException {
     for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
       if (compiledClass.isDirty()) {
-        compiledClass.save();
+        if (atomically) {
+          compiledClass.saveAtomically();
+        }
+        else {
+          compiledClass.save();
+        }
       }
     }
   }
@@ -19,9 +19,12 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.MultiMap;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.FileProcessor;
@@ -50,6 +53,7 @@ import java.util.*;
 public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, ArtifactBuildTarget> {
   private static final Logger LOG = Logger.getInstance(IncArtifactBuilder.class);
   public static final String BUILDER_NAME = "Artifacts builder";
+  private static final String PREVIOUS_ARCHIVE_SUFFIX = ".previous";
 
   public IncArtifactBuilder() {
     super(Collections.singletonList(ArtifactBuildTargetType.INSTANCE));
@@ -105,12 +109,14 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
       }
 
       final Set<String> changedOutputPaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+      final Set<String> changedSourcePaths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
       //noinspection SynchronizationOnLocalVariableOrMethodParameter
       holder.processDirtyFiles(new FileProcessor<ArtifactRootDescriptor, ArtifactBuildTarget>() {
         @Override
         public boolean apply(ArtifactBuildTarget target, File file, ArtifactRootDescriptor root) throws IOException {
           int rootIndex = root.getRootIndex();
           String sourcePath = FileUtil.toSystemIndependentName(file.getPath());
+          changedSourcePaths.add(sourcePath);
           addFileToProcess(filesToProcess, rootIndex, sourcePath, deletedFiles);
           final Collection<String> outputPaths = srcOutMapping.getOutputs(sourcePath);
           if (outputPaths != null) {
@@ -133,52 +139,89 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
       for (String outputPath : changedOutputPaths) {
         outSrcMapping.remove(outputPath);
       }
+      final boolean incrementalPacking = Boolean.parseBoolean(System.getProperty(GlobalOptions.INCREMENTAL_ARTIFACT_PACKING_OPTION));
+      final Set<String> archivePaths = incrementalPacking ? collectArchivePaths(target, context) : Collections.<String>emptySet();
+      deleteLeftPreviousArchives(archivePaths);
       if (filesToDelete.isEmpty() && filesToProcess.isEmpty()) {
         return;
       }
 
-      deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping);
-      context.checkCanceled();
-
-      context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
-      final Set<JarInfo> changedJars = new THashSet<JarInfo>();
-      for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      final Map<String, File> previousArchives = new THashMap<String, File>(FileUtil.PATH_HASHING_STRATEGY);
+      try {
+        deleteOutdatedFiles(filesToDelete, context, srcOutMapping, outSrcMapping, archivePaths, previousArchives);
         context.checkCanceled();
-        final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
-        if (sourcePaths == null) continue;
+        buildArtifact(target, context, outputConsumer, filesToProcess, outSrcMapping,
+                      incrementalPacking ? changedSourcePaths : null, previousArchives);
+      }
+      finally {
+        for (File previousArchive : previousArchives.values()) {
+          FileUtil.delete(previousArchive);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new ProjectBuildException(e);
+    }
+  }
 
-        for (String sourcePath : sourcePaths) {
-          if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
-            }
-            continue;
-          }
-          DestinationInfo destination = descriptor.getDestinationInfo();
-          if (destination instanceof ExplodedDestinationInfo) {
-            descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
-                                    outputConsumer, outSrcMapping);
+  private static void buildArtifact(ArtifactBuildTarget target,
+                                    CompileContext context,
+                                    BuildOutputConsumer outputConsumer,
+                                    TIntObjectHashMap<Set<String>> filesToProcess,
+                                    ArtifactOutputToSourceMapping outSrcMapping,
+                                    @Nullable Set<String> changedSourcePaths,
+                                    Map<String, File> previousArchives) throws IOException, ProjectBuildException {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final JpsArtifact artifact = target.getArtifact();
+    context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
+    final Set<JarInfo> changedJars = new THashSet<JarInfo>();
+    for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
+      context.checkCanceled();
+      final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
+      if (sourcePaths == null) continue;
+
+      for (String sourcePath : sourcePaths) {
+        if (!descriptor.getFilter().shouldBeCopied(sourcePath, pd)) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("File " + sourcePath + " will be skipped because it isn't accepted by filter");
           }
-          else {
-            List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
-            if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
-              outSrcMapping.update(destination.getOutputFilePath(),
-                                   Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
-              changedJars.add(((JarDestinationInfo)destination).getJarInfo());
-            }
+          continue;
+        }
+        DestinationInfo destination = descriptor.getDestinationInfo();
+        if (destination instanceof ExplodedDestinationInfo) {
+          descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
+                                  outputConsumer, outSrcMapping);
+        }
+        else {
+          List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
+          if (sources == null || sources.size() > 0 && sources.get(0).getRootIndex() == descriptor.getRootIndex()) {
+            outSrcMapping.update(destination.getOutputFilePath(),
+                                 Collections.<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>emptyList());
+            changedJars.add(((JarDestinationInfo)destination).getJarInfo());
           }
         }
       }
-      context.checkCanceled();
-
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
-      builder.buildJars();
-      runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.FINISHING_BUILD);
-      runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
     }
-    catch (IOException e) {
-      throw new ProjectBuildException(e);
+    context.checkCanceled();
+
+    JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, changedSourcePaths, previousArchives);
+    builder.buildJars();
+    runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.FINISHING_BUILD);
+    runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
+  }
+
+  /**
+   * @return output paths of the archives built for the artifact
+   */
+  private static Set<String> collectArchivePaths(ArtifactBuildTarget target, CompileContext context) {
+    final Set<String> paths = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
+    for (ArtifactRootDescriptor descriptor : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
+      final DestinationInfo destination = descriptor.getDestinationInfo();
+      if (destination instanceof JarDestinationInfo) {
+        paths.add(destination.getOutputFilePath());
+      }
     }
+    return paths;
   }
 
   private static void runArtifactTasks(CompileContext context, JpsArtifact artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase phase)
@@ -206,9 +249,14 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     paths.add(path);
   }
 
+  /**
+   * @param archivePaths     output paths of the archives which should be moved to temporary files instead of deleting
+   * @param previousArchives receives the temporary files the archives have been moved to, by output path
+   */
   private static void deleteOutdatedFiles(MultiMap<String, String> filesToDelete, CompileContext context,
                                           SourceToOutputMapping srcOutMapping,
-                                          ArtifactOutputToSourceMapping outSrcMapping) throws IOException {
+                                          ArtifactOutputToSourceMapping outSrcMapping,
+                                          Set<String> archivePaths, Map<String, File> previousArchives) throws IOException {
     if (filesToDelete.isEmpty()) return;
 
     context.processMessage(new ProgressMessage("Deleting outdated files..."));
@@ -223,7 +271,7 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
 
       boolean deleted = deletedPaths.contains(filePath);
       if (!deleted) {
-        deleted = FileUtil.delete(new File(filePath));
+        deleted = archivePaths.contains(filePath) ? moveToTemporaryFile(filePath, previousArchives) : FileUtil.delete(new File(filePath));
       }
 
       if (deleted) {
@@ -251,6 +299,38 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     }
   }
 
+  /**
+   * Deletes the previous versions of the archives left by a build which was terminated while the archives were packed.
+   */
+  private static void deleteLeftPreviousArchives(Set<String> archivePaths) {
+    for (String archivePath : archivePaths) {
+      final File previousArchive = getPreviousArchiveFile(archivePath);
+      if (previousArchive.exists()) {
+        LOG.debug("Deleting previous archive left by an interrupted build: " + previousArchive.getPath());
+        FileUtil.delete(previousArchive);
+      }
+    }
+  }
+
+  private static File getPreviousArchiveFile(String archivePath) {
+    // the file is placed next to the archive so that the archive is moved without copying
+    return new File(FileUtil.toSystemDependentName(archivePath) + PREVIOUS_ARCHIVE_SUFFIX);
+  }
+
+  private static boolean moveToTemporaryFile(String filePath, Map<String, File> previousArchives) {
+    final File file = new File(filePath);
+    if (!file.isFile()) {
+      return FileUtil.delete(file);
+    }
+    final File temporaryFile = getPreviousArchiveFile(filePath);
+    FileUtil.delete(temporaryFile);
+    if (file.renameTo(temporaryFile)) {
+      previousArchives.put(filePath, temporaryFile);
+      return true;
+    }
+    return FileUtil.delete(file);
+  }
+
   @NotNull
   @Override
   public String getPresentableName() {
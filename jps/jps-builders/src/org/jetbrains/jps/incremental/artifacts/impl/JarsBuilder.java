@@ -19,6 +19,7 @@ package org.jetbrains.jps.incremental.artifacts.impl;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
@@ -48,23 +49,37 @@ import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * @author nik
  */
 public class JarsBuilder {
-  private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.impl.packagingCompiler.JarsBuilder");
+  static final Logger LOG = Logger.getInstance("#com.intellij.compiler.impl.packagingCompiler.JarsBuilder");
   private final Set<JarInfo> myJarsToBuild;
   private final CompileContext myContext;
   private Map<JarInfo, File> myBuiltJars;
   private final BuildOutputConsumer myOutputConsumer;
   private final ArtifactOutputToSourceMapping myOutSrcMapping;
+  @Nullable private final Set<String> myChangedSources;
+  private final Map<String, File> myPreviousArchives;
 
   public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
                      ArtifactOutputToSourceMapping outSrcMapping) {
+    this(jarsToBuild, context, outputConsumer, outSrcMapping, null, Collections.<String, File>emptyMap());
+  }
+
+  /**
+   * @param changedSources   if not null, archives are packed incrementally: the entries of the files not contained in this set are copied
+   *                         from the previous versions of the archives without recompressing them
+   * @param previousArchives previous versions of the archives which have been moved away from their output paths, by output path
+   */
+  public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
+                     ArtifactOutputToSourceMapping outSrcMapping, @Nullable Set<String> changedSources,
+                     @NotNull Map<String, File> previousArchives) {
     myOutputConsumer = outputConsumer;
     myOutSrcMapping = outSrcMapping;
+    myChangedSources = changedSources;
+    myPreviousArchives = previousArchives;
     DependentJarsEvaluator evaluator = new DependentJarsEvaluator();
     for (JarInfo jarInfo : jarsToBuild) {
       evaluator.addJarWithDependencies(jarInfo);
@@ -146,10 +161,35 @@ public class JarsBuilder {
     myBuiltJars.put(jar, jarFile);
 
     FileUtil.createParentDirs(jarFile);
+    if (myChangedSources == null) {
+      packJar(jar, jarFile, false, emptyArchiveMessage);
+      return;
+    }
+
+    final String targetJarPath = jar.getDestination().getOutputFilePath();
+    final List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = myOutSrcMapping.getState(targetJarPath);
+    final List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sourcesBefore =
+      sources != null ? new ArrayList<ArtifactOutputToSourceMapping.SourcePathAndRootIndex>(sources) : null;
+    try {
+      packJar(jar, jarFile, true, emptyArchiveMessage);
+    }
+    catch (StreamingZipWriter.ArchiveTooLargeException e) {
+      LOG.info(e.getMessage() + ", it will be packed from scratch");
+      myOutSrcMapping.update(targetJarPath, sourcesBefore);
+      myBuiltJars.put(jar, jarFile);
+      packJar(jar, jarFile, false, emptyArchiveMessage);
+    }
+  }
+
+  /**
+   * @param incremental true if the entries which have not changed should be copied from the previous version of the archive
+   */
+  private void packJar(JarInfo jar, File jarFile, boolean incremental, String emptyArchiveMessage) throws IOException {
     final String targetJarPath = jar.getDestination().getOutputFilePath();
     List<String> packedFilePaths = new ArrayList<String>();
     Manifest manifest = loadManifest(jar, packedFilePaths);
-    final JarOutputStream jarOutputStream = createJarOutputStream(jarFile, manifest);
+    final JarOutput jarOutput = incremental ? createIncrementalJarOutput(jar, jarFile, manifest)
+                                            : new StreamJarOutput(createJarOutputStream(jarFile, manifest));
 
     final THashSet<String> writtenPaths = new THashSet<String>();
     try {
@@ -163,21 +203,21 @@ public class JarsBuilder {
           final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
           final int rootIndex = descriptor.getRootIndex();
           if (descriptor instanceof FileBasedArtifactRootDescriptor) {
-            addFileToJar(jarOutputStream, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
+            addFileToJar(jarOutput, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, rootIndex);
           }
           else {
             final String filePath = FileUtil.toSystemIndependentName(descriptor.getRootFile().getAbsolutePath());
             packedFilePaths.add(filePath);
             myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
-            extractFileAndAddToJar(jarOutputStream, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
+            extractFileAndAddToJar(jarOutput, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
           }
         }
         else {
           JarInfo nestedJar = (JarInfo)pair.getSecond();
           File nestedJarFile = myBuiltJars.get(nestedJar);
           if (nestedJarFile != null) {
-            addFileToJar(jarOutputStream, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
+            addFileToJar(jarOutput, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, -1);
           }
           else {
@@ -190,6 +230,7 @@ public class JarsBuilder {
         myContext.processMessage(new CompilerMessage(IncArtifactBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, emptyArchiveMessage));
         return;
       }
+      jarOutput.finish();
 
       final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
       if (logger.isEnabled()) {
@@ -201,7 +242,7 @@ public class JarsBuilder {
     finally {
       if (writtenPaths.isEmpty()) {
         try {
-          jarOutputStream.close();
+          jarOutput.close();
         }
         catch (IOException ignored) {
         }
@@ -209,11 +250,41 @@ public class JarsBuilder {
         myBuiltJars.remove(jar);
       }
       else {
-        jarOutputStream.close();
+        jarOutput.close();
       }
     }
   }
 
+  private JarOutput createIncrementalJarOutput(JarInfo jar, File jarFile, @Nullable Manifest manifest) throws IOException {
+    PreviousArchive previousArchive = null;
+    final DestinationInfo destination = jar.getDestination();
+    if (destination instanceof ExplodedDestinationInfo) {
+      File previousFile = myPreviousArchives.get(destination.getOutputFilePath());
+      if (previousFile == null) {
+        previousFile = new File(FileUtil.toSystemDependentName(destination.getOutputPath()));
+      }
+      if (previousFile.isFile()) {
+        previousArchive = PreviousArchive.open(previousFile);
+      }
+    }
+    final IncrementalJarOutput output;
+    try {
+      output = new IncrementalJarOutput(new StreamingZipWriter(jarFile, previousArchive), previousArchive, jar);
+    }
+    catch (IOException e) {
+      if (previousArchive != null) {
+        previousArchive.close();
+      }
+      throw e;
+    }
+    if (manifest != null) {
+      final BufferExposingByteArrayOutputStream manifestContent = new BufferExposingByteArrayOutputStream();
+      manifest.write(manifestContent);
+      output.myWriter.addBytes(JarFile.MANIFEST_NAME, System.currentTimeMillis(), manifestContent.toByteArray(), false);
+    }
+    return output;
+  }
+
   private static JarOutputStream createJarOutputStream(File jarFile, @Nullable Manifest manifest) throws IOException {
     final BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(jarFile));
     if (manifest != null) {
@@ -278,48 +349,45 @@ public class JarsBuilder {
     }
   }
 
-  private static void extractFileAndAddToJar(final JarOutputStream jarOutputStream, final JarBasedArtifactRootDescriptor root,
-                                             final String relativeOutputPath, final Set<String> writtenPaths)
+  private void extractFileAndAddToJar(final JarOutput jarOutput, final JarBasedArtifactRootDescriptor root,
+                                      final String relativeOutputPath, final Set<String> writtenPaths)
     throws IOException {
     final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
+    final boolean unchanged = !isChanged(root.getRootFile());
     root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
       @Override
       public void process(@Nullable InputStream inputStream, @NotNull String relativePath, ZipEntry entry) throws IOException {
-        String pathInJar = addParentDirectories(jarOutputStream, writtenPaths, JpsArtifactPathUtil
+        String pathInJar = addParentDirectories(jarOutput, writtenPaths, JpsArtifactPathUtil
           .appendToPath(relativeOutputPath, relativePath));
 
         if (inputStream == null) {
-          addDirectoryEntry(jarOutputStream, pathInJar + "/", writtenPaths);
+          addDirectoryEntry(jarOutput, pathInJar + "/", writtenPaths);
         }
         else if (writtenPaths.add(pathInJar)) {
-          ZipEntry newEntry = new ZipEntry(pathInJar);
-          newEntry.setTime(timestamp);
-          if (entry.getMethod() == ZipEntry.STORED) {
-            newEntry.setMethod(ZipEntry.STORED);
-            newEntry.setSize(entry.getSize());
-            newEntry.setCrc(entry.getCrc());
-          }
-          jarOutputStream.putNextEntry(newEntry);
-          FileUtil.copy(inputStream, jarOutputStream);
-          jarOutputStream.closeEntry();
+          jarOutput.addEntry(pathInJar, inputStream, entry, timestamp, unchanged);
         }
       }
     });
 
   }
 
-  private void addFileToJar(final @NotNull JarOutputStream jarOutputStream, final @NotNull File jarFile, @NotNull File file,
+  private boolean isChanged(@NotNull File file) {
+    return myChangedSources == null || myChangedSources.contains(FileUtil.toSystemIndependentName(file.getAbsolutePath())) ||
+           myBuiltJars.containsValue(file);
+  }
+
+  private void addFileToJar(final @NotNull JarOutput jarOutput, final @NotNull File jarFile, @NotNull File file,
                             SourceFileFilter filter, @NotNull String relativePath, String targetJarPath,
                             final @NotNull Set<String> writtenPaths, List<String> packedFilePaths, final int rootIndex) throws IOException {
     if (!file.exists() || FileUtil.isAncestor(file, jarFile, false)) {
       return;
     }
 
-    relativePath = addParentDirectories(jarOutputStream, writtenPaths, relativePath);
-    addFileOrDirRecursively(jarOutputStream, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
+    relativePath = addParentDirectories(jarOutput, writtenPaths, relativePath);
+    addFileOrDirRecursively(jarOutput, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
   }
 
-  private void addFileOrDirRecursively(@NotNull ZipOutputStream jarOutputStream,
+  private void addFileOrDirRecursively(@NotNull JarOutput jarOutput,
                                        @NotNull File file,
                                        SourceFileFilter filter,
                                        @NotNull String relativePath,
@@ -335,19 +403,22 @@ public class JarsBuilder {
     if (file.isDirectory()) {
       final String directoryPath = relativePath.length() == 0 ? "" : relativePath + "/";
       if (!directoryPath.isEmpty()) {
-        addDirectoryEntry(jarOutputStream, directoryPath, writtenItemRelativePaths);
+        addDirectoryEntry(jarOutput, directoryPath, writtenItemRelativePaths);
       }
       final File[] children = file.listFiles();
       if (children != null) {
         for (File child : children) {
-          addFileOrDirRecursively(jarOutputStream, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
+          addFileOrDirRecursively(jarOutput, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
                                   packedFilePaths, rootIndex);
         }
       }
       return;
     }
 
-    final boolean added = ZipUtil.addFileToZip(jarOutputStream, file, relativePath, writtenItemRelativePaths, null);
+    final boolean added = writtenItemRelativePaths.add(relativePath);
+    if (added) {
+      jarOutput.addFile(relativePath, file, !isChanged(file));
+    }
     if (rootIndex != -1) {
       myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
       if (added) {
@@ -357,7 +428,7 @@ public class JarsBuilder {
   }
 
 
-  private static String addParentDirectories(JarOutputStream jarOutputStream, Set<String> writtenPaths, String relativePath) throws IOException {
+  private static String addParentDirectories(JarOutput jarOutput, Set<String> writtenPaths, String relativePath) throws IOException {
     while (StringUtil.startsWithChar(relativePath, '/')) {
       relativePath = relativePath.substring(1);
     }
@@ -365,22 +436,145 @@ public class JarsBuilder {
     while (i != -1) {
       String prefix = relativePath.substring(0, i+1);
       if (prefix.length() > 1) {
-        addDirectoryEntry(jarOutputStream, prefix, writtenPaths);
+        addDirectoryEntry(jarOutput, prefix, writtenPaths);
       }
       i = relativePath.indexOf('/', i + 1);
     }
     return relativePath;
   }
 
-  private static void addDirectoryEntry(final ZipOutputStream output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
+  private static void addDirectoryEntry(final JarOutput output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
     if (!writtenPaths.add(relativePath)) return;
 
-    ZipEntry e = new ZipEntry(relativePath);
-    e.setMethod(ZipEntry.STORED);
-    e.setSize(0);
-    e.setCrc(0);
-    output.putNextEntry(e);
-    output.closeEntry();
+    output.addDirectory(relativePath);
+  }
+
+  /**
+   * Receives the entries of an archive being built. The entries are passed in the order they should be written, each entry once.
+   */
+  private interface JarOutput {
+    void addDirectory(@NotNull String path) throws IOException;
+
+    /**
+     * @param unchanged true if the file has not changed since the archive was built last time
+     */
+    void addFile(@NotNull String path, @NotNull File file, boolean unchanged) throws IOException;
+
+    void addEntry(@NotNull String path, @NotNull InputStream content, @NotNull ZipEntry originalEntry, long timestamp, boolean unchanged)
+      throws IOException;
+
+    /**
+     * Completes the archive, not called if the archive is discarded.
+     */
+    void finish() throws IOException;
+
+    void close() throws IOException;
+  }
+
+  private static class StreamJarOutput implements JarOutput {
+    private final JarOutputStream myOutputStream;
+
+    private StreamJarOutput(JarOutputStream outputStream) {
+      myOutputStream = outputStream;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String path) throws IOException {
+      ZipEntry e = new ZipEntry(path);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myOutputStream.putNextEntry(e);
+      myOutputStream.closeEntry();
+    }
+
+    @Override
+    public void addFile(@NotNull String path, @NotNull File file, boolean unchanged) throws IOException {
+      ZipUtil.addFileToZip(myOutputStream, file, path, null, null);
+    }
+
+    @Override
+    public void addEntry(@NotNull String path, @NotNull InputStream content, @NotNull ZipEntry originalEntry, long timestamp, boolean unchanged)
+      throws IOException {
+      ZipEntry newEntry = new ZipEntry(path);
+      newEntry.setTime(timestamp);
+      if (originalEntry.getMethod() == ZipEntry.STORED) {
+        newEntry.setMethod(ZipEntry.STORED);
+        newEntry.setSize(originalEntry.getSize());
+        newEntry.setCrc(originalEntry.getCrc());
+      }
+      myOutputStream.putNextEntry(newEntry);
+      FileUtil.copy(content, myOutputStream);
+      myOutputStream.closeEntry();
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void close() throws IOException {
+      myOutputStream.close();
+    }
+  }
+
+  private static class IncrementalJarOutput implements JarOutput {
+    private final StreamingZipWriter myWriter;
+    @Nullable private final PreviousArchive myPreviousArchive;
+    private final JarInfo myJar;
+
+    private IncrementalJarOutput(StreamingZipWriter writer, @Nullable PreviousArchive previousArchive, JarInfo jar) {
+      myWriter = writer;
+      myPreviousArchive = previousArchive;
+      myJar = jar;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String path) throws IOException {
+      myWriter.addDirectory(path);
+    }
+
+    @Override
+    public void addFile(@NotNull String path, @NotNull File file, boolean unchanged) throws IOException {
+      myWriter.addFile(path, file, unchanged);
+    }
+
+    @Override
+    public void addEntry(@NotNull String path, @NotNull InputStream content, @NotNull ZipEntry originalEntry, long timestamp, boolean unchanged)
+      throws IOException {
+      final boolean store = originalEntry.getMethod() == ZipEntry.STORED;
+      if (!unchanged || !myWriter.addFromPreviousArchive(path, timestamp, originalEntry.getCrc(), originalEntry.getSize(), store)) {
+        final long size = originalEntry.getSize();
+        if (size >= 0 && size <= StreamingZipWriter.MAX_BUFFERED_ENTRY_SIZE) {
+          myWriter.addBytes(path, timestamp, FileUtil.loadBytes(content, (int)size), store);
+        }
+        else {
+          // a stored entry always has its size and CRC set
+          myWriter.addStream(path, timestamp, content, originalEntry.getCrc(), store ? size : -1);
+        }
+      }
+    }
+
+    @Override
+    public void finish() throws IOException {
+      myWriter.finish();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(myJar.getPresentableDestination() + ": " + myWriter.getCopiedEntryCount() + " of " + myWriter.getEntryCount() +
+                  " entries copied from the previous archive");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        myWriter.close();
+      }
+      finally {
+        if (myPreviousArchive != null) {
+          myPreviousArchive.close();
+        }
+      }
+    }
   }
 
   private class JarsGraph implements GraphGenerator.SemiGraph<JarInfo> {
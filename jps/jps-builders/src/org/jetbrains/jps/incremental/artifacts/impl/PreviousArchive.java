@@ -0,0 +1,203 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.util.io.zip.DosTime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the central directory of an archive built by a previous build, so that the compressed data of its entries
+ * can be copied to the new version of the archive as is.
+ */
+class PreviousArchive {
+  static final Charset NAMES_CHARSET = Charset.forName("UTF-8");
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+  private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+  private static final int ENCRYPTED_FLAG = 1;
+
+  private final RandomAccessFile myFile;
+  private final Map<String, Entry> myEntries = new HashMap<String, Entry>();
+
+  static class Entry {
+    final int method;
+    final int dosTime;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    private final long myHeaderOffset;
+
+    private Entry(int method, int dosTime, long crc, long compressedSize, long size, long headerOffset) {
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      myHeaderOffset = headerOffset;
+    }
+  }
+
+  private PreviousArchive(File file) throws IOException {
+    myFile = new RandomAccessFile(file, "r");
+  }
+
+  /**
+   * @return null if the archive cannot be read
+   */
+  @Nullable
+  static PreviousArchive open(@NotNull File file) {
+    PreviousArchive archive = null;
+    try {
+      archive = new PreviousArchive(file);
+      archive.readCentralDirectory();
+      return archive;
+    }
+    catch (IOException e) {
+      JarsBuilder.LOG.info("Cannot read previous archive " + file.getPath() + ", all its entries will be packed again: " + e.getMessage());
+      if (archive != null) {
+        archive.close();
+      }
+      return null;
+    }
+  }
+
+  @Nullable
+  Entry getEntry(@NotNull String name) {
+    return myEntries.get(name);
+  }
+
+  int getEntryCount() {
+    return myEntries.size();
+  }
+
+  /**
+   * Writes the compressed data of the entry as it is stored in the archive.
+   */
+  void copyCompressedData(@NotNull Entry entry, @NotNull OutputStream out, @NotNull byte[] buffer) throws IOException {
+    myFile.seek(entry.myHeaderOffset);
+    if (Integer.reverseBytes(myFile.readInt()) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException("Local file header not found at " + entry.myHeaderOffset);
+    }
+    myFile.seek(entry.myHeaderOffset + 26);
+    final int nameLength = readShort();
+    final int extraLength = readShort();
+    myFile.seek(entry.myHeaderOffset + 30 + nameLength + extraLength);
+    long remaining = entry.compressedSize;
+    while (remaining > 0) {
+      final int read = myFile.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if (read < 0) {
+        throw new IOException("Unexpected end of archive");
+      }
+      out.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+
+  void close() {
+    try {
+      myFile.close();
+    }
+    catch (IOException e) {
+      JarsBuilder.LOG.info(e);
+    }
+  }
+
+  private void readCentralDirectory() throws IOException {
+    final long length = myFile.length();
+    final int tailLength = (int)Math.min(length, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+    final byte[] tail = new byte[tailLength];
+    myFile.seek(length - tailLength);
+    myFile.readFully(tail);
+    int end = -1;
+    for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+      if (getInt(tail, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new IOException("End of central directory not found");
+    }
+    final int count = getShort(tail, end + 10);
+    final long directoryLength = getInt(tail, end + 12) & 0xFFFFFFFFL;
+    final long directoryOffset = getInt(tail, end + 16) & 0xFFFFFFFFL;
+    if (directoryOffset + directoryLength > length || directoryLength > Integer.MAX_VALUE) {
+      throw new IOException("Invalid central directory");
+    }
+
+    final byte[] directory = new byte[(int)directoryLength];
+    myFile.seek(directoryOffset);
+    myFile.readFully(directory);
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      if (offset + 46 > directory.length || getInt(directory, offset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Invalid central directory header");
+      }
+      final int flags = getShort(directory, offset + 8);
+      final int method = getShort(directory, offset + 10);
+      final int dosTime = getInt(directory, offset + 12);
+      final long crc = getInt(directory, offset + 16) & 0xFFFFFFFFL;
+      final long compressedSize = getInt(directory, offset + 20) & 0xFFFFFFFFL;
+      final long size = getInt(directory, offset + 24) & 0xFFFFFFFFL;
+      final int nameLength = getShort(directory, offset + 28);
+      final int extraLength = getShort(directory, offset + 30);
+      final int commentLength = getShort(directory, offset + 32);
+      final long headerOffset = getInt(directory, offset + 42) & 0xFFFFFFFFL;
+      final String name = new String(directory, offset + 46, nameLength, NAMES_CHARSET);
+      if ((flags & ENCRYPTED_FLAG) == 0) {
+        myEntries.put(name, new Entry(method, dosTime, crc, compressedSize, size, headerOffset));
+      }
+      offset += 46 + nameLength + extraLength + commentLength;
+    }
+  }
+
+  private int readShort() throws IOException {
+    return Short.reverseBytes(myFile.readShort()) & 0xFFFF;
+  }
+
+  private static int getShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+  }
+
+  static int toDosTime(long time) {
+    return (int)DosTime.javaToDosTime(time);
+  }
+
+  /**
+   * The content of the file is not compared: it is called only for the files which are not dirty for the artifact target,
+   * i.e. whose timestamps are the ones recorded when the previous archive was built (see the changed sources of {@link JarsBuilder}).
+   * The size and the time of the entry are compared only to detect a previous archive which has been packed from another file.
+   * The DOS time has 2 seconds precision, so this check alone would not notice an edit which keeps the size.
+   */
+  static boolean isSameFile(@NotNull Entry entry, @NotNull File file) {
+    return entry.size == file.length() && entry.dosTime == toDosTime(file.lastModified());
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip archive entry by entry. Entries are deflated by pooled threads while the previous ones are being written,
+ * and the compressed data of the entries which have not changed since the previous build are copied from the previous archive
+ * without recompressing them. Zip64 extensions are not supported: {@link ArchiveTooLargeException} is thrown if the archive
+ * requires them, and such archives have to be packed by {@link java.util.jar.JarOutputStream}.
+ * <p/>
+ * The content of the pending entries is kept in memory, so only the entries not larger than {@link #MAX_BUFFERED_ENTRY_SIZE}
+ * are deflated in parallel; larger ones are streamed to the archive by the calling thread once the pending entries are written.
+ */
+class StreamingZipWriter {
+  private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final BoundedTaskExecutor ourExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), MAX_THREADS);
+  private static final int MAX_PENDING_ENTRIES = 4 * MAX_THREADS;
+  static final int MAX_BUFFERED_ENTRY_SIZE = 1024 * 1024;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int UTF8_NAMES_FLAG = 0x800;
+  // the sizes and the CRC of the entry are written after its data instead of the local header
+  private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+  private static final long MAX_32BIT_VALUE = 0xFFFFFFFFL;
+  private static final int MAX_ENTRIES = 0xFFFF;
+  // marks the archive as a jar, like java.util.jar.JarOutputStream does for its first entry
+  private static final byte[] JAR_MAGIC = {(byte)0xFE, (byte)0xCA, 0, 0};
+  private static final byte[] NO_EXTRA = new byte[0];
+
+  private final File myFile;
+  private final CountingOutputStream myOutput;
+  @Nullable private final PreviousArchive myPreviousArchive;
+  private final LinkedList<Future<EntryData>> myPendingEntries = new LinkedList<Future<EntryData>>();
+  private final BufferExposingByteArrayOutputStream myCentralDirectory = new BufferExposingByteArrayOutputStream();
+  private final byte[] myCopyBuffer = new byte[64 * 1024];
+  private int myEntryCount;
+  private int myCopiedEntryCount;
+
+  private static class EntryData {
+    final String name;
+    final int method;
+    final int dosTime;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    @Nullable final byte[] compressedData;
+    @Nullable final PreviousArchive.Entry previousEntry;
+    final int flags;
+
+    private EntryData(String name, int method, int dosTime, long crc, long compressedSize, long size,
+                      @Nullable byte[] compressedData, @Nullable PreviousArchive.Entry previousEntry) {
+      this(name, method, dosTime, crc, compressedSize, size, compressedData, previousEntry, UTF8_NAMES_FLAG);
+    }
+
+    private EntryData(String name, int method, int dosTime, long crc, long compressedSize, long size,
+                      @Nullable byte[] compressedData, @Nullable PreviousArchive.Entry previousEntry, int flags) {
+      this.name = name;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.compressedData = compressedData;
+      this.previousEntry = previousEntry;
+      this.flags = flags;
+    }
+  }
+
+  StreamingZipWriter(@NotNull File file, @Nullable PreviousArchive previousArchive) throws IOException {
+    myFile = file;
+    myOutput = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    myPreviousArchive = previousArchive;
+  }
+
+  void addDirectory(@NotNull String name) throws IOException {
+    addEntry(completed(new EntryData(name, ZipEntry.STORED, PreviousArchive.toDosTime(System.currentTimeMillis()), 0, 0, 0, null, null)));
+  }
+
+  /**
+   * @param unchanged true if the file has not changed since the previous archive was built,
+   *                  so its previous compressed data can be copied if the previous archive contains the same file
+   */
+  void addFile(@NotNull final String name, @NotNull final File file, boolean unchanged) throws IOException {
+    if (unchanged && myPreviousArchive != null) {
+      final PreviousArchive.Entry entry = myPreviousArchive.getEntry(name);
+      if (entry != null && PreviousArchive.isSameFile(entry, file)) {
+        addEntry(completed(new EntryData(name, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, null, entry)));
+        return;
+      }
+    }
+    final int dosTime = PreviousArchive.toDosTime(file.lastModified());
+    if (file.length() > MAX_BUFFERED_ENTRY_SIZE) {
+      final InputStream input = new BufferedInputStream(new FileInputStream(file));
+      try {
+        writeStreamedEntry(name, dosTime, input, -1, -1);
+      }
+      finally {
+        input.close();
+      }
+      return;
+    }
+    addEntry(ourExecutor.submit(new Callable<EntryData>() {
+      @Override
+      public EntryData call() throws Exception {
+        return compress(name, dosTime, FileUtil.loadFileBytes(file), false);
+      }
+    }));
+  }
+
+  /**
+   * Adds the entry with the specified content if the previous archive contains it.
+   *
+   * @return false if the previous archive does not contain the same entry, so the content has to be added with {@link #addBytes}
+   */
+  boolean addFromPreviousArchive(@NotNull String name, long time, long crc, long size, boolean store) throws IOException {
+    if (myPreviousArchive != null) {
+      final PreviousArchive.Entry entry = myPreviousArchive.getEntry(name);
+      if (entry != null && entry.crc == crc && entry.size == size && (entry.method == ZipEntry.STORED) == store) {
+        addEntry(completed(new EntryData(name, entry.method, PreviousArchive.toDosTime(time), entry.crc, entry.compressedSize, entry.size,
+                                         null, entry)));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void addBytes(@NotNull final String name, final long time, @NotNull final byte[] content, final boolean store) throws IOException {
+    addEntry(ourExecutor.submit(new Callable<EntryData>() {
+      @Override
+      public EntryData call() throws Exception {
+        return compress(name, PreviousArchive.toDosTime(time), content, store);
+      }
+    }));
+  }
+
+  /**
+   * Writes the entry content read from the stream, the stream is read after all the pending entries are written.
+   * Entries larger than {@link #MAX_BUFFERED_ENTRY_SIZE} should be added this way, so that their content is not kept in memory.
+   *
+   * @param crc  CRC of the content if it has to be stored uncompressed, ignored otherwise
+   * @param size size of the content if it has to be stored uncompressed, or -1 to deflate it
+   */
+  void addStream(@NotNull String name, long time, @NotNull InputStream content, long crc, long size) throws IOException {
+    writeStreamedEntry(name, PreviousArchive.toDosTime(time), content, crc, size);
+  }
+
+  int getEntryCount() {
+    return myEntryCount;
+  }
+
+  int getCopiedEntryCount() {
+    return myCopiedEntryCount;
+  }
+
+  private static EntryData compress(String name, int dosTime, byte[] content, boolean store) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    if (store || content.length == 0) {
+      return new EntryData(name, ZipEntry.STORED, dosTime, crc.getValue(), content.length, content.length, content, null);
+    }
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      final BufferExposingByteArrayOutputStream compressed = new BufferExposingByteArrayOutputStream(content.length / 2 + 16);
+      final DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+      out.write(content);
+      out.close();
+      return new EntryData(name, ZipEntry.DEFLATED, dosTime, crc.getValue(), compressed.size(), content.length, compressed.getInternalBuffer(), null);
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  private static Future<EntryData> completed(final EntryData data) {
+    final FutureTask<EntryData> task = new FutureTask<EntryData>(new Callable<EntryData>() {
+      @Override
+      public EntryData call() {
+        return data;
+      }
+    });
+    task.run();
+    return task;
+  }
+
+  private void addEntry(Future<EntryData> entry) throws IOException {
+    myPendingEntries.addLast(entry);
+    if (myPendingEntries.size() > MAX_PENDING_ENTRIES) {
+      writeEntry(myPendingEntries.removeFirst());
+    }
+  }
+
+  private void writeEntry(Future<EntryData> future) throws IOException {
+    final EntryData entry;
+    try {
+      entry = future.get();
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException(cause);
+    }
+
+    if (entry.compressedSize > MAX_32BIT_VALUE) {
+      throw new ArchiveTooLargeException(myFile);
+    }
+    final long offset = writeLocalHeader(entry);
+    final DataOutputStream out = new DataOutputStream(myOutput);
+    if (entry.compressedData != null) {
+      out.write(entry.compressedData, 0, (int)entry.compressedSize);
+    }
+    else if (entry.previousEntry != null) {
+      assert myPreviousArchive != null;
+      myPreviousArchive.copyCompressedData(entry.previousEntry, out, myCopyBuffer);
+      myCopiedEntryCount++;
+    }
+    writeDirectoryEntry(entry, offset);
+  }
+
+  /**
+   * Writes the entry without keeping its content in memory. If the content is deflated, its CRC and sizes are not known
+   * until it is written, so they follow the data in a data descriptor.
+   */
+  private void writeStreamedEntry(String name, int dosTime, InputStream content, long crc, long size) throws IOException {
+    while (!myPendingEntries.isEmpty()) {
+      writeEntry(myPendingEntries.removeFirst());
+    }
+
+    if (size >= 0) {
+      if (size > MAX_32BIT_VALUE) {
+        throw new ArchiveTooLargeException(myFile);
+      }
+      final EntryData entry = new EntryData(name, ZipEntry.STORED, dosTime, crc, size, size, null, null);
+      final long offset = writeLocalHeader(entry);
+      long length = 0;
+      int read;
+      while ((read = content.read(myCopyBuffer)) > 0) {
+        myOutput.write(myCopyBuffer, 0, read);
+        length += read;
+      }
+      if (length != size) {
+        throw new IOException("Unexpected size of " + name + ": " + length + " instead of " + size);
+      }
+      writeDirectoryEntry(entry, offset);
+      return;
+    }
+
+    final int flags = UTF8_NAMES_FLAG | DATA_DESCRIPTOR_FLAG;
+    final long offset = writeLocalHeader(new EntryData(name, ZipEntry.DEFLATED, dosTime, 0, 0, 0, null, null, flags));
+    final long dataOffset = myOutput.getCount();
+    final CRC32 checksum = new CRC32();
+    long length = 0;
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      final DeflaterOutputStream deflated = new DeflaterOutputStream(new FilterOutputStream(myOutput) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+          // the archive stays open
+        }
+      }, deflater);
+      int read;
+      while ((read = content.read(myCopyBuffer)) > 0) {
+        checksum.update(myCopyBuffer, 0, read);
+        deflated.write(myCopyBuffer, 0, read);
+        length += read;
+      }
+      deflated.finish();
+    }
+    finally {
+      deflater.end();
+    }
+    final long compressedSize = myOutput.getCount() - dataOffset;
+    if (length > MAX_32BIT_VALUE || compressedSize > MAX_32BIT_VALUE) {
+      throw new ArchiveTooLargeException(myFile);
+    }
+    final EntryData entry = new EntryData(name, ZipEntry.DEFLATED, dosTime, checksum.getValue(), compressedSize, length, null, null, flags);
+    final DataOutputStream out = new DataOutputStream(myOutput);
+    writeInt(out, DATA_DESCRIPTOR_SIGNATURE);
+    writeInt(out, (int)entry.crc);
+    writeInt(out, (int)entry.compressedSize);
+    writeInt(out, (int)entry.size);
+    writeDirectoryEntry(entry, offset);
+  }
+
+  /**
+   * @return offset of the header
+   */
+  private long writeLocalHeader(EntryData entry) throws IOException {
+    final long offset = myOutput.getCount();
+    if (++myEntryCount > MAX_ENTRIES || offset > MAX_32BIT_VALUE) {
+      throw new ArchiveTooLargeException(myFile);
+    }
+    final byte[] name = entry.name.getBytes(PreviousArchive.NAMES_CHARSET);
+    final byte[] extra = myEntryCount == 1 ? JAR_MAGIC : NO_EXTRA;
+
+    final DataOutputStream out = new DataOutputStream(myOutput);
+    writeInt(out, LOCAL_HEADER_SIGNATURE);
+    writeShort(out, getVersion(entry));
+    writeEntryInfo(out, entry, name, extra);
+    out.write(name);
+    out.write(extra);
+    return offset;
+  }
+
+  private void writeDirectoryEntry(EntryData entry, long offset) throws IOException {
+    final byte[] name = entry.name.getBytes(PreviousArchive.NAMES_CHARSET);
+    final byte[] extra = offset == 0 ? JAR_MAGIC : NO_EXTRA;
+    final int version = getVersion(entry);
+    final DataOutputStream directory = new DataOutputStream(myCentralDirectory);
+    writeInt(directory, CENTRAL_HEADER_SIGNATURE);
+    writeShort(directory, 20);
+    writeShort(directory, version);
+    writeEntryInfo(directory, entry, name, extra);
+    writeShort(directory, 0); // comment length
+    writeShort(directory, 0); // disk number
+    writeShort(directory, 0); // internal attributes
+    writeInt(directory, 0);   // external attributes
+    writeInt(directory, (int)offset);
+    directory.write(name);
+    directory.write(extra);
+  }
+
+  private static int getVersion(EntryData entry) {
+    return entry.method == ZipEntry.DEFLATED ? 20 : 10;
+  }
+
+  private static void writeEntryInfo(DataOutputStream out, EntryData entry, byte[] name, byte[] extra) throws IOException {
+    writeShort(out, entry.flags);
+    writeShort(out, entry.method);
+    writeInt(out, entry.dosTime);
+    writeInt(out, (int)entry.crc);
+    writeInt(out, (int)entry.compressedSize);
+    writeInt(out, (int)entry.size);
+    writeShort(out, name.length);
+    writeShort(out, extra.length);
+  }
+
+  /**
+   * Writes all the pending entries and the central directory.
+   */
+  void finish() throws IOException {
+    try {
+      while (!myPendingEntries.isEmpty()) {
+        writeEntry(myPendingEntries.removeFirst());
+      }
+      final long directoryOffset = myOutput.getCount();
+      if (directoryOffset > MAX_32BIT_VALUE) {
+        throw new ArchiveTooLargeException(myFile);
+      }
+      myCentralDirectory.writeTo(myOutput);
+      final DataOutputStream out = new DataOutputStream(myOutput);
+      writeInt(out, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+      writeShort(out, 0);
+      writeShort(out, 0);
+      writeShort(out, myEntryCount);
+      writeShort(out, myEntryCount);
+      writeInt(out, myCentralDirectory.size());
+      writeInt(out, (int)directoryOffset);
+      writeShort(out, 0);
+    }
+    finally {
+      close();
+    }
+  }
+
+  /**
+   * Releases the resources, the archive is not valid unless {@link #finish()} has been called.
+   */
+  void close() throws IOException {
+    final List<Future<EntryData>> pending = new ArrayList<Future<EntryData>>(myPendingEntries);
+    myPendingEntries.clear();
+    for (Future<EntryData> future : pending) {
+      future.cancel(false);
+    }
+    myOutput.close();
+  }
+
+  private static void writeShort(DataOutputStream out, int value) throws IOException {
+    out.writeShort(Short.reverseBytes((short)value));
+  }
+
+  private static void writeInt(DataOutputStream out, int value) throws IOException {
+    out.writeInt(Integer.reverseBytes(value));
+  }
+
+  static class ArchiveTooLargeException extends IOException {
+    private ArchiveTooLargeException(@NotNull File file) {
+      super("Archive " + file.getPath() + " is too large to be packed incrementally");
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long myCount;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      myCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      myCount += len;
+    }
+
+    long getCount() {
+      return myCount;
+    }
+  }
+}
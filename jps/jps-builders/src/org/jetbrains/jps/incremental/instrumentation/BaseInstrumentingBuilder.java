@@ -19,6 +19,7 @@ import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
 import com.intellij.compiler.instrumentation.InstrumenterClassWriter;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Key;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.ClassWriter;
@@ -29,6 +30,15 @@ import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.incremental.CompiledClass;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Eugene Zhuravlev
@@ -38,46 +48,157 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.instrumentation.BaseInstrumentingBuilder");
   // every instance of builder must have its own marker!
   private final Key<Boolean> IS_INSTRUMENTED_KEY = Key.create("_instrumentation_marker_" + getPresentableName());
+  private final Key<Statistics> STATISTICS_KEY = Key.create("_instrumentation_statistics_" + getPresentableName());
+  private static final BoundedTaskExecutor ourExecutor =
+    new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
 
   public BaseInstrumentingBuilder() {
     super(BuilderCategory.CLASS_INSTRUMENTER);
   }
 
   @Override
-  protected final ExitCode performBuild(CompileContext context, ModuleChunk chunk, InstrumentationClassFinder finder, OutputConsumer outputConsumer) {
-    ExitCode exitCode = ExitCode.NOTHING_DONE;
+  public void buildStarted(CompileContext context) {
+    STATISTICS_KEY.set(context, new Statistics());
+  }
+
+  @Override
+  public void buildFinished(CompileContext context) {
+    final Statistics statistics = STATISTICS_KEY.get(context);
+    if (statistics != null && statistics.myClassesProcessed.get() > 0) {
+      LOG.info(getPresentableName() + ": " + statistics.myClassesInstrumented.get() + " of " + statistics.myClassesProcessed.get() +
+               " classes instrumented, " + statistics.myClassesSkipped.get() + " skipped without parsing, took " +
+               statistics.myElapsedTime.get() + " ms");
+    }
+    STATISTICS_KEY.set(context, null);
+  }
+
+  @Override
+  protected final ExitCode performBuild(final CompileContext context, ModuleChunk chunk, final InstrumentationClassFinder finder, OutputConsumer outputConsumer) {
+    final long start = System.currentTimeMillis();
+    final List<CompiledClass> toInstrument = new ArrayList<CompiledClass>();
+    int skipped = 0;
     for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
-      final BinaryContent originalContent = compiledClass.getContent();
-      final ClassReader reader = new ClassReader(originalContent.getBuffer(), originalContent.getOffset(), originalContent.getLength());
-      final int version = getClassFileVersion(reader);
-      if (IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE) || !canInstrument(compiledClass, version)) {
+      if (IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE)) {
         // do not instrument the same content twice
         continue;
       }
-      final ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version), finder);
-      try {
-        final BinaryContent instrumented = instrument(context, compiledClass, reader, writer, finder);
-        if (instrumented != null) {
-          compiledClass.setContent(instrumented);
-          finder.cleanCachedData(compiledClass.getClassName());
-          IS_INSTRUMENTED_KEY.set(compiledClass, Boolean.TRUE);
-          exitCode = ExitCode.OK;
-        }
+      final ClassReader reader = createReader(compiledClass);
+      if (!canInstrument(compiledClass, getClassFileVersion(reader))) {
+        continue;
+      }
+      if (!mayRequireInstrumentation(reader)) {
+        skipped++;
+        continue;
+      }
+      toInstrument.add(compiledClass);
+    }
+
+    final List<BinaryContent> results;
+    if (toInstrument.size() > 1 && isParallelInstrumentationSupported()) {
+      final List<Future<BinaryContent>> futures = new ArrayList<Future<BinaryContent>>(toInstrument.size());
+      for (final CompiledClass compiledClass : toInstrument) {
+        futures.add(ourExecutor.submit(new Callable<BinaryContent>() {
+          @Override
+          public BinaryContent call() throws Exception {
+            return instrumentClass(context, compiledClass, finder);
+          }
+        }));
+      }
+      results = new ArrayList<BinaryContent>(futures.size());
+      for (Future<BinaryContent> future : futures) {
+        results.add(getResult(future));
       }
-      catch (Throwable e) {
-        LOG.info(e);
-        final String message = e.getMessage();
-        if (message != null) {
-          context.processMessage(new CompilerMessage(getPresentableName(), BuildMessage.Kind.ERROR, message, compiledClass.getSourceFile().getPath()));
-        }
-        else {
-          context.processMessage(new CompilerMessage(getPresentableName(), e));
-        }
+    }
+    else {
+      results = new ArrayList<BinaryContent>(toInstrument.size());
+      for (CompiledClass compiledClass : toInstrument) {
+        results.add(instrumentClass(context, compiledClass, finder));
       }
     }
+
+    ExitCode exitCode = ExitCode.NOTHING_DONE;
+    int instrumentedCount = 0;
+    for (int i = 0; i < toInstrument.size(); i++) {
+      final BinaryContent instrumented = results.get(i);
+      if (instrumented != null) {
+        final CompiledClass compiledClass = toInstrument.get(i);
+        compiledClass.setContent(instrumented);
+        finder.cleanCachedData(compiledClass.getClassName());
+        IS_INSTRUMENTED_KEY.set(compiledClass, Boolean.TRUE);
+        instrumentedCount++;
+        exitCode = ExitCode.OK;
+      }
+    }
+
+    final long elapsed = System.currentTimeMillis() - start;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(getPresentableName() + " [" + chunk.getName() + "]: " + instrumentedCount + " of " + (toInstrument.size() + skipped) +
+                " classes instrumented, " + skipped + " skipped without parsing, took " + elapsed + " ms");
+    }
+    final Statistics statistics = STATISTICS_KEY.get(context);
+    if (statistics != null) {
+      statistics.myClassesProcessed.addAndGet(toInstrument.size() + skipped);
+      statistics.myClassesSkipped.addAndGet(skipped);
+      statistics.myClassesInstrumented.addAndGet(instrumentedCount);
+      statistics.myElapsedTime.addAndGet(elapsed);
+    }
     return exitCode;
   }
 
+  @Nullable
+  private BinaryContent instrumentClass(CompileContext context, CompiledClass compiledClass, InstrumentationClassFinder finder) {
+    final ClassReader reader = createReader(compiledClass);
+    final ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(getClassFileVersion(reader)), finder);
+    try {
+      return instrument(context, compiledClass, reader, writer, finder);
+    }
+    catch (Throwable e) {
+      LOG.info(e);
+      final String message = e.getMessage();
+      if (message != null) {
+        context.processMessage(new CompilerMessage(getPresentableName(), BuildMessage.Kind.ERROR, message, compiledClass.getSourceFile().getPath()));
+      }
+      else {
+        context.processMessage(new CompilerMessage(getPresentableName(), e));
+      }
+      return null;
+    }
+  }
+
+  private static ClassReader createReader(CompiledClass compiledClass) {
+    final BinaryContent content = compiledClass.getContent();
+    return new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
+  }
+
+  @Nullable
+  private static BinaryContent getResult(Future<BinaryContent> future) {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * A cheap check performed before the class is parsed, e.g. by looking into its constant pool.
+   *
+   * @return false if the class certainly does not need to be instrumented
+   */
+  protected boolean mayRequireInstrumentation(ClassReader reader) {
+    return true;
+  }
+
+  /**
+   * @return true if {@link #instrument} may be called for several classes at once from different threads
+   */
+  protected boolean isParallelInstrumentationSupported() {
+    return false;
+  }
+
   protected abstract boolean canInstrument(CompiledClass compiledClass, int classFileVersion);
 
   @Nullable
@@ -87,4 +208,10 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
                                               ClassWriter writer,
                                               InstrumentationClassFinder finder);
 
+  private static class Statistics {
+    private final AtomicInteger myClassesProcessed = new AtomicInteger();
+    private final AtomicInteger myClassesSkipped = new AtomicInteger();
+    private final AtomicInteger myClassesInstrumented = new AtomicInteger();
+    private final AtomicLong myElapsedTime = new AtomicLong();
+  }
 }
@@ -64,6 +64,16 @@ public class NotNullInstrumentingBuilder extends BaseInstrumentingBuilder{
     return classFileVersion >= Opcodes.V1_5;
   }
 
+  @Override
+  protected boolean mayRequireInstrumentation(ClassReader reader) {
+    return NotNullVerifyingInstrumenter.mayHaveNotNullAnnotations(reader);
+  }
+
+  @Override
+  protected boolean isParallelInstrumentationSupported() {
+    return true;
+  }
+
   // todo: probably instrument other NotNull-like annotations defined in project settings?
   @Override
   @Nullable
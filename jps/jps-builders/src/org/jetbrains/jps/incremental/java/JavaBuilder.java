@@ -39,6 +39,7 @@ import org.jetbrains.jps.builders.FileProcessor;
 import org.jetbrains.jps.builders.java.JavaBuilderExtension;
 import org.jetbrains.jps.builders.java.JavaBuilderUtil;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.java.dependencyView.BackwardReferenceIndex;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.builders.java.dependencyView.Mappings;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
@@ -235,6 +236,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     final Mappings delta = pd.dataManager.getMappings().createDelta();
     final Callbacks.Backend mappingsCallback = delta.getCallback();
     final OutputFilesSink outputSink = new OutputFilesSink(context, outputConsumer, mappingsCallback, chunk.getName());
+    final DiagnosticSink diagnosticSink = new DiagnosticSink(context);
     try {
       if (hasSourcesToCompile) {
         final AtomicReference<String> ref = COMPILER_VERSION_INFO.get(context);
@@ -252,8 +254,6 @@ public class JavaBuilder extends ModuleLevelBuilder {
             srcPath.add(rd.root);
           }
         }
-        final DiagnosticSink diagnosticSink = new DiagnosticSink(context);
-        
         final String chunkName = chunk.getName();
         context.processMessage(new ProgressMessage("Parsing java... [" + chunkName + "]"));
 
@@ -306,6 +306,15 @@ public class JavaBuilder extends ModuleLevelBuilder {
       if (JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, files, outputSink.getSuccessfullyCompiled())) {
         exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
       }
+      final BackwardReferenceIndex referenceIndex = pd.dataManager.getBackwardReferenceIndex();
+      if (referenceIndex != null) {
+        // such sources are left out of the index, so that the references javac has not kept in their classes are still looked for
+        for (File file : files) {
+          if (diagnosticSink.mayHaveEliminatedCode(file)) {
+            referenceIndex.removeSource(file);
+          }
+        }
+      }
     }
 
     return exitCode;
@@ -318,7 +327,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     Collection<File> classpath,
     Collection<File> platformCp,
     Collection<File> sourcePath,
-    DiagnosticOutputConsumer diagnosticSink,
+    DiagnosticSink diagnosticSink,
     final OutputFileConsumer outputSink) throws Exception {
 
     final TasksCounter counter = new TasksCounter();
@@ -372,6 +381,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
       final boolean rc;
       if (USE_EMBEDDED_JAVAC) {
         final boolean useEclipse = useEclipseCompiler(context);
+        diagnosticSink.setEliminatedCodeReported(!useEclipse);
         rc = JavacMain.compile(
           options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus(), useEclipse
         );
@@ -785,6 +795,8 @@ public class JavaBuilder extends ModuleLevelBuilder {
     private volatile int myErrorCount = 0;
     private volatile int myWarningCount = 0;
     private final Set<File> myFilesWithErrors = new HashSet<File>();
+    private final Set<File> myFilesWithEliminatedCode = Collections.synchronizedSet(new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY));
+    private volatile boolean myEliminatedCodeReported;
 
     public DiagnosticSink(CompileContext context) {
       myContext = context;
@@ -794,6 +806,22 @@ public class JavaBuilder extends ModuleLevelBuilder {
     public void javaFileLoaded(File file) {
     }
 
+    @Override
+    public void codeMayBeEliminated(File file) {
+      myFilesWithEliminatedCode.add(file);
+    }
+
+    void setEliminatedCodeReported(boolean reported) {
+      myEliminatedCodeReported = reported;
+    }
+
+    /**
+     * @return true if the file was compiled by a compiler which does not report the sources with eliminated code, or if it is one of them
+     */
+    boolean mayHaveEliminatedCode(File file) {
+      return !myEliminatedCodeReported || myFilesWithEliminatedCode.contains(file);
+    }
+
     public void registerImports(final String className, final Collection<String> imports, final Collection<String> staticImports) {
       //submitAsyncTask(myContext, new Runnable() {
       //  public void run() {
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.resources;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.builders.BuildOutputConsumer;
+import org.jetbrains.jps.builders.impl.BuildOutputConsumerImpl;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies resource files on pooled threads. The outputs are registered in the builder thread, a batch at a time,
+ * in the order the copying was requested. Files copied to the same output are copied one after another in that order as well.
+ * <p/>
+ * An existing output file is always deleted before it is written, because it may be a hard link to its source
+ * and writing into it would change the source as well.
+ */
+class ResourceCopier {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.resources.ResourceCopier");
+  private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final BoundedTaskExecutor ourExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), MAX_THREADS);
+  private static final int BATCH_SIZE = 256;
+  private static final HardLinker ourHardLinker = HardLinker.create();
+
+  private final CompileContext myContext;
+  private final BuildOutputConsumer myOutputConsumer;
+  private final boolean myUseHardLinks;
+  private final LinkedList<Future<CopiedFile>> myPending = new LinkedList<Future<CopiedFile>>();
+  private final Map<File, Future<CopiedFile>> myPendingByTarget = new THashMap<File, Future<CopiedFile>>(FileUtil.FILE_HASHING_STRATEGY);
+  private boolean myFailed;
+
+  ResourceCopier(@NotNull CompileContext context, @NotNull BuildOutputConsumer outputConsumer, boolean useHardLinks) {
+    myContext = context;
+    myOutputConsumer = outputConsumer;
+    myUseHardLinks = useHardLinks && ourHardLinker != null;
+  }
+
+  /**
+   * @param useHardLink whether the target may be a hard link to the source, it is ignored if hard links are not enabled
+   * @return false if copying of some file has failed, the error is already reported then
+   */
+  boolean copy(@NotNull final File source, @NotNull final File target, final boolean useHardLink) {
+    final Future<CopiedFile> previous = myPendingByTarget.get(target);
+    if (previous != null) {
+      // another source is mapped to the same output, the one requested last has to win
+      getResult(previous);
+    }
+    final Future<CopiedFile> future = ourExecutor.submit(new Callable<CopiedFile>() {
+      @Override
+      public CopiedFile call() throws Exception {
+        try {
+          copyFile(source, target, myUseHardLinks && useHardLink);
+          return new CopiedFile(source, target, null);
+        }
+        catch (IOException e) {
+          return new CopiedFile(source, target, e);
+        }
+      }
+    });
+    myPending.add(future);
+    myPendingByTarget.put(target, future);
+    if (myPending.size() >= 2 * BATCH_SIZE) {
+      registerOutputs(BATCH_SIZE);
+    }
+    return !myFailed;
+  }
+
+  /**
+   * Waits for all the files to be copied and registers the remaining outputs.
+   *
+   * @return false if copying of some file has failed
+   */
+  boolean finish() {
+    registerOutputs(myPending.size());
+    return !myFailed;
+  }
+
+  /**
+   * Waits for the pending copy operations to complete, e.g. when the build is canceled; the outputs of the copied files are registered anyway.
+   */
+  void cancel() {
+    for (Future<CopiedFile> future : myPending) {
+      future.cancel(false);
+    }
+    finish();
+  }
+
+  private void registerOutputs(int count) {
+    final Map<File, Collection<String>> outputs = new LinkedHashMap<File, Collection<String>>();
+    for (int i = 0; i < count && !myPending.isEmpty(); i++) {
+      final Future<CopiedFile> future = myPending.removeFirst();
+      final CopiedFile copied = getResult(future);
+      if (copied == null) {
+        continue;
+      }
+      if (myPendingByTarget.get(copied.target) == future) {
+        myPendingByTarget.remove(copied.target);
+      }
+      if (copied.error != null) {
+        LOG.info(copied.error);
+        myContext.processMessage(new CompilerMessage(
+          "resources", BuildMessage.Kind.ERROR, copied.error.getMessage(), FileUtil.toSystemIndependentName(copied.source.getPath())
+        ));
+        myFailed = true;
+      }
+      else {
+        outputs.put(copied.target, Collections.singletonList(copied.source.getPath()));
+      }
+    }
+    if (outputs.isEmpty()) {
+      return;
+    }
+    try {
+      if (myOutputConsumer instanceof BuildOutputConsumerImpl) {
+        ((BuildOutputConsumerImpl)myOutputConsumer).registerOutputFiles(outputs);
+      }
+      else {
+        for (Map.Entry<File, Collection<String>> entry : outputs.entrySet()) {
+          myOutputConsumer.registerOutputFile(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    catch (Exception e) {
+      myContext.processMessage(new CompilerMessage(ResourcesBuilder.BUILDER_NAME, e));
+    }
+  }
+
+  @Nullable
+  private static CopiedFile getResult(@NotNull Future<CopiedFile> future) {
+    if (future.isCancelled()) {
+      return null;
+    }
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    catch (CancellationException e) {
+      return null;
+    }
+  }
+
+  static void copyFile(@NotNull File source, @NotNull File target, boolean useHardLink) throws IOException {
+    if (target.exists() && !target.delete()) {
+      throw new IOException("Cannot delete " + target.getPath());
+    }
+    if (useHardLink && ourHardLinker != null) {
+      FileUtil.createParentDirs(target);
+      if (ourHardLinker.link(source, target)) {
+        return;
+      }
+    }
+
+    final FileOutputStream out;
+    try {
+      out = openOutputStream(target);
+    }
+    catch (FileNotFoundException e) {
+      // let FileUtil deal with the file systems which need special handling
+      FileUtil.copyContent(source, target);
+      return;
+    }
+    try {
+      final FileInputStream in = new FileInputStream(source);
+      try {
+        final FileChannel inChannel = in.getChannel();
+        final FileChannel outChannel = out.getChannel();
+        final long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+          final long transferred = inChannel.transferTo(position, size - position, outChannel);
+          if (transferred <= 0) {
+            break;
+          }
+          position += transferred;
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static FileOutputStream openOutputStream(@NotNull File file) throws FileNotFoundException {
+    try {
+      return new FileOutputStream(file);
+    }
+    catch (FileNotFoundException e) {
+      FileUtil.createParentDirs(file);
+      return new FileOutputStream(file);
+    }
+  }
+
+  private static class CopiedFile {
+    private final File source;
+    private final File target;
+    @Nullable private final IOException error;
+
+    private CopiedFile(File source, File target, @Nullable IOException error) {
+      this.source = source;
+      this.target = target;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Creates hard links through NIO2 when it is available (Java 7+), see also {@code FileSystemUtil}.
+   */
+  private static class HardLinker {
+    private final Method myToPath;
+    private final Method myCreateLink;
+
+    private HardLinker(Method toPath, Method createLink) {
+      myToPath = toPath;
+      myCreateLink = createLink;
+    }
+
+    @Nullable
+    private static HardLinker create() {
+      try {
+        final Class<?> pathClass = Class.forName("java.nio.file.Path");
+        final Method toPath = File.class.getMethod("toPath");
+        final Method createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+        return new HardLinker(toPath, createLink);
+      }
+      catch (Exception e) {
+        return null;
+      }
+    }
+
+    /**
+     * @return false if the file system does not support hard links between the files, e.g. they are on different volumes
+     */
+    private boolean link(@NotNull File existing, @NotNull File link) {
+      try {
+        myCreateLink.invoke(null, myToPath.invoke(link), myToPath.invoke(existing));
+        return true;
+      }
+      catch (InvocationTargetException e) {
+        LOG.debug(e.getCause());
+        return false;
+      }
+      catch (IllegalAccessException e) {
+        LOG.debug(e);
+        return false;
+      }
+    }
+  }
+}
@@ -15,9 +15,9 @@
  */
 package org.jetbrains.jps.incremental.resources;
 
-import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.FileProcessor;
@@ -27,8 +27,6 @@ import org.jetbrains.jps.incremental.CompileContext;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.ResourcesTarget;
 import org.jetbrains.jps.incremental.TargetBuilder;
-import org.jetbrains.jps.incremental.messages.BuildMessage;
-import org.jetbrains.jps.incremental.messages.CompilerMessage;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.model.module.JpsModule;
 
@@ -41,7 +39,6 @@ import java.util.*;
  *         Date: 10/6/11
  */
 public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, ResourcesTarget> {
-  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.resourses.ResourcesBuilder");
   public static final String BUILDER_NAME = "Resource Compiler";
   private static final List<StandardResourceBuilderEnabler> ourEnablers = Collections.synchronizedList(new ArrayList<StandardResourceBuilderEnabler>());
 
@@ -67,6 +64,11 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
       return;
     }
 
+    final boolean useHardLinks = Boolean.parseBoolean(System.getProperty(GlobalOptions.RESOURCES_HARD_LINKS_OPTION));
+    final ResourceCopier copier = new ResourceCopier(context, outputConsumer, useHardLinks);
+    // only the files copied because the target is rebuilt are linked: a changed file is likely to be edited again,
+    // and editing it in place would change its output behind the build
+    final boolean linkUnchangedFiles = context.getScope().isBuildForced(target);
     try {
       holder.processDirtyFiles(new FileProcessor<ResourceRootDescriptor, ResourcesTarget>() {
         private final Map<ResourceRootDescriptor, Boolean> mySkippedRoots = new HashMap<ResourceRootDescriptor, Boolean>();
@@ -76,26 +78,26 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
             final File outputDir = target.getOutputDir();
             isSkipped = Boolean.valueOf(outputDir == null || FileUtil.filesEqual(outputDir, sourceRoot.getRootFile()));
             mySkippedRoots.put(sourceRoot, isSkipped);
+            if (!isSkipped.booleanValue()) {
+              context.processMessage(new ProgressMessage("Copying resources... [" + target.getModule().getName() + "]"));
+            }
           }
           if (isSkipped.booleanValue()) {
             return true;
           }
-          try {
-            copyResource(context, sourceRoot, file, outputConsumer);
-          }
-          catch (IOException e) {
-            LOG.info(e);
-            context.processMessage(
-              new CompilerMessage(
-                "resources", BuildMessage.Kind.ERROR, e.getMessage(), FileUtil.toSystemIndependentName(file.getPath())
-              )
-            );
+          if (!copyResource(sourceRoot, file, copier, linkUnchangedFiles)) {
             return false;
           }
           return !context.getCancelStatus().isCanceled();
         }
       });
 
+      if (context.getCancelStatus().isCanceled()) {
+        copier.cancel();
+      }
+      else if (!copier.finish()) {
+        return;
+      }
       context.checkCanceled();
 
       context.processMessage(new ProgressMessage(""));
@@ -106,6 +108,9 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     catch (Exception e) {
       throw new ProjectBuildException(e.getMessage(), e);
     }
+    finally {
+      copier.finish();
+    }
   }
 
   private static boolean isResourceProcessingEnabled(JpsModule module) {
@@ -119,10 +124,13 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     return true;
   }
 
-  private static void copyResource(CompileContext context, ResourceRootDescriptor rd, File file, BuildOutputConsumer outputConsumer) throws IOException {
+  /**
+   * @return false if copying of some resource has already failed
+   */
+  private static boolean copyResource(ResourceRootDescriptor rd, File file, ResourceCopier copier, boolean useHardLink) {
     final File outputRoot = rd.getTarget().getOutputDir();
     if (outputRoot == null) {
-      return;
+      return true;
     }
     final String sourceRootPath = FileUtil.toSystemIndependentName(rd.getRootFile().getAbsolutePath());
     final String relativePath = FileUtil.getRelativePath(sourceRootPath, FileUtil.toSystemIndependentName(file.getPath()), '/');
@@ -135,17 +143,7 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     }
     targetPath.append('/').append(relativePath);
 
-    context.processMessage(new ProgressMessage("Copying resources... [" + rd.getTarget().getModule().getName() + "]"));
-
-    final String outputPath = targetPath.toString();
-    final File targetFile = new File(outputPath);
-    FileUtil.copyContent(file, targetFile);
-    try {
-      outputConsumer.registerOutputFile(targetFile, Collections.singletonList(file.getPath()));
-    }
-    catch (Exception e) {
-      context.processMessage(new CompilerMessage(BUILDER_NAME, e));
-    }
+    return copier.copy(file, new File(targetPath.toString()), useHardLink);
   }
 
   @NotNull
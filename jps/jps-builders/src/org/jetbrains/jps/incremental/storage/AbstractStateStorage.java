@@ -20,6 +20,7 @@ import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataOutput;
@@ -27,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 public abstract class AbstractStateStorage<Key, T> implements StorageOwner {
   private PersistentHashMap<Key, T> myMap;
@@ -96,6 +98,23 @@ public abstract class AbstractStateStorage<Key, T> implements StorageOwner {
     }
   }
 
+  /**
+   * Same as calling {@link #update} for every entry, but the storage lock is taken only once.
+   */
+  public void updateAll(@NotNull Map<Key, T> states) throws IOException {
+    synchronized (myDataLock) {
+      for (Map.Entry<Key, T> entry : states.entrySet()) {
+        final T state = entry.getValue();
+        if (state != null) {
+          myMap.put(entry.getKey(), state);
+        }
+        else {
+          myMap.remove(entry.getKey());
+        }
+      }
+    }
+  }
+
   public void appendData(final Key key, final T data) throws IOException {
     synchronized (myDataLock) {
       myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
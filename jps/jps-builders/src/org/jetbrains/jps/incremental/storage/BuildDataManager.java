@@ -23,6 +23,8 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.impl.BuildTargetChunk;
 import org.jetbrains.jps.builders.impl.storage.BuildTargetStorages;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.java.dependencyView.BackwardReferenceIndex;
 import org.jetbrains.jps.builders.java.dependencyView.Mappings;
 import org.jetbrains.jps.builders.storage.BuildDataPaths;
 import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
@@ -41,7 +43,7 @@ import java.util.concurrent.ConcurrentMap;
  *         Date: 10/7/11
  */
 public class BuildDataManager implements StorageOwner {
-  private static final int VERSION = 19;
+  private static final int VERSION = 20;
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildDataManager");
   private static final String SRC_TO_FORM_STORAGE = "src-form";
   private static final String MAPPINGS_STORAGE = "mappings";
@@ -54,6 +56,8 @@ public class BuildDataManager implements StorageOwner {
 
   private final OneToManyPathsMapping mySrcToFormMap;
   private final Mappings myMappings;
+  @Nullable
+  private final BackwardReferenceIndex myBackwardReferenceIndex;
   private final BuildDataPaths myDataPaths;
   private final BuildTargetsState myTargetsState;
   private final File myVersionFile;
@@ -126,6 +130,17 @@ public class BuildDataManager implements StorageOwner {
     myTargetsState = targetsState;
     mySrcToFormMap = new OneToManyPathsMapping(new File(getSourceToFormsRoot(), "data"));
     myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches);
+    myMappings.setParallelDifferentiation(Boolean.parseBoolean(System.getProperty(GlobalOptions.DIFFERENTIATE_PARALLEL_OPTION, "false")));
+    final File backwardReferencesRoot = getBackwardReferencesRoot();
+    if (Boolean.parseBoolean(System.getProperty(GlobalOptions.BUILD_BACKWARD_REFERENCE_INDEX_OPTION, "false"))) {
+      myBackwardReferenceIndex = new BackwardReferenceIndex(backwardReferencesRoot);
+      myMappings.setBackwardReferenceIndex(myBackwardReferenceIndex);
+    }
+    else {
+      myBackwardReferenceIndex = null;
+      // the index would not be kept up-to-date, so it must not be used by anybody
+      FileUtil.delete(backwardReferencesRoot);
+    }
     myVersionFile = new File(myDataPaths.getDataStorageRoot(), "version.dat");
   }
 
@@ -147,6 +162,11 @@ public class BuildDataManager implements StorageOwner {
     return myMappings;
   }
 
+  @Nullable
+  public BackwardReferenceIndex getBackwardReferenceIndex() {
+    return myBackwardReferenceIndex;
+  }
+
   public void cleanTargetStorages(BuildTarget<?> target) throws IOException {
     try {
       AtomicNotNullLazyValue<BuildTargetStorages> storages = myTargetStorages.remove(target);
@@ -191,6 +211,10 @@ public class BuildDataManager implements StorageOwner {
           else {
             FileUtil.delete(getMappingsRoot());
           }
+          final BackwardReferenceIndex index = myBackwardReferenceIndex;
+          if (index != null) {
+            index.clean();
+          }
         }
       }
       myTargetsState.clean();
@@ -210,6 +234,10 @@ public class BuildDataManager implements StorageOwner {
         mappings.flush(memoryCachesOnly);
       }
     }
+    final BackwardReferenceIndex index = myBackwardReferenceIndex;
+    if (index != null) {
+      index.flush(memoryCachesOnly);
+    }
   }
 
   public void close() throws IOException {
@@ -232,18 +260,26 @@ public class BuildDataManager implements StorageOwner {
         }
         finally {
           final Mappings mappings = myMappings;
-          if (mappings != null) {
+          final BackwardReferenceIndex index = myBackwardReferenceIndex;
+          try {
             try {
-              mappings.close();
+              if (mappings != null) {
+                mappings.close();
+              }
             }
-            catch (RuntimeException e) {
-              final Throwable cause = e.getCause();
-              if (cause instanceof IOException) {
-                throw ((IOException)cause);
+            finally {
+              if (index != null) {
+                index.close();
               }
-              throw e;
             }
           }
+          catch (RuntimeException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+              throw ((IOException)cause);
+            }
+            throw e;
+          }
         }
       }
     }
@@ -315,6 +351,10 @@ public class BuildDataManager implements StorageOwner {
     return new File(myDataPaths.getDataStorageRoot(), MAPPINGS_STORAGE);
   }
 
+  private File getBackwardReferencesRoot() {
+    return new File(myDataPaths.getDataStorageRoot(), BackwardReferenceIndex.STORAGE_NAME);
+  }
+
   public BuildDataPaths getDataPaths() {
     return myDataPaths;
   }
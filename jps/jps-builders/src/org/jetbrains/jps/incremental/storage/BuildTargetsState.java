@@ -18,6 +18,7 @@ package org.jetbrains.jps.incremental.storage;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.containers.ConcurrentHashMap;
+import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildTarget;
 import org.jetbrains.jps.builders.BuildTargetType;
@@ -27,6 +28,10 @@ import org.jetbrains.jps.incremental.TargetTypeRegistry;
 import org.jetbrains.jps.model.JpsModel;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -92,6 +97,43 @@ public class BuildTargetsState {
     return getTypeState(target.getTargetType()).getTargetId(target);
   }
 
+  /**
+   * @return average time in milliseconds spent on building the target when it wasn't up-to-date, or -1 if it is unknown
+   */
+  public long getAverageBuildTime(@NotNull BuildTarget<?> target) {
+    return getTypeState(target.getTargetType()).getAverageBuildTime(target);
+  }
+
+  public void updateAverageBuildTime(@NotNull BuildTarget<?> target, long time) {
+    getTypeState(target.getTargetType()).updateAverageBuildTime(target, time);
+  }
+
+  /**
+   * @return estimated time of building each of the targets: its average build time, or, if the target has never been built,
+   *         the average of the known times of the given targets
+   */
+  @NotNull
+  public Map<BuildTarget<?>, Long> estimateBuildTimes(@NotNull Collection<? extends BuildTarget<?>> targets) {
+    final Map<BuildTarget<?>, Long> times = new THashMap<BuildTarget<?>, Long>();
+    final List<BuildTarget<?>> unknown = new ArrayList<BuildTarget<?>>();
+    long knownTimeSum = 0;
+    for (BuildTarget<?> target : targets) {
+      final long time = getAverageBuildTime(target);
+      if (time >= 0) {
+        times.put(target, time);
+        knownTimeSum += time;
+      }
+      else {
+        unknown.add(target);
+      }
+    }
+    final long defaultTime = times.isEmpty() ? 1 : knownTimeSum / times.size();
+    for (BuildTarget<?> target : unknown) {
+      times.put(target, defaultTime);
+    }
+    return times;
+  }
+
   public BuildTargetConfiguration getTargetConfiguration(@NotNull BuildTarget<?> target) {
     return getTypeState(target.getTargetType()).getConfiguration(target);
   }
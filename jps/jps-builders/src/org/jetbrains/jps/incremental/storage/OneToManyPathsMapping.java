@@ -18,6 +18,7 @@ package org.jetbrains.jps.incremental.storage;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.IOUtil;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -26,6 +27,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -42,6 +44,16 @@ public class OneToManyPathsMapping extends AbstractStateStorage<String, Collecti
     super.update(FileUtil.toSystemIndependentName(keyPath), normalizePaths(boundPaths));
   }
 
+  @Override
+  public void updateAll(@NotNull Map<String, Collection<String>> states) throws IOException {
+    final Map<String, Collection<String>> normalized = new THashMap<String, Collection<String>>(states.size(), FileUtil.PATH_HASHING_STRATEGY);
+    for (Map.Entry<String, Collection<String>> entry : states.entrySet()) {
+      final Collection<String> paths = entry.getValue();
+      normalized.put(FileUtil.toSystemIndependentName(entry.getKey()), paths != null ? normalizePaths(paths) : null);
+    }
+    super.updateAll(normalized);
+  }
+
   public final void update(@NotNull String keyPath, @NotNull String boundPath) throws IOException {
     super.update(FileUtil.toSystemIndependentName(keyPath), Collections.singleton(FileUtil.toSystemIndependentName(boundPath)));
   }
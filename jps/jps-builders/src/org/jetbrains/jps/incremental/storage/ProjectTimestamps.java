@@ -17,6 +17,7 @@ package org.jetbrains.jps.incremental.storage;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.api.GlobalOptions;
 
 import java.io.File;
 import java.io.IOException;
@@ -33,7 +34,8 @@ public class ProjectTimestamps {
 
   public ProjectTimestamps(final File dataStorageRoot, BuildTargetsState targetsState) throws IOException {
     myTimestampsRoot = new File(dataStorageRoot, TIMESTAMP_STORAGE);
-    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, "data"), targetsState);
+    final boolean useContentHashes = Boolean.parseBoolean(System.getProperty(GlobalOptions.CONTENT_HASH_TIMESTAMPS_OPTION, "false"));
+    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, "data"), targetsState, useContentHashes);
   }
 
   public TimestampStorage getStorage() {
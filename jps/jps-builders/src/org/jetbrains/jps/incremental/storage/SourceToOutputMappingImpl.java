@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * @author Eugene Zhuravlev
@@ -40,6 +41,13 @@ public class SourceToOutputMappingImpl implements SourceToOutputMapping {
     myMapping.update(srcPath, outputs);
   }
 
+  /**
+   * Sets outputs of several source files at once, see {@link #setOutputs(String, Collection)}
+   */
+  public void setOutputs(@NotNull Map<String, Collection<String>> srcToOutputs) throws IOException {
+    myMapping.updateAll(srcToOutputs);
+  }
+
   @Override
   public void setOutput(@NotNull String srcPath, @NotNull String outputPath) throws IOException {
     myMapping.update(srcPath, outputPath);
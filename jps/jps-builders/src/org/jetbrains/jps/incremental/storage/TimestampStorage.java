@@ -15,26 +15,44 @@
  */
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildTarget;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final long NO_HASH = 0L;
   private final BuildTargetsState myTargetsState;
+  private final boolean myUseContentHashes;
+  private final AtomicInteger myUnchangedContentCount = new AtomicInteger();
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
+    this(storePath, targetsState, false);
+  }
+
+  /**
+   * @param useContentHashes if true, a digest of the file content is saved together with its timestamp,
+   *                         and a file whose timestamp has changed but whose content is the same is considered up to date
+   */
+  public TimestampStorage(File storePath, BuildTargetsState targetsState, boolean useContentHashes) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
     myTargetsState = targetsState;
+    myUseContentHashes = useContentHashes;
   }
 
   @Override
@@ -49,27 +67,87 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = findStamp(getState(file), myTargetsState.getBuildTargetId(target));
+    return stamp != null ? stamp.timestamp : -1L;
+  }
+
+  @Override
+  public boolean isUpToDate(File file, BuildTarget<?> target, long currentStamp) throws IOException {
+    final int targetId = myTargetsState.getBuildTargetId(target);
     final TimestampPerTarget[] state = getState(file);
+    final TimestampPerTarget stamp = findStamp(state, targetId);
+    if (stamp == null) {
+      return false;
+    }
+    if (stamp.timestamp == currentStamp) {
+      return true;
+    }
+    if (!myUseContentHashes || stamp.hash == NO_HASH || stamp.hash != computeContentHash(file, currentStamp)) {
+      return false;
+    }
+    // the file was touched but its content is the same: remember the new timestamp so that the file is not read again
+    update(file, updateTimestamp(state, targetId, currentStamp, stamp.hash));
+    myUnchangedContentCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return number of files found up to date by their content hashes since the storage was opened
+   */
+  public int getUnchangedContentCount() {
+    return myUnchangedContentCount.get();
+  }
+
+  /**
+   * If content hashes are used, the hash is saved only if the file still has the given timestamp after it has been read,
+   * otherwise the content read may be newer than the one the timestamp was taken for (and the one compiled).
+   */
+  @Override
+  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
+    int targetId = myTargetsState.getBuildTargetId(buildTarget);
+    final long hash = myUseContentHashes ? computeContentHash(file, timestamp) : NO_HASH;
+    update(file, updateTimestamp(getState(file), targetId, timestamp, hash));
+  }
+
+  @Nullable
+  private static TimestampPerTarget findStamp(@Nullable TimestampPerTarget[] state, int targetId) {
     if (state != null) {
-      int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
+    return null;
   }
 
-  @Override
-  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
-    int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+  /**
+   * CRC32 and Adler32 checksums are cheap to compute and together give a digest good enough to tell whether a file has been edited.
+   *
+   * @return digest of the file content or {@link #NO_HASH} if the file cannot be read or has been modified since it had the given timestamp
+   */
+  private static long computeContentHash(File file, long timestamp) {
+    final byte[] content;
+    try {
+      content = FileUtil.loadFileBytes(file);
+    }
+    catch (IOException e) {
+      return NO_HASH;
+    }
+    if (FileSystemUtil.lastModified(file) != timestamp) {
+      return NO_HASH;
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    final Adler32 adler = new Adler32();
+    adler.update(content);
+    final long hash = (crc.getValue() << 32) | adler.getValue();
+    return hash == NO_HASH ? 1L : hash;
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long hash) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, hash);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -105,10 +183,15 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    /**
+     * digest of the file content, 0 if it was not computed
+     */
+    public final long hash;
 
-    public TimestampPerTarget(int targetId, long timestamp) {
+    public TimestampPerTarget(int targetId, long timestamp, long hash) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.hash = hash;
     }
   }
 
@@ -118,6 +201,7 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        out.writeLong(target.hash);
       }
     }
 
@@ -127,7 +211,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long hash = in.readLong();
+        targets[i] = new TimestampPerTarget(id, timestamp, hash);
       }
       return targets;
     }
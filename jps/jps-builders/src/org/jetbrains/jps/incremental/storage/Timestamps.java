@@ -34,4 +34,10 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * @param currentStamp the current timestamp of the file
+   * @return true if the file has not been changed since its stamp was saved for the target
+   */
+  boolean isUpToDate(File file, BuildTarget<?> target, long currentStamp) throws IOException;
 }
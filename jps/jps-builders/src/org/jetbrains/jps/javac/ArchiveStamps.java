@@ -0,0 +1,58 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the state the archives had when they were opened, to tell which of them have changed since then.
+ */
+class ArchiveStamps {
+  private final Map<File, long[]> myStamps = new HashMap<File, long[]>();
+
+  /**
+   * Should be called before the archive is opened, so that a change made while it is being read is detected later.
+   */
+  void beforeOpen(File archive) {
+    myStamps.put(archive, stamp(archive));
+  }
+
+  /**
+   * @return false if the archive has changed since it was opened, or if it was opened without {@link #beforeOpen(File)}
+   */
+  boolean isUpToDate(File archive) {
+    final long[] stamp = myStamps.get(archive);
+    if (stamp == null) {
+      return false;
+    }
+    final long[] current = stamp(archive);
+    return stamp[0] == current[0] && stamp[1] == current[1];
+  }
+
+  void remove(File archive) {
+    myStamps.remove(archive);
+  }
+
+  void clear() {
+    myStamps.clear();
+  }
+
+  private static long[] stamp(File file) {
+    return new long[] {file.lastModified(), file.length()};
+  }
+}
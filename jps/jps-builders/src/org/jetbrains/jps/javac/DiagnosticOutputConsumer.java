@@ -27,4 +27,10 @@ public interface DiagnosticOutputConsumer extends DiagnosticListener<JavaFileObj
   void outputLineAvailable(String line);
   void registerImports(String className, Collection<String> imports, Collection<String> staticImports);
   void javaFileLoaded(File file);
+
+  /**
+   * Called for the sources with conditions which are compile-time constants: javac may leave out the code depending on them,
+   * so not all the references made in such a source are kept in its class files. Only javac running in the build process reports them.
+   */
+  void codeMayBeEliminated(File file);
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+import org.jetbrains.jps.incremental.Utils;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.VariableElement;
+import javax.tools.JavaFileObject;
+import java.io.File;
+
+/**
+ * Reports the source files which javac may compile without some of the code written in them: javac drops the branches
+ * of conditions which are compile-time constants (e.g. 'if (DEBUG) {...}'), so the class files of such sources
+ * do not contain the references made by the dropped code.
+ */
+class EliminatedCodeDetector implements TaskListener {
+  private final Trees myTrees;
+  private final DiagnosticOutputConsumer myConsumer;
+
+  EliminatedCodeDetector(JavacTask task, DiagnosticOutputConsumer consumer) {
+    myTrees = Trees.instance(task);
+    myConsumer = consumer;
+  }
+
+  @Override
+  public void started(TaskEvent e) {
+  }
+
+  @Override
+  public void finished(TaskEvent e) {
+    if (e.getKind() != TaskEvent.Kind.ANALYZE) {
+      return;
+    }
+    final CompilationUnitTree unit = e.getCompilationUnit();
+    final JavaFileObject source = e.getSourceFile();
+    if (unit == null || source == null) {
+      return;
+    }
+    final ConstantConditionFinder finder = new ConstantConditionFinder();
+    finder.scan(unit, null);
+    if (finder.myFound) {
+      myConsumer.codeMayBeEliminated(Utils.convertToFile(source.toUri()));
+    }
+  }
+
+  private class ConstantConditionFinder extends TreePathScanner<Void, Void> {
+    private boolean myFound;
+
+    @Override
+    public Void scan(Tree tree, Void v) {
+      return myFound ? null : super.scan(tree, v);
+    }
+
+    @Override
+    public Void visitIf(IfTree node, Void v) {
+      check(node.getCondition());
+      return super.visitIf(node, v);
+    }
+
+    @Override
+    public Void visitConditionalExpression(ConditionalExpressionTree node, Void v) {
+      check(node.getCondition());
+      return super.visitConditionalExpression(node, v);
+    }
+
+    // the body of 'do-while' and of infinite loops is always compiled
+
+    @Override
+    public Void visitWhileLoop(WhileLoopTree node, Void v) {
+      checkLoopCondition(node.getCondition());
+      return super.visitWhileLoop(node, v);
+    }
+
+    @Override
+    public Void visitForLoop(ForLoopTree node, Void v) {
+      if (node.getCondition() != null) {
+        checkLoopCondition(node.getCondition());
+      }
+      return super.visitForLoop(node, v);
+    }
+
+    @Override
+    public Void visitBinary(BinaryTree node, Void v) {
+      if (node.getKind() == Tree.Kind.CONDITIONAL_AND || node.getKind() == Tree.Kind.CONDITIONAL_OR) {
+        // a constant operand makes javac drop either the other operand or a branch of the enclosing condition
+        check(node.getLeftOperand());
+        check(node.getRightOperand());
+      }
+      return super.visitBinary(node, v);
+    }
+
+    private void checkLoopCondition(ExpressionTree condition) {
+      ExpressionTree expression = condition;
+      while (expression.getKind() == Tree.Kind.PARENTHESIZED) {
+        expression = ((ParenthesizedTree)expression).getExpression();
+      }
+      if (expression.getKind() != Tree.Kind.BOOLEAN_LITERAL || !Boolean.TRUE.equals(((LiteralTree)expression).getValue())) {
+        check(condition);
+      }
+    }
+
+    private void check(ExpressionTree condition) {
+      if (isConstant(new TreePath(getCurrentPath(), condition))) {
+        myFound = true;
+      }
+    }
+
+    private boolean isConstant(TreePath path) {
+      final Tree tree = path.getLeaf();
+      switch (tree.getKind()) {
+        case BOOLEAN_LITERAL:
+        case CHAR_LITERAL:
+        case INT_LITERAL:
+        case LONG_LITERAL:
+        case FLOAT_LITERAL:
+        case DOUBLE_LITERAL:
+        case STRING_LITERAL:
+          return true;
+        case PARENTHESIZED:
+          return isConstant(new TreePath(path, ((ParenthesizedTree)tree).getExpression()));
+        case TYPE_CAST:
+          return isConstant(new TreePath(path, ((TypeCastTree)tree).getExpression()));
+        case CONDITIONAL_EXPRESSION:
+          final ConditionalExpressionTree conditional = (ConditionalExpressionTree)tree;
+          return isConstant(new TreePath(path, conditional.getCondition())) &&
+                 isConstant(new TreePath(path, conditional.getTrueExpression())) &&
+                 isConstant(new TreePath(path, conditional.getFalseExpression()));
+        case IDENTIFIER:
+        case MEMBER_SELECT:
+          final Element element = myTrees.getElement(path);
+          return element instanceof VariableElement && ((VariableElement)element).getConstantValue() != null;
+        default:
+          if (tree instanceof UnaryTree) {
+            return isConstant(new TreePath(path, ((UnaryTree)tree).getExpression()));
+          }
+          if (tree instanceof BinaryTree) {
+            final BinaryTree binary = (BinaryTree)tree;
+            return isConstant(new TreePath(path, binary.getLeftOperand())) && isConstant(new TreePath(path, binary.getRightOperand()));
+          }
+          return false;
+      }
+    }
+  }
+}
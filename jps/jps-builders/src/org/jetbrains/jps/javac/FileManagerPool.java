@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.tools.StandardJavaFileManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the file managers used by the in-process compilations, so that the classpath archives opened for one chunk
+ * are reused when the next chunks are compiled by this process.
+ * A manager is handed out only to the compilations having exactly the same options it was configured with.
+ * The archives changed since they were opened are dropped when the manager is taken from the pool.
+ * The managers which have been idle for too long are disposed, and {@link #clear()} disposes all of them.
+ *
+ * @see org.jetbrains.jps.api.GlobalOptions#KEEP_JAVAC_WARM_OPTION
+ */
+public class FileManagerPool {
+  private static final int MAX_IDLE_MANAGERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+  static final long MAX_IDLE_TIME = 5 * 60 * 1000L;
+  // most recently released managers go first
+  private static final LinkedList<IdleManager> ourIdleManagers = new LinkedList<IdleManager>();
+
+  private FileManagerPool() {
+  }
+
+  @Nullable
+  static StandardJavaFileManager acquire(@NotNull String optionsKey) {
+    disposeExpired(System.currentTimeMillis());
+    StandardJavaFileManager manager = null;
+    synchronized (ourIdleManagers) {
+      for (Iterator<IdleManager> it = ourIdleManagers.iterator(); it.hasNext(); ) {
+        final IdleManager idle = it.next();
+        if (optionsKey.equals(idle.myOptionsKey)) {
+          it.remove();
+          manager = idle.myManager;
+          break;
+        }
+      }
+    }
+    if (manager != null) {
+      ((ReusableFileManager)manager).dropChangedArchives();
+    }
+    return manager;
+  }
+
+  /**
+   * @param manager a manager which has been closed after the compilation; it is disposed if there are too many idle managers already
+   */
+  static void release(@NotNull String optionsKey, @NotNull StandardJavaFileManager manager) {
+    final long now = System.currentTimeMillis();
+    final StandardJavaFileManager evicted;
+    synchronized (ourIdleManagers) {
+      ourIdleManagers.addFirst(new IdleManager(optionsKey, manager, now));
+      evicted = ourIdleManagers.size() > MAX_IDLE_MANAGERS ? ourIdleManagers.removeLast().myManager : null;
+    }
+    if (evicted != null) {
+      dispose(evicted);
+    }
+    disposeExpired(now);
+  }
+
+  /**
+   * Disposes the managers released more than {@link #MAX_IDLE_TIME} before the given time
+   */
+  static void disposeExpired(long now) {
+    final List<StandardJavaFileManager> expired = new ArrayList<StandardJavaFileManager>();
+    synchronized (ourIdleManagers) {
+      while (!ourIdleManagers.isEmpty() && now - ourIdleManagers.getLast().myReleaseTime > MAX_IDLE_TIME) {
+        expired.add(ourIdleManagers.removeLast().myManager);
+      }
+    }
+    for (StandardJavaFileManager manager : expired) {
+      dispose(manager);
+    }
+  }
+
+  /**
+   * Closes the idle managers, so that no classpath archives are kept open while the process is not building anything
+   */
+  public static void clear() {
+    final List<IdleManager> idle;
+    synchronized (ourIdleManagers) {
+      idle = new ArrayList<IdleManager>(ourIdleManagers);
+      ourIdleManagers.clear();
+    }
+    for (IdleManager each : idle) {
+      dispose(each.myManager);
+    }
+  }
+
+  private static void dispose(StandardJavaFileManager manager) {
+    ((ReusableFileManager)manager).setReusable(false);
+    try {
+      manager.close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  private static class IdleManager {
+    private final String myOptionsKey;
+    private final StandardJavaFileManager myManager;
+    private final long myReleaseTime;
+
+    private IdleManager(@NotNull String optionsKey, @NotNull StandardJavaFileManager manager, long releaseTime) {
+      myOptionsKey = optionsKey;
+      myManager = manager;
+      myReleaseTime = releaseTime;
+    }
+  }
+}
@@ -17,8 +17,11 @@ package org.jetbrains.jps.javac;
 
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.util.SmartList;
+import com.sun.source.util.JavacTask;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.java.JavaSourceTransformer;
 import org.jetbrains.jps.cmdline.ClasspathBootstrap;
 import org.jetbrains.jps.incremental.LineOutputWriter;
@@ -36,6 +39,7 @@ import java.util.*;
  */
 public class JavacMain {
   private static final boolean IS_VM_6_VERSION = System.getProperty("java.version", "1.6").contains("1.6");
+  private static final boolean KEEP_FILE_MANAGERS_WARM = Boolean.parseBoolean(System.getProperty(GlobalOptions.KEEP_JAVAC_WARM_OPTION, "false"));
   //private static final boolean ECLIPSE_COMPILER_SINGLE_THREADED_MODE = Boolean.parseBoolean(System.getProperty("jdt.compiler.useSingleThread", "false"));
   private static final Set<String> FILTERED_OPTIONS = new HashSet<String>(Arrays.<String>asList(
     "-d", "-classpath", "-cp", "-bootclasspath"
@@ -85,12 +89,14 @@ public class JavacMain {
     
     final List<JavaSourceTransformer> transformers = getSourceTransformers();
 
-    final JavacFileManager fileManager = new JavacFileManager(new ContextImpl(compiler, diagnosticConsumer, outputSink, canceledStatus, nowUsingJavac), transformers);
+    final Collection<String> _options = prepareOptions(options, nowUsingJavac);
+    final String poolKey = KEEP_FILE_MANAGERS_WARM && nowUsingJavac ? _options.toString() : null;
+    final ContextImpl context = new ContextImpl(compiler, diagnosticConsumer, outputSink, canceledStatus, nowUsingJavac, poolKey);
+    final JavacFileManager fileManager = new JavacFileManager(context, transformers);
 
     fileManager.handleOption("-bootclasspath", Collections.singleton("").iterator()); // this will clear cached stuff
     fileManager.handleOption("-extdirs", Collections.singleton("").iterator()); // this will clear cached stuff
     fileManager.handleOption("-endorseddirs", Collections.singleton("").iterator()); // this will clear cached stuff
-    final Collection<String> _options = prepareOptions(options, nowUsingJavac);
 
     try {
       fileManager.setOutputDirectories(outputDirToRoots);
@@ -157,6 +163,9 @@ public class JavacMain {
       final JavaCompiler.CompilationTask task = compiler.getTask(
         out, fileManager, diagnosticConsumer, _options, null, fileManager.getJavaFileObjectsFromFiles(sources)
       );
+      if (task instanceof JavacTask) {
+        ((JavacTask)task).setTaskListener(new EliminatedCodeDetector((JavacTask)task, diagnosticConsumer));
+      }
 
       //if (!IS_VM_6_VERSION) { //todo!
       //  // Do not add the processor for JDK 1.6 because of the bugs in javac
@@ -174,6 +183,7 @@ public class JavacMain {
     }
     finally {
       fileManager.close();
+      context.releaseStandardFileManager();
       if (nowUsingJavac) {
         cleanupJavacNameTable();
       }
@@ -321,20 +331,34 @@ public class JavacMain {
     private final DiagnosticOutputConsumer myOutConsumer;
     private final OutputFileConsumer myOutputFileSink;
     private final CanceledStatus myCanceledStatus;
+    @Nullable private final String myPoolKey;
 
+    /**
+     * @param poolKey if not null, the optimized file manager is taken from {@link FileManagerPool} and returned there
+     *                by {@link #releaseStandardFileManager()}, so the classpath archives it has opened are reused by the next compilations
+     */
     public ContextImpl(@NotNull JavaCompiler compiler,
                        @NotNull DiagnosticOutputConsumer outConsumer,
                        @NotNull OutputFileConsumer sink,
-                       CanceledStatus canceledStatus, boolean canUseOptimizedmanager) {
+                       CanceledStatus canceledStatus, boolean canUseOptimizedmanager, @Nullable String poolKey) {
       myOutConsumer = outConsumer;
       myOutputFileSink = sink;
       myCanceledStatus = canceledStatus;
       StandardJavaFileManager stdManager = null;
+      boolean reusable = false;
       if (canUseOptimizedmanager) {
+        if (poolKey != null) {
+          stdManager = FileManagerPool.acquire(poolKey);
+          reusable = stdManager != null;
+        }
         final Class<StandardJavaFileManager> optimizedManagerClass = ClasspathBootstrap.getOptimizedFileManagerClass();
-        if (optimizedManagerClass != null) {
+        if (stdManager == null && optimizedManagerClass != null) {
           try {
             stdManager = optimizedManagerClass.newInstance();
+            if (poolKey != null && stdManager instanceof ReusableFileManager) {
+              ((ReusableFileManager)stdManager).setReusable(true);
+              reusable = true;
+            }
           }
           catch (Throwable e) {
             if (SystemInfo.isWindows) {
@@ -349,6 +373,16 @@ public class JavacMain {
       else {
         myStdManager = compiler.getStandardFileManager(outConsumer, Locale.US, null);
       }
+      myPoolKey = reusable ? poolKey : null;
+    }
+
+    /**
+     * Should be called after the file manager has been closed.
+     */
+    public void releaseStandardFileManager() {
+      if (myPoolKey != null) {
+        FileManagerPool.release(myPoolKey, myStdManager);
+      }
     }
 
     public boolean isCanceled() {
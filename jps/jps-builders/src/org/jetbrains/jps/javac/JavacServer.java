@@ -132,6 +132,11 @@ public class JavacServer {
         Channels.write(ctx.getChannel(), JavacProtoUtil.toMessage(sessionId, JavacProtoUtil.createSourceFileLoadedResponse(file)));
       }
 
+      @Override
+      public void codeMayBeEliminated(File file) {
+        // not reported to the build process, which does not trust the references compiled by the javac server anyway
+      }
+
       public void outputLineAvailable(String line) {
         Channels.write(ctx.getChannel(), JavacProtoUtil.toMessage(sessionId, JavacProtoUtil.createStdOutputResponse(line)));
       }
@@ -39,12 +39,14 @@ import java.util.concurrent.atomic.AtomicReference;
  * @author nik
  * @noinspection UnusedDeclaration
  */
-class OptimizedFileManager extends DefaultFileManager {
+class OptimizedFileManager extends DefaultFileManager implements ReusableFileManager {
   private boolean myUseZipFileIndex;
   private final Map<File, Archive> myArchives;
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<InputFileObject, SoftReference<CharBuffer>> myContentCache = new HashMap<InputFileObject, SoftReference<CharBuffer>>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final ArchiveStamps myArchiveStamps = new ArchiveStamps();
+  private boolean myReusable;
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   public OptimizedFileManager() throws Throwable {
@@ -138,7 +140,7 @@ class OptimizedFileManager extends DefaultFileManager {
   private void collectFromArchive(File root, Archive archive, String relativePath, Set<JavaFileObject.Kind> kinds, boolean recurse, ListBuffer<JavaFileObject> result) {
     if (archive == null) {
       try {
-        archive = openArchive(root);
+        archive = openStampedArchive(root);
       }
       catch (IOException ex) {
         log.error("error.reading.file", root, ex.getLocalizedMessage());
@@ -202,6 +204,44 @@ class OptimizedFileManager extends DefaultFileManager {
     }
   }
 
+  private Archive openStampedArchive(File root) throws IOException {
+    myArchiveStamps.beforeOpen(root);
+    return openArchive(root);
+  }
+
+  public void setReusable(boolean reusable) {
+    myReusable = reusable;
+  }
+
+  public int dropChangedArchives() {
+    int dropped = 0;
+    for (Iterator<Map.Entry<File, Archive>> it = myArchives.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<File, Archive> entry = it.next();
+      if (!myArchiveStamps.isUpToDate(entry.getKey())) {
+        it.remove();
+        myArchiveStamps.remove(entry.getKey());
+        try {
+          entry.getValue().close();
+        }
+        catch (IOException ignored) {
+        }
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  @Override
+  public void close() {
+    myIsFile.clear();
+    myDirectoryCache.clear();
+    myContentCache.clear();
+    if (!myReusable) {
+      myArchiveStamps.clear();
+      super.close();
+    }
+  }
+
   private File[] listChildren(File file, boolean canUseCache) {
     if (!canUseCache) {
       return file.listFiles();
@@ -250,7 +290,7 @@ class OptimizedFileManager extends DefaultFileManager {
       if (isFile) {
         if (archive == null) {
           try {
-            archive = openArchive(root);
+            archive = openStampedArchive(root);
           }
           catch (IOException ex) {
             log.error("error.reading.file", root, ex.getLocalizedMessage());
@@ -40,11 +40,13 @@ import java.util.*;
  *
  * @noinspection UnusedDeclaration
  */
-class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
+class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager implements ReusableFileManager {
   private boolean myUseZipFileIndex;
   private final Map<File, Archive> myArchives;
   private final Map<File, Boolean> myIsFile = new HashMap<File, Boolean>();
   private final Map<File, File[]> myDirectoryCache = new HashMap<File, File[]>();
+  private final ArchiveStamps myArchiveStamps = new ArchiveStamps();
+  private boolean myReusable;
   public static final File[] NULL_FILE_ARRAY = new File[0];
 
   private static final String _OS_NAME = System.getProperty("os.name").toLowerCase(Locale.US);
@@ -101,7 +103,7 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
         // Not a directory; either a file or non-existant, create the archive
         try {
           if (archive == null) {
-            archive = openArchive(root);
+            archive = openStampedArchive(root);
           }
           listArchive(archive, subdirectory, kinds, recurse, results);
         } 
@@ -187,6 +189,43 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
     }
   }
   
+  private Archive openStampedArchive(File root) throws IOException {
+    myArchiveStamps.beforeOpen(root);
+    return openArchive(root);
+  }
+
+  public void setReusable(boolean reusable) {
+    myReusable = reusable;
+  }
+
+  public int dropChangedArchives() {
+    int dropped = 0;
+    for (Iterator<Map.Entry<File, Archive>> it = myArchives.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<File, Archive> entry = it.next();
+      if (!myArchiveStamps.isUpToDate(entry.getKey())) {
+        it.remove();
+        myArchiveStamps.remove(entry.getKey());
+        try {
+          entry.getValue().close();
+        }
+        catch (IOException ignored) {
+        }
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  @Override
+  public void close() {
+    myIsFile.clear();
+    myDirectoryCache.clear();
+    if (!myReusable) {
+      myArchiveStamps.clear();
+      super.close();
+    }
+  }
+
   private File[] listChildren(File file, boolean canUseCache) {
     if (!canUseCache) {
       return file.listFiles();
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+/**
+ * A file manager able to serve several compilations in a row.
+ * The classpath archives it has opened are kept between the compilations, so that the next compilation does not have to open
+ * and list them again; an archive is dropped as soon as it changes.
+ *
+ * @see FileManagerPool
+ */
+interface ReusableFileManager {
+  /**
+   * When set, {@code close()} releases only the data which may change between compilations (directory listings, source contents)
+   * and keeps the opened archives.
+   */
+  void setReusable(boolean reusable);
+
+  /**
+   * Closes the kept archives which have been changed or deleted since they were opened, so they will be re-read on the next access.
+   *
+   * @return number of the dropped archives
+   */
+  int dropChangedArchives();
+}
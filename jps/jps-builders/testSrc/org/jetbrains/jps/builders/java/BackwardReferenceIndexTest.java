@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.java.dependencyView.BackwardReferenceIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+public class BackwardReferenceIndexTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    System.setProperty(GlobalOptions.BUILD_BACKWARD_REFERENCE_INDEX_OPTION, "true");
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      System.clearProperty(GlobalOptions.BUILD_BACKWARD_REFERENCE_INDEX_OPTION);
+    }
+  }
+
+  public void testReferencesAreUpdatedIncrementally() throws IOException {
+    String a = createFile("src/p/A.java", "package p; public class A { public int field; public void foo() {} }");
+    createFile("src/p/B.java", "package p; public class B extends A {}");
+    String c = createFile("src/p/C.java", "package p; class C { void bar(B b) { b.field = 1; } }");
+    String d = createFile("src/p/D.java", "package p; class D { void baz(A a) { a.foo(); } }");
+    addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+
+    BackwardReferenceIndex index = openIndex();
+    try {
+      assertTrue(index.isComplete());
+      assertSameElements(index.getDirectSubclasses("p/A"), "p/B");
+      assertSameElements(getNames(index.getReferringSources("p/B", "field")), "C.java");
+      assertSameElements(getNames(index.getReferringSources("p/A", "foo")), "D.java");
+      assertEmpty(index.getReferringSources("p/A", "field"));
+
+      Map<File, Long> stamps = index.getSourceStamps();
+      assertEquals(4, stamps.size());
+      assertEquals(Long.valueOf(new File(c).lastModified()), stamps.get(new File(c)));
+    }
+    finally {
+      index.close();
+    }
+
+    change(c, "package p; class C { void bar(B b) { } }");
+    delete(d);
+    makeAll().assertSuccessful();
+
+    index = openIndex();
+    try {
+      assertTrue(index.isComplete());
+      assertEmpty(index.getReferringSources("p/B", "field"));
+      assertEmpty(index.getReferringSources("p/A", "foo"));
+      Map<File, Long> stamps = index.getSourceStamps();
+      assertEquals(3, stamps.size());
+      assertEquals(Long.valueOf(new File(c).lastModified()), stamps.get(new File(c)));
+      assertNull(stamps.get(new File(d)));
+    }
+    finally {
+      index.close();
+    }
+  }
+
+  public void testIndexIsCompleteOnlyAfterRebuild() throws IOException {
+    String a = createFile("src/p/A.java", "package p; public class A { public void foo() {} }");
+    addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    makeAll().assertSuccessful();
+    File root = new File(myDataStorageRoot, BackwardReferenceIndex.STORAGE_NAME);
+    assertFalse(BackwardReferenceIndex.isComplete(root));
+
+    rebuildAll();
+    assertTrue(BackwardReferenceIndex.isComplete(root));
+
+    createFile("src/p/B.java", "package p; class B { void bar(A a) { a.foo(); } }");
+    makeAll().assertSuccessful();
+    assertTrue(BackwardReferenceIndex.isComplete(root));
+  }
+
+  public void testSourceWithConstantConditionIsNotDescribed() throws IOException {
+    String a = createFile("src/p/A.java", "package p; public class A { static final boolean DEBUG = false; public void foo() {} }");
+    String b = createFile("src/p/B.java", "package p; class B { void bar(A a) { if (A.DEBUG) a.foo(); } }");
+    addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+
+    BackwardReferenceIndex index = openIndex();
+    try {
+      Map<File, Long> stamps = index.getSourceStamps();
+      assertNotNull(stamps.get(new File(a)));
+      assertNull(stamps.get(new File(b)));
+    }
+    finally {
+      index.close();
+    }
+  }
+
+  private BackwardReferenceIndex openIndex() throws IOException {
+    File root = new File(myDataStorageRoot, BackwardReferenceIndex.STORAGE_NAME);
+    assertTrue(BackwardReferenceIndex.exists(root));
+    return new BackwardReferenceIndex(root);
+  }
+
+  private static List<String> getNames(Collection<File> files) {
+    List<String> names = new ArrayList<String>();
+    for (File file : files) {
+      names.add(file.getName());
+    }
+    return names;
+  }
+}
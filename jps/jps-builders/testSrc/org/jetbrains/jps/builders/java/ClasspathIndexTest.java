@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import com.intellij.util.lang.ClasspathIndex;
+import com.intellij.util.lang.UrlClassLoader;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Collections;
+
+public class ClasspathIndexTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    System.setProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION, "true");
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      System.clearProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION);
+    }
+  }
+
+  public void testIndexIsUpdatedIncrementally() {
+    String a = createFile("src/p/A.java", "package p; public class A {}");
+    String b = createFile("src/p/B.java", "package p; public class B { class Inner {} }");
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+    File output = getOutputDir(m);
+    ClasspathIndex index = assertIndex(output);
+    assertTrue(index.containsDirectory("p"));
+    assertTrue(index.mayContain("p/A.class"));
+    assertTrue(index.mayContain("p/B$Inner.class"));
+    assertFalse(index.mayContain("p/C.class"));
+    assertFalse(index.mayContain("A.class"));
+
+    delete(b);
+    createFile("src/q/r/C.java", "package q.r; public class C {}");
+    makeAll().assertSuccessful();
+    index = assertIndex(output);
+    assertTrue(index.mayContain("p/A.class"));
+    assertFalse(index.mayContain("p/B.class"));
+    assertFalse(index.mayContain("p/B$Inner.class"));
+    assertTrue(index.containsDirectory("q"));
+    assertTrue(index.mayContain("q/r/C.class"));
+  }
+
+  public void testIndexLeftDirtyIsBuiltAgain() throws Exception {
+    String a = createFile("src/p/A.java", "package p; public class A {}");
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+    File output = getOutputDir(m);
+    assertIndex(output);
+    assertFalse(ClasspathIndex.isDirty(output));
+
+    // as if the build writing the file had been interrupted
+    ClasspathIndex.markDirty(output);
+    assertTrue(new File(output, "x").mkdir());
+    assertTrue(new File(output, "x/X.class").createNewFile());
+    assertNull(ClasspathIndex.load(output));
+
+    change(a, "package p; public class A { int a; }");
+    makeAll().assertSuccessful();
+    ClasspathIndex index = assertIndex(output);
+    assertFalse(ClasspathIndex.isDirty(output));
+    assertTrue(index.mayContain("x/X.class"));
+    assertFalse(index.mayContain(ClasspathIndex.FILE_NAME));
+  }
+
+  public void testClassLoaderUsesIndex() throws Exception {
+    String a = createFile("src/p/A.java", "package p; public class A {}");
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+    File output = getOutputDir(m);
+    assertIndex(output);
+
+    UrlClassLoader loader = new UrlClassLoader(Collections.singletonList(output.toURI().toURL()), null, false, false, false, false, true);
+    assertEquals("p.A", loader.loadClass("p.A").getName());
+    assertNull(loader.getResource("p/B.class"));
+
+    // a file written without the build process is not known to the index
+    assertTrue(new File(output, "p/B.class").createNewFile());
+    assertNull(loader.getResource("p/B.class"));
+    URL url = new UrlClassLoader(Collections.singletonList(output.toURI().toURL()), null).getResource("p/B.class");
+    assertNotNull(url);
+  }
+
+  public void testCachingClassLoaderIgnoresIndexUnlessAsked() throws Exception {
+    String a = createFile("src/p/A.java", "package p; public class A {}");
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+    File output = getOutputDir(m);
+    assertIndex(output);
+
+    assertTrue(new File(output, "p/B.class").createNewFile());
+    UrlClassLoader loader = new UrlClassLoader(Collections.singletonList(output.toURI().toURL()), null, false, true, false, false, false);
+    assertNotNull(loader.getResource("p/A.class"));
+    assertNotNull(loader.getResource("p/B.class"));
+  }
+
+  private static ClasspathIndex assertIndex(File output) {
+    ClasspathIndex index = ClasspathIndex.load(output);
+    assertNotNull(index);
+    return index;
+  }
+
+  private static File getOutputDir(JpsModule m) {
+    String outputUrl = JpsJavaExtensionService.getInstance().getOutputUrl(m, false);
+    assertNotNull(outputUrl);
+    return new File(JpsPathUtil.urlToPath(outputUrl));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.incremental.storage.Timestamps;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ContentHashTimestampsTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    System.setProperty(GlobalOptions.CONTENT_HASH_TIMESTAMPS_OPTION, "true");
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      System.clearProperty(GlobalOptions.CONTENT_HASH_TIMESTAMPS_OPTION);
+    }
+  }
+
+  public void testTouchedFileIsNotRecompiled() {
+    String a = createFile("src/A.java", "class A {}");
+    String b = createFile("src/B.java", "class B {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    change(a);
+    change(b, "class B { int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/B.java");
+
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+  }
+
+  public void testFileRestoredToCompiledContentIsNotRecompiled() {
+    String a = createFile("src/A.java", "class A {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    change(a, "class A { int i; }");
+    change(a, "class A {}");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+  }
+
+  public void testHashIsNotSavedForFileModifiedAfterItsStampWasTaken() throws IOException {
+    String a = createFile("src/A.java", "class A {}");
+    ModuleBuildTarget target = new ModuleBuildTarget(addModule("m", PathUtil.getParentPath(a)), JavaModuleBuildTargetType.PRODUCTION);
+    File file = new File(a);
+    long compiledStamp = file.lastModified();
+    change(a, "class A { int i; }");
+    long currentStamp = file.lastModified();
+    assertTrue(currentStamp != compiledStamp);
+
+    ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+    try {
+      Timestamps timestamps = descriptor.timestamps.getStorage();
+      timestamps.saveStamp(file, target, compiledStamp);
+      assertFalse(timestamps.isUpToDate(file, target, currentStamp));
+
+      timestamps.saveStamp(file, target, currentStamp);
+      change(a);
+      assertTrue(timestamps.isUpToDate(file, target, file.lastModified()));
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+}
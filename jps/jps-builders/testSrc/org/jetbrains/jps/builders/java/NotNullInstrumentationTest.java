@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
+import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.instrumentation.ClassProcessingBuilder;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.java.JpsJavaLibraryType;
+import org.jetbrains.jps.model.library.JpsLibrary;
+import org.jetbrains.jps.model.library.JpsOrderRootType;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+public class NotNullInstrumentationTest extends JpsBuildTestCase {
+  private static final int CLASS_COUNT = 20;
+
+  public void testClassesAreInstrumentedInParallel() throws Exception {
+    File output = buildModule();
+    URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL(), new File(getAnnotationsPath()).toURI().toURL()}, null);
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      try {
+        loader.loadClass("p.A" + i).getMethod("m", Object.class).invoke(null, (Object)null);
+        fail("p.A" + i + " is not instrumented");
+      }
+      catch (InvocationTargetException e) {
+        assertInstanceOf(e.getCause(), IllegalArgumentException.class);
+      }
+    }
+    assertNotNull(loader.loadClass("p.Plain").newInstance());
+  }
+
+  public void testClassesWithoutNotNullAreRecognizedFromConstantPool() throws Exception {
+    File output = buildModule();
+    ClassReader annotated = createReaderAtOffset(new File(output, "p/A0.class"));
+    ClassReader plain = createReaderAtOffset(new File(output, "p/Plain.class"));
+    assertTrue(NotNullVerifyingInstrumenter.mayHaveNotNullAnnotations(annotated));
+    assertFalse(NotNullVerifyingInstrumenter.mayHaveNotNullAnnotations(plain));
+    assertEquals(getVersionByVisiting(annotated), ClassProcessingBuilder.getClassFileVersion(annotated));
+    assertEquals(getVersionByVisiting(plain), ClassProcessingBuilder.getClassFileVersion(plain));
+  }
+
+  private File buildModule() {
+    String plain = createFile("src/p/Plain.java", "package p; public class Plain { long l = 1234567890123L; double d = 2.5; String s = \"NotNull\"; }");
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      createFile("src/p/A" + i + ".java",
+                 "package p; import org.jetbrains.annotations.NotNull; public class A" + i + " { public static void m(@NotNull Object o) {} }");
+    }
+    JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(plain)));
+    JpsLibrary library = myProject.addLibrary("annotations", JpsJavaLibraryType.INSTANCE);
+    library.addRoot(JpsPathUtil.pathToUrl(getAnnotationsPath()), JpsOrderRootType.COMPILED);
+    m.getDependenciesList().addLibraryDependency(library);
+    rebuildAll();
+
+    String outputUrl = JpsJavaExtensionService.getInstance().getOutputUrl(m, false);
+    assertNotNull(outputUrl);
+    return new File(JpsPathUtil.urlToPath(outputUrl));
+  }
+
+  private static String getAnnotationsPath() {
+    return FileUtil.toSystemIndependentName(PathUtil.getJarPathForClass(NotNull.class));
+  }
+
+  private static ClassReader createReaderAtOffset(File classFile) throws Exception {
+    byte[] content = FileUtil.loadFileBytes(classFile);
+    byte[] buffer = new byte[content.length + 10];
+    System.arraycopy(content, 0, buffer, 5, content.length);
+    return new ClassReader(buffer, 5, content.length);
+  }
+
+  private static int getVersionByVisiting(ClassReader reader) {
+    final int[] version = new int[1];
+    reader.accept(new ClassVisitor(Opcodes.ASM4) {
+      @Override
+      public void visit(int v, int access, String name, String signature, String superName, String[] interfaces) {
+        version[0] = v;
+      }
+    }, 0);
+    return version[0];
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelDifferentiationTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    System.setProperty(GlobalOptions.DIFFERENTIATE_PARALLEL_OPTION, "true");
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      super.tearDown();
+    }
+    finally {
+      System.clearProperty(GlobalOptions.DIFFERENTIATE_PARALLEL_OPTION);
+    }
+  }
+
+  public void testManyDependants() {
+    doTestDependants(700);
+  }
+
+  public void testFewDependants() {
+    doTestDependants(5);
+  }
+
+  private void doTestDependants(int count) {
+    String a = createFile("src/A.java", "public class A { public void foo() {} public void bar() {} }");
+    List<String> fooUsers = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      createFile("src/Foo" + i + ".java", "class Foo" + i + " { void f(A a) { a.foo(); } }");
+      createFile("src/Bar" + i + ".java", "class Bar" + i + " { void f(A a) { a.bar(); } }");
+      fooUsers.add("src/Foo" + i + ".java");
+    }
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    change(a, "public class A { public int foo() { return 0; } public void bar() {} }");
+    makeAll().assertSuccessful();
+    fooUsers.add("src/A.java");
+    assertCompiled(JavaBuilder.BUILDER_NAME, fooUsers.toArray(new String[fooUsers.size()]));
+  }
+}
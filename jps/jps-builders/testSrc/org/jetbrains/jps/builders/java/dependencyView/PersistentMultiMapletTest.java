@@ -0,0 +1,285 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * The changes collected by the persistent maplets have to survive a failed write and be written by the next flush,
+ * and the changes made when the write-behind limit is exceeded must not be lost.
+ */
+public class PersistentMultiMapletTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("maplet", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testIntChangesAreKeptAfterFailedWrite() throws Exception {
+    File file = new File(myDir, "ints");
+    FailingKeyDescriptor keys = new FailingKeyDescriptor(2);
+    IntIntPersistentMultiMaplet maplet = new IntIntPersistentMultiMaplet(file, keys);
+    try {
+      maplet.put(1, 10);
+      maplet.replace(2, set(20));
+      maplet.put(3, 30);
+      assertFlushFails(maplet);
+      assertEquals(set(10), maplet.get(1));
+      assertEquals(set(20), maplet.get(2));
+      assertEquals(set(30), maplet.get(3));
+
+      // the enumerator of the storage marks itself corrupted after the failure, so the values are checked without reopening it
+      keys.myFailing = 0;
+      maplet.flush(true);
+      assertEquals(set(10), maplet.get(1));
+      assertEquals(set(20), maplet.get(2));
+      assertEquals(set(30), maplet.get(3));
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  public void testObjectChangesAreKeptAfterFailedWrite() throws Exception {
+    File file = new File(myDir, "objects");
+    Value.Externalizer values = new Value.Externalizer(2);
+    ObjectObjectPersistentMultiMaplet<String, Value> maplet = createObjectMaplet(file, values);
+    try {
+      maplet.put("a", new Value(1));
+      maplet.put("b", new Value(2));
+      maplet.replace("c", Collections.singleton(new Value(3)));
+      assertFlushFails(maplet);
+      assertEquals(Collections.singleton(new Value(2)), maplet.get("b"));
+
+      values.myFailing = 0;
+      maplet.flush(false);
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = createObjectMaplet(file, values);
+    try {
+      assertEquals(Collections.singleton(new Value(1)), maplet.get("a"));
+      assertEquals(Collections.singleton(new Value(2)), maplet.get("b"));
+      assertEquals(Collections.singleton(new Value(3)), maplet.get("c"));
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  public void testIntRemovalsAreWrittenWhenLimitIsExceeded() throws Exception {
+    File file = new File(myDir, "ints");
+    IntIntPersistentMultiMaplet maplet = new IntIntPersistentMultiMaplet(file, new FailingKeyDescriptor(0), 1);
+    try {
+      maplet.put(1, set(10, 20, 30));
+      maplet.put(2, set(40, 50));
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = new IntIntPersistentMultiMaplet(file, new FailingKeyDescriptor(0), 1);
+    try {
+      maplet.removeFrom(1, 20);
+      maplet.put(2, 60);
+      maplet.removeAll(2, set(40, 60));
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = new IntIntPersistentMultiMaplet(file, new FailingKeyDescriptor(0), 1);
+    try {
+      assertEquals(set(10, 30), maplet.get(1));
+      assertEquals(set(50), maplet.get(2));
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  public void testObjectRemovalsAreWrittenWhenLimitIsExceeded() throws Exception {
+    File file = new File(myDir, "objects");
+    Value.Externalizer values = new Value.Externalizer(0);
+    ObjectObjectPersistentMultiMaplet<String, Value> maplet = createObjectMaplet(file, values, 1);
+    try {
+      maplet.put("a", Arrays.asList(new Value(1), new Value(2), new Value(3)));
+      maplet.put("b", Arrays.asList(new Value(4), new Value(5)));
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = createObjectMaplet(file, values, 1);
+    try {
+      maplet.removeFrom("a", new Value(2));
+      maplet.put("b", new Value(6));
+      maplet.removeAll("b", Arrays.asList(new Value(4), new Value(6)));
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = createObjectMaplet(file, values, 1);
+    try {
+      assertEquals(new HashSet<Value>(Arrays.asList(new Value(1), new Value(3))), new HashSet<Value>(maplet.get("a")));
+      assertEquals(Collections.singleton(new Value(5)), maplet.get("b"));
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  private static void assertFlushFails(IntIntPersistentMultiMaplet maplet) {
+    try {
+      maplet.flush(false);
+      fail();
+    }
+    catch (RuntimeException ignored) {
+    }
+  }
+
+  private static void assertFlushFails(ObjectObjectPersistentMultiMaplet<String, Value> maplet) {
+    try {
+      maplet.flush(false);
+      fail();
+    }
+    catch (RuntimeException ignored) {
+    }
+  }
+
+  private static ObjectObjectPersistentMultiMaplet<String, Value> createObjectMaplet(File file, Value.Externalizer values)
+    throws IOException {
+    return createObjectMaplet(file, values, MapletCacheSizes.WRITE_BEHIND_OBJECTS);
+  }
+
+  private static ObjectObjectPersistentMultiMaplet<String, Value> createObjectMaplet(File file, Value.Externalizer values, int writeBehindLimit)
+    throws IOException {
+    return new ObjectObjectPersistentMultiMaplet<String, Value>(file, new EnumeratorStringDescriptor(), values, new CollectionFactory<Value>() {
+      @Override
+      public Collection<Value> create() {
+        return new THashSet<Value>();
+      }
+    }, writeBehindLimit);
+  }
+
+  private static TIntHashSet set(int... values) {
+    return new TIntHashSet(values);
+  }
+
+  /**
+   * Fails to save the given key, the way a storage fails on a full disk
+   */
+  private static class FailingKeyDescriptor implements KeyDescriptor<Integer> {
+    private int myFailing;
+
+    private FailingKeyDescriptor(int failing) {
+      myFailing = failing;
+    }
+
+    @Override
+    public void save(DataOutput out, Integer value) throws IOException {
+      if (value == myFailing) throw new IOException("Cannot write " + value);
+      out.writeInt(value);
+    }
+
+    @Override
+    public Integer read(DataInput in) throws IOException {
+      return in.readInt();
+    }
+
+    @Override
+    public int getHashCode(Integer value) {
+      return value;
+    }
+
+    @Override
+    public boolean isEqual(Integer val1, Integer val2) {
+      return val1.equals(val2);
+    }
+  }
+
+  private static class Value implements Streamable {
+    private final int myValue;
+
+    private Value(int value) {
+      myValue = value;
+    }
+
+    @Override
+    public void toStream(DependencyContext context, PrintStream stream) {
+      stream.println(myValue);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Value && ((Value)o).myValue == myValue;
+    }
+
+    @Override
+    public int hashCode() {
+      return myValue;
+    }
+
+    /**
+     * Fails to save the given value
+     */
+    private static class Externalizer implements DataExternalizer<Value> {
+      private int myFailing;
+
+      private Externalizer(int failing) {
+        myFailing = failing;
+      }
+
+      @Override
+      public void save(DataOutput out, Value value) throws IOException {
+        if (value.myValue == myFailing) throw new IOException("Cannot write " + value.myValue);
+        out.writeInt(value.myValue);
+      }
+
+      @Override
+      public Value read(DataInput in) throws IOException {
+        return new Value(in.readInt());
+      }
+    }
+  }
+}
@@ -15,7 +15,10 @@
  */
 package org.jetbrains.jps.builders.resources;
 
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.PathUtil;
+import com.intellij.util.io.TestFileSystemBuilder;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.JpsBuildTestCase;
 import org.jetbrains.jps.model.JpsSimpleElement;
 import org.jetbrains.jps.model.java.JavaSourceRootProperties;
@@ -25,6 +28,9 @@ import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
 import org.jetbrains.jps.model.module.JpsTypedModuleSourceRoot;
 
+import java.io.File;
+import java.io.IOException;
+
 import static com.intellij.util.io.TestFileSystemItem.fs;
 
 /**
@@ -53,4 +59,49 @@ public class ResourceCopyingTest extends JpsBuildTestCase {
     rebuildAll();
     assertOutput(m, fs().dir("xxx").file("a.xml"));
   }
+
+  public void testManyFiles() {
+    String file = createFile("src/a0.xml", "0");
+    for (int i = 1; i < 1000; i++) {
+      createFile("src/a" + i + ".xml", String.valueOf(i));
+    }
+    JpsModule m = addModule("m", PathUtil.getParentPath(file));
+    rebuildAll();
+    TestFileSystemBuilder expected = fs();
+    for (int i = 0; i < 1000; i++) {
+      expected.file("a" + i + ".xml", String.valueOf(i));
+    }
+    assertOutput(m, expected);
+  }
+
+  public void testChangedFileWithHardLinks() {
+    System.setProperty(GlobalOptions.RESOURCES_HARD_LINKS_OPTION, "true");
+    try {
+      String file = createFile("src/a.xml", "a");
+      JpsModule m = addModule("m", PathUtil.getParentPath(file));
+      rebuildAll();
+      assertOutput(m, fs().file("a.xml", "a"));
+
+      // editors usually replace the file, which breaks the link to the output
+      File source = new File(file);
+      File replacement = new File(source.getParentFile().getParentFile(), "a.xml.new");
+      FileUtil.writeToFile(replacement, "b");
+      FileUtil.delete(source);
+      FileUtil.rename(replacement, source);
+      change(file);
+      makeAll().assertSuccessful();
+      assertOutput(m, fs().file("a.xml", "b"));
+      assertEquals("b", FileUtil.loadFile(source));
+
+      // the changed file is copied, so editing it in place doesn't change the output
+      change(file, "c");
+      assertOutput(m, fs().file("a.xml", "b"));
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      System.clearProperty(GlobalOptions.RESOURCES_HARD_LINKS_OPTION);
+    }
+  }
 }
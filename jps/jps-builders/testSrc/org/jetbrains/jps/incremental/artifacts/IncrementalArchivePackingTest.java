@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.archive;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.root;
+
+public class IncrementalArchivePackingTest extends ArtifactBuilderTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.INCREMENTAL_ARTIFACT_PACKING_OPTION, "true");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.INCREMENTAL_ARTIFACT_PACKING_OPTION);
+    super.tearDown();
+  }
+
+  public void testRepackChangedFile() {
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/b.txt", "bbb");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "aaa").file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+
+    change(file1, "xxx");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx").file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testRepackAfterFileDeletedAndAdded() {
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/b.txt", "bbb");
+    final JpsArtifact a = addArtifact(root().archive("a.jar").parentDirCopy(file1));
+    buildAll();
+
+    delete(file1);
+    createFile("dir/c.txt", "ccc");
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("b.txt", "bbb").file("c.txt", "ccc"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testLeftPreviousArchiveIsDeleted() {
+    String file1 = createFile("dir/a.txt", "aaa");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    File leftPreviousArchive = new File(a.getOutputPath(), "a.jar.previous");
+    FileUtil.createIfDoesntExist(leftPreviousArchive);
+
+    change(file1, "xxx");
+    buildAll();
+    assertFalse(leftPreviousArchive.exists());
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx"));
+  }
+
+  public void testRepackLargeFile() {
+    String largeContent = StringUtil.repeat("a", 2 * 1024 * 1024);
+    String file1 = createFile("dir/a.txt", largeContent);
+    createFile("dir/b.txt", "bbb");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", largeContent).file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+
+    String changedContent = largeContent + "b";
+    change(file1, changedContent);
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", changedContent).file("b.txt", "bbb"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testArchiveWithTooManyEntriesIsPackedFromScratch() throws IOException {
+    final int entriesCount = 0x10000 + 10;
+    File sourceJar = new File(getOrCreateProjectDir(), "lib/many.jar");
+    FileUtil.createParentDirs(sourceJar);
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(sourceJar));
+    try {
+      for (int i = 0; i < entriesCount; i++) {
+        output.putNextEntry(new ZipEntry("f" + i + ".txt"));
+        output.write('a');
+        output.closeEntry();
+      }
+    }
+    finally {
+      output.close();
+    }
+    final JpsArtifact a = addArtifact(archive("a.jar").extractedDir(sourceJar.getAbsolutePath(), "/"));
+    buildAll();
+    ZipFile archive = new ZipFile(new File(a.getOutputPath(), "a.jar"));
+    try {
+      assertEquals(entriesCount, archive.size());
+    }
+    finally {
+      archive.close();
+    }
+    buildAllAndAssertUpToDate();
+  }
+}
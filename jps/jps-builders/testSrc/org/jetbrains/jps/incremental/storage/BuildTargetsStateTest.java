@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class BuildTargetsStateTest extends JpsBuildTestCase {
+  public void testAverageBuildTime() {
+    ModuleBuildTarget target = new ModuleBuildTarget(addModule("m"), JavaModuleBuildTargetType.PRODUCTION);
+    ProjectDescriptor descriptor = createDescriptor();
+    try {
+      BuildTargetsState state = descriptor.getTargetsState();
+      assertEquals(-1, state.getAverageBuildTime(target));
+      state.updateAverageBuildTime(target, 100);
+      assertEquals(100, state.getAverageBuildTime(target));
+      state.updateAverageBuildTime(target, 200);
+      assertEquals(150, state.getAverageBuildTime(target));
+      state.updateAverageBuildTime(target, 50);
+      assertEquals(100, state.getAverageBuildTime(target));
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  public void testAverageBuildTimeIsPersisted() {
+    ModuleBuildTarget production = new ModuleBuildTarget(addModule("m"), JavaModuleBuildTargetType.PRODUCTION);
+    ModuleBuildTarget tests = new ModuleBuildTarget(production.getModule(), JavaModuleBuildTargetType.TEST);
+    ProjectDescriptor descriptor = createDescriptor();
+    try {
+      descriptor.getTargetsState().updateAverageBuildTime(production, 42);
+    }
+    finally {
+      descriptor.release();
+    }
+
+    descriptor = createDescriptor();
+    try {
+      assertEquals(42, descriptor.getTargetsState().getAverageBuildTime(production));
+      assertEquals(-1, descriptor.getTargetsState().getAverageBuildTime(tests));
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  public void testBuildTimeIsRecordedOnlyWhenTargetIsBuilt() {
+    String file = createFile("src/A.java", "class A{}");
+    JpsModule module = addModule("m", PathUtil.getParentPath(file));
+    ModuleBuildTarget target = new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION);
+    rebuildAll();
+
+    long time = getAverageBuildTime(target);
+    assertTrue(time >= 0);
+    ProjectDescriptor descriptor = createDescriptor();
+    try {
+      descriptor.getTargetsState().updateAverageBuildTime(target, time + 1000000);
+    }
+    finally {
+      descriptor.release();
+    }
+    long updatedTime = getAverageBuildTime(target);
+
+    makeAll().assertSuccessful();
+    assertEquals(updatedTime, getAverageBuildTime(target));
+
+    change(file, "class A{ int i; }");
+    makeAll().assertSuccessful();
+    assertTrue(getAverageBuildTime(target) < updatedTime);
+  }
+
+  public void testEstimatedBuildTimes() {
+    JpsModule module = addModule("m");
+    ModuleBuildTarget production = new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION);
+    ModuleBuildTarget tests = new ModuleBuildTarget(module, JavaModuleBuildTargetType.TEST);
+    ModuleBuildTarget other = new ModuleBuildTarget(addModule("other"), JavaModuleBuildTargetType.PRODUCTION);
+    ProjectDescriptor descriptor = createDescriptor();
+    try {
+      BuildTargetsState state = descriptor.getTargetsState();
+      Map<BuildTarget<?>, Long> times = state.estimateBuildTimes(Arrays.asList(production, tests, other));
+      assertEquals(3, times.size());
+      assertEquals(1, times.get(production).longValue());
+      assertEquals(1, times.get(other).longValue());
+
+      state.updateAverageBuildTime(production, 100);
+      state.updateAverageBuildTime(tests, 300);
+      times = state.estimateBuildTimes(Arrays.asList(production, tests, other));
+      assertEquals(100, times.get(production).longValue());
+      assertEquals(300, times.get(tests).longValue());
+      assertEquals(200, times.get(other).longValue());
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  private long getAverageBuildTime(BuildTarget<?> target) {
+    ProjectDescriptor descriptor = createDescriptor();
+    try {
+      return descriptor.getTargetsState().getAverageBuildTime(target);
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  private ProjectDescriptor createDescriptor() {
+    return createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+  }
+}
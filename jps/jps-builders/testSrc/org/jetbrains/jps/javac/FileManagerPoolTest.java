@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import junit.framework.TestCase;
+
+import javax.tools.StandardJavaFileManager;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FileManagerPoolTest extends TestCase {
+  private static final String KEY = "-source 1.6";
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    FileManagerPool.clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileManagerPool.clear();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testManagerIsReusedWithSameOptions() {
+    TestManager manager = new TestManager();
+    FileManagerPool.release(KEY, manager.myProxy);
+    assertNull(FileManagerPool.acquire("-source 1.7"));
+    assertSame(manager.myProxy, FileManagerPool.acquire(KEY));
+    assertEquals(1, manager.myChangedArchivesDrops);
+    assertFalse(manager.myDisposed);
+    assertNull(FileManagerPool.acquire(KEY));
+  }
+
+  public void testExpiredManagersAreDisposed() {
+    TestManager old = new TestManager();
+    FileManagerPool.release(KEY, old.myProxy);
+    long releaseTime = System.currentTimeMillis();
+    TestManager recent = new TestManager();
+    FileManagerPool.release(KEY, recent.myProxy);
+
+    FileManagerPool.disposeExpired(releaseTime);
+    assertFalse(old.myDisposed);
+
+    FileManagerPool.disposeExpired(releaseTime + FileManagerPool.MAX_IDLE_TIME + 1000);
+    assertTrue(old.myDisposed);
+    assertTrue(recent.myDisposed);
+    assertNull(FileManagerPool.acquire(KEY));
+  }
+
+  public void testNumberOfIdleManagersIsBounded() {
+    List<TestManager> managers = new ArrayList<TestManager>();
+    for (int i = 0; i < Runtime.getRuntime().availableProcessors() + 3; i++) {
+      TestManager manager = new TestManager();
+      managers.add(manager);
+      FileManagerPool.release(KEY + i, manager.myProxy);
+    }
+    assertTrue(managers.get(0).myDisposed);
+    assertFalse(managers.get(managers.size() - 1).myDisposed);
+    assertNull(FileManagerPool.acquire(KEY + 0));
+  }
+
+  public void testClearDisposesIdleManagers() {
+    TestManager manager = new TestManager();
+    FileManagerPool.release(KEY, manager.myProxy);
+    FileManagerPool.clear();
+    assertTrue(manager.myDisposed);
+    assertNull(FileManagerPool.acquire(KEY));
+  }
+
+  private static class TestManager implements InvocationHandler {
+    private final StandardJavaFileManager myProxy;
+    private boolean myReusable = true;
+    private boolean myDisposed;
+    private int myChangedArchivesDrops;
+
+    private TestManager() {
+      myProxy = (StandardJavaFileManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class[]{StandardJavaFileManager.class, ReusableFileManager.class},
+                                                                this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("setReusable")) {
+        myReusable = (Boolean)args[0];
+      }
+      else if (name.equals("close")) {
+        if (!myReusable) myDisposed = true;
+      }
+      else if (name.equals("dropChangedArchives")) {
+        myChangedArchivesDrops++;
+        return 0;
+      }
+      else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      }
+      else if (name.equals("equals")) {
+        return proxy == args[0];
+      }
+      return null;
+    }
+  }
+}
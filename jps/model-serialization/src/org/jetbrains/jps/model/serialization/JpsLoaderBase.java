@@ -20,6 +20,7 @@ import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtilRt;
 import org.jdom.Element;
 import org.jdom.JDOMException;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.TimingLog;
 import org.jetbrains.jps.model.JpsElement;
 
@@ -31,13 +32,24 @@ import java.io.IOException;
  */
 public abstract class JpsLoaderBase {
   private final JpsMacroExpander myMacroExpander;
+  @Nullable private final JpsXmlFileCache myXmlFileCache;
 
   protected JpsLoaderBase(JpsMacroExpander macroExpander) {
+    this(macroExpander, null);
+  }
+
+  protected JpsLoaderBase(JpsMacroExpander macroExpander, @Nullable JpsXmlFileCache xmlFileCache) {
     myMacroExpander = macroExpander;
+    myXmlFileCache = xmlFileCache;
+  }
+
+  @Nullable
+  protected JpsXmlFileCache getXmlFileCache() {
+    return myXmlFileCache;
   }
 
   protected Element loadRootElement(final File file) {
-    return loadRootElement(file, myMacroExpander);
+    return loadRootElement(file, myMacroExpander, myXmlFileCache);
   }
 
   protected <E extends JpsElement> void loadComponents(File dir,
@@ -65,8 +77,12 @@ public abstract class JpsLoaderBase {
   }
 
   protected static Element loadRootElement(final File file, final JpsMacroExpander macroExpander) {
+    return loadRootElement(file, macroExpander, null);
+  }
+
+  protected static Element loadRootElement(final File file, final JpsMacroExpander macroExpander, @Nullable JpsXmlFileCache xmlFileCache) {
     try {
-      final Element element = JDOMUtil.loadDocument(file).getRootElement();
+      final Element element = xmlFileCache != null ? xmlFileCache.loadRootElement(file) : JDOMUtil.loadDocument(file).getRootElement();
       macroExpander.substitute(element, SystemInfo.isFileSystemCaseSensitive);
       return element;
     }
@@ -66,8 +66,8 @@ public class JpsProjectLoader extends JpsLoaderBase {
   private final JpsProject myProject;
   private final Map<String, String> myPathVariables;
 
-  private JpsProjectLoader(JpsProject project, Map<String, String> pathVariables, File baseDir) {
-    super(createProjectMacroExpander(pathVariables, baseDir));
+  private JpsProjectLoader(JpsProject project, Map<String, String> pathVariables, File baseDir, @Nullable JpsXmlFileCache xmlFileCache) {
+    super(createProjectMacroExpander(pathVariables, baseDir), xmlFileCache);
     myProject = project;
     myPathVariables = pathVariables;
     myProject.getContainer().setChild(JpsProjectSerializationDataExtensionImpl.ROLE, new JpsProjectSerializationDataExtensionImpl(baseDir));
@@ -80,9 +80,17 @@ public class JpsProjectLoader extends JpsLoaderBase {
   }
 
   public static void loadProject(final JpsProject project, Map<String, String> pathVariables, String projectPath) throws IOException {
+    loadProject(project, pathVariables, projectPath, null);
+  }
+
+  /**
+   * @param xmlFileCache if specified, the project files are read through the cache; the caller is responsible for saving it
+   */
+  public static void loadProject(final JpsProject project, Map<String, String> pathVariables, String projectPath,
+                                 @Nullable JpsXmlFileCache xmlFileCache) throws IOException {
     File file = new File(FileUtil.toCanonicalPath(projectPath));
     if (file.isFile() && projectPath.endsWith(".ipr")) {
-      new JpsProjectLoader(project, pathVariables, file.getParentFile()).loadFromIpr(file);
+      new JpsProjectLoader(project, pathVariables, file.getParentFile(), xmlFileCache).loadFromIpr(file);
     }
     else {
       File dotIdea = new File(file, PathMacroUtil.DIRECTORY_STORE_NAME);
@@ -96,7 +104,7 @@ public class JpsProjectLoader extends JpsLoaderBase {
       else {
         throw new IOException("Cannot find IntelliJ IDEA project files at " + projectPath);
       }
-      new JpsProjectLoader(project, pathVariables, directory.getParentFile()).loadFromDirectory(directory);
+      new JpsProjectLoader(project, pathVariables, directory.getParentFile(), xmlFileCache).loadFromDirectory(directory);
     }
   }
 
@@ -241,7 +249,7 @@ public class JpsProjectLoader extends JpsLoaderBase {
         @Override
         public Pair<File, Element> call() throws Exception {
           final JpsMacroExpander expander = createModuleMacroExpander(myPathVariables, file);
-          final Element moduleRoot = loadRootElement(file, expander);
+          final Element moduleRoot = loadRootElement(file, expander, getXmlFileCache());
           return Pair.create(file, moduleRoot);
         }
       }));
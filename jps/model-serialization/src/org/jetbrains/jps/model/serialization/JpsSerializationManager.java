@@ -35,5 +35,13 @@ public abstract class JpsSerializationManager {
   public abstract JpsModel loadModel(@NotNull String projectPath, @Nullable String optionsPath)
     throws IOException;
 
+  /**
+   * Same as {@link #loadModel(String, String)}, but the project configuration files are read through the cache
+   * and the cache is saved after the project is loaded.
+   */
+  @NotNull
+  public abstract JpsModel loadModel(@NotNull String projectPath, @Nullable String optionsPath, @Nullable JpsXmlFileCache projectFilesCache)
+    throws IOException;
+
   public abstract void saveGlobalSettings(@NotNull JpsGlobal global, @NotNull String optionsPath) throws IOException;
 }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.model.serialization;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.JDOMUtil;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.TObjectIntHashMap;
+import org.jdom.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the project configuration files read by {@link JpsProjectLoader}, used to skip XML parsing on the next build.
+ * <p/>
+ * For every file the cache keeps its root element before macro substitution, in a compact form with its own string table.
+ * The snapshot is read into memory at once, but an element is decoded only when its file is actually requested,
+ * so the module files are materialized lazily by the threads loading the modules.
+ * An entry is valid while the file has the same timestamp and length; if they have changed, the hash of the file content
+ * is compared before the file is parsed again.
+ * <p/>
+ * Only the files requested during the current session are kept when the snapshot is {@link #save() saved}.
+ */
+public class JpsXmlFileCache {
+  private static final Logger LOG = Logger.getInstance(JpsXmlFileCache.class);
+  private static final int VERSION = 1;
+  private static final byte ELEMENT = 0;
+  private static final byte TEXT = 1;
+  private static final byte CDATA = 2;
+  private static final byte END = 3;
+
+  private final File myCacheFile;
+  private final byte[] mySnapshot;
+  private final Map<String, Entry> myStoredEntries;
+  private final Map<String, Entry> myUsedEntries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean myChanged;
+
+  private JpsXmlFileCache(@NotNull File cacheFile, @NotNull byte[] snapshot, @NotNull Map<String, Entry> storedEntries) {
+    myCacheFile = cacheFile;
+    mySnapshot = snapshot;
+    myStoredEntries = storedEntries;
+  }
+
+  @NotNull
+  public static JpsXmlFileCache open(@NotNull File cacheFile) {
+    if (cacheFile.exists()) {
+      try {
+        final byte[] snapshot = FileUtil.loadFileBytes(cacheFile);
+        return new JpsXmlFileCache(cacheFile, snapshot, readEntries(snapshot));
+      }
+      catch (IOException e) {
+        LOG.info("Cannot read JPS model cache " + cacheFile.getPath() + ", project files will be parsed", e);
+      }
+    }
+    return new JpsXmlFileCache(cacheFile, new byte[0], new ConcurrentHashMap<String, Entry>());
+  }
+
+  private static Map<String, Entry> readEntries(byte[] snapshot) throws IOException {
+    final ByteArrayInputStream stream = new ByteArrayInputStream(snapshot);
+    final DataInputStream input = new DataInputStream(stream);
+    if (input.readInt() != VERSION) {
+      throw new IOException("Version mismatch");
+    }
+    final int count = input.readInt();
+    final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>(count);
+    for (int i = 0; i < count; i++) {
+      final String path = input.readUTF();
+      final long timestamp = input.readLong();
+      final long length = input.readLong();
+      final long hash = input.readLong();
+      final int dataLength = input.readInt();
+      final int offset = snapshot.length - stream.available();
+      if (dataLength < 0 || input.skipBytes(dataLength) != dataLength) {
+        throw new IOException("Unexpected end of cache");
+      }
+      entries.put(path, new Entry(timestamp, length, hash, null, offset, dataLength));
+    }
+    return entries;
+  }
+
+  /**
+   * @return root element of the file without macros substituted
+   */
+  @NotNull
+  public Element loadRootElement(@NotNull File file) throws IOException, JDOMException {
+    final String path = FileUtil.toSystemIndependentName(file.getAbsolutePath());
+    Entry entry = myUsedEntries.get(path);
+    if (entry == null) {
+      entry = myStoredEntries.get(path);
+    }
+    final long timestamp = file.lastModified();
+    final long length = file.length();
+    if (entry != null && entry.myTimestamp == timestamp && entry.myLength == length) {
+      final Element element = decode(path, entry);
+      if (element != null) {
+        myUsedEntries.put(path, entry);
+        return element;
+      }
+    }
+
+    final byte[] content = FileUtil.loadFileBytes(file);
+    final long hash = computeHash(content);
+    if (entry != null && entry.myHash == hash) {
+      final Element element = decode(path, entry);
+      if (element != null) {
+        myUsedEntries.put(path, entry.withTimestamp(timestamp, content.length));
+        myChanged = true;
+        return element;
+      }
+    }
+
+    final Element root = JDOMUtil.loadDocument(content).getRootElement();
+    try {
+      myUsedEntries.put(path, new Entry(timestamp, content.length, hash, encode(root), 0, 0));
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot cache " + path, e);
+      myUsedEntries.remove(path);
+    }
+    myChanged = true;
+    return root;
+  }
+
+  /**
+   * Writes the entries of the files requested since the cache was opened. The snapshot is written to a temporary file first,
+   * so a build process killed while saving leaves the previous snapshot intact.
+   */
+  public void save() {
+    if (!myChanged && myUsedEntries.size() == myStoredEntries.size()) {
+      return;
+    }
+    final File tempFile = new File(myCacheFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(myCacheFile);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        output.writeInt(VERSION);
+        output.writeInt(myUsedEntries.size());
+        for (Map.Entry<String, Entry> mapEntry : myUsedEntries.entrySet()) {
+          final Entry entry = mapEntry.getValue();
+          output.writeUTF(mapEntry.getKey());
+          output.writeLong(entry.myTimestamp);
+          output.writeLong(entry.myLength);
+          output.writeLong(entry.myHash);
+          if (entry.myData != null) {
+            output.writeInt(entry.myData.length);
+            output.write(entry.myData);
+          }
+          else {
+            output.writeInt(entry.myDataLength);
+            output.write(mySnapshot, entry.myDataOffset, entry.myDataLength);
+          }
+        }
+      }
+      finally {
+        output.close();
+      }
+      FileUtil.rename(tempFile, myCacheFile);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot save JPS model cache " + myCacheFile.getPath(), e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  private static long computeHash(byte[] content) {
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    return ((long)content.length << 32) | crc.getValue();
+  }
+
+  /**
+   * @return null if the entry is corrupted
+   */
+  @Nullable
+  private Element decode(@NotNull String path, @NotNull Entry entry) {
+    final DataInputStream input = entry.myData != null
+                                  ? new DataInputStream(new ByteArrayInputStream(entry.myData))
+                                  : new DataInputStream(new ByteArrayInputStream(mySnapshot, entry.myDataOffset, entry.myDataLength));
+    try {
+      final String[] strings = new String[input.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = input.readUTF();
+      }
+      if (input.readByte() != ELEMENT) {
+        throw new IOException("Root element expected");
+      }
+      return readElement(input, strings);
+    }
+    catch (Exception e) {
+      LOG.info("Cannot decode cached " + path + ", the file will be parsed", e);
+      return null;
+    }
+  }
+
+  private static Element readElement(DataInputStream input, String[] strings) throws IOException {
+    final Element element = new Element(strings[input.readInt()], readNamespace(input, strings));
+    final int attributeCount = input.readInt();
+    for (int i = 0; i < attributeCount; i++) {
+      final String name = strings[input.readInt()];
+      final Namespace namespace = readNamespace(input, strings);
+      element.setAttribute(new Attribute(name, strings[input.readInt()], namespace));
+    }
+    while (true) {
+      final byte kind = input.readByte();
+      if (kind == END) {
+        return element;
+      }
+      if (kind == ELEMENT) {
+        element.addContent(readElement(input, strings));
+      }
+      else if (kind == TEXT) {
+        element.addContent(new Text(strings[input.readInt()]));
+      }
+      else if (kind == CDATA) {
+        element.addContent(new CDATA(strings[input.readInt()]));
+      }
+      else {
+        throw new IOException("Unexpected content kind: " + kind);
+      }
+    }
+  }
+
+  private static Namespace readNamespace(DataInputStream input, String[] strings) throws IOException {
+    final int uri = input.readInt();
+    if (uri < 0) {
+      return Namespace.NO_NAMESPACE;
+    }
+    return Namespace.getNamespace(strings[input.readInt()], strings[uri]);
+  }
+
+  @NotNull
+  private static byte[] encode(@NotNull Element root) throws IOException {
+    final StringTable strings = new StringTable();
+    final BufferExposingByteArrayOutputStream tree = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream treeOutput = new DataOutputStream(tree);
+    treeOutput.writeByte(ELEMENT);
+    writeElement(treeOutput, root, strings);
+    treeOutput.close();
+
+    final BufferExposingByteArrayOutputStream result = new BufferExposingByteArrayOutputStream(tree.size() + 32 * strings.myList.size());
+    final DataOutputStream output = new DataOutputStream(result);
+    output.writeInt(strings.myList.size());
+    for (String s : strings.myList) {
+      output.writeUTF(s);
+    }
+    output.write(tree.getInternalBuffer(), 0, tree.size());
+    output.close();
+    return result.toByteArray();
+  }
+
+  private static void writeElement(DataOutputStream output, Element element, StringTable strings) throws IOException {
+    output.writeInt(strings.get(element.getName()));
+    writeNamespace(output, element.getNamespace(), strings);
+    @SuppressWarnings("unchecked") final List<Attribute> attributes = element.getAttributes();
+    output.writeInt(attributes.size());
+    for (Attribute attribute : attributes) {
+      output.writeInt(strings.get(attribute.getName()));
+      writeNamespace(output, attribute.getNamespace(), strings);
+      output.writeInt(strings.get(attribute.getValue()));
+    }
+    for (Object content : element.getContent()) {
+      if (content instanceof Element) {
+        output.writeByte(ELEMENT);
+        writeElement(output, (Element)content, strings);
+      }
+      else if (content instanceof CDATA) {
+        output.writeByte(CDATA);
+        output.writeInt(strings.get(((CDATA)content).getText()));
+      }
+      else if (content instanceof Text) {
+        output.writeByte(TEXT);
+        output.writeInt(strings.get(((Text)content).getText()));
+      }
+      // comments and processing instructions are not used by the serializers
+    }
+    output.writeByte(END);
+  }
+
+  private static void writeNamespace(DataOutputStream output, Namespace namespace, StringTable strings) throws IOException {
+    if (Namespace.NO_NAMESPACE.equals(namespace)) {
+      output.writeInt(-1);
+    }
+    else {
+      output.writeInt(strings.get(namespace.getURI()));
+      output.writeInt(strings.get(namespace.getPrefix()));
+    }
+  }
+
+  private static class StringTable {
+    private final TObjectIntHashMap<String> myIndices = new TObjectIntHashMap<String>();
+    private final List<String> myList = new ArrayList<String>();
+
+    private int get(String s) throws IOException {
+      if (s.length() > 0xFFFF / 3) {
+        // writeUTF() is limited to 64K bytes, such files are rare enough to be parsed every time
+        throw new IOException("String is too long to be cached");
+      }
+      int index = myIndices.get(s);
+      if (index == 0 && !myIndices.containsKey(s)) {
+        index = myList.size();
+        myList.add(s);
+        myIndices.put(s, index);
+      }
+      return index;
+    }
+  }
+
+  private static class Entry {
+    private final long myTimestamp;
+    private final long myLength;
+    private final long myHash;
+    @Nullable private final byte[] myData;
+    private final int myDataOffset;
+    private final int myDataLength;
+
+    private Entry(long timestamp, long length, long hash, @Nullable byte[] data, int dataOffset, int dataLength) {
+      myTimestamp = timestamp;
+      myLength = length;
+      myHash = hash;
+      myData = data;
+      myDataOffset = dataOffset;
+      myDataLength = dataLength;
+    }
+
+    private Entry withTimestamp(long timestamp, long length) {
+      return new Entry(timestamp, length, myHash, myData, myDataOffset, myDataLength);
+    }
+  }
+}
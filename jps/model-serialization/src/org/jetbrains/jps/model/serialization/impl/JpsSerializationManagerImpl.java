@@ -32,13 +32,23 @@ public class JpsSerializationManagerImpl extends JpsSerializationManager {
   @NotNull
   @Override
   public JpsModel loadModel(@NotNull String projectPath, @Nullable String optionsPath)
+    throws IOException {
+    return loadModel(projectPath, optionsPath, null);
+  }
+
+  @NotNull
+  @Override
+  public JpsModel loadModel(@NotNull String projectPath, @Nullable String optionsPath, @Nullable JpsXmlFileCache projectFilesCache)
     throws IOException {
     JpsModel model = JpsElementFactory.getInstance().createModel();
     if (optionsPath != null) {
       JpsGlobalLoader.loadGlobalSettings(model.getGlobal(), optionsPath);
     }
     Map<String, String> pathVariables = JpsModelSerializationDataService.computeAllPathVariables(model.getGlobal());
-    JpsProjectLoader.loadProject(model.getProject(), pathVariables, projectPath);
+    JpsProjectLoader.loadProject(model.getProject(), pathVariables, projectPath, projectFilesCache);
+    if (projectFilesCache != null) {
+      projectFilesCache.save();
+    }
     return model;
   }
 
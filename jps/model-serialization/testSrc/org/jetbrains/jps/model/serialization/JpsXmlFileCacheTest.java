@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.model.serialization;
+
+import com.intellij.openapi.util.JDOMUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import org.jdom.Element;
+import org.jetbrains.jps.model.JpsElementFactory;
+import org.jetbrains.jps.model.JpsProject;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JpsXmlFileCacheTest extends JpsSerializationTestCase {
+  private static final int GENERATED_MODULES_COUNT = 2000;
+  private File myTempDir;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("jps-xml-cache", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myTempDir);
+    super.tearDown();
+  }
+
+  public void testCachedElementsAreEqualToParsed() throws Exception {
+    File projectDir = new File(getTestDataFileAbsolutePath(JpsProjectSerializationTest.SAMPLE_PROJECT_PATH));
+    List<File> files = new ArrayList<File>();
+    collectProjectFiles(projectDir, files);
+    assertTrue(files.size() > 3);
+
+    File cacheFile = new File(myTempDir, "cache.dat");
+    JpsXmlFileCache cache = JpsXmlFileCache.open(cacheFile);
+    for (File file : files) {
+      assertElementsEqual(file, cache.loadRootElement(file));
+    }
+    cache.save();
+
+    cache = JpsXmlFileCache.open(cacheFile);
+    for (File file : files) {
+      assertElementsEqual(file, cache.loadRootElement(file));
+    }
+  }
+
+  public void testChangedFileIsParsedAgain() throws Exception {
+    File file = new File(myTempDir, "a.xml");
+    FileUtil.writeToFile(file, "<root><a value=\"1\"/></root>");
+    File cacheFile = new File(myTempDir, "cache.dat");
+    JpsXmlFileCache cache = JpsXmlFileCache.open(cacheFile);
+    assertEquals("1", cache.loadRootElement(file).getChild("a").getAttributeValue("value"));
+    cache.save();
+
+    FileUtil.writeToFile(file, "<root><a value=\"2\"/></root>");
+    assertTrue(file.setLastModified(file.lastModified() + 2000));
+    cache = JpsXmlFileCache.open(cacheFile);
+    assertEquals("2", cache.loadRootElement(file).getChild("a").getAttributeValue("value"));
+  }
+
+  public void testLoadGeneratedProject() throws Exception {
+    File projectDir = new File(myTempDir, "project");
+    generateProject(projectDir, 100);
+    File cacheFile = new File(myTempDir, "cache.dat");
+    JpsProject parsed = loadProject(projectDir, null);
+
+    JpsXmlFileCache cache = JpsXmlFileCache.open(cacheFile);
+    assertEquals(describe(parsed), describe(loadProject(projectDir, cache)));
+    cache.save();
+    assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+
+    JpsProject cached = loadProject(projectDir, JpsXmlFileCache.open(cacheFile));
+    assertEquals(100, cached.getModules().size());
+    assertEquals(describe(parsed), describe(cached));
+  }
+
+  public void testLoadingFromCachePerformance() throws Exception {
+    final File projectDir = new File(myTempDir, "project");
+    generateProject(projectDir, GENERATED_MODULES_COUNT);
+    final File cacheFile = new File(myTempDir, "cache.dat");
+    JpsXmlFileCache cache = JpsXmlFileCache.open(cacheFile);
+    loadProject(projectDir, cache);
+    cache.save();
+
+    PlatformTestUtil.startPerformanceTest("loading " + GENERATED_MODULES_COUNT + " modules from the cache", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        assertEquals(GENERATED_MODULES_COUNT, loadProject(projectDir, JpsXmlFileCache.open(cacheFile)).getModules().size());
+      }
+    }).ioBound().assertTiming();
+  }
+
+  private JpsProject loadProject(File projectDir, JpsXmlFileCache cache) throws IOException {
+    JpsProject project = JpsElementFactory.getInstance().createModel().getProject();
+    JpsProjectLoader.loadProject(project, getPathVariables(), projectDir.getAbsolutePath(), cache);
+    return project;
+  }
+
+  private static String describe(JpsProject project) {
+    StringBuilder builder = new StringBuilder();
+    for (JpsModule module : project.getModules()) {
+      builder.append(module.getName()).append(':').append(module.getDependenciesList().getDependencies().size());
+      for (JpsModuleSourceRoot root : module.getSourceRoots()) {
+        builder.append(' ').append(root.getUrl());
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static void generateProject(File projectDir, int modulesCount) throws IOException {
+    StringBuilder modules = new StringBuilder();
+    for (int i = 0; i < modulesCount; i++) {
+      String name = "module" + i;
+      modules.append("<module fileurl=\"file://$PROJECT_DIR$/").append(name).append('/').append(name).append(".iml\" filepath=\"$PROJECT_DIR$/")
+        .append(name).append('/').append(name).append(".iml\" />\n");
+      StringBuilder iml = new StringBuilder();
+      iml.append("<module type=\"JAVA_MODULE\" version=\"4\">\n");
+      iml.append("  <component name=\"NewModuleRootManager\" inherit-compiler-output=\"true\">\n");
+      iml.append("    <content url=\"file://$MODULE_DIR$\">\n");
+      iml.append("      <sourceFolder url=\"file://$MODULE_DIR$/src\" isTestSource=\"false\" />\n");
+      iml.append("      <sourceFolder url=\"file://$MODULE_DIR$/testSrc\" isTestSource=\"true\" />\n");
+      iml.append("    </content>\n");
+      iml.append("    <orderEntry type=\"inheritedJdk\" />\n");
+      iml.append("    <orderEntry type=\"sourceFolder\" forTests=\"false\" />\n");
+      for (int j = Math.max(0, i - 20); j < i; j++) {
+        iml.append("    <orderEntry type=\"module\" module-name=\"module").append(j).append("\" />\n");
+      }
+      iml.append("  </component>\n");
+      iml.append("</module>\n");
+      FileUtil.writeToFile(new File(projectDir, name + "/" + name + ".iml"), iml.toString());
+    }
+    FileUtil.writeToFile(new File(projectDir, ".idea/modules.xml"),
+                         "<project version=\"4\">\n  <component name=\"ProjectModuleManager\">\n    <modules>\n" + modules +
+                         "    </modules>\n  </component>\n</project>\n");
+    FileUtil.writeToFile(new File(projectDir, ".idea/misc.xml"), "<project version=\"4\" />\n");
+  }
+
+  private static void collectProjectFiles(File dir, List<File> result) {
+    File[] children = dir.listFiles();
+    if (children == null) return;
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectProjectFiles(child, result);
+      }
+      else if (child.getName().endsWith(".xml") || child.getName().endsWith(".iml")) {
+        result.add(child);
+      }
+    }
+  }
+
+  private static void assertElementsEqual(File file, Element element) throws Exception {
+    assertTrue(file.getPath(), JDOMUtil.areElementsEqual(JDOMUtil.loadDocument(file).getRootElement(), element));
+  }
+}
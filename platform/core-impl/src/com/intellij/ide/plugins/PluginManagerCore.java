@@ -18,6 +18,7 @@ package com.intellij.ide.plugins;
 import com.intellij.ide.ClassUtilCore;
 import com.intellij.ide.IdeBundle;
 import com.intellij.ide.StartupProgress;
+import com.intellij.diagnostic.StartupTimeline;
 import com.intellij.ide.plugins.cl.PluginClassLoader;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
@@ -31,6 +32,7 @@ import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Function;
 import com.intellij.util.PlatformUtilsCore;
 import com.intellij.util.ReflectionUtil;
@@ -51,6 +53,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -69,6 +75,12 @@ public class PluginManagerCore {
   static final String ENABLE = "enable";
   static final String EDIT = "edit";
   @NonNls private static final String PROPERTY_PLUGIN_PATH = "plugin.path";
+  /**
+   * Plugin descriptors are parsed in parallel, and the components having no dependencies on each other are created in parallel too
+   * (see {@link com.intellij.openapi.components.impl.ComponentManagerImpl}).
+   * The components must not wait for the event dispatch thread while they are being created.
+   */
+  public static final boolean PARALLEL_STARTUP = "true".equals(System.getProperty("idea.parallel.startup"));
   static List<String> ourDisabledPlugins = null;
   static IdeaPluginDescriptor[] ourPlugins;
   static String myPluginError = null;
@@ -416,7 +428,23 @@ public class PluginManagerCore {
     return Collections.emptyList();
   }
 
-  static void prepareLoadingPluginsErrorMessage(final String errorMessage) {
+  /**
+   * @return class loading statistics of the class loader the platform is loaded by, or null if it does not collect them
+   */
+  @Nullable
+  public static String getClassLoadingStatistics() {
+    // the loader is created by the bootstrap code, so its UrlClassLoader class is not the one visible here
+    final ClassLoader classLoader = PluginManagerCore.class.getClassLoader();
+    try {
+      return (String)classLoader.getClass().getMethod("getLoadingStatistics").invoke(classLoader);
+    }
+    catch (IllegalAccessException ignored) { }
+    catch (InvocationTargetException ignored) { }
+    catch (NoSuchMethodException ignored) { }
+    return null;
+  }
+
+  static synchronized void prepareLoadingPluginsErrorMessage(final String errorMessage) {
     if (errorMessage != null) {
       if (!ApplicationManager.getApplication().isHeadlessEnvironment() && !ApplicationManager.getApplication().isUnitTestMode()) {
         if (myPluginError == null) {
@@ -658,8 +686,7 @@ public class PluginManagerCore {
     final File[] files = pluginsHome.listFiles();
     if (files != null) {
       int i = result.size();
-      for (File file : files) {
-        final IdeaPluginDescriptorImpl descriptor = loadDescriptor(file, PLUGIN_XML);
+      for (IdeaPluginDescriptorImpl descriptor : loadDescriptors(Arrays.asList(files), PLUGIN_XML)) {
         if (descriptor == null) continue;
         if (progress != null) {
           progress.showProgress(descriptor.getName(), PLUGINS_PROGRESS_MAX_VALUE * ((float)++i / pluginsCount));
@@ -678,6 +705,67 @@ public class PluginManagerCore {
     }
   }
 
+  /**
+   * Loads the descriptors in parallel in the {@link #PARALLEL_STARTUP} mode.
+   *
+   * @return the descriptors in the order of the files, null for the files the descriptor cannot be loaded from
+   */
+  @NotNull
+  private static List<IdeaPluginDescriptorImpl> loadDescriptors(@NotNull List<File> files, @NonNls @NotNull final String fileName) {
+    List<Callable<IdeaPluginDescriptorImpl>> tasks = new ArrayList<Callable<IdeaPluginDescriptorImpl>>(files.size());
+    for (final File file : files) {
+      tasks.add(new Callable<IdeaPluginDescriptorImpl>() {
+        @Override
+        public IdeaPluginDescriptorImpl call() {
+          StartupTimeline.Activity activity = StartupTimeline.start("plugin descriptor", file.getName(), null);
+          IdeaPluginDescriptorImpl descriptor = null;
+          try {
+            descriptor = loadDescriptor(file, fileName);
+            return descriptor;
+          }
+          finally {
+            activity.end(descriptor != null ? descriptor.getPluginId().getIdString() : null);
+          }
+        }
+      });
+    }
+
+    List<IdeaPluginDescriptorImpl> result = new ArrayList<IdeaPluginDescriptorImpl>(files.size());
+    if (!PARALLEL_STARTUP || tasks.size() < 2) {
+      for (Callable<IdeaPluginDescriptorImpl> task : tasks) {
+        try {
+          result.add(task.call());
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return result;
+    }
+
+    int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(threads, ConcurrencyUtil.newNamedThreadFactory("Plugin Descriptor Loader", true,
+                                                                                                          Thread.NORM_PRIORITY));
+    try {
+      for (Future<IdeaPluginDescriptorImpl> future : ConcurrencyUtil.invokeAll(tasks, executor)) {
+        result.add(future.get());
+      }
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Error e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    return result;
+  }
+
   @Nullable
   static String filterBadPlugins(List<? extends IdeaPluginDescriptor> result, final Map<String, String> disabledPluginNames) {
     final Map<PluginId, IdeaPluginDescriptor> idToDescriptorMap = new HashMap<PluginId, IdeaPluginDescriptor>();
@@ -781,34 +869,37 @@ public class PluginManagerCore {
   static void loadDescriptorsFromClassPath(@NotNull List<IdeaPluginDescriptorImpl> result, @Nullable StartupProgress progress) {
     Collection<URL> urls = getClassLoaderUrls();
     String platformPrefix = System.getProperty(PlatformUtilsCore.PLATFORM_PREFIX_KEY);
-    int i = 0;
+    List<File> files = new ArrayList<File>(urls.size());
     for (URL url : urls) {
-      i++;
       if ("file".equals(url.getProtocol())) {
-        File file = new File(decodeUrl(url.getFile()));
-
-        IdeaPluginDescriptorImpl platformPluginDescriptor = null;
-        if (platformPrefix != null) {
-          platformPluginDescriptor = loadDescriptor(file, platformPrefix + "Plugin.xml");
-          if (platformPluginDescriptor != null && !result.contains(platformPluginDescriptor)) {
-            platformPluginDescriptor.setUseCoreClassLoader(true);
-            result.add(platformPluginDescriptor);
-          }
+        files.add(new File(decodeUrl(url.getFile())));
+      }
+    }
+
+    List<IdeaPluginDescriptorImpl> platformPluginDescriptors = platformPrefix != null ? loadDescriptors(files, platformPrefix + "Plugin.xml") : null;
+    List<IdeaPluginDescriptorImpl> pluginDescriptors = loadDescriptors(files, PLUGIN_XML);
+    for (int i = 0; i < files.size(); i++) {
+      IdeaPluginDescriptorImpl platformPluginDescriptor = null;
+      if (platformPluginDescriptors != null) {
+        platformPluginDescriptor = platformPluginDescriptors.get(i);
+        if (platformPluginDescriptor != null && !result.contains(platformPluginDescriptor)) {
+          platformPluginDescriptor.setUseCoreClassLoader(true);
+          result.add(platformPluginDescriptor);
         }
+      }
 
-        IdeaPluginDescriptorImpl pluginDescriptor = loadDescriptor(file, PLUGIN_XML);
-        if (platformPrefix != null && pluginDescriptor != null && pluginDescriptor.getName().equals(SPECIAL_IDEA_PLUGIN)) {
-          continue;
+      IdeaPluginDescriptorImpl pluginDescriptor = pluginDescriptors.get(i);
+      if (platformPrefix != null && pluginDescriptor != null && pluginDescriptor.getName().equals(SPECIAL_IDEA_PLUGIN)) {
+        continue;
+      }
+      if (pluginDescriptor != null && !result.contains(pluginDescriptor)) {
+        if (platformPluginDescriptor != null) {
+          // if we found a regular plugin.xml in the same .jar/root as a platform-prefixed descriptor, use the core loader for it too
+          pluginDescriptor.setUseCoreClassLoader(true);
         }
-        if (pluginDescriptor != null && !result.contains(pluginDescriptor)) {
-          if (platformPluginDescriptor != null) {
-            // if we found a regular plugin.xml in the same .jar/root as a platform-prefixed descriptor, use the core loader for it too
-            pluginDescriptor.setUseCoreClassLoader(true);
-          }
-          result.add(pluginDescriptor);
-          if (progress != null) {
-            progress.showProgress("Plugin loaded: " + pluginDescriptor.getName(), PLUGINS_PROGRESS_MAX_VALUE * ((float)i / urls.size()));
-          }
+        result.add(pluginDescriptor);
+        if (progress != null) {
+          progress.showProgress("Plugin loaded: " + pluginDescriptor.getName(), PLUGINS_PROGRESS_MAX_VALUE * ((float)(i + 1) / files.size()));
         }
       }
     }
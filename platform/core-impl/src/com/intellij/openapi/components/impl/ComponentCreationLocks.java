@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.components.impl;
+
+import gnu.trove.THashMap;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Guards the creation of the components while they are created by several threads. A thread may hold several locks at once
+ * (a component is created while the components it needs are created), so two threads needing the components created by each other
+ * would wait forever. Such a cycle is detected instead, and the thread closing it gets an exception, the same way a cyclic
+ * dependency between the components created by a single thread is reported.
+ */
+class ComponentCreationLocks {
+  private final Map<Object, Thread> myOwners = new THashMap<Object, Thread>();
+  private final TObjectIntHashMap<Object> myHoldCounts = new TObjectIntHashMap<Object>();
+  private final Map<Thread, Object> myAwaited = new THashMap<Thread, Object>();
+
+  /**
+   * @throws IllegalStateException if the lock is held by a thread waiting (directly or through other threads) for a lock held by this one
+   */
+  public synchronized void lock(@NotNull Object key) {
+    final Thread current = Thread.currentThread();
+    while (true) {
+      final Thread owner = myOwners.get(key);
+      if (owner == null || owner == current) {
+        myOwners.put(key, current);
+        myHoldCounts.put(key, myHoldCounts.get(key) + 1);
+        return;
+      }
+      if (isWaitingFor(owner, current)) {
+        throw new IllegalStateException("Cyclic component initialization: " + key + " is being created by " + owner.getName() +
+                                        " waiting for the components created by " + current.getName());
+      }
+      myAwaited.put(current, key);
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      finally {
+        myAwaited.remove(current);
+      }
+    }
+  }
+
+  public synchronized void unlock(@NotNull Object key) {
+    assert myOwners.get(key) == Thread.currentThread() : key;
+    final int count = myHoldCounts.get(key) - 1;
+    if (count > 0) {
+      myHoldCounts.put(key, count);
+    }
+    else {
+      myHoldCounts.remove(key);
+      myOwners.remove(key);
+      notifyAll();
+    }
+  }
+
+  private boolean isWaitingFor(@NotNull Thread thread, @NotNull Thread target) {
+    // a chain of waiting threads is not longer than the number of waiting threads, unless it is a cycle not involving the target
+    for (int i = 0; i <= myAwaited.size(); i++) {
+      final Object awaited = myAwaited.get(thread);
+      if (awaited == null) {
+        return false;
+      }
+      thread = myOwners.get(awaited);
+      if (thread == null || thread == target) {
+        return thread == target;
+      }
+    }
+    return false;
+  }
+}
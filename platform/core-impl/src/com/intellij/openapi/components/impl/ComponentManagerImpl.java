@@ -16,6 +16,8 @@
 package com.intellij.openapi.components.impl;
 
 import com.intellij.diagnostic.PluginException;
+import com.intellij.diagnostic.StartupTimeline;
+import com.intellij.ide.plugins.PluginManagerCore;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.*;
 import com.intellij.openapi.components.ex.ComponentManagerEx;
@@ -29,6 +31,7 @@ import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.ReflectionCache;
 import com.intellij.util.containers.ConcurrentHashMap;
@@ -36,6 +39,7 @@ import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusFactory;
 import com.intellij.util.pico.IdeaPicoContainer;
 import gnu.trove.THashMap;
+import gnu.trove.THashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -45,19 +49,26 @@ import org.picocontainer.defaults.CachingComponentAdapter;
 import org.picocontainer.defaults.ConstructorInjectionComponentAdapter;
 
 import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author mike
  */
 public abstract class ComponentManagerImpl extends UserDataHolderBase implements ComponentManagerEx, Disposable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.components.ComponentManager");
+  @NonNls private static final String DEFERRABLE_OPTION = "deferrable";
 
   private final Map<Class, Object> myInitializedComponents = new ConcurrentHashMap<Class, Object>();
 
   private boolean myComponentsCreated = false;
+  /**
+   * Set while the components are created by several threads (see {@link PluginManagerCore#PARALLEL_STARTUP}),
+   * the manager is not locked while a component is being created then, and the components are guarded by {@link #myCreationLocks}
+   */
+  private volatile boolean myCreatingConcurrently = false;
+  private final ComponentCreationLocks myCreationLocks = new ComponentCreationLocks();
 
   private MutablePicoContainer myPicoContainer;
   private volatile boolean myDisposed = false;
@@ -106,7 +117,10 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
     try {
       myComponentsRegistry.loadClasses();
 
-      Class[] componentInterfaces = myComponentsRegistry.getComponentInterfaces();
+      Class[] componentInterfaces = myComponentsRegistry.getNotDeferredComponentInterfaces();
+      if (PluginManagerCore.PARALLEL_STARTUP && componentInterfaces.length > 1) {
+        createComponentsConcurrently(componentInterfaces);
+      }
       for (Class componentInterface : componentInterfaces) {
         ProgressIndicatorProvider.checkCanceled();
         createComponent(componentInterface);
@@ -117,6 +131,77 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
     }
   }
 
+  /**
+   * Creates the components in the order of their constructor dependencies: every component is created as soon as
+   * the components its constructor takes are, so the components not depending on each other are created at the same time.
+   * The dependencies a component obtains by {@link #getComponent(Class)} are created on demand by the thread needing them.
+   * The created components are registered in the order the sequential creation would register them in.
+   */
+  private void createComponentsConcurrently(@NotNull Class[] componentInterfaces) {
+    final Map<Class, Set<Class>> dependencies = myComponentsRegistry.getConstructorDependencies(componentInterfaces);
+    final List<List<Class>> levels = myComponentsRegistry.getDependencyLevels(componentInterfaces, dependencies);
+    final ExecutorService executor = CreationExecutorHolder.EXECUTOR;
+    myCreatingConcurrently = true;
+    try {
+      for (List<Class> level : levels) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(level.size());
+        for (final Class componentInterface : level) {
+          tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+              return getComponentFromContainer(componentInterface);
+            }
+          });
+        }
+        ConcurrencyUtil.invokeAll(tasks, executor);
+      }
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Error e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      myCreatingConcurrently = false;
+      myComponentsRegistry.sortImplementations(componentInterfaces, dependencies);
+    }
+  }
+
+  /**
+   * Creates the deferred components which haven't been requested yet.
+   *
+   * @see #canDeferComponents()
+   */
+  public void createDeferredComponents() {
+    Class[] componentInterfaces;
+    synchronized (this) {
+      if (myComponentsRegistry == null) return;
+      componentInterfaces = myComponentsRegistry.getDeferredComponentInterfaces();
+    }
+    for (Class componentInterface : componentInterfaces) {
+      getComponent(componentInterface);
+    }
+  }
+
+  /**
+   * The components marked by the "deferrable" option are not created together with the other components if this method returns true,
+   * but on their first request, either by {@link #getComponent(Class)} or as a constructor parameter of another component,
+   * or by {@link #createDeferredComponents()}. Until then they aren't returned by {@link #getComponents(Class)}.
+   */
+  protected boolean canDeferComponents() {
+    return false;
+  }
+
+  /**
+   * Called when a deferred component has been created and initialized after the other components.
+   */
+  protected void deferredComponentCreated(@NotNull Object component) {
+  }
+
   protected synchronized Object createComponent(Class componentInterface) {
     final Object component = getPicoContainer().getComponentInstance(componentInterface.getName());
     LOG.assertTrue(component != null, "Can't instantiate component for: " + componentInterface);
@@ -150,35 +235,58 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
     final T initializedComponent = (T)myInitializedComponents.get(interfaceClass);
     if (initializedComponent != null) return initializedComponent;
 
+    Object lock;
     synchronized (this) {
       if (myComponentsRegistry == null || !myComponentsRegistry.containsInterface(interfaceClass)) {
         return null;
       }
 
-      Object lock = myComponentsRegistry.getComponentLock(interfaceClass);
+      lock = myComponentsRegistry.getComponentLock(interfaceClass);
+      if (!myCreatingConcurrently) {
+        return getOrCreateComponent(interfaceClass, lock);
+      }
+    }
+    return getOrCreateComponent(interfaceClass, lock);
+  }
 
-      synchronized (lock) {
-        T dcl = (T)myInitializedComponents.get(interfaceClass);
-        if (dcl != null) return dcl;
+  @NotNull
+  private <T> T getOrCreateComponent(@NotNull Class<T> interfaceClass, @NotNull Object lock) {
+    if (myCreatingConcurrently) {
+      myCreationLocks.lock(interfaceClass);
+      try {
+        return doGetOrCreateComponent(interfaceClass);
+      }
+      finally {
+        myCreationLocks.unlock(interfaceClass);
+      }
+    }
+    synchronized (lock) {
+      return doGetOrCreateComponent(interfaceClass);
+    }
+  }
 
-        T component = (T)getPicoContainer().getComponentInstance(interfaceClass.getName());
-        if (component == null) {
-          component = (T)createComponent(interfaceClass);
-        }
+  @SuppressWarnings({"unchecked"})
+  @NotNull
+  private <T> T doGetOrCreateComponent(@NotNull Class<T> interfaceClass) {
+    T dcl = (T)myInitializedComponents.get(interfaceClass);
+    if (dcl != null) return dcl;
 
-        if (component == null) {
-          throw new IncorrectOperationException("createComponent() returns null for: " + interfaceClass);
-        }
+    T component = (T)getPicoContainer().getComponentInstance(interfaceClass.getName());
+    if (component == null) {
+      component = (T)createComponent(interfaceClass);
+    }
 
-        myInitializedComponents.put(interfaceClass, component);
+    if (component == null) {
+      throw new IncorrectOperationException("createComponent() returns null for: " + interfaceClass);
+    }
 
-        if (component instanceof com.intellij.openapi.Disposable) {
-          Disposer.register(this, (com.intellij.openapi.Disposable)component);
-        }
+    myInitializedComponents.put(interfaceClass, component);
 
-        return component;
-      }
+    if (component instanceof com.intellij.openapi.Disposable) {
+      Disposer.register(this, (com.intellij.openapi.Disposable)component);
     }
+
+    return component;
   }
 
   @Override
@@ -240,7 +348,7 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
   }
 
   protected synchronized Object[] getComponents() {
-    Class[] componentClasses = myComponentsRegistry.getComponentInterfaces();
+    Class[] componentClasses = myComponentsRegistry.getNotDeferredComponentInterfaces();
     ArrayList<Object> components = new ArrayList<Object>(componentClasses.length);
     for (Class<?> interfaceClass : componentClasses) {
       ProgressIndicatorProvider.checkCanceled();
@@ -385,9 +493,11 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
     private final Map<Class, Object> myInterfaceToLockMap = new THashMap<Class, Object>();
     private final Map<Class, Class> myInterfaceToClassMap = new THashMap<Class, Class>();
     private final List<Class> myComponentInterfaces = new ArrayList<Class>(); // keeps order of component's registration
+    private final Set<Class> myDeferredInterfaces = new THashSet<Class>(); // deferred components which haven't been created yet
     private final Map<String, BaseComponent> myNameToComponent = new THashMap<String, BaseComponent>();
     private final List<ComponentConfig> myComponentConfigs = new ArrayList<ComponentConfig>();
     private final List<Object> myImplementations = new ArrayList<Object>();
+    private final Map<Class, Object> myInterfaceToImplementation = new THashMap<Class, Object>();
     private final Map<Class, ComponentConfig> myComponentClassToConfig = new THashMap<Class, ComponentConfig>();
     private boolean myClassesLoaded = false;
 
@@ -413,17 +523,20 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
           throw new RuntimeException("Component already registered: " + interfaceClass.getName());
         }
 
-        getPicoContainer().registerComponent(new ComponentConfigComponentAdapter(config, implementationClass));
+        getPicoContainer().registerComponent(new ComponentConfigComponentAdapter(config, interfaceClass, implementationClass));
         myInterfaceToClassMap.put(interfaceClass, implementationClass);
         myComponentClassToConfig.put(implementationClass, config);
         myComponentInterfaces.add(interfaceClass);
+        if (isTrue(config.options, DEFERRABLE_OPTION) && canDeferComponents()) {
+          myDeferredInterfaces.add(interfaceClass);
+        }
       }
       catch (Throwable t) {
         handleInitComponentError(t, null, config);
       }
     }
 
-    private Object getComponentLock(final Class componentClass) {
+    private synchronized Object getComponentLock(final Class componentClass) {
       Object lock = myInterfaceToLockMap.get(componentClass);
       if (lock == null) {
         myInterfaceToLockMap.put(componentClass, lock = new Object());
@@ -436,6 +549,31 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
       return myComponentInterfaces.toArray(new Class[myComponentInterfaces.size()]);
     }
 
+    private synchronized Class[] getNotDeferredComponentInterfaces() {
+      assert myClassesLoaded;
+      List<Class> result = new ArrayList<Class>(myComponentInterfaces.size());
+      for (Class componentInterface : myComponentInterfaces) {
+        if (!myDeferredInterfaces.contains(componentInterface)) {
+          result.add(componentInterface);
+        }
+      }
+      return result.toArray(new Class[result.size()]);
+    }
+
+    private synchronized Class[] getDeferredComponentInterfaces() {
+      List<Class> result = new ArrayList<Class>(myDeferredInterfaces.size());
+      for (Class componentInterface : myComponentInterfaces) {
+        if (myDeferredInterfaces.contains(componentInterface)) {
+          result.add(componentInterface);
+        }
+      }
+      return result.toArray(new Class[result.size()]);
+    }
+
+    private synchronized boolean isDeferred(final Class interfaceClass) {
+      return myDeferredInterfaces.contains(interfaceClass);
+    }
+
     private boolean containsInterface(final Class interfaceClass) {
       return myInterfaceToClassMap.containsKey(interfaceClass);
     }
@@ -444,8 +582,13 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
       return ((float)myImplementations.size()) / myComponentConfigs.size();
     }
 
-    private void registerComponentInstance(final Object component) {
+    /**
+     * @return true if the component has been created on demand after the other components
+     */
+    private synchronized boolean registerComponentInstance(final Class interfaceClass, final Object component) {
       myImplementations.add(component);
+      myInterfaceToImplementation.put(interfaceClass, component);
+      boolean deferred = myDeferredInterfaces.remove(interfaceClass) && myComponentsCreated;
 
       if (component instanceof BaseComponent) {
         BaseComponent baseComponent = (BaseComponent)component;
@@ -462,6 +605,109 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
           myNameToComponent.put(componentName, baseComponent);
         }
       }
+      return deferred;
+    }
+
+    /**
+     * @return the components taken by the constructor of every component, in the order of registration
+     */
+    @NotNull
+    private Map<Class, Set<Class>> getConstructorDependencies(@NotNull Class[] componentInterfaces) {
+      final Map<Class, Set<Class>> dependencies = new THashMap<Class, Set<Class>>();
+      for (Class componentInterface : componentInterfaces) {
+        Set<Class> componentDependencies = new LinkedHashSet<Class>();
+        for (Class parameterType : getConstructorParameterTypes(myInterfaceToClassMap.get(componentInterface))) {
+          for (Class other : componentInterfaces) {
+            if (other != componentInterface && ReflectionCache.isAssignable(parameterType, myInterfaceToClassMap.get(other))) {
+              componentDependencies.add(other);
+            }
+          }
+        }
+        dependencies.put(componentInterface, componentDependencies);
+      }
+      return dependencies;
+    }
+
+    /**
+     * @return the components grouped so that the constructor of a component takes only the components of the previous groups;
+     * the components having cyclic constructor dependencies are put to the last group
+     */
+    @NotNull
+    private List<List<Class>> getDependencyLevels(@NotNull Class[] componentInterfaces, @NotNull Map<Class, Set<Class>> dependencies) {
+      List<List<Class>> levels = new ArrayList<List<Class>>();
+      Set<Class> created = new THashSet<Class>();
+      List<Class> remaining = new ArrayList<Class>(Arrays.asList(componentInterfaces));
+      while (!remaining.isEmpty()) {
+        List<Class> level = new ArrayList<Class>();
+        for (Class componentInterface : remaining) {
+          if (created.containsAll(dependencies.get(componentInterface))) {
+            level.add(componentInterface);
+          }
+        }
+        if (level.isEmpty()) {
+          levels.add(remaining);
+          break;
+        }
+        levels.add(level);
+        created.addAll(level);
+        remaining.removeAll(level);
+      }
+      return levels;
+    }
+
+    /**
+     * Orders the components created concurrently the way {@link #createComponents()} creates them one by one: in the order of registration,
+     * every component preceded by the components its constructor takes. The order of the implementations is the order the components
+     * are initialized and, reversed, disposed in.
+     */
+    private synchronized void sortImplementations(@NotNull Class[] componentInterfaces, @NotNull Map<Class, Set<Class>> dependencies) {
+      final Set<Class> visited = new THashSet<Class>();
+      final Set<Object> added = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+      final List<Object> sorted = new ArrayList<Object>(myImplementations.size());
+      for (Class componentInterface : componentInterfaces) {
+        addWithDependencies(componentInterface, dependencies, visited, added, sorted);
+      }
+      // the deferred components created on demand
+      for (Object implementation : myImplementations) {
+        if (added.add(implementation)) {
+          sorted.add(implementation);
+        }
+      }
+      myImplementations.clear();
+      myImplementations.addAll(sorted);
+    }
+
+    private void addWithDependencies(@NotNull Class componentInterface,
+                                     @NotNull Map<Class, Set<Class>> dependencies,
+                                     @NotNull Set<Class> visited,
+                                     @NotNull Set<Object> added,
+                                     @NotNull List<Object> sorted) {
+      if (!visited.add(componentInterface)) return;
+      final Set<Class> componentDependencies = dependencies.get(componentInterface);
+      if (componentDependencies != null) {
+        for (Class dependency : componentDependencies) {
+          addWithDependencies(dependency, dependencies, visited, added, sorted);
+        }
+      }
+      final Object implementation = myInterfaceToImplementation.get(componentInterface);
+      if (implementation != null && added.add(implementation)) {
+        sorted.add(implementation);
+      }
+    }
+
+    /**
+     * @return parameter types of the constructor taking the most parameters, which is the one the pico container prefers
+     */
+    @NotNull
+    private Class[] getConstructorParameterTypes(@NotNull Class implementationClass) {
+      Class[] result = ArrayUtil.EMPTY_CLASS_ARRAY;
+      for (Constructor constructor : implementationClass.getConstructors()) {
+        Class[] parameterTypes = constructor.getParameterTypes();
+        if (parameterTypes.length > result.length) {
+          result = parameterTypes;
+        }
+      }
+      return result;
     }
 
     public List<Object> getRegisteredImplementations() {
@@ -488,7 +734,7 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
       for (int i = 0; i < myComponentInterfaces.size(); i++) {
         Class interfaceClass = myComponentInterfaces.get(i);
         final Class implClass = myInterfaceToClassMap.get(interfaceClass);
-        if (ReflectionCache.isAssignable(baseClass, implClass)) {
+        if (ReflectionCache.isAssignable(baseClass, implClass) && !isDeferred(interfaceClass)) {
           array.add((T)getComponent(interfaceClass));
         }
       }
@@ -505,14 +751,28 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
     }
   }
 
+  private static class CreationExecutorHolder {
+    // shared by the application and the projects, so that the threads are not started again for every project opened
+    private static final ExecutorService EXECUTOR;
+    static {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                                                           ConcurrencyUtil.newNamedThreadFactory("Component Creator", true, Thread.NORM_PRIORITY));
+      executor.allowCoreThreadTimeOut(true);
+      EXECUTOR = executor;
+    }
+  }
+
   private class ComponentConfigComponentAdapter implements ComponentAdapter {
     private final ComponentConfig myConfig;
+    private final Class<?> myInterfaceClass;
     private final ComponentAdapter myDelegate;
     private boolean myInitialized = false;
     private boolean myInitializing = false;
 
-    public ComponentConfigComponentAdapter(final ComponentConfig config, Class<?> implementationClass) {
+    public ComponentConfigComponentAdapter(final ComponentConfig config, Class<?> interfaceClass, Class<?> implementationClass) {
       myConfig = config;
+      myInterfaceClass = interfaceClass;
 
       final String componentKey = config.getInterfaceClass();
       myDelegate = new CachingComponentAdapter(new ConstructorInjectionComponentAdapter(componentKey, implementationClass, null, true)) {
@@ -524,8 +784,14 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
           }
 
           Object componentInstance = null;
+          StartupTimeline.Activity activity = null;
+          boolean createdOnDemand = false;
           try {
             long startTime = myInitialized ? 0 : System.nanoTime();
+            if (!myInitialized && !myComponentsCreated) {
+              activity = StartupTimeline.start("component", getComponentImplementation().getName(),
+                                               myConfig.pluginDescriptor != null ? myConfig.pluginDescriptor.getPluginId().getIdString() : null);
+            }
 
             componentInstance = super.getComponentInstance(picoContainer);
 
@@ -541,7 +807,7 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
 
               try {
                 myInitializing = true;
-                myComponentsRegistry.registerComponentInstance(componentInstance);
+                createdOnDemand = myComponentsRegistry.registerComponentInstance(myInterfaceClass, componentInstance);
 
                 initializeComponent(componentInstance, false);
                 if (componentInstance instanceof BaseComponent) {
@@ -549,7 +815,10 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
                 }
 
                 long ms = (System.nanoTime() - startTime) / 1000000;
-                if (ms > 10 && logSlowComponents()) {
+                if (createdOnDemand) {
+                  LOG.info("Deferred component " + componentInstance.getClass().getName() + " created on demand in " + ms + " ms");
+                }
+                else if (ms > 10 && logSlowComponents()) {
                   LOG.info(componentInstance.getClass().getName() + " initialized in " + ms + " ms");
                 }
               }
@@ -558,6 +827,9 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
               }
 
               myInitialized = true;
+              if (createdOnDemand) {
+                deferredComponentCreated(componentInstance);
+              }
             }
           }
           catch (ProcessCanceledException e) {
@@ -569,6 +841,11 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
           catch (Throwable t) {
             handleInitComponentError(t, componentKey, config);
           }
+          finally {
+            if (activity != null) {
+              activity.end();
+            }
+          }
 
           return componentInstance;
         }
@@ -587,6 +864,16 @@ public abstract class ComponentManagerImpl extends UserDataHolderBase implements
 
     @Override
     public Object getComponentInstance(final PicoContainer container) throws PicoInitializationException, PicoIntrospectionException {
+      if (myCreatingConcurrently) {
+        // the component may be requested both through getComponent() and as a constructor parameter of another component
+        myCreationLocks.lock(myInterfaceClass);
+        try {
+          return myDelegate.getComponentInstance(container);
+        }
+        finally {
+          myCreationLocks.unlock(myInterfaceClass);
+        }
+      }
       return myDelegate.getComponentInstance(container);
     }
 
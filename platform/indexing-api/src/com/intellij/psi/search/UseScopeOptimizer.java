@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.search;
+
+import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiElement;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Allows to narrow the scope of a references search using some knowledge about the files which certainly
+ * do not refer to the element (e.g. an index built by the compiler).
+ * <p/>
+ * Such knowledge may miss some references (e.g. from comments or from non-code files), so the optimizers are applied only
+ * to the searches which allow it explicitly with {@link #allowOptimization(SearchSession)}, like find usages does.
+ * Refactorings must find all the references, so their searches are never optimized.
+ *
+ * @see com.intellij.psi.search.searches.ReferencesSearch.SearchParameters#getEffectiveSearchScope()
+ */
+public abstract class UseScopeOptimizer {
+  public static final ExtensionPointName<UseScopeOptimizer> EP_NAME = ExtensionPointName.create("com.intellij.useScopeOptimizer");
+  private static final Key<Boolean> OPTIMIZATION_ALLOWED = Key.create("use.scope.optimization.allowed");
+
+  public static void allowOptimization(@NotNull SearchSession session) {
+    session.putUserData(OPTIMIZATION_ALLOWED, Boolean.TRUE);
+  }
+
+  public static boolean isOptimizationAllowed(@NotNull SearchSession session) {
+    return session.getUserData(OPTIMIZATION_ALLOWED) == Boolean.TRUE;
+  }
+
+  /**
+   * @return files which cannot contain references to the element, or null if nothing is known about the element
+   */
+  @Nullable
+  public abstract GlobalSearchScope getScopeToExclude(@NotNull PsiElement element);
+}
@@ -16,6 +16,7 @@
 package com.intellij.psi.search.searches;
 
 import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.openapi.extensions.Extensions;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiReference;
 import com.intellij.psi.search.*;
@@ -80,7 +81,17 @@ public class ReferencesSearch extends ExtensibleQueryFactory<PsiReference, Refer
         return myScope;
       }
       SearchScope accessScope = PsiSearchHelper.SERVICE.getInstance(myElementToSearch.getProject()).getUseScope(myElementToSearch);
-      return myScope.intersectWith(accessScope);
+      SearchScope scope = myScope.intersectWith(accessScope);
+      if (!UseScopeOptimizer.isOptimizationAllowed(myOptimizer.getSearchSession())) {
+        return scope;
+      }
+      for (UseScopeOptimizer optimizer : Extensions.getExtensions(UseScopeOptimizer.EP_NAME)) {
+        GlobalSearchScope scopeToExclude = optimizer.getScopeToExclude(myElementToSearch);
+        if (scopeToExclude != null) {
+          scope = scope.intersectWith(GlobalSearchScope.notScope(scopeToExclude));
+        }
+      }
+      return scope;
     }
   }
 
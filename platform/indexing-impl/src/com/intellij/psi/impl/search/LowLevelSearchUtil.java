@@ -32,6 +32,7 @@ import com.intellij.psi.impl.source.tree.TreeElement;
 import com.intellij.psi.search.TextOccurenceProcessor;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -150,17 +151,11 @@ public class LowLevelSearchUtil {
     PsiFile file = scope.getContainingFile();
     final CharSequence buffer = file.getViewProvider().getContents();
 
-    TextRange range = scope.getTextRange();
-    if (range == null) {
-      throw new AssertionError("Element " + scope + " of class " + scope.getClass() + " has null range");
-    }
+    TextRange range = getScopeRange(scope, file, buffer);
 
     int scopeStart = range.getStartOffset();
     int startOffset = scopeStart;
     int endOffset = range.getEndOffset();
-    if (endOffset > buffer.length()) {
-      LOG.error("Range for element: '"+scope+"' = "+range+" is out of file '" + file + "' range: " + file.getTextLength());
-    }
 
     final char[] bufferArray = CharArrayUtil.fromSequenceWithoutCopying(buffer);
 
@@ -180,6 +175,57 @@ public class LowLevelSearchUtil {
     return true;
   }
 
+  /**
+   * Does the same as {@link #processElementsContainingWordInElement} for all the words of {@code searcher},
+   * but scans the text of the scope only once.
+   * Occurrences of the i-th word are passed to {@code processors[i]}, words with {@code null} processor are ignored.
+   */
+  //@RequiresReadAction
+  public static boolean processElementsContainingWordsInElement(@NotNull final TextOccurenceProcessor[] processors,
+                                                                @NotNull final PsiElement scope,
+                                                                @NotNull final MultiStringSearcher searcher,
+                                                                final boolean processInjectedPsi,
+                                                                final ProgressIndicator progress) {
+    LOG.assertTrue(processors.length == searcher.getSearcherCount());
+    if (progress != null) progress.checkCanceled();
+
+    PsiFile file = scope.getContainingFile();
+    final CharSequence buffer = file.getViewProvider().getContents();
+
+    TextRange range = getScopeRange(scope, file, buffer);
+
+    final int scopeStart = range.getStartOffset();
+    final int endOffset = range.getEndOffset();
+
+    final char[] bufferArray = CharArrayUtil.fromSequenceWithoutCopying(buffer);
+
+    final Project project = file.getProject();
+    return searcher.scan(buffer, bufferArray, scopeStart, endOffset, new MultiStringSearcher.OccurrenceConsumer() {
+      @Override
+      public boolean consume(int searcherIndex, int startOffset) {
+        TextOccurenceProcessor processor = processors[searcherIndex];
+        if (processor == null) return true;
+        if (progress != null) progress.checkCanceled();
+
+        StringSearcher wordSearcher = searcher.getSearcher(searcherIndex);
+        return !isWordOccurrence(buffer, bufferArray, scopeStart, startOffset, endOffset, wordSearcher) ||
+               processTreeUp(project, processor, scope, wordSearcher, startOffset - scopeStart, processInjectedPsi, progress);
+      }
+    });
+  }
+
+  @NotNull
+  private static TextRange getScopeRange(@NotNull PsiElement scope, @NotNull PsiFile file, @NotNull CharSequence buffer) {
+    TextRange range = scope.getTextRange();
+    if (range == null) {
+      throw new AssertionError("Element " + scope + " of class " + scope.getClass() + " has null range");
+    }
+    if (range.getEndOffset() > buffer.length()) {
+      LOG.error("Range for element: '"+scope+"' = "+range+" is out of file '" + file + "' range: " + file.getTextLength());
+    }
+    return range;
+  }
+
   public static int searchWord(@NotNull CharSequence text,
                                int startOffset,
                                int endOffset,
@@ -201,32 +247,43 @@ public class LowLevelSearchUtil {
       //noinspection AssignmentToForLoopParameter
       index = searcher.scan(text, textArray, index, endOffset);
       if (index < 0) return -1;
-      if (!searcher.isJavaIdentifier()) {
+      if (isWordOccurrence(text, textArray, startOffset, index, endOffset, searcher)) {
         return index;
       }
+    }
+    return -1;
+  }
 
-      if (index > startOffset) {
-        char c = textArray != null ? textArray[index - 1]:text.charAt(index - 1);
-        if (Character.isJavaIdentifierPart(c) && c != '$') {
-          if (!searcher.isHandleEscapeSequences() || (index < 2 || !isNotEscapedBackslash(text, textArray, startOffset, index-2))) { //escape sequence
-            continue;
-          }
-        }
-        else if (index > 0 && searcher.isHandleEscapeSequences() && isNotEscapedBackslash(text, textArray, startOffset, index-1)) {
-          continue;
+  private static boolean isWordOccurrence(@NotNull CharSequence text,
+                                          @Nullable char[] textArray,
+                                          int startOffset,
+                                          int index,
+                                          int endOffset,
+                                          @NotNull StringSearcher searcher) {
+    if (!searcher.isJavaIdentifier()) {
+      return true;
+    }
+
+    if (index > startOffset) {
+      char c = textArray != null ? textArray[index - 1]:text.charAt(index - 1);
+      if (Character.isJavaIdentifierPart(c) && c != '$') {
+        if (!searcher.isHandleEscapeSequences() || (index < 2 || !isNotEscapedBackslash(text, textArray, startOffset, index-2))) { //escape sequence
+          return false;
         }
       }
+      else if (index > 0 && searcher.isHandleEscapeSequences() && isNotEscapedBackslash(text, textArray, startOffset, index-1)) {
+        return false;
+      }
+    }
 
-      final int patternLength = searcher.getPattern().length();
-      if (index + patternLength < endOffset) {
-        char c = textArray != null ? textArray[index + patternLength]:text.charAt(index + patternLength);
-        if (Character.isJavaIdentifierPart(c) && c != '$') {
-          continue;
-        }
+    final int patternLength = searcher.getPattern().length();
+    if (index + patternLength < endOffset) {
+      char c = textArray != null ? textArray[index + patternLength]:text.charAt(index + patternLength);
+      if (Character.isJavaIdentifierPart(c) && c != '$') {
+        return false;
       }
-      return index;
     }
-    return -1;
+    return true;
   }
 
   private static boolean isNotEscapedBackslash(CharSequence text, char[] textArray, int startOffset, int index) {
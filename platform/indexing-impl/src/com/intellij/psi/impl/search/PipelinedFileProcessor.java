@@ -0,0 +1,267 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.search;
+
+import com.intellij.concurrency.*;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationListener;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiBinaryFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.PsiManagerEx;
+import com.intellij.util.Function;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.ConcurrentHashSet;
+import com.intellij.util.text.StringSearcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes the candidate files found in the word index: the text of each file is checked for the searched words first,
+ * and PSI is built only for the files which really contain some of them.
+ * The files are processed concurrently by {@link JobLauncher}, the same way {@link PsiSearchHelperImpl} processes them otherwise,
+ * so the workers share the read access of the caller and never wait for a pending write action.
+ * PSI building is abandoned when a write action is about to start and restarted from scratch.
+ *
+ * @see PsiSearchHelperImpl#isPipelinedSearch()
+ */
+class PipelinedFileProcessor {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.search.PipelinedFileProcessor");
+
+  private final PsiManagerEx myManager;
+  private final ProgressIndicator myProgress;
+  private final Function<VirtualFile, Collection<StringSearcher>> myWordsInFile;
+  private final Processor<PsiElement> myPsiRootProcessor;
+  private final AtomicInteger myFilesDone = new AtomicInteger();
+  private final AtomicInteger myFilesSkipped = new AtomicInteger();
+  private final Set<ProgressIndicator> myPsiLoadings = new ConcurrentHashSet<ProgressIndicator>();
+
+  PipelinedFileProcessor(@NotNull PsiManagerEx manager,
+                         @NotNull Function<VirtualFile, Collection<StringSearcher>> wordsInFile,
+                         @NotNull Processor<PsiElement> psiRootProcessor,
+                         @Nullable ProgressIndicator progress) {
+    myManager = manager;
+    myWordsInFile = wordsInFile;
+    myPsiRootProcessor = psiRootProcessor;
+    myProgress = progress;
+  }
+
+  /**
+   * @return future result, false if the root processor has stopped the processing
+   */
+  @NotNull
+  AsyncFuture<Boolean> process(@NotNull final List<VirtualFile> files) {
+    final Disposable disposable = Disposer.newDisposable();
+    myManager.startBatchFilesProcessingMode();
+    ApplicationManager.getApplication().addApplicationListener(new WriteActionTracker(), disposable);
+    final AtomicBoolean pceThrown = new AtomicBoolean(false);
+
+    final AsyncFuture<Boolean> completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgressAsync(files, myProgress, false, new Processor<VirtualFile>() {
+      @Override
+      public boolean process(VirtualFile file) {
+        try {
+          if (!processFile(file)) return false;
+        }
+        catch (ProcessCanceledException e) {
+          pceThrown.set(true);
+          return false;
+        }
+        if (myProgress != null && myProgress.isRunning()) {
+          myProgress.setFraction((double)myFilesDone.incrementAndGet() / files.size());
+        }
+        return true;
+      }
+    });
+
+    final AsyncFutureResult<Boolean> result = AsyncFutureFactory.getInstance().createAsyncFutureResult();
+    completed.addConsumer(SameThreadExecutor.INSTANCE, new DefaultResultConsumer<Boolean>(result) {
+      @Override
+      public void onSuccess(Boolean value) {
+        if (pceThrown.get()) {
+          result.setException(new ProcessCanceledException());
+        }
+        else {
+          result.set(value);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    });
+
+    return new FinallyFuture<Boolean>(result, new Runnable() {
+      @Override
+      public void run() {
+        Disposer.dispose(disposable);
+        myManager.finishBatchFilesProcessingMode();
+        LOG.debug("Pipelined search: " + files.size() + " candidate files, " + myFilesSkipped.get() + " skipped by the text filter");
+      }
+    });
+  }
+
+  private boolean processFile(@NotNull final VirtualFile file) {
+    if (!mayContainWords(file)) {
+      myFilesSkipped.incrementAndGet();
+      return true;
+    }
+
+    if (myManager.getProject().isDisposed()) throw new ProcessCanceledException();
+    List<PsiFile> psiRoots = loadPsiRoots(file);
+    for (final PsiFile psiRoot : psiRoots) {
+      if (myProgress != null) myProgress.checkCanceled();
+      if (!ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+        @Override
+        public Boolean compute() {
+          return psiRoot.isValid();
+        }
+      })) {
+        continue;
+      }
+      if (!myPsiRootProcessor.process(psiRoot)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * PSI is built under a separate indicator, which is canceled by a write action about to start. Then the building is restarted;
+   * the read action of the next attempt is granted after the write action, unless the read access is shared with the caller,
+   * in which case the write action cannot start until the whole search is done anyway.
+   */
+  @NotNull
+  private List<PsiFile> loadPsiRoots(@NotNull final VirtualFile file) {
+    final List<PsiFile> result = new ArrayList<PsiFile>();
+    while (true) {
+      final FileLoadingIndicator indicator = new FileLoadingIndicator();
+      myPsiLoadings.add(indicator);
+      try {
+        ProgressManager.getInstance().executeProcessUnderProgress(new Runnable() {
+          @Override
+          public void run() {
+            ApplicationManager.getApplication().runReadAction(new Runnable() {
+              @Override
+              public void run() {
+                result.clear();
+                PsiFile psiFile = file.isValid() ? myManager.findFile(file) : null;
+                if (psiFile == null || psiFile instanceof PsiBinaryFile) return;
+                for (PsiFile root : psiFile.getViewProvider().getAllFiles()) {
+                  indicator.checkCanceled();
+                  if (!result.contains(root)) {
+                    root.getNode(); // parse while write actions may interrupt us
+                    result.add(root);
+                  }
+                }
+              }
+            });
+          }
+        }, indicator);
+        return result;
+      }
+      catch (ProcessCanceledException e) {
+        if (myProgress != null) myProgress.checkCanceled();
+        if (!indicator.isCanceled()) throw e;
+      }
+      finally {
+        myPsiLoadings.remove(indicator);
+      }
+    }
+  }
+
+  /**
+   * Conservative check on the file content without building PSI: false means that none of the words can be found in the file.
+   * The content is decoded the same way the document and PSI text are, and every occurrence the search in PSI reports is a match
+   * of the same searcher in that text, so a file is skipped only if the search in its PSI would find nothing.
+   */
+  private boolean mayContainWords(@NotNull final VirtualFile file) {
+    final Collection<StringSearcher> searchers = myWordsInFile.fun(file);
+    if (searchers.isEmpty()) return true;
+
+    final CharSequence text = ApplicationManager.getApplication().runReadAction(new Computable<CharSequence>() {
+      @Override
+      public CharSequence compute() {
+        if (!file.isValid() || file.getFileType().isBinary()) return null;
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        if (document != null) return FileDocumentManager.getInstance().isDocumentUnsaved(document) ? null : document.getCharsSequence();
+        try {
+          return LoadTextUtil.getTextByBinaryPresentation(file.contentsToByteArray(), file, false, false);
+        }
+        catch (IOException e) {
+          return null;
+        }
+      }
+    });
+    if (text == null) return true;
+
+    for (StringSearcher searcher : searchers) {
+      if (searcher.scan(text) >= 0) return true;
+    }
+    return false;
+  }
+
+  private class FileLoadingIndicator extends AbstractProgressIndicatorBase {
+    @Override
+    public boolean isCanceled() {
+      return super.isCanceled() || myProgress != null && myProgress.isCanceled();
+    }
+  }
+
+  private class WriteActionTracker implements ApplicationListener {
+    @Override
+    public boolean canExitApplication() {
+      return true;
+    }
+
+    @Override
+    public void applicationExiting() {
+    }
+
+    @Override
+    public void beforeWriteActionStart(Object action) {
+      for (ProgressIndicator loading : myPsiLoadings) {
+        loading.cancel();
+      }
+    }
+
+    @Override
+    public void writeActionStarted(Object action) {
+    }
+
+    @Override
+    public void writeActionFinished(Object action) {
+    }
+  }
+}
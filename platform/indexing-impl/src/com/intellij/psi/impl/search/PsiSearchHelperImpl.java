@@ -28,6 +28,7 @@ import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.progress.util.TooManyUsagesStatus;
 import com.intellij.openapi.roots.FileIndexFacade;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
@@ -38,14 +39,17 @@ import com.intellij.psi.impl.cache.impl.id.IdIndexEntry;
 import com.intellij.psi.search.*;
 import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.Function;
 import com.intellij.util.Processor;
 import com.intellij.util.codeInsight.CommentUtilCore;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.indexing.FileBasedIndex;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import gnu.trove.THashSet;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -202,7 +206,7 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       progress.setText(PsiBundle.message("psi.search.for.word.progress", text));
     }
 
-    final AsyncFuture<Boolean> result = processPsiFileRootsAsync(fileSet, new Processor<PsiElement>() {
+    Processor<PsiElement> psiRootProcessor = new Processor<PsiElement>() {
       @Override
       public boolean process(final PsiElement psiRoot) {
         return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
@@ -211,7 +215,20 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
           }
         });
       }
-    }, progress);
+    };
+    final AsyncFuture<Boolean> result;
+    if (isPipelinedSearch()) {
+      final List<StringSearcher> words = Collections.singletonList(searcher);
+      result = processPsiFileRootsPipelined(fileSet, new Function<VirtualFile, Collection<StringSearcher>>() {
+        @Override
+        public Collection<StringSearcher> fun(VirtualFile file) {
+          return words;
+        }
+      }, psiRootProcessor, progress);
+    }
+    else {
+      result = processPsiFileRootsAsync(fileSet, psiRootProcessor, progress);
+    }
     return new FinallyFuture<Boolean>(result, new Runnable() {
       @Override
       public void run() {
@@ -222,6 +239,22 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     });
   }
 
+  /**
+   * In the pipelined mode the candidate files are checked for the searched words before their PSI is built,
+   * see {@link PipelinedFileProcessor}.
+   */
+  static boolean isPipelinedSearch() {
+    return Registry.is("find.usages.pipelined.search", false);
+  }
+
+  @NotNull
+  private AsyncFuture<Boolean> processPsiFileRootsPipelined(@NotNull List<VirtualFile> files,
+                                                            @NotNull Function<VirtualFile, Collection<StringSearcher>> wordsInFile,
+                                                            @NotNull Processor<PsiElement> psiRootProcessor,
+                                                            ProgressIndicator progress) {
+    return new PipelinedFileProcessor(myManager, wordsInFile, psiRootProcessor, progress).process(files);
+  }
+
   @NotNull
   private AsyncFuture<Boolean> processPsiFileRootsAsync(@NotNull List<VirtualFile> files,
                                                         @NotNull final Processor<PsiElement> psiRootProcessor,
@@ -641,18 +674,25 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     }
 
     final Map<RequestWithProcessor, StringSearcher> searchers = new HashMap<RequestWithProcessor, StringSearcher>();
+    final TObjectIntHashMap<RequestWithProcessor> searcherIndices = new TObjectIntHashMap<RequestWithProcessor>();
+    final List<StringSearcher> searcherList = new ArrayList<StringSearcher>();
     final Set<String> allWords = new TreeSet<String>();
     for (RequestWithProcessor singleRequest : candidateFiles.values()) {
-      searchers.put(singleRequest, new StringSearcher(singleRequest.request.word, singleRequest.request.caseSensitive, true, false));
+      if (searchers.containsKey(singleRequest)) continue;
+      StringSearcher searcher = new StringSearcher(singleRequest.request.word, singleRequest.request.caseSensitive, true, false);
+      searchers.put(singleRequest, searcher);
+      searcherIndices.put(singleRequest, searcherList.size());
+      searcherList.add(searcher);
       allWords.add(singleRequest.request.word);
     }
+    // all the words are looked for in a single pass over the file text when several requests share the file
+    final MultiStringSearcher multiSearcher = searcherList.size() > 1 ? new MultiStringSearcher(searcherList) : null;
 
     if (progress != null) {
       progress.setText(PsiBundle.message("psi.search.for.word.progress", getPresentableWordsDescription(allWords)));
     }
 
-    final AsyncFuture<Boolean> result =
-      processPsiFileRootsAsync(new ArrayList<VirtualFile>(candidateFiles.keySet()), new Processor<PsiElement>() {
+    Processor<PsiElement> psiRootProcessor = new Processor<PsiElement>() {
         @Override
         public boolean process(final PsiElement psiRoot) {
           TooManyUsagesStatus.getFrom(progress).pauseProcessingIfTooManyUsages();
@@ -661,7 +701,20 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
               return psiRoot.getContainingFile().getVirtualFile();
             }
           });
-          for (final RequestWithProcessor singleRequest : candidateFiles.get(vfile)) {
+          Collection<RequestWithProcessor> requests = candidateFiles.get(vfile);
+          if (multiSearcher != null && requests.size() > 1) {
+            final TextOccurenceProcessor[] processors = new TextOccurenceProcessor[multiSearcher.getSearcherCount()];
+            for (RequestWithProcessor singleRequest : requests) {
+              processors[searcherIndices.get(singleRequest)] = adaptProcessor(singleRequest.request, singleRequest.refProcessor);
+            }
+            return ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
+              public Boolean compute() {
+                return LowLevelSearchUtil.processElementsContainingWordsInElement(processors, psiRoot, multiSearcher, true, progress);
+              }
+            });
+          }
+
+          for (final RequestWithProcessor singleRequest : requests) {
             final StringSearcher searcher = searchers.get(singleRequest);
             final TextOccurenceProcessor adapted = adaptProcessor(singleRequest.request, singleRequest.refProcessor);
             if (!ApplicationManager.getApplication().runReadAction(new Computable<Boolean>() {
@@ -674,7 +727,25 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
           }
           return true;
         }
-      }, progress);
+      };
+    List<VirtualFile> files = new ArrayList<VirtualFile>(candidateFiles.keySet());
+    final AsyncFuture<Boolean> result;
+    if (isPipelinedSearch()) {
+      result = processPsiFileRootsPipelined(files, new Function<VirtualFile, Collection<StringSearcher>>() {
+        @Override
+        public Collection<StringSearcher> fun(VirtualFile file) {
+          return ContainerUtil.map(candidateFiles.get(file), new Function<RequestWithProcessor, StringSearcher>() {
+            @Override
+            public StringSearcher fun(RequestWithProcessor request) {
+              return searchers.get(request);
+            }
+          });
+        }
+      }, psiRootProcessor, progress);
+    }
+    else {
+      result = processPsiFileRootsAsync(files, psiRootProcessor, progress);
+    }
 
     return new FinallyFuture<Boolean>(result, new Runnable() {
       @Override
@@ -424,7 +424,9 @@ public class FindUsagesManager implements JDOMExternalizable {
             }
           });
 
-        options.fastTrack = new SearchRequestCollector(new SearchSession());
+        final SearchSession session = new SearchSession();
+        UseScopeOptimizer.allowOptimization(session);
+        options.fastTrack = new SearchRequestCollector(session);
 
         try {
           for (final PsiElement element : elements) {
@@ -23,15 +23,26 @@ import com.intellij.history.utils.LocalHistoryLog;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.Clock;
 import com.intellij.util.Consumer;
+import com.intellij.util.ArrayUtil;
 import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ChangeList {
   private final ChangeListStorage myStorage;
+  /**
+   * The storage is read without the instance lock, so that reading doesn't block the change sets being written.
+   * Purging releases the contents of the purged change sets and their ids may be reused by other contents,
+   * so it must not run while the change sets are read and visited.
+   */
+  private final ReadWriteLock myPurgeLock = new ReentrantReadWriteLock();
 
   private int myChangeSetDepth;
   private ChangeSet myCurrentChangeSet;
@@ -133,21 +144,24 @@ public class ChangeList {
           }
 
           private ChangeSet fetchNext() {
-            if (currentBlock == null) {
-              synchronized (ChangeList.this) {
-                if (myCurrentChangeSet != null) {
-                  currentBlock = new ChangeSetHolder(-1, myCurrentChangeSet);
+            myPurgeLock.readLock().lock();
+            try {
+              if (currentBlock == null) {
+                ChangeSet current = getCurrentChangeSet();
+                if (current != null) {
+                  currentBlock = new ChangeSetHolder(-1, current);
                 }
                 else {
                   currentBlock = myStorage.readPrevious(-1, recursionGuard);
                 }
               }
-            }
-            else {
-              synchronized (ChangeList.this) {
+              else {
                 currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
               }
             }
+            finally {
+              myPurgeLock.readLock().unlock();
+            }
             if (currentBlock == null) return null;
             return currentBlock.changeSet;
           }
@@ -161,9 +175,71 @@ public class ChangeList {
   }
 
   public void accept(ChangeVisitor v) {
+    myPurgeLock.readLock().lock();
+    try {
+      try {
+        for (ChangeSet change : iterChanges()) {
+          change.accept(v);
+        }
+      }
+      catch (ChangeVisitor.StopVisitingException e) {
+      }
+      v.finished();
+    }
+    finally {
+      myPurgeLock.readLock().unlock();
+    }
+  }
+
+  private synchronized ChangeSet getCurrentChangeSet() {
+    return myCurrentChangeSet;
+  }
+
+  /**
+   * Works as {@link #accept(ChangeVisitor)}, but visits only the change sets which may affect the path the visitor collects
+   * the changes of, if the storage is able to find them. Since the renames and moves change the path the visitor looks for,
+   * the change sets are looked up again whenever the path changes.
+   */
+  public void acceptAffecting(ChangeCollectingVisitor v) {
+    myPurgeLock.readLock().lock();
+    try {
+      doAcceptAffecting(v);
+    }
+    finally {
+      myPurgeLock.readLock().unlock();
+    }
+  }
+
+  private void doAcceptAffecting(ChangeCollectingVisitor v) {
+    ChangeSet current = getCurrentChangeSet();
+    String path = v.getPath();
+    int[] ids = myStorage.findChangeSetsAffecting(path);
+    if (ids == null) {
+      accept(v);
+      return;
+    }
+
     try {
-      for (ChangeSet change : iterChanges()) {
-        change.accept(v);
+      if (current != null) {
+        current.accept(v);
+      }
+      int lastVisited = Integer.MAX_VALUE;
+      int i = 0;
+      while (true) {
+        if (!path.equals(v.getPath())) {
+          path = v.getPath();
+          ids = getIdsBefore(myStorage.findChangeSetsAffecting(path), lastVisited);
+          i = 0;
+        }
+        if (i >= ids.length) break;
+
+        lastVisited = ids[i++];
+        ChangeSetHolder holder = myStorage.readSet(lastVisited);
+        if (holder == null) break;
+        // the current change set may have been written after it was got
+        if (current != null && holder.changeSet.getId() == current.getId()) continue;
+
+        holder.changeSet.accept(v);
       }
     }
     catch (ChangeVisitor.StopVisitingException e) {
@@ -171,14 +247,27 @@ public class ChangeList {
     v.finished();
   }
 
-  public synchronized void purgeObsolete(long period) {
-    myStorage.purge(period, myIntervalBetweenActivities, new Consumer<ChangeSet>() {
-      public void consume(ChangeSet changeSet) {
-        for (Content each : changeSet.getContentsToPurge()) {
-          each.release();
+  private static int[] getIdsBefore(@Nullable int[] ids, int id) {
+    if (ids == null) return ArrayUtil.EMPTY_INT_ARRAY;
+    int i = 0;
+    while (i < ids.length && ids[i] >= id) i++;
+    return i == 0 ? ids : Arrays.copyOfRange(ids, i, ids.length);
+  }
+
+  public void purgeObsolete(long period) {
+    myPurgeLock.writeLock().lock();
+    try {
+      myStorage.purge(period, myIntervalBetweenActivities, new Consumer<ChangeSet>() {
+        public void consume(ChangeSet changeSet) {
+          for (Content each : changeSet.getContentsToPurge()) {
+            each.release();
+          }
         }
-      }
-    });
+      });
+    }
+    finally {
+      myPurgeLock.writeLock().unlock();
+    }
   }
 
   @TestOnly
@@ -19,6 +19,7 @@ package com.intellij.history.core;
 import com.intellij.history.core.changes.ChangeSet;
 import com.intellij.util.Consumer;
 import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public interface ChangeListStorage {
@@ -29,6 +30,19 @@ public interface ChangeListStorage {
   @Nullable
   ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard);
 
+  /**
+   * @return the change set or null if it has been purged
+   */
+  @Nullable
+  ChangeSetHolder readSet(int id);
+
+  /**
+   * @return ids of the stored change sets which may change the path, its parents or its children, or put a label, the most recent first;
+   * null if the storage can't find them without reading all the change sets
+   */
+  @Nullable
+  int[] findChangeSetsAffecting(@NotNull String path);
+
   void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor);
 
   void writeNextSet(ChangeSet changeSet);
@@ -13,10 +13,12 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.intellij.history.core;
 
+import com.intellij.history.core.changes.Change;
 import com.intellij.history.core.changes.ChangeSet;
+import com.intellij.history.core.changes.PutLabelChange;
+import com.intellij.history.core.changes.StructuralChange;
 import com.intellij.history.utils.LocalHistoryLog;
 import com.intellij.ide.BrowserUtil;
 import com.intellij.ide.actions.ShowFilePathAction;
@@ -27,95 +29,274 @@ import com.intellij.notification.Notifications;
 import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.Consumer;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
 import com.intellij.util.io.storage.AbstractStorage;
+import gnu.trove.THashSet;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.event.HyperlinkEvent;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.text.DateFormat;
 import java.text.MessageFormat;
-
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the change sets in a sequence of segments, each one being a separate {@link LocalHistoryStorage} with an index of the paths
+ * changed by its change sets. The change sets are only appended to the newest segment; when it gets full, a new one is started.
+ * <p/>
+ * The id of a change set record tells both its segment and its record in the segment, so the ids grow with time.
+ * Readers see the segments list and the last written record through volatile fields, so they never wait for the writer,
+ * which publishes a record only after it is completely written and indexed.
+ * <p/>
+ * Purging drops whole segments; the records of the oldest remaining segment which are obsolete are unlinked from the rest of
+ * the records, and their space is reclaimed when the segment is dropped.
+ * <p/>
+ * The contents recorded by the change sets which are not kept by the VFS live in the {@link ContentStorage} next to the segments,
+ * which is rebuilt together with them. If the segments are rebuilt after an error, the contents recorded before are kept
+ * while the session lasts, since they may still be used by the change set being recorded, and the contents nobody refers to
+ * are collected the next time the storage is opened.
+ */
 public class ChangeListStorageImpl implements ChangeListStorage {
-  private static final int VERSION = 5;
-  private static final String STORAGE_FILE = "changes";
+  private static final int VERSION = 6;
+  private static final String STORAGE_FILE = "changes"; // the single storage file used by the previous versions
+  private static final String SEGMENTS_DIR = "segments";
+  private static final String CONTENTS_DIR = "contents";
+  private static final String CONTENTS_GC_MARKER = "contents.gc"; // the contents may be referenced by the lost change sets
+  private static final String INDEX_EXTENSION = ".paths";
+
+  private static final int SEGMENT_SHIFT = 13;
+  private static final int MAX_SEGMENT_SIZE = 4096;
+
+  private static final String LABELS_KEY = "#labels";
+  private static final char EXACT_PATH_PREFIX = '=';
+  private static final char SUBTREE_PREFIX = '*';
+
+  private static final DataExternalizer<TIntArrayList> RECORDS_EXTERNALIZER = new DataExternalizer<TIntArrayList>() {
+    @Override
+    public void save(DataOutput out, TIntArrayList value) throws IOException {
+      for (int i = 0; i < value.size(); i++) {
+        out.writeInt(value.get(i));
+      }
+    }
+
+    @Override
+    public TIntArrayList read(DataInput in) throws IOException {
+      TIntArrayList result = new TIntArrayList();
+      DataInputStream stream = (DataInputStream)in;
+      while (stream.available() > 0) {
+        result.add(in.readInt());
+      }
+      return result;
+    }
+  };
 
   private final File myStorageDir;
-  private LocalHistoryStorage myStorage;
-  private long myLastId;
+  private final int mySegmentSize;
+  private final ContentStorage myContents;
+
+  private final Object myWriteLock = new Object();
+  private final Object myPurgeLock = new Object();
 
-  private boolean isCompletelyBroken = false;
+  private volatile List<Segment> mySegments; // oldest first, the change sets are written to the last one
+  private volatile int myLastWrittenRecord;
+  private final AtomicLong myLastId = new AtomicLong();
+
+  private volatile boolean isClosed = false;
+  private volatile boolean isCompletelyBroken = false;
 
   public ChangeListStorageImpl(File storageDir) throws IOException {
+    this(storageDir, MAX_SEGMENT_SIZE);
+  }
+
+  ChangeListStorageImpl(File storageDir, int segmentSize) throws IOException {
+    assert segmentSize > 0 && segmentSize < 1 << SEGMENT_SHIFT : segmentSize;
     myStorageDir = storageDir;
-    initStorage(myStorageDir);
+    mySegmentSize = segmentSize;
+    myContents = new ContentStorage(new File(storageDir, CONTENTS_DIR));
+    try {
+      initStorage(true);
+    }
+    catch (IOException e) {
+      myContents.close();
+      throw e;
+    }
   }
 
-  private synchronized void initStorage(File storageDir) throws IOException {
-    String path = storageDir.getPath() + "/" + STORAGE_FILE;
+  /**
+   * @param clearContents whether to clear the contents when the segments are rebuilt;
+   *                      they are kept while the contents recorded before may still be in use
+   */
+  private void initStorage(boolean clearContents) throws IOException {
+    String oldStoragePath = new File(myStorageDir, STORAGE_FILE).getPath();
+    if (new File(oldStoragePath + AbstractStorage.DATA_EXTENSION).exists()) {
+      LocalHistoryLog.LOG.info("local history storage format has changed, rebuilding...");
+      AbstractStorage.deleteFiles(oldStoragePath);
+    }
 
-    LocalHistoryStorage result = new LocalHistoryStorage(path);
+    File segmentsDir = getSegmentsDir();
+    List<Segment> segments = openSegments(segmentsDir);
 
     long fsTimestamp = getVFSTimestamp();
 
-    int storedVersion = result.getVersion();
-    boolean versionMismatch = storedVersion != VERSION;
-    boolean timestampMismatch = result.getFSTimestamp() != fsTimestamp;
-    if (versionMismatch || timestampMismatch) {
-      if (versionMismatch) {
-        LocalHistoryLog.LOG.info(MessageFormat.format(
-          "local history version mismatch (was: {0}, expected: {1}), rebuilding...", storedVersion, VERSION));
+    if (!segments.isEmpty()) {
+      LocalHistoryStorage newest = segments.get(segments.size() - 1).storage;
+      int storedVersion = newest.getVersion();
+      boolean versionMismatch = storedVersion != VERSION;
+      boolean timestampMismatch = newest.getFSTimestamp() != fsTimestamp;
+      if (versionMismatch || timestampMismatch) {
+        if (versionMismatch) {
+          LocalHistoryLog.LOG.info(MessageFormat.format(
+            "local history version mismatch (was: {0}, expected: {1}), rebuilding...", storedVersion, VERSION));
+        }
+        if (timestampMismatch) LocalHistoryLog.LOG.info("FS has been rebuild, rebuilding local history...");
+        for (Segment each : segments) {
+          each.close();
+        }
+        segments.clear();
+      }
+    }
+
+    if (segments.isEmpty()) {
+      if (!FileUtil.delete(segmentsDir)) {
+        throw new IOException("cannot clear storage dir: " + segmentsDir);
       }
-      if (timestampMismatch) LocalHistoryLog.LOG.info("FS has been rebuild, rebuilding local history...");
-      result.dispose();
-      if (!FileUtil.delete(storageDir)) {
-        throw new IOException("cannot clear storage dir: " + storageDir);
+      if (clearContents) {
+        myContents.clear();
+        FileUtil.delete(getContentsGCMarker());
       }
-      result = new LocalHistoryStorage(path);
-      result.setVersion(VERSION);
-      result.setFSTimestamp(fsTimestamp);
+      segments.add(createSegment(1, fsTimestamp, 0));
+    }
+    else if (clearContents && getContentsGCMarker().exists()) {
+      collectContentsGarbage(segments);
     }
 
-    myLastId = result.getLastId();
-    myStorage = result;
+    myLastId.set(segments.get(segments.size() - 1).storage.getLastId());
+    myLastWrittenRecord = findLastRecord(segments);
+    mySegments = Collections.unmodifiableList(segments);
   }
 
-  private static long getVFSTimestamp() {
-    return ManagingFS.getInstance().getCreationTimestamp();
+  @NotNull
+  private File getSegmentsDir() {
+    return new File(myStorageDir, SEGMENTS_DIR);
   }
 
-  private void handleError(Throwable e, @Nullable String message) {
-    long storageTimestamp = -1;
+  @NotNull
+  private File getContentsGCMarker() {
+    return new File(myStorageDir, CONTENTS_GC_MARKER);
+  }
 
-    long vfsTimestamp = getVFSTimestamp();
-    long timestamp = System.currentTimeMillis();
+  /**
+   * Releases the contents recorded by the change sets which have been lost when the segments were rebuilt after an error.
+   */
+  private void collectContentsGarbage(@NotNull List<Segment> segments) throws IOException {
+    LocalHistoryLog.LOG.info("collecting local history contents not referenced by the change sets...");
+    TIntIntHashMap references = new TIntIntHashMap();
+    TIntHashSet recursionGuard = new TIntHashSet();
+    int id = findLastRecord(segments);
+    while (id != 0) {
+      for (Content each : doReadBlock(segments, id).changeSet.getContentsToPurge()) {
+        int contentId = each instanceof StoredContent ? ((StoredContent)each).getContentId() : 0;
+        if (contentId < 0 && !references.adjustValue(-contentId, 1)) references.put(-contentId, 1);
+      }
+      id = doReadPrevSafely(segments, id, recursionGuard);
+    }
+    myContents.collectGarbage(references);
+    myContents.force();
+    FileUtil.delete(getContentsGCMarker());
+  }
 
-    try {
-      storageTimestamp = myStorage.getFSTimestamp();
+  @NotNull
+  private static List<Segment> openSegments(@NotNull File segmentsDir) throws IOException {
+    TIntArrayList numbers = new TIntArrayList();
+    File[] files = segmentsDir.listFiles();
+    if (files != null) {
+      for (File each : files) {
+        String name = each.getName();
+        if (!name.endsWith(AbstractStorage.DATA_EXTENSION)) continue;
+        try {
+          numbers.add(Integer.parseInt(name.substring(0, name.length() - AbstractStorage.DATA_EXTENSION.length())));
+        }
+        catch (NumberFormatException ignored) {
+        }
+      }
     }
-    catch (Exception ex) {
-      LocalHistoryLog.LOG.warn("cannot read storage timestamp", ex);
+    numbers.sort();
+
+    List<Segment> result = new ArrayList<Segment>(numbers.size());
+    for (int i = 0; i < numbers.size(); i++) {
+      result.add(new Segment(segmentsDir, numbers.get(i)));
     }
+    return result;
+  }
 
-    LocalHistoryLog.LOG.error("Local history is broken" +
-                              "(version:" + VERSION +
-                              ",current timestamp:" + DateFormat.getDateTimeInstance().format(timestamp) +
-                              ",storage timestamp:" + DateFormat.getDateTimeInstance().format(storageTimestamp) +
-                              ",vfs timestamp:" + DateFormat.getDateTimeInstance().format(vfsTimestamp) + ")\n" + message, e);
+  @NotNull
+  private Segment createSegment(int number, long fsTimestamp, long lastId) throws IOException {
+    Segment result = new Segment(getSegmentsDir(), number);
+    result.storage.setVersion(VERSION);
+    result.storage.setFSTimestamp(fsTimestamp);
+    result.storage.setLastId(lastId);
+    return result;
+  }
 
-    myStorage.dispose();
-    try {
-      FileUtil.delete(myStorageDir);
-      initStorage(myStorageDir);
+  private static int findLastRecord(@NotNull List<Segment> segments) {
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      Segment each = segments.get(i);
+      int last = each.storage.getLastRecord();
+      if (last != 0) return toId(each, last);
     }
-    catch (Throwable ex) {
-      LocalHistoryLog.LOG.error("cannot recreate storage", ex);
-      isCompletelyBroken = true;
+    return 0;
+  }
+
+  private static long getVFSTimestamp() {
+    return ManagingFS.getInstance().getCreationTimestamp();
+  }
+
+  private void handleError(@NotNull List<Segment> segments, Throwable e, @Nullable String message) {
+    synchronized (myWriteLock) {
+      // the segment may have been dropped by purging while it was read, or the storage may have been rebuilt already
+      if (segments != mySegments || isClosed) return;
+
+      long storageTimestamp = -1;
+
+      long vfsTimestamp = getVFSTimestamp();
+      long timestamp = System.currentTimeMillis();
+
+      try {
+        storageTimestamp = segments.get(segments.size() - 1).storage.getFSTimestamp();
+      }
+      catch (Exception ex) {
+        LocalHistoryLog.LOG.warn("cannot read storage timestamp", ex);
+      }
+
+      LocalHistoryLog.LOG.error("Local history is broken" +
+                                "(version:" + VERSION +
+                                ",current timestamp:" + DateFormat.getDateTimeInstance().format(timestamp) +
+                                ",storage timestamp:" + DateFormat.getDateTimeInstance().format(storageTimestamp) +
+                                ",vfs timestamp:" + DateFormat.getDateTimeInstance().format(vfsTimestamp) + ")\n" + message, e);
+
+      for (Segment each : segments) {
+        each.close();
+      }
+      try {
+        FileUtil.delete(getSegmentsDir());
+        FileUtil.createIfDoesntExist(getContentsGCMarker());
+        initStorage(false);
+      }
+      catch (Throwable ex) {
+        LocalHistoryLog.LOG.error("cannot recreate storage", ex);
+        isCompletelyBroken = true;
+      }
     }
 
     notifyUser("Local History storage file has become corrupted and will be rebuilt.");
@@ -149,53 +330,85 @@ public class ChangeListStorageImpl implements ChangeListStorage {
                                               }), null);
   }
 
-  public synchronized void close() {
-    myStorage.dispose();
+  public void close() {
+    synchronized (myPurgeLock) {
+      synchronized (myWriteLock) {
+        isClosed = true;
+        for (Segment each : mySegments) {
+          each.close();
+        }
+        myContents.close();
+      }
+    }
   }
 
-  public synchronized long nextId() {
-    return ++myLastId;
+  @NotNull
+  public ContentStorage getContentStorage() {
+    return myContents;
+  }
+
+  public long nextId() {
+    return myLastId.incrementAndGet();
   }
 
   @Nullable
-  public synchronized ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
+  public ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
     if (isCompletelyBroken) return null;
 
+    List<Segment> segments = mySegments;
     int prevId = 0;
     try {
-      prevId = id == -1 ? myStorage.getLastRecord() : doReadPrevSafely(id, recursionGuard);
+      prevId = id == -1 ? myLastWrittenRecord : doReadPrevSafely(segments, id, recursionGuard);
       if (prevId == 0) return null;
 
-      return doReadBlock(prevId);
+      return doReadBlock(segments, prevId);
     }
     catch (Throwable e) {
       String message = null;
       if (prevId != 0) {
-        try {
-          Pair<Long, Integer> prevOS = myStorage.getOffsetAndSize(prevId);
-          long prevRecordTimestamp = myStorage.getTimestamp(prevId);
-          int lastRecord = myStorage.getLastRecord();
-          Pair<Long, Integer> lastOS = myStorage.getOffsetAndSize(lastRecord);
-          long lastRecordTimestamp = myStorage.getTimestamp(lastRecord);
-
-          message = "invalid record is: " + prevId + " offset: " + prevOS.first + " size: " + prevOS.second
-                    + " (created " + DateFormat.getDateTimeInstance().format(prevRecordTimestamp) + ") "
-                    + "last record is: " + lastRecord + " offset: " + lastOS.first + " size: " + lastOS.second
-                    + " (created " + DateFormat.getDateTimeInstance().format(lastRecordTimestamp) + ")";
-        }
-        catch (Exception e1) {
-          message = "cannot retrieve more debug info: " + e1.getMessage();
-        }
+        message = "invalid record is: " + describeRecord(segments, prevId) + " last record is: " + describeRecord(segments, myLastWrittenRecord);
       }
 
-      handleError(e, message);
+      handleError(segments, e, message);
       return null;
     }
   }
 
   @NotNull
-  private ChangeSetHolder doReadBlock(int id) throws IOException {
-    DataInputStream in = myStorage.readStream(id);
+  private static String describeRecord(@NotNull List<Segment> segments, int id) {
+    try {
+      Segment segment = findSegment(segments, id);
+      if (segment == null) return id + " (segment dropped)";
+      LocalHistoryStorage storage = segment.storage;
+      Pair<Long, Integer> os = storage.getOffsetAndSize(getRecord(id));
+      return id + " segment: " + segment.number + " offset: " + os.first + " size: " + os.second
+             + " (created " + DateFormat.getDateTimeInstance().format(storage.getTimestamp(getRecord(id))) + ")";
+    }
+    catch (Exception e) {
+      return "cannot retrieve more debug info: " + e.getMessage();
+    }
+  }
+
+  @Nullable
+  public ChangeSetHolder readSet(int id) {
+    if (isCompletelyBroken) return null;
+
+    List<Segment> segments = mySegments;
+    try {
+      return findSegment(segments, id) == null ? null : doReadBlock(segments, id);
+    }
+    catch (Throwable e) {
+      handleError(segments, e, "invalid record is: " + describeRecord(segments, id));
+      return null;
+    }
+  }
+
+  @NotNull
+  private static ChangeSetHolder doReadBlock(@NotNull List<Segment> segments, int id) throws IOException {
+    Segment segment = findSegment(segments, id);
+    if (segment == null) throw new IOException("Record of a dropped segment: " + id);
+
+    DataInputStream in = segment.storage.readStream(getRecord(id));
     try {
       return new ChangeSetHolder(id, new ChangeSet(in));
     }
@@ -204,55 +417,160 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     }
   }
 
-  public synchronized void writeNextSet(ChangeSet changeSet) {
-    if (isCompletelyBroken) return;
+  @Nullable
+  public int[] findChangeSetsAffecting(@NotNull String path) {
+    if (isCompletelyBroken) return ArrayUtil.EMPTY_INT_ARRAY;
 
+    List<Segment> segments = mySegments;
+    int lastWrittenRecord = myLastWrittenRecord;
+    Collection<String> keys = getLookupKeys(path);
+    TIntArrayList result = new TIntArrayList();
     try {
-      AbstractStorage.StorageDataOutput out = myStorage.writeStream(myStorage.createNextRecord(), true);
-      try {
-        changeSet.write(out);
-      }
-      finally {
-        out.close();
+      for (int i = segments.size() - 1; i >= 0; i--) {
+        Segment segment = segments.get(i);
+        int firstRecord = segment.storage.getFirstRecord();
+
+        TIntHashSet records = new TIntHashSet();
+        for (String each : keys) {
+          TIntArrayList found = segment.index.get(each);
+          if (found != null) records.addAll(found.toNativeArray());
+        }
+
+        int[] sorted = records.toArray();
+        Arrays.sort(sorted);
+        for (int j = sorted.length - 1; j >= 0; j--) {
+          int id = toId(segment, sorted[j]);
+          // the records written after the last published one are not complete yet, the ones before the first record are purged
+          if (id <= lastWrittenRecord && sorted[j] >= firstRecord) result.add(id);
+        }
       }
-      myStorage.setLastId(myLastId);
-      myStorage.force();
     }
-    catch (IOException e) {
-      handleError(e, null);
+    catch (Throwable e) {
+      handleError(segments, e, "cannot read index of " + path);
+      return ArrayUtil.EMPTY_INT_ARRAY;
     }
+    return result.toNativeArray();
   }
 
-  public synchronized void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
+  public void writeNextSet(ChangeSet changeSet) {
     if (isCompletelyBroken) return;
 
-    TIntHashSet recursionGuard = new TIntHashSet(1000);
+    synchronized (myWriteLock) {
+      List<Segment> segments = mySegments;
+      try {
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.storage.getLastRecord() >= mySegmentSize) {
+          segment.force();
+          segment = createSegment(segment.number + 1, segment.storage.getFSTimestamp(), myLastId.get());
+
+          List<Segment> newSegments = new ArrayList<Segment>(segments);
+          newSegments.add(segment);
+          mySegments = segments = Collections.unmodifiableList(newSegments);
+        }
+
+        final int record = segment.storage.createNextRecord();
+        AbstractStorage.StorageDataOutput out = segment.storage.writeStream(record, true);
+        try {
+          changeSet.write(out);
+        }
+        finally {
+          out.close();
+        }
 
-    try {
-      int firstObsoleteId = findFirstObsoleteBlock(period, intervalBetweenActivities, recursionGuard);
-      if (firstObsoleteId == 0) return;
+        for (String each : getIndexKeys(changeSet)) {
+          segment.index.appendData(each, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              out.writeInt(record);
+            }
+          });
+        }
 
-      int eachBlockId = firstObsoleteId;
+        segment.storage.setLastId(myLastId.get());
+        myContents.force();
+        segment.force();
 
-      while (eachBlockId != 0) {
-        processor.consume(doReadBlock(eachBlockId).changeSet);
-        eachBlockId = doReadPrevSafely(eachBlockId, recursionGuard);
+        myLastWrittenRecord = toId(segment, record);
+      }
+      catch (IOException e) {
+        handleError(segments, e, null);
       }
-      myStorage.deleteRecordsUpTo(firstObsoleteId);
-      myStorage.force();
     }
-    catch (IOException e) {
-      handleError(e, null);
+  }
+
+  public void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
+    synchronized (myPurgeLock) {
+      if (isCompletelyBroken || isClosed) return;
+
+      TIntHashSet recursionGuard = new TIntHashSet(1000);
+      List<Segment> segments = mySegments;
+
+      try {
+        int firstObsoleteId = findFirstObsoleteBlock(segments, period, intervalBetweenActivities, recursionGuard);
+        if (firstObsoleteId == 0) return;
+
+        int eachBlockId = firstObsoleteId;
+
+        while (eachBlockId != 0) {
+          processor.consume(doReadBlock(segments, eachBlockId).changeSet);
+          eachBlockId = doReadPrevSafely(segments, eachBlockId, recursionGuard);
+        }
+        dropRecordsUpTo(firstObsoleteId);
+      }
+      catch (IOException e) {
+        handleError(segments, e, null);
+      }
     }
   }
 
-  private int findFirstObsoleteBlock(long period, int intervalBetweenActivities, TIntHashSet recursionGuard) throws IOException {
+  private void dropRecordsUpTo(int id) throws IOException {
+    List<Segment> dropped = new ArrayList<Segment>();
+    synchronized (myWriteLock) {
+      List<Segment> segments = mySegments;
+      Segment last = findSegment(segments, id);
+      if (last == null) return;
+
+      List<Segment> remaining = new ArrayList<Segment>();
+      for (Segment each : segments) {
+        (each.number < last.number ? dropped : remaining).add(each);
+      }
+
+      int record = getRecord(id);
+      if (record == last.storage.getLastRecord()) {
+        remaining.remove(last);
+        dropped.add(last);
+        if (remaining.isEmpty()) {
+          remaining.add(createSegment(last.number + 1, last.storage.getFSTimestamp(), myLastId.get()));
+        }
+      }
+      else {
+        last.storage.detachRecordsUpTo(record);
+        last.storage.force();
+      }
+
+      mySegments = Collections.unmodifiableList(remaining);
+      myLastWrittenRecord = findLastRecord(remaining);
+    }
+
+    // the readers still using the dropped segments stop at them
+    for (Segment each : dropped) {
+      each.drop();
+    }
+  }
+
+  private static int findFirstObsoleteBlock(@NotNull List<Segment> segments,
+                                            long period,
+                                            int intervalBetweenActivities,
+                                            TIntHashSet recursionGuard) throws IOException {
     long prevTimestamp = 0;
     long length = 0;
 
-    int last = myStorage.getLastRecord();
+    int last = findLastRecord(segments);
     while (last != 0) {
-      long t = myStorage.getTimestamp(last);
+      Segment segment = findSegment(segments, last);
+      if (segment == null) break;
+
+      long t = segment.storage.getTimestamp(getRecord(last));
       if (prevTimestamp == 0) prevTimestamp = t;
 
       long delta = prevTimestamp - t;
@@ -263,16 +581,136 @@ public class ChangeListStorageImpl implements ChangeListStorage {
 
       if (length >= period) return last;
 
-      last = doReadPrevSafely(last, recursionGuard);
+      last = doReadPrevSafely(segments, last, recursionGuard);
     }
 
     return 0;
   }
 
-  private int doReadPrevSafely(int id, TIntHashSet recursionGuard) throws IOException {
+  private static int doReadPrevSafely(@NotNull List<Segment> segments, int id, TIntHashSet recursionGuard) throws IOException {
     recursionGuard.add(id);
-    int prev = myStorage.getPrevRecord(id);
-    if (!recursionGuard.add(prev)) throw new IOException("Recursive records found");
+
+    int prev = 0;
+    int index = segments.indexOf(findSegment(segments, id));
+    if (index != -1) {
+      int prevRecord = segments.get(index).storage.getPrevRecord(getRecord(id));
+      if (prevRecord != 0) {
+        prev = toId(segments.get(index), prevRecord);
+      }
+      else if (getRecord(id) != segments.get(index).storage.getFirstRecord() || index == 0) {
+        // the record is unlinked by purging
+        prev = 0;
+      }
+      else {
+        for (int i = index - 1; i >= 0 && prev == 0; i--) {
+          int lastRecord = segments.get(i).storage.getLastRecord();
+          if (lastRecord != 0) prev = toId(segments.get(i), lastRecord);
+        }
+      }
+    }
+
+    if (prev != 0 && !recursionGuard.add(prev)) throw new IOException("Recursive records found");
     return prev;
   }
-}
\ No newline at end of file
+
+  @Nullable
+  private static Segment findSegment(@NotNull List<Segment> segments, int id) {
+    int number = id >>> SEGMENT_SHIFT;
+    for (Segment each : segments) {
+      if (each.number == number) return each;
+    }
+    return null;
+  }
+
+  private static int toId(@NotNull Segment segment, int record) {
+    return segment.number << SEGMENT_SHIFT | record;
+  }
+
+  private static int getRecord(int id) {
+    return id & (1 << SEGMENT_SHIFT) - 1;
+  }
+
+  /**
+   * A change set is indexed by every path its changes affect, exactly and as a part of the subtree of each parent of the path,
+   * so both the changes of the path, its children and its parents are found by looking up as many keys as the path has parents.
+   */
+  @NotNull
+  private static Collection<String> getIndexKeys(@NotNull ChangeSet changeSet) {
+    Set<String> result = new THashSet<String>();
+    for (Change each : changeSet.getChanges()) {
+      if (each instanceof PutLabelChange) {
+        result.add(LABELS_KEY);
+      }
+      else if (each instanceof StructuralChange) {
+        for (String path : ((StructuralChange)each).getAffectedPaths()) {
+          String key = normalize(path);
+          result.add(EXACT_PATH_PREFIX + key);
+          for (String parent = key; parent != null; parent = getParent(parent)) {
+            result.add(SUBTREE_PREFIX + parent);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Collection<String> getLookupKeys(@NotNull String path) {
+    List<String> result = new ArrayList<String>();
+    String key = normalize(path);
+    result.add(SUBTREE_PREFIX + key);
+    for (String parent = getParent(key); parent != null; parent = getParent(parent)) {
+      result.add(EXACT_PATH_PREFIX + parent);
+    }
+    result.add(LABELS_KEY);
+    return result;
+  }
+
+  @NotNull
+  private static String normalize(@NotNull String path) {
+    // the index may only find more change sets than the ones affecting the path, never less
+    return StringUtil.toLowerCase(path);
+  }
+
+  @Nullable
+  private static String getParent(@NotNull String path) {
+    String parent = Paths.getParentOf(path);
+    return parent.isEmpty() || parent.equals(path) ? null : parent;
+  }
+
+  private static class Segment {
+    private final int number;
+    private final String myPath;
+    private final LocalHistoryStorage storage;
+    private final PersistentHashMap<String, TIntArrayList> index;
+
+    private Segment(@NotNull File segmentsDir, int number) throws IOException {
+      this.number = number;
+      myPath = new File(segmentsDir, String.valueOf(number)).getPath();
+      storage = new LocalHistoryStorage(myPath);
+      index = new PersistentHashMap<String, TIntArrayList>(new File(myPath + INDEX_EXTENSION), new EnumeratorStringDescriptor(),
+                                                           RECORDS_EXTERNALIZER);
+    }
+
+    private void force() {
+      storage.force();
+      index.force();
+    }
+
+    private void close() {
+      storage.dispose();
+      try {
+        index.close();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot close index of " + myPath, e);
+      }
+    }
+
+    private void drop() {
+      close();
+      AbstractStorage.deleteFiles(myPath);
+      PersistentHashMap.deleteFilesStartingWith(new File(myPath + INDEX_EXTENSION));
+    }
+  }
+}
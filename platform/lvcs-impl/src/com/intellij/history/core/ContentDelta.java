@@ -0,0 +1,145 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.diff.Diff;
+import com.intellij.util.diff.FilesTooBigForDiffException;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Line based delta between two versions of a content: the new version is described by the ranges of lines copied from the base one
+ * and by the lines inserted between them.
+ */
+class ContentDelta {
+  private static final Charset LINE_CHARSET = Charset.forName("ISO-8859-1"); // maps every byte to a char and back
+  private static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+  private static final byte COPY = 0;
+  private static final byte INSERT = 1;
+
+  /**
+   * @return the delta or null if the contents are too big to be compared or the delta is not much smaller than the content itself
+   */
+  @Nullable
+  static byte[] compute(@NotNull byte[] base, @NotNull byte[] content) {
+    if (base.length > MAX_CONTENT_LENGTH || content.length > MAX_CONTENT_LENGTH) return null;
+
+    int[] baseLines = getLineStarts(base);
+    int[] contentLines = getLineStarts(content);
+    Diff.Change change;
+    try {
+      change = Diff.buildChanges(getLines(base, baseLines), getLines(content, contentLines));
+    }
+    catch (FilesTooBigForDiffException e) {
+      return null;
+    }
+
+    try {
+      BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      int baseLine = 0;
+      for (; change != null; change = change.link) {
+        writeCopy(out, baseLines, baseLine, change.line0);
+        writeInsert(out, content, contentLines, change.line1, change.line1 + change.inserted);
+        baseLine = change.line0 + change.deleted;
+      }
+      writeCopy(out, baseLines, baseLine, baseLines.length - 1);
+      out.close();
+
+      if (bytes.size() > content.length / 2) return null;
+      return bytes.toByteArray();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  static byte[] apply(@NotNull byte[] base, @NotNull byte[] delta) throws IOException {
+    DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(delta));
+    BufferExposingByteArrayOutputStream result = new BufferExposingByteArrayOutputStream(base.length);
+    while (in.available() > 0) {
+      byte kind = in.readByte();
+      int length = DataInputOutputUtil.readINT(in);
+      if (kind == COPY) {
+        int offset = DataInputOutputUtil.readINT(in);
+        if (offset + length > base.length) throw new IOException("delta does not match its base");
+        result.write(base, offset, length);
+      }
+      else if (kind == INSERT) {
+        byte[] inserted = new byte[length];
+        in.readFully(inserted);
+        result.write(inserted);
+      }
+      else {
+        throw new IOException("unexpected delta operation: " + kind);
+      }
+    }
+    return result.toByteArray();
+  }
+
+  private static void writeCopy(@NotNull DataOutputStream out, @NotNull int[] lineStarts, int fromLine, int toLine) throws IOException {
+    if (fromLine >= toLine) return;
+    out.writeByte(COPY);
+    DataInputOutputUtil.writeINT(out, lineStarts[toLine] - lineStarts[fromLine]);
+    DataInputOutputUtil.writeINT(out, lineStarts[fromLine]);
+  }
+
+  private static void writeInsert(@NotNull DataOutputStream out, @NotNull byte[] content, @NotNull int[] lineStarts, int fromLine, int toLine)
+    throws IOException {
+    if (fromLine >= toLine) return;
+    int length = lineStarts[toLine] - lineStarts[fromLine];
+    out.writeByte(INSERT);
+    DataInputOutputUtil.writeINT(out, length);
+    out.write(content, lineStarts[fromLine], length);
+  }
+
+  /**
+   * @return offsets of the lines (each one including its line separator) followed by the length of the content
+   */
+  @NotNull
+  private static int[] getLineStarts(@NotNull byte[] content) {
+    TIntArrayList result = new TIntArrayList();
+    int start = 0;
+    for (int i = 0; i < content.length; i++) {
+      if (content[i] == '\n') {
+        result.add(start);
+        start = i + 1;
+      }
+    }
+    if (start < content.length) result.add(start);
+    result.add(content.length);
+    return result.toNativeArray();
+  }
+
+  @NotNull
+  private static String[] getLines(@NotNull byte[] content, @NotNull int[] lineStarts) {
+    String[] result = new String[lineStarts.length - 1];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new String(content, lineStarts[i], lineStarts[i + 1] - lineStarts[i], LINE_CHARSET);
+    }
+    return result;
+  }
+}
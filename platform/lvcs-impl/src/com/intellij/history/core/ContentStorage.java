@@ -0,0 +1,352 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.utils.LocalHistoryLog;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.containers.SLRUMap;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.storage.AbstractStorage;
+import com.intellij.util.io.storage.RefCountingStorage;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the contents recorded by the local history which do not come from the VFS, i.e. the snapshots of the unsaved documents.
+ * <p/>
+ * The contents are addressed by their hash, so a content recorded once again (e.g. after an edit is undone) shares the record
+ * with the first one. A content recorded as the next version of another one is stored as a {@link ContentDelta} against it
+ * while the chain of deltas is short; the base record is kept until all the deltas built on it are released.
+ */
+public class ContentStorage {
+  private static final int VERSION = 1;
+  private static final String RECORDS_FILE = "contents";
+  private static final String HASHES_FILE = "contentHashes";
+  private static final int HASH_LENGTH = 20;
+  private static final int MAX_DELTA_CHAIN = 16;
+  private static final byte FULL = 0;
+  private static final byte DELTA = 1;
+
+  private static final KeyDescriptor<byte[]> HASH_DESCRIPTOR = new KeyDescriptor<byte[]>() {
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      byte[] result = new byte[HASH_LENGTH];
+      in.readFully(result);
+      return result;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  };
+
+  private final File myDir;
+  private final Object myLock = new Object();
+  private final MessageDigest myDigest;
+  private final SLRUMap<Integer, byte[]> myRecentContents = new SLRUMap<Integer, byte[]>(4, 4); // the bases of the next deltas
+
+  private RefCountingStorage myRecords;
+  private PersistentHashMap<byte[], Integer> myHashes;
+
+  private long myRecordedBytes;
+  private long myWrittenBytes;
+
+  public ContentStorage(@NotNull File dir) throws IOException {
+    myDir = dir;
+    try {
+      myDigest = MessageDigest.getInstance("SHA1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    open();
+  }
+
+  private void open() throws IOException {
+    String recordsPath = getRecordsPath();
+    myRecords = new RefCountingStorage(recordsPath);
+    if (myRecords.getVersion() != VERSION) {
+      myRecords.dispose();
+      AbstractStorage.deleteFiles(recordsPath);
+      PersistentHashMap.deleteFilesStartingWith(getHashesFile());
+      myRecords = new RefCountingStorage(recordsPath);
+      myRecords.setVersion(VERSION);
+    }
+    myHashes = new PersistentHashMap<byte[], Integer>(getHashesFile(), HASH_DESCRIPTOR, EnumeratorIntegerDescriptor.INSTANCE);
+  }
+
+  @NotNull
+  private String getRecordsPath() {
+    return new File(myDir, RECORDS_FILE).getPath();
+  }
+
+  @NotNull
+  private File getHashesFile() {
+    return new File(myDir, HASHES_FILE);
+  }
+
+  /**
+   * @param base record of the previous version of the content or 0; the content may be stored as a delta against it
+   * @return the acquired record of the content
+   */
+  public int store(@NotNull byte[] content, int base) throws IOException {
+    synchronized (myLock) {
+      myRecordedBytes += content.length;
+
+      byte[] hash = getHash(content);
+      Integer existing = myHashes.get(hash);
+      if (existing != null) {
+        myRecords.acquireRecord(existing);
+        return existing;
+      }
+
+      byte[] delta = null;
+      int depth = 0;
+      if (base != 0) {
+        depth = readHeader(base).depth + 1;
+        if (depth <= MAX_DELTA_CHAIN) delta = ContentDelta.compute(load(base), content);
+      }
+
+      int record = myRecords.acquireNewRecord();
+      AbstractStorage.StorageDataOutput out = myRecords.writeStream(record, true);
+      try {
+        out.write(hash);
+        if (delta != null) {
+          myRecords.acquireRecord(base);
+          out.writeByte(DELTA);
+          out.writeInt(base);
+          out.writeInt(depth);
+          out.writeInt(delta.length);
+          out.write(delta);
+        }
+        else {
+          out.writeByte(FULL);
+          out.writeInt(content.length);
+          out.write(content);
+        }
+      }
+      finally {
+        out.close();
+      }
+      myWrittenBytes += delta != null ? delta.length : content.length;
+
+      myHashes.put(hash, record);
+      myRecentContents.put(record, content);
+      return record;
+    }
+  }
+
+  public void acquire(int record) {
+    synchronized (myLock) {
+      myRecords.acquireRecord(record);
+    }
+  }
+
+  public void release(int record) throws IOException {
+    synchronized (myLock) {
+      while (record != 0) {
+        if (myRecords.getRefCount(record) > 1) {
+          myRecords.releaseRecord(record);
+          return;
+        }
+
+        Header header = readHeader(record);
+        myHashes.remove(header.hash);
+        myRecentContents.remove(record);
+        myRecords.releaseRecord(record);
+
+        record = header.base; // the base is not needed by the released delta any more
+      }
+    }
+  }
+
+  @NotNull
+  public byte[] load(int record) throws IOException {
+    synchronized (myLock) {
+      byte[] result = myRecentContents.get(record);
+      if (result != null) return result;
+
+      DataInputStream in = myRecords.readStream(record);
+      try {
+        Header header = readHeader(in);
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        result = header.base == 0 ? bytes : ContentDelta.apply(load(header.base), bytes);
+      }
+      finally {
+        in.close();
+      }
+
+      myRecentContents.put(record, result);
+      return result;
+    }
+  }
+
+  @NotNull
+  private Header readHeader(int record) throws IOException {
+    DataInputStream in = myRecords.readStream(record);
+    try {
+      return readHeader(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @NotNull
+  private static Header readHeader(@NotNull DataInputStream in) throws IOException {
+    byte[] hash = new byte[HASH_LENGTH];
+    in.readFully(hash);
+    byte kind = in.readByte();
+    if (kind == FULL) return new Header(hash, 0, 0);
+    if (kind == DELTA) return new Header(hash, in.readInt(), in.readInt());
+    throw new IOException("unexpected content record kind: " + kind);
+  }
+
+  @NotNull
+  private byte[] getHash(@NotNull byte[] content) {
+    myDigest.reset();
+    myDigest.update(content);
+    return myDigest.digest();
+  }
+
+  /**
+   * @return total length of the contents recorded since the storage has been opened
+   */
+  long getRecordedBytes() {
+    synchronized (myLock) {
+      return myRecordedBytes;
+    }
+  }
+
+  /**
+   * @return number of bytes written for the contents recorded since the storage has been opened (before compression)
+   */
+  long getWrittenBytes() {
+    synchronized (myLock) {
+      return myWrittenBytes;
+    }
+  }
+
+  /**
+   * Deletes the records which are not referenced any more and sets the reference counts of the others, for the case the references
+   * to the contents have been lost, e.g. when the change sets have been rebuilt while the contents they had recorded were kept.
+   *
+   * @param references number of references to each record in use, not counting the references of the deltas to their bases
+   */
+  public void collectGarbage(@NotNull TIntIntHashMap references) throws IOException {
+    synchronized (myLock) {
+      TIntIntHashMap expected = new TIntIntHashMap();
+      TIntArrayList queue = new TIntArrayList(references.keys());
+      for (int i = 0; i < queue.size(); i++) {
+        int record = queue.get(i);
+        expected.put(record, expected.get(record) + references.get(record));
+        int base = readHeader(record).base;
+        if (base == 0) continue;
+        if (!expected.containsKey(base) && !references.containsKey(base)) queue.add(base);
+        expected.put(base, expected.get(base) + 1);
+      }
+
+      List<byte[]> hashes = new ArrayList<byte[]>(myHashes.getAllKeysWithExistingMapping());
+      for (byte[] hash : hashes) {
+        Integer record = myHashes.get(hash);
+        if (record == null) continue;
+        int count = myRecords.getRefCount(record);
+        int expectedCount = expected.get(record);
+        if (expectedCount == 0) {
+          myHashes.remove(hash);
+          myRecentContents.remove(record);
+        }
+        for (; count > expectedCount; count--) {
+          myRecords.releaseRecord(record, count == 1);
+        }
+        for (; count < expectedCount; count++) {
+          myRecords.acquireRecord(record);
+        }
+      }
+    }
+  }
+
+  public void force() {
+    synchronized (myLock) {
+      myRecords.force();
+      myHashes.force();
+    }
+  }
+
+  public void clear() throws IOException {
+    synchronized (myLock) {
+      close();
+      FileUtil.delete(myDir);
+      myRecentContents.clear();
+      open();
+    }
+  }
+
+  public void close() {
+    synchronized (myLock) {
+      if (myRecordedBytes > 0) {
+        LocalHistoryLog.LOG.info("Local history contents: " + myRecordedBytes + " bytes recorded, " + myWrittenBytes + " bytes written");
+      }
+      myRecordedBytes = myWrittenBytes = 0;
+
+      myRecords.dispose();
+      try {
+        myHashes.close();
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot close content hashes", e);
+      }
+    }
+  }
+
+  private static class Header {
+    private final byte[] hash;
+    private final int base;
+    private final int depth;
+
+    private Header(@NotNull byte[] hash, int base, int depth) {
+      this.hash = hash;
+      this.base = base;
+      this.depth = depth;
+    }
+  }
+}
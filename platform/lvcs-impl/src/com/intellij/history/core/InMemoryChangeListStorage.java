@@ -18,6 +18,7 @@ package com.intellij.history.core;
 import com.intellij.history.core.changes.ChangeSet;
 import com.intellij.util.Consumer;
 import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
@@ -32,20 +33,32 @@ public class InMemoryChangeListStorage implements ChangeListStorage {
   }
 
   @Override
-  public long nextId() {
+  public synchronized long nextId() {
     return myCurrentId++;
   }
 
   @Override
   @Nullable
-  public ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
+  public synchronized ChangeSetHolder readPrevious(int id, TIntHashSet recursionGuard) {
     if (mySets.isEmpty()) return null;
     if (id == -1) return new ChangeSetHolder(mySets.size() - 1, mySets.get(mySets.size() - 1));
     return id == 0 ? null : new ChangeSetHolder(id -1, mySets.get(id - 1));
   }
 
   @Override
-  public void writeNextSet(ChangeSet changeSet) {
+  @Nullable
+  public synchronized ChangeSetHolder readSet(int id) {
+    return id < 0 || id >= mySets.size() ? null : new ChangeSetHolder(id, mySets.get(id));
+  }
+
+  @Override
+  @Nullable
+  public int[] findChangeSetsAffecting(@NotNull String path) {
+    return null;
+  }
+
+  @Override
+  public synchronized void writeNextSet(ChangeSet changeSet) {
     mySets.add(changeSet);
   }
 
@@ -147,4 +147,22 @@ public class LocalHistoryStorage extends AbstractStorage {
       }
     }
   }
+
+  /**
+   * Unlike {@link #deleteRecordsUpTo(int)} only unlinks the records from the rest of them, so the space they take is not reused and
+   * the ids of the records created later keep growing.
+   *
+   * @param idInclusively must not be the last record
+   */
+  public void detachRecordsUpTo(int idInclusively) throws IOException {
+    synchronized (myLock) {
+      LocalHistoryRecordsTable table = (LocalHistoryRecordsTable)myRecordsTable;
+
+      int next = table.getNextRecord(idInclusively);
+      assert next != 0 : "cannot detach the last record " + idInclusively;
+
+      table.setFirstRecord(next);
+      table.setPrevRecord(next, 0);
+    }
+  }
 }
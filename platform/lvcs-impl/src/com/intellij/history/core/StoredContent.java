@@ -16,21 +16,49 @@
 
 package com.intellij.history.core;
 
+import com.intellij.history.utils.LocalHistoryLog;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+/**
+ * Content kept either in the VFS contents storage or, for the ids below zero, in the local history {@link ContentStorage}.
+ */
 public class StoredContent extends Content {
   private static final int UNAVAILABLE = 0;
 
+  private static volatile ContentStorage ourContentStorage;
+
   private int myContentId;
 
+  public static void setContentStorage(@Nullable ContentStorage storage) {
+    ourContentStorage = storage;
+  }
+
   public static StoredContent acquireContent(byte[] bytes) {
+    return acquireContent(bytes, null);
+  }
+
+  /**
+   * @param previous previous version of the content, the new one may be stored as a delta against it
+   */
+  public static StoredContent acquireContent(byte[] bytes, @Nullable StoredContent previous) {
+    ContentStorage storage = ourContentStorage;
+    if (storage != null) {
+      try {
+        int base = previous != null && previous.myContentId < 0 ? -previous.myContentId : 0;
+        return new StoredContent(-storage.store(bytes, base));
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot store content, it will be kept in the VFS", e);
+      }
+    }
     return new StoredContent(getFS().storeUnlinkedContent(bytes));
   }
 
@@ -72,6 +100,7 @@ public class StoredContent extends Content {
     //if (!isAvailable()) throw new RuntimeException("content is not available");
     try {
       if (myContentId == UNAVAILABLE) return ArrayUtil.EMPTY_BYTE_ARRAY;
+      if (myContentId < 0) return getContentStorage().load(-myContentId);
       return getFS().contentsToByteArray(myContentId);
     }
     catch (IOException e) {
@@ -89,6 +118,12 @@ public class StoredContent extends Content {
     return ((PersistentFS)PersistentFS.getInstance());
   }
 
+  private static ContentStorage getContentStorage() throws IOException {
+    ContentStorage result = ourContentStorage;
+    if (result == null) throw new IOException("local history content storage is closed");
+    return result;
+  }
+
   public int getContentId() {
     return myContentId;
   }
@@ -96,7 +131,18 @@ public class StoredContent extends Content {
   @Override
   public void release() {
     if (myContentId == UNAVAILABLE) return;
-    getFS().releaseContent(myContentId);
+    if (myContentId < 0) {
+      ContentStorage storage = ourContentStorage;
+      try {
+        if (storage != null) storage.release(-myContentId);
+      }
+      catch (IOException e) {
+        LocalHistoryLog.LOG.warn("cannot release content", e);
+      }
+    }
+    else {
+      getFS().releaseContent(myContentId);
+    }
     myContentId = UNAVAILABLE;
   }
 
@@ -71,7 +71,7 @@ public class MoveChange extends StructuralChange {
   }
 
   @Override
-  protected String[] getAffectedPaths() {
+  public String[] getAffectedPaths() {
     return new String[]{myPath, myOldPath};
   }
 
@@ -267,7 +267,7 @@ public class IdeaGateway {
   public Pair<StoredContent, Long> acquireAndUpdateActualContent(@NotNull VirtualFile f, @Nullable Document d) {
     ContentAndTimestamps contentAndStamp = f.getUserData(SAVED_DOCUMENT_CONTENT_AND_STAMP_KEY);
     if (contentAndStamp == null) {
-      if (d != null) saveDocumentContent(f, d);
+      if (d != null) saveDocumentContent(f, d, null);
       return Pair.create(StoredContent.acquireContent(f), f.getTimeStamp());
     }
 
@@ -281,14 +281,14 @@ public class IdeaGateway {
     if (d.getModificationStamp() == contentAndStamp.documentModificationStamp) return null;
 
     // is current content has been changed, store it and return the previous one
-    saveDocumentContent(f, d);
+    saveDocumentContent(f, d, contentAndStamp.content);
     return Pair.create(contentAndStamp.content, contentAndStamp.registeredTimestamp);
   }
 
-  private static void saveDocumentContent(@NotNull VirtualFile f, @NotNull Document d) {
+  private static void saveDocumentContent(@NotNull VirtualFile f, @NotNull Document d, @Nullable StoredContent previous) {
     f.putUserData(SAVED_DOCUMENT_CONTENT_AND_STAMP_KEY,
                   new ContentAndTimestamps(Clock.getTime(),
-                                           StoredContent.acquireContent(bytesFromDocument(d)),
+                                           StoredContent.acquireContent(bytesFromDocument(d), previous),
                                            d.getModificationStamp()));
   }
 
@@ -304,17 +304,22 @@ public class IdeaGateway {
       }
     }
 
+    // take document's content if any, it is stored against the previously stored one
+    Pair<StoredContent, Long> result;
+    if (d != null) {
+      result = Pair.create(StoredContent.acquireContent(bytesFromDocument(d), contentAndStamp != null ? contentAndStamp.content : null),
+                           Clock.getTime());
+    }
+    else {
+      result = Pair.create(StoredContent.acquireContent(f), f.getTimeStamp());
+    }
+
     // release previously stored
     if (contentAndStamp != null) {
       contentAndStamp.content.release();
     }
 
-    // take document's content if any
-    if (d != null) {
-      return Pair.create(StoredContent.acquireContent(bytesFromDocument(d)), Clock.getTime());
-    }
-
-    return Pair.create(StoredContent.acquireContent(f), f.getTimeStamp());
+    return result;
   }
 
   @NotNull
@@ -38,6 +38,8 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LocalHistoryImpl extends LocalHistory implements ApplicationComponent {
@@ -49,6 +51,7 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
 
   private final AtomicBoolean isInitialized = new AtomicBoolean();
   private Runnable myShutdownTask;
+  @Nullable private Future<?> myStartupPurge;
 
   public static LocalHistoryImpl getInstanceImpl() {
     return (LocalHistoryImpl)getInstance();
@@ -73,7 +76,9 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
   protected void initHistory() {
     ChangeListStorage storage;
     try {
-      storage = new ChangeListStorageImpl(getStorageDir());
+      ChangeListStorageImpl storageImpl = new ChangeListStorageImpl(getStorageDir());
+      StoredContent.setContentStorage(storageImpl.getContentStorage());
+      storage = storageImpl;
     }
     catch (Throwable e) {
       LocalHistoryLog.LOG.warn("cannot create storage, in-memory  implementation will be used", e);
@@ -100,6 +105,40 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
         }
       });
     }
+
+    if (!ApplicationManager.getApplication().isUnitTestMode()) {
+      // the storage drops the obsolete segments without blocking the changes being recorded
+      myStartupPurge = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          purgeObsolete();
+        }
+      });
+    }
+  }
+
+  private void purgeObsolete() {
+    int period = Registry.intValue("localHistory.daysToKeep") * 1000 * 60 * 60 * 24;
+    LocalHistoryLog.LOG.info("Purging local history...");
+    myChangeList.purgeObsolete(period);
+  }
+
+  /**
+   * A purge running after the content storage is cleared would not release the contents of the purged changes.
+   */
+  private void cancelStartupPurge() {
+    Future<?> purge = myStartupPurge;
+    myStartupPurge = null;
+    if (purge == null || purge.cancel(false)) return;
+    try {
+      purge.get();
+    }
+    catch (InterruptedException e) {
+      LocalHistoryLog.LOG.warn(e);
+    }
+    catch (ExecutionException e) {
+      LocalHistoryLog.LOG.warn(e);
+    }
   }
 
   private void validateStorage() {
@@ -128,19 +167,18 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
   public void disposeComponent() {
     if (!isInitialized.getAndSet(false)) return;
 
-    int period = Registry.intValue("localHistory.daysToKeep") * 1000 * 60 * 60 * 24;
-
     VirtualFileManager fm = VirtualFileManager.getInstance();
     fm.removeVirtualFileListener(myEventDispatcher);
     fm.removeVirtualFileManagerListener(myEventDispatcher);
     CommandProcessor.getInstance().removeCommandListener(myEventDispatcher);
 
+    cancelStartupPurge();
 
     validateStorage();
-    LocalHistoryLog.LOG.info("Purging local history...");
-    myChangeList.purgeObsolete(period);
+    purgeObsolete();
     validateStorage();
 
+    StoredContent.setContentStorage(null);
     myChangeList.close();
     LocalHistoryLog.LOG.info("Local history storage successfully closed.");
 
@@ -19,6 +19,7 @@ import com.intellij.BundleBase;
 import com.intellij.CommonBundle;
 import com.intellij.diagnostic.PerformanceWatcher;
 import com.intellij.diagnostic.PluginException;
+import com.intellij.diagnostic.StartupTimeline;
 import com.intellij.ide.*;
 import com.intellij.ide.plugins.IdeaPluginDescriptor;
 import com.intellij.ide.plugins.PluginManager;
@@ -530,6 +531,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
       HeavyProcessLatch.INSTANCE.processFinished();
     }
     myLoaded = true;
+    StartupTimeline.logReport(LOG, "Plugin descriptors and application components");
 
     File locatorFile = new File(PathManager.getSystemPath() + "/" + ApplicationEx.LOCATOR_FILE_NAME);
     try {
@@ -16,6 +16,7 @@
 package com.intellij.openapi.project.impl;
 
 import com.intellij.diagnostic.PluginException;
+import com.intellij.diagnostic.StartupTimeline;
 import com.intellij.ide.RecentProjectsManagerBase;
 import com.intellij.ide.plugins.IdeaPluginDescriptor;
 import com.intellij.ide.plugins.PluginManager;
@@ -77,6 +78,10 @@ public class ProjectImpl extends ComponentManagerImpl implements ProjectEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.project.impl.ProjectImpl");
   private static final String PLUGIN_SETTINGS_ERROR = "Plugin Settings Error";
   public static final String NAME_FILE = ".name";
+  /**
+   * If set, the project components marked by the "deferrable" option aren't created when the project is opened but on their first use
+   */
+  public static final boolean LAZY_COMPONENTS = "true".equals(System.getProperty("idea.lazy.project.components"));
 
   private ProjectManagerImpl myManager;
 
@@ -85,6 +90,7 @@ public class ProjectImpl extends ComponentManagerImpl implements ProjectEx {
   private MyProjectManagerListener myProjectManagerListener;
 
   private final AtomicBoolean mySavingInProgress = new AtomicBoolean(false);
+  private volatile boolean myComponentsOpened = false;
 
   public boolean myOptimiseTestLoadSpeed;
   @NonNls public static final String TEMPLATE_PROJECT_NAME = "Default (Template) Project";
@@ -312,6 +318,7 @@ public class ProjectImpl extends ComponentManagerImpl implements ProjectEx {
 //    ProfilingUtil.captureCPUSnapshot();
     long time = System.currentTimeMillis() - start;
     LOG.info(getComponentConfigurations().length + " project components initialized in " + time + " ms");
+    StartupTimeline.logReport(LOG, "Project components");
     getMessageBus().syncPublisher(ProjectLifecycleListener.TOPIC).projectComponentsInitialized(this);
 
     myProjectManagerListener = new MyProjectManagerListener();
@@ -413,8 +420,40 @@ public class ProjectImpl extends ComponentManagerImpl implements ProjectEx {
     TimedReference.disposeTimed();
   }
 
+  @Override
+  protected boolean canDeferComponents() {
+    return LAZY_COMPONENTS && !isDefault();
+  }
+
+  @Override
+  protected void deferredComponentCreated(@NotNull Object component) {
+    if (!myComponentsOpened || !(component instanceof ProjectComponent)) return;
+
+    final ProjectComponent projectComponent = (ProjectComponent)component;
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        if (!myComponentsOpened) return;
+        try {
+          projectComponent.projectOpened();
+        }
+        catch (Throwable e) {
+          LOG.error(projectComponent.toString(), e);
+        }
+      }
+    };
+    if (ApplicationManager.getApplication().isDispatchThread()) {
+      runnable.run();
+    }
+    else {
+      ApplicationManager.getApplication().invokeLater(runnable, getDisposed());
+    }
+  }
+
   private void projectOpened() {
     final ProjectComponent[] components = getComponents(ProjectComponent.class);
+    // the deferred components created from now on are notified as soon as they are created
+    myComponentsOpened = true;
     for (ProjectComponent component : components) {
       try {
         component.projectOpened();
@@ -426,6 +465,7 @@ public class ProjectImpl extends ComponentManagerImpl implements ProjectEx {
   }
 
   private void projectClosed() {
+    myComponentsOpened = false;
     List<ProjectComponent> components = new ArrayList<ProjectComponent>(Arrays.asList(getComponents(ProjectComponent.class)));
     Collections.reverse(components);
     for (ProjectComponent component : components) {
@@ -19,12 +19,14 @@
  */
 package com.intellij.openapi.wm.impl.welcomeScreen;
 
+import com.intellij.ide.plugins.PluginManagerCore;
 import com.intellij.openapi.MnemonicHelper;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.application.ex.ApplicationManagerEx;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.extensions.ExtensionPointName;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
@@ -48,11 +50,14 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 
 public class WelcomeFrame extends JFrame implements IdeFrame {
   public static final ExtensionPointName<WelcomeFrameProvider> EP = ExtensionPointName.create("com.intellij.welcomeFrameProvider");
   static final String DIMENSION_KEY = "WELCOME_SCREEN";
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.wm.impl.welcomeScreen.WelcomeFrame");
   private static IdeFrame ourInstance;
+  private static boolean ourStartupReported;
   private final WelcomeScreen myScreen;
   private final BalloonLayout myBalloonLayout;
 
@@ -161,9 +166,17 @@ public class WelcomeFrame extends JFrame implements IdeFrame {
                            ? new WelcomeFrame() : EP.getExtensions()[0].createFrame();
       ((JFrame)frame).setVisible(true);
       ourInstance = frame;
+      reportStartup();
     }
   }
 
+  private static void reportStartup() {
+    if (ourStartupReported) return;
+    ourStartupReported = true;
+    LOG.info("Welcome frame shown " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start" +
+             ", class loading: " + PluginManagerCore.getClassLoadingStatistics());
+  }
+
   public static void showIfNoProjectOpened() {
     ApplicationManager.getApplication().invokeLater(new DumbAwareRunnable() {
       @Override
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.history.core.changes.*;
+import com.intellij.history.integration.IntegrationTestCase;
+import com.intellij.openapi.util.Clock;
+import com.intellij.util.Consumer;
+import com.intellij.util.io.storage.AbstractStorage;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChangeListStorageTest extends IntegrationTestCase {
+  private static final int SEGMENT_SIZE = 3;
+
+  private File myDir;
+  private ChangeListStorageImpl myStorage;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDirectory();
+    myStorage = new ChangeListStorageImpl(myDir, SEGMENT_SIZE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myStorage.close();
+    super.tearDown();
+  }
+
+  public void testWritingToSeveralSegments() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      write(new CreateFileChange(myStorage.nextId(), "/dir/f" + i));
+    }
+
+    assertEquals(4, getSegmentsCount());
+    assertEquals("[/dir/f9, /dir/f8, /dir/f7, /dir/f6, /dir/f5, /dir/f4, /dir/f3, /dir/f2, /dir/f1, /dir/f0]", readAllPaths().toString());
+  }
+
+  public void testFindingChangeSetsByPath() throws Exception {
+    int create = write(new CreateFileChange(myStorage.nextId(), "/a/b/f1"));
+    int change = write(new ROStatusChange(myStorage.nextId(), "/a/b/f1", false));
+    int other = write(new CreateFileChange(myStorage.nextId(), "/a/c/f2"));
+    int rename = write(new RenameChange(myStorage.nextId(), "/a/d", "b"));
+    int label = write(new PutLabelChange(myStorage.nextId(), "label", "project"));
+
+    assertFound("/a/b/f1", label, rename, change, create);
+    assertFound("/a/d/f1", label, rename);
+    assertFound("/a/c", label, other);
+    assertFound("/a", label, rename, other, change, create);
+    assertFound("/x", label);
+  }
+
+  public void testFindingIsCaseInsensitive() throws Exception {
+    int create = write(new CreateFileChange(myStorage.nextId(), "/Dir/File"));
+    assertFound("/dir/file", create);
+  }
+
+  public void testReopening() throws Exception {
+    int create = write(new CreateFileChange(myStorage.nextId(), "/f"));
+    for (int i = 0; i < SEGMENT_SIZE; i++) {
+      write(new CreateFileChange(myStorage.nextId(), "/other" + i));
+    }
+    long lastId = myStorage.readPrevious(-1, new TIntHashSet()).changeSet.getId();
+
+    myStorage.close();
+    myStorage = new ChangeListStorageImpl(myDir, SEGMENT_SIZE);
+
+    assertEquals(lastId + 1, myStorage.nextId());
+    assertFound("/f", create);
+    assertEquals(SEGMENT_SIZE + 1, readAllPaths().size());
+  }
+
+  public void testPurgingDropsWholeSegments() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      Clock.setTime(i + 1);
+      write(new CreateFileChange(myStorage.nextId(), "/f" + i));
+    }
+    assertEquals(3, getSegmentsCount());
+
+    final List<ChangeSet> purged = new ArrayList<ChangeSet>();
+    myStorage.purge(2, 10, new Consumer<ChangeSet>() {
+      @Override
+      public void consume(ChangeSet changeSet) {
+        purged.add(changeSet);
+      }
+    });
+
+    assertEquals(6, purged.size());
+    assertEquals(1, getSegmentsCount());
+    assertEquals("[/f7, /f6]", readAllPaths().toString());
+    assertFound("/f0");
+
+    write(new CreateFileChange(myStorage.nextId(), "/f8"));
+    assertEquals("[/f8, /f7, /f6]", readAllPaths().toString());
+  }
+
+  public void testAcceptingAffectingChangesFollowsRenamesAndMoves() throws Exception {
+    int create = write(new CreateFileChange(myStorage.nextId(), "/a/f"));
+    int change = write(new ROStatusChange(myStorage.nextId(), "/a/f", false));
+    write(new CreateFileChange(myStorage.nextId(), "/a/other"));
+    int rename = write(new RenameChange(myStorage.nextId(), "/a/g", "f"));
+    int changeAfterRename = write(new ROStatusChange(myStorage.nextId(), "/a/g", true));
+    write(new ROStatusChange(myStorage.nextId(), "/a/other", false));
+    int move = write(new MoveChange(myStorage.nextId(), "/b/g", "/a"));
+    int changeAfterMove = write(new ROStatusChange(myStorage.nextId(), "/b/g", false));
+
+    List<Long> expected = collectChangeSetIds("/b/g", false);
+    assertEquals(6, expected.size());
+    assertEquals(expected, collectChangeSetIds("/b/g", true));
+    assertEquals("[" + changeAfterMove + ", " + move + ", " + changeAfterRename + ", " + rename + ", " + change + ", " + create + "]",
+                 getRecordIds(collectChangeSetIds("/b/g", true)).toString());
+  }
+
+  public void testAcceptingAffectingChangesInSeveralSegments() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      write(new ROStatusChange(myStorage.nextId(), "/dir/f" + i % 2, i % 3 == 0));
+    }
+    assertEquals(4, getSegmentsCount());
+
+    List<Long> expected = collectChangeSetIds("/dir/f1", false);
+    assertEquals(5, expected.size());
+    assertEquals(expected, collectChangeSetIds("/dir/f1", true));
+  }
+
+  public void testPurgingWaitsForReaders() throws Exception {
+    Clock.setTime(1);
+    write(new CreateFileChange(myStorage.nextId(), "/f"));
+    Clock.setTime(100);
+    write(new CreateFileChange(myStorage.nextId(), "/g"));
+
+    final ChangeList changeList = new ChangeList(myStorage);
+    final CountDownLatch visiting = new CountDownLatch(1);
+    final CountDownLatch mayFinish = new CountDownLatch(1);
+    Thread reader = new Thread("reader") {
+      @Override
+      public void run() {
+        changeList.accept(new ChangeVisitor() {
+          @Override
+          public void begin(ChangeSet c) throws StopVisitingException {
+            visiting.countDown();
+            try {
+              mayFinish.await();
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            stop();
+          }
+        });
+      }
+    };
+    reader.start();
+    assertTrue(visiting.await(10, TimeUnit.SECONDS));
+
+    final AtomicBoolean purged = new AtomicBoolean();
+    Thread purger = new Thread("purger") {
+      @Override
+      public void run() {
+        changeList.purgeObsolete(10);
+        purged.set(true);
+      }
+    };
+    purger.start();
+    purger.join(200);
+    assertFalse(purged.get());
+
+    mayFinish.countDown();
+    reader.join();
+    purger.join();
+    assertTrue(purged.get());
+    assertEquals("[/g]", readAllPaths().toString());
+  }
+
+  private List<Long> collectChangeSetIds(String path, boolean useIndex) {
+    ChangeList changeList = new ChangeList(myStorage);
+    ChangeCollectingVisitor visitor = new ChangeCollectingVisitor(path, "project", null);
+    if (useIndex) {
+      changeList.acceptAffecting(visitor);
+    }
+    else {
+      changeList.accept(visitor);
+    }
+    List<Long> result = new ArrayList<Long>();
+    for (ChangeSet each : visitor.getChanges()) {
+      result.add(each.getId());
+    }
+    return result;
+  }
+
+  private List<Integer> getRecordIds(List<Long> changeSetIds) {
+    List<Integer> result = new ArrayList<Integer>();
+    TIntHashSet recursionGuard = new TIntHashSet();
+    ChangeSetHolder each = myStorage.readPrevious(-1, recursionGuard);
+    while (each != null) {
+      if (changeSetIds.contains(each.changeSet.getId())) result.add(each.id);
+      each = myStorage.readPrevious(each.id, recursionGuard);
+    }
+    return result;
+  }
+
+  private int write(Change change) {
+    ChangeSet changeSet = new ChangeSet(myStorage.nextId(), Clock.getTime());
+    changeSet.addChange(change);
+    changeSet.lock();
+    myStorage.writeNextSet(changeSet);
+    return myStorage.readPrevious(-1, new TIntHashSet()).id;
+  }
+
+  private List<String> readAllPaths() {
+    List<String> result = new ArrayList<String>();
+    TIntHashSet recursionGuard = new TIntHashSet();
+    ChangeSetHolder each = myStorage.readPrevious(-1, recursionGuard);
+    while (each != null) {
+      Change change = each.changeSet.getFirstChange();
+      result.add(change instanceof StructuralChange ? ((StructuralChange)change).getPath() : change.toString());
+      each = myStorage.readPrevious(each.id, recursionGuard);
+    }
+    return result;
+  }
+
+  private void assertFound(String path, int... expected) {
+    assertEquals(new TIntArrayList(expected).toString(), new TIntArrayList(myStorage.findChangeSetsAffecting(path)).toString());
+  }
+
+  private int getSegmentsCount() {
+    File[] files = new File(myDir, "segments").listFiles();
+    int result = 0;
+    for (File each : files) {
+      if (each.getName().endsWith(AbstractStorage.DATA_EXTENSION)) result++;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.history.core;
+
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TIntIntHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ContentStorageTest extends TempDirTestCase {
+  private ContentStorage s;
+
+  @Before
+  public void setUp() throws Exception {
+    s = new ContentStorage(myTempDir);
+  }
+
+  @After
+  public void tearDown() {
+    s.close();
+  }
+
+  @Test
+  public void testStoringAndLoading() throws Exception {
+    int record = s.store(b("content"), 0);
+    assertContent("content", record);
+
+    reopen();
+    assertContent("content", record);
+  }
+
+  @Test
+  public void testSameContentIsStoredOnce() throws Exception {
+    int first = s.store(b("content"), 0);
+    int other = s.store(b("other"), first);
+    int second = s.store(b("content"), other);
+
+    assertEquals(first, second);
+    assertEquals("contentothercontent".length(), s.getRecordedBytes());
+    assertTrue(s.getWrittenBytes() < s.getRecordedBytes());
+
+    s.release(first);
+    assertContent("content", second);
+
+    s.release(second);
+    long written = s.getWrittenBytes();
+    s.store(b("content"), 0);
+    assertEquals(written + "content".length(), s.getWrittenBytes());
+  }
+
+  @Test
+  public void testStoringVersionsAsDeltas() throws Exception {
+    List<String> versions = new ArrayList<String>();
+    List<Integer> records = new ArrayList<Integer>();
+    int previous = 0;
+    for (int i = 0; i < 50; i++) {
+      String version = text(i);
+      previous = s.store(b(version), previous);
+      versions.add(version);
+      records.add(previous);
+    }
+
+    assertTrue(s.getWrittenBytes() < s.getRecordedBytes() / 5);
+
+    reopen();
+    for (int i = 0; i < versions.size(); i++) {
+      assertContent(versions.get(i), records.get(i));
+    }
+  }
+
+  @Test
+  public void testReleasingOlderVersionsKeepsTheNewerOnes() throws Exception {
+    List<Integer> records = new ArrayList<Integer>();
+    int previous = 0;
+    for (int i = 0; i < 10; i++) {
+      previous = s.store(b(text(i)), previous);
+      records.add(previous);
+    }
+
+    for (int i = 0; i < 5; i++) {
+      s.release(records.get(i));
+    }
+
+    reopen();
+    for (int i = 5; i < 10; i++) {
+      assertContent(text(i), records.get(i));
+    }
+  }
+
+  @Test
+  public void testReleasingNewerVersionsKeepsTheOlderOnes() throws Exception {
+    List<Integer> records = new ArrayList<Integer>();
+    int previous = 0;
+    for (int i = 0; i < 10; i++) {
+      previous = s.store(b(text(i)), previous);
+      records.add(previous);
+    }
+
+    for (int i = 5; i < 10; i++) {
+      s.release(records.get(i));
+    }
+
+    reopen();
+    for (int i = 0; i < 5; i++) {
+      assertContent(text(i), records.get(i));
+    }
+  }
+
+  @Test
+  public void testDeltasOfContentsWithoutLineBreaks() throws Exception {
+    int first = s.store(b("abc"), 0);
+    int second = s.store(b("abcd"), first);
+    int third = s.store(b(""), second);
+
+    reopen();
+    assertContent("abc", first);
+    assertContent("abcd", second);
+    assertContent("", third);
+  }
+
+  @Test
+  public void testClearing() throws Exception {
+    s.store(b("content"), 0);
+    s.clear();
+
+    int record = s.store(b("content"), 0);
+    assertContent("content", record);
+    assertEquals("content".length(), s.getWrittenBytes());
+  }
+
+  @Test
+  public void testCollectingGarbage() throws Exception {
+    s.store(b("lost"), 0);
+    int base = s.store(b(text(0)), 0);
+    int delta = s.store(b(text(1)), base);
+    int shared = s.store(b("shared"), 0);
+    s.acquire(shared);
+    s.acquire(shared);
+    s.release(base);
+
+    TIntIntHashMap references = new TIntIntHashMap();
+    references.put(delta, 1);
+    references.put(shared, 2);
+    s.collectGarbage(references);
+
+    reopen();
+    assertContent(text(1), delta);
+    assertContent(text(0), base);
+    long written = s.getWrittenBytes();
+    s.store(b("lost"), 0);
+    assertEquals(written + "lost".length(), s.getWrittenBytes());
+
+    s.release(shared);
+    s.release(shared);
+    written = s.getWrittenBytes();
+    s.store(b("shared"), 0);
+    assertEquals(written + "shared".length(), s.getWrittenBytes());
+
+    s.release(delta);
+    written = s.getWrittenBytes();
+    s.store(b(text(0)), 0);
+    assertEquals(written + text(0).length(), s.getWrittenBytes());
+  }
+
+  private void reopen() throws IOException {
+    s.close();
+    s = new ContentStorage(myTempDir);
+  }
+
+  private void assertContent(String expected, int record) throws IOException {
+    assertEquals(expected, new String(s.load(record)));
+  }
+
+  private static String text(int version) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      result.append("line ").append(i);
+      if (i == version % 100) result.append(" changed in version ").append(version);
+      if (i == version) result.append(" added in version ").append(version);
+      result.append('\n');
+    }
+    return result.append(StringUtil.repeat("last line\n", version % 3)).toString();
+  }
+}
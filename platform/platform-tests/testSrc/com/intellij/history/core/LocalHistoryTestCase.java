@@ -134,7 +134,7 @@ public abstract class LocalHistoryTestCase extends Assert {
 
   public static List<ChangeSet> collectChanges(LocalHistoryFacade facade, String path, String projectId, String pattern) {
     ChangeCollectingVisitor v = new ChangeCollectingVisitor(path, projectId, pattern);
-    facade.accept(v);
+    facade.acceptAffecting(v);
     return v.getChanges();
   }
 
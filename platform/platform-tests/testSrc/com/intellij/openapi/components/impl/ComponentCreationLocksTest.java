@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.components.impl;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ComponentCreationLocksTest extends TestCase {
+  public void testReentrant() {
+    ComponentCreationLocks locks = new ComponentCreationLocks();
+    locks.lock("a");
+    locks.lock("a");
+    locks.unlock("a");
+    locks.unlock("a");
+    locks.lock("a");
+    locks.unlock("a");
+  }
+
+  public void testWaitsForOwner() throws Exception {
+    final ComponentCreationLocks locks = new ComponentCreationLocks();
+    locks.lock("a");
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        locks.lock("a");
+        acquired.countDown();
+        locks.unlock("a");
+      }
+    };
+    thread.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    locks.unlock("a");
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    thread.join();
+  }
+
+  public void testCycleBetweenThreadsFailsInsteadOfDeadlock() throws Exception {
+    final ComponentCreationLocks locks = new ComponentCreationLocks();
+    final CountDownLatch bLocked = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    locks.lock("a");
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        locks.lock("b");
+        bLocked.countDown();
+        try {
+          locks.lock("a");
+          locks.unlock("a");
+        }
+        catch (Throwable e) {
+          error.set(e);
+        }
+        finally {
+          locks.unlock("b");
+        }
+      }
+    };
+    thread.start();
+    assertTrue(bLocked.await(10, TimeUnit.SECONDS));
+    Throwable thrown = null;
+    try {
+      // either this thread closes the cycle, or the other one did and released "b"
+      locks.lock("b");
+      locks.unlock("b");
+    }
+    catch (IllegalStateException e) {
+      thrown = e;
+    }
+    finally {
+      locks.unlock("a");
+    }
+    thread.join(10000);
+    assertFalse(thread.isAlive());
+    assertTrue(thrown != null || error.get() instanceof IllegalStateException);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.diagnostic;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.containers.Stack;
+import gnu.trove.TObjectLongHashMap;
+import gnu.trove.TObjectLongProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Collects the time spent on the activities performed at startup (loading plugin descriptors, creating components)
+ * and reports it per activity and per plugin.
+ * <p/>
+ * Activities may be nested, e.g. a component creates the components it depends on; the own time of an activity excludes
+ * the activities started inside it in the same thread, so the per-plugin totals do not count the same time twice.
+ */
+public class StartupTimeline {
+  private static final int MAX_REPORTED_ACTIVITIES = 50;
+  private static final List<Activity> ourActivities = new ArrayList<Activity>();
+  private static final ThreadLocal<Stack<Activity>> ourRunning = new ThreadLocal<Stack<Activity>>() {
+    @Override
+    protected Stack<Activity> initialValue() {
+      return new Stack<Activity>();
+    }
+  };
+
+  private StartupTimeline() {
+  }
+
+  /**
+   * @param plugin id of the plugin the activity belongs to, if known in advance (see {@link Activity#end(String)})
+   */
+  @NotNull
+  public static Activity start(@NotNull String kind, @NotNull String name, @Nullable String plugin) {
+    Activity activity = new Activity(kind, name, plugin);
+    ourRunning.get().push(activity);
+    return activity;
+  }
+
+  /**
+   * Logs the activities finished since the previous report and forgets them.
+   */
+  public static void logReport(@NotNull Logger log, @NotNull String title) {
+    String report = getReport(title);
+    if (report != null) {
+      log.info(report);
+    }
+  }
+
+  @Nullable
+  static String getReport(@NotNull String title) {
+    List<Activity> activities;
+    synchronized (ourActivities) {
+      if (ourActivities.isEmpty()) return null;
+      activities = new ArrayList<Activity>(ourActivities);
+      ourActivities.clear();
+    }
+
+    long start = Long.MAX_VALUE;
+    long end = 0;
+    long total = 0;
+    Set<String> threads = new HashSet<String>();
+    final TObjectLongHashMap<String> perPlugin = new TObjectLongHashMap<String>();
+    for (Activity activity : activities) {
+      start = Math.min(start, activity.myStart);
+      end = Math.max(end, activity.myStart + activity.myDuration);
+      total += activity.getOwnDuration();
+      threads.add(activity.myThread);
+      String plugin = activity.myPlugin != null ? activity.myPlugin : "<platform>";
+      if (!perPlugin.adjustValue(plugin, activity.getOwnDuration())) {
+        perPlugin.put(plugin, activity.getOwnDuration());
+      }
+    }
+
+    StringBuilder builder = new StringBuilder();
+    builder.append(title).append(": ").append(activities.size()).append(" activities took ").append(toMs(total))
+      .append(" ms in ").append(threads.size()).append(" thread(s), ").append(toMs(end - start)).append(" ms elapsed");
+
+    final List<Map.Entry<String, Long>> pluginEntries = new ArrayList<Map.Entry<String, Long>>();
+    perPlugin.forEachEntry(new TObjectLongProcedure<String>() {
+      @Override
+      public boolean execute(String plugin, long duration) {
+        pluginEntries.add(new AbstractMap.SimpleEntry<String, Long>(plugin, duration));
+        return true;
+      }
+    });
+    Collections.sort(pluginEntries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+        return o2.getValue().compareTo(o1.getValue());
+      }
+    });
+    builder.append("\nby plugin:");
+    for (Map.Entry<String, Long> entry : pluginEntries) {
+      builder.append("\n  ").append(entry.getKey()).append(": ").append(toMs(entry.getValue())).append(" ms");
+    }
+
+    Collections.sort(activities, new Comparator<Activity>() {
+      @Override
+      public int compare(Activity o1, Activity o2) {
+        return o1.getOwnDuration() < o2.getOwnDuration() ? 1 : o1.getOwnDuration() == o2.getOwnDuration() ? 0 : -1;
+      }
+    });
+    builder.append("\nslowest activities (own time, start offset, thread):");
+    for (int i = 0; i < Math.min(activities.size(), MAX_REPORTED_ACTIVITIES); i++) {
+      Activity activity = activities.get(i);
+      builder.append("\n  ").append(activity.myKind).append(' ').append(activity.myName);
+      if (activity.myPlugin != null) {
+        builder.append(" [").append(activity.myPlugin).append(']');
+      }
+      builder.append(": ").append(toMs(activity.getOwnDuration())).append(" ms, +").append(toMs(activity.myStart - start))
+        .append(" ms, ").append(activity.myThread);
+    }
+    if (activities.size() > MAX_REPORTED_ACTIVITIES) {
+      builder.append("\n  ... ").append(activities.size() - MAX_REPORTED_ACTIVITIES).append(" more");
+    }
+    return builder.toString();
+  }
+
+  private static long toMs(long nanos) {
+    return nanos / 1000000;
+  }
+
+  public static class Activity {
+    private final String myKind;
+    private final String myName;
+    private final String myThread;
+    private final long myStart;
+    private String myPlugin;
+    private long myDuration;
+    private long myNestedDuration;
+
+    private Activity(@NotNull String kind, @NotNull String name, @Nullable String plugin) {
+      myKind = kind;
+      myName = name;
+      myPlugin = plugin;
+      myThread = Thread.currentThread().getName();
+      myStart = System.nanoTime();
+    }
+
+    public void end() {
+      myDuration = System.nanoTime() - myStart;
+
+      Stack<Activity> running = ourRunning.get();
+      // the activities started inside this one and not ended because of an exception are dropped
+      while (!running.isEmpty()) {
+        if (running.pop() == this) break;
+      }
+      if (!running.isEmpty()) {
+        running.peek().myNestedDuration += myDuration;
+      }
+
+      synchronized (ourActivities) {
+        ourActivities.add(this);
+      }
+    }
+
+    /**
+     * @param plugin id of the plugin the activity has turned out to belong to
+     */
+    public void end(@Nullable String plugin) {
+      myPlugin = plugin;
+      end();
+    }
+
+    private long getOwnDuration() {
+      return myDuration - myNestedDuration;
+    }
+  }
+}
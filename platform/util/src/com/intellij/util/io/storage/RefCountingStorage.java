@@ -247,8 +247,10 @@ public class RefCountingStorage extends AbstractStorage {
 
   private void flushPendingWrites() {
     for(Map.Entry<Integer, Future<?>> entry:myPendingWriteRequests.entrySet()) {
+      Future<?> future = entry.getValue();
+      if (future == null) continue; // the write has completed and removed the request while iterating
       try {
-        entry.getValue().get();
+        future.get();
       } catch (Exception e) {
         throw new RuntimeException(e);
       }
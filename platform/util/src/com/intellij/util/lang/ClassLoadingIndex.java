@@ -0,0 +1,256 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.ShutDownTracker;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persisted summary of the jars the class loaders of the IDE are built from. For every jar it keeps what {@link ClasspathCache} needs:
+ * the packages having classes or resources in the jar and the names of the entries, so the cache is filled without opening the jar,
+ * and whether the jar has preloaded content for {@link JarMemoryLoader}, so the jars without it are not opened in advance either.
+ * <p/>
+ * A record is used while the length and the modification stamp of its jar stay the same. The jars missing from the index are scanned
+ * as before and added to it, so the index is complete after the first run and is saved on exit only if something has been added.
+ * Enabled by the "idea.classloading.index" system property.
+ */
+final class ClassLoadingIndex {
+  private static final String FILE_NAME = "classloading.index";
+  private static final int MAGIC = 0x434C4958;
+  private static final int VERSION = 1;
+  private static final boolean ENABLED = "true".equals(System.getProperty("idea.classloading.index"));
+  private static ClassLoadingIndex ourInstance;
+
+  private final File myFile;
+  /**
+   * key: absolute path of a jar
+   */
+  private final Map<String, JarRecord> myRecords;
+  private boolean myModified;
+
+  ClassLoadingIndex(@NotNull File file) {
+    myFile = file;
+    myRecords = read(file);
+  }
+
+  /**
+   * @return the index shared by the class loaders of the process, or null if it is disabled
+   */
+  @Nullable
+  static synchronized ClassLoadingIndex getInstance() {
+    if (!ENABLED) {
+      return null;
+    }
+    if (ourInstance == null) {
+      final ClassLoadingIndex index = new ClassLoadingIndex(new File(PathManager.getSystemPath(), FILE_NAME));
+      ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+        @Override
+        public void run() {
+          index.save();
+        }
+      });
+      ourInstance = index;
+    }
+    return ourInstance;
+  }
+
+  /**
+   * @return null if the jar is not indexed or has been changed after it was indexed
+   */
+  @Nullable
+  synchronized JarRecord getRecord(@NotNull File jar) {
+    final JarRecord record = myRecords.get(jar.getAbsolutePath());
+    return record != null && record.myLength == jar.length() && record.myTimestamp == jar.lastModified() ? record : null;
+  }
+
+  synchronized void putRecord(@NotNull File jar, @NotNull JarRecord record) {
+    myRecords.put(jar.getAbsolutePath(), record);
+    myModified = true;
+  }
+
+  synchronized void save() {
+    if (!myModified) {
+      return;
+    }
+    // the same file is shared with the copies of this class loaded by other class loaders, so their records are kept
+    final Map<String, JarRecord> records = read(myFile);
+    records.putAll(myRecords);
+    final File temp = new File(myFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(temp);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        int count = 0;
+        for (String path : records.keySet()) {
+          if (new File(path).isFile()) count++;
+        }
+        output.writeInt(count);
+        for (Map.Entry<String, JarRecord> entry : records.entrySet()) {
+          if (new File(entry.getKey()).isFile()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().write(output);
+          }
+        }
+      }
+      finally {
+        output.close();
+      }
+      FileUtil.delete(myFile);
+      FileUtil.rename(temp, myFile);
+      myModified = false;
+    }
+    catch (IOException e) {
+      FileUtil.delete(temp);
+    }
+  }
+
+  @NotNull
+  private static Map<String, JarRecord> read(@NotNull File file) {
+    final Map<String, JarRecord> records = new THashMap<String, JarRecord>();
+    if (!file.isFile()) {
+      return records;
+    }
+    try {
+      final DataInputStream input = new DataInputStream(new ByteArrayInputStream(FileUtil.loadFileBytes(file)));
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        return records;
+      }
+      final int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        final String path = input.readUTF();
+        records.put(path, JarRecord.read(input));
+      }
+    }
+    catch (IOException e) {
+      records.clear();
+    }
+    return records;
+  }
+
+  static final class JarRecord {
+    private final long myLength;
+    private final long myTimestamp;
+    private final boolean myHasPreloadedContent;
+    private final String[] myClassPackages;
+    private final String[] myResourcePackages;
+    /**
+     * entry names as transformed by {@link ClasspathCache#transformName(String)}
+     */
+    private final String[] myNames;
+
+    private JarRecord(long length, long timestamp, boolean hasPreloadedContent,
+                      @NotNull String[] classPackages, @NotNull String[] resourcePackages, @NotNull String[] names) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myHasPreloadedContent = hasPreloadedContent;
+      myClassPackages = classPackages;
+      myResourcePackages = resourcePackages;
+      myNames = names;
+    }
+
+    boolean hasPreloadedContent() {
+      return myHasPreloadedContent;
+    }
+
+    void fillCache(@NotNull ClasspathCache cache, @NotNull Loader loader) {
+      for (String packageName : myClassPackages) {
+        cache.addPackageEntry(packageName, true, loader);
+      }
+      for (String packageName : myResourcePackages) {
+        cache.addPackageEntry(packageName, false, loader);
+      }
+      for (String name : myNames) {
+        cache.addTransformedNameEntry(name, loader);
+      }
+    }
+
+    private void write(@NotNull DataOutput output) throws IOException {
+      output.writeLong(myLength);
+      output.writeLong(myTimestamp);
+      output.writeBoolean(myHasPreloadedContent);
+      writeStrings(output, myClassPackages);
+      writeStrings(output, myResourcePackages);
+      writeStrings(output, myNames);
+    }
+
+    @NotNull
+    private static JarRecord read(@NotNull DataInput input) throws IOException {
+      return new JarRecord(input.readLong(), input.readLong(), input.readBoolean(), readStrings(input), readStrings(input), readStrings(input));
+    }
+
+    private static void writeStrings(@NotNull DataOutput output, @NotNull String[] strings) throws IOException {
+      output.writeInt(strings.length);
+      for (String s : strings) {
+        output.writeUTF(s);
+      }
+    }
+
+    @NotNull
+    private static String[] readStrings(@NotNull DataInput input) throws IOException {
+      final String[] strings = new String[input.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = input.readUTF();
+      }
+      return strings;
+    }
+  }
+
+  /**
+   * Collects the record of a jar while its entries are enumerated.
+   */
+  static final class JarRecordBuilder {
+    private final long myLength;
+    private final long myTimestamp;
+    private final Set<String> myClassPackages = new THashSet<String>();
+    private final Set<String> myResourcePackages = new THashSet<String>();
+    private final Set<String> myNames = new THashSet<String>();
+    private boolean myHasPreloadedContent;
+    private boolean myFirstEntry = true;
+
+    JarRecordBuilder(@NotNull File jar) {
+      myLength = jar.length();
+      myTimestamp = jar.lastModified();
+    }
+
+    void addEntry(@NotNull String name) {
+      if (myFirstEntry) {
+        // JarMemoryLoader reads the preloaded content only if it is the first entry of the jar
+        myHasPreloadedContent = JarMemoryLoader.SIZE_ENTRY.equals(name);
+        myFirstEntry = false;
+      }
+      (name.endsWith(UrlClassLoader.CLASS_EXTENSION) ? myClassPackages : myResourcePackages).add(ClasspathCache.getPackageName(name));
+      myNames.add(ClasspathCache.transformName(name));
+    }
+
+    @NotNull
+    JarRecord build() {
+      return new JarRecord(myLength, myTimestamp, myHasPreloadedContent, ArrayUtil.toStringArray(myClassPackages),
+                           ArrayUtil.toStringArray(myResourcePackages), ArrayUtil.toStringArray(myNames));
+    }
+  }
+}
@@ -59,6 +59,15 @@ public class ClassPath {
 
   private final boolean myAcceptUnescapedUrls;
   private final boolean myPreloadJarContents;
+  private final boolean myUseClasspathIndex;
+  @Nullable private final ClassLoadingIndex myLoadingIndex;
+
+  // class loading statistics, collected only when myDebugTime is set;
+  // not synchronized so they are approximate when classes are loaded by several threads at once
+  private int myLookups;
+  private int myProbes;
+  private int myFailedProbes;
+  private long myLookupTime;
 
   private static synchronized void printOrder(Loader loader, String url, Resource resource) {
     if (!ourOrderedUrls.add(url)) return;
@@ -101,10 +110,26 @@ public class ClassPath {
   }
 
   public ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, boolean preloadJarContents) {
+    this(urls, canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents, false);
+  }
+
+  /**
+   * @param useClasspathIndex whether the directories having a {@link ClasspathIndex} are not probed for the classes and resources absent from it
+   */
+  public ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, boolean preloadJarContents,
+                   boolean useClasspathIndex) {
+    this(urls, canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents, useClasspathIndex,
+         canUseCache ? ClassLoadingIndex.getInstance() : null);
+  }
+
+  ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, boolean preloadJarContents,
+            boolean useClasspathIndex, @Nullable ClassLoadingIndex loadingIndex) {
     myCanLockJars = canLockJars;
     myCanUseCache = canUseCache;
     myAcceptUnescapedUrls = acceptUnescapedUrls;
     myPreloadJarContents = preloadJarContents;
+    myUseClasspathIndex = useClasspathIndex;
+    myLoadingIndex = loadingIndex;
     push(urls);
   }
 
@@ -115,7 +140,8 @@ public class ClassPath {
 
   @Nullable
   public Resource getResource(String s, boolean flag) {
-    final long started = myDebugTime ? System.nanoTime():0;
+    final long started = myDebugTime ? System.nanoTime() : 0;
+    if (myDebugTime) myLookups++;
 
     try {
       int i;
@@ -137,7 +163,7 @@ public class ClassPath {
         if (myCanUseCache) {
           if (!myCache.loaderHasName(s, loader)) continue;
         }
-        Resource resource = loader.getResource(s, flag);
+        Resource resource = probe(loader, s, flag);
         if (resource != null) {
           return resource;
         }
@@ -146,8 +172,41 @@ public class ClassPath {
       return null;
     }
     finally {
-      if (myDebugTime) reportTime(started, s);
+      if (myDebugTime) {
+        myLookupTime += System.nanoTime() - started;
+        reportTime(started, s);
+      }
+    }
+  }
+
+  @Nullable
+  private Resource probe(Loader loader, String name, boolean flag) {
+    if (myDebugTime) myProbes++;
+    Resource resource = loader.getResource(name, flag);
+    if (myDebugTime && resource == null) myFailedProbes++;
+    return resource;
+  }
+
+  /**
+   * @return the number of jars and how many of them were read from the class loading index; if time debugging is on,
+   * also the number of lookups and the time they took, and the number of times the loaders were asked for a resource
+   * (a failed probe is a disk access or a jar lookup which has not found anything)
+   */
+  public String getLoadingStatistics() {
+    int jars = 0;
+    int indexedJars = 0;
+    synchronized (this) {
+      for (Loader loader : myLoaders) {
+        if (loader instanceof JarLoader) {
+          jars++;
+          if (((JarLoader)loader).isCacheBuiltFromIndex()) indexedJars++;
+        }
+      }
     }
+    final String jarsStatistics = "jars: " + jars + (myLoadingIndex != null ? " (" + indexedJars + " from index)" : "");
+    if (!myDebugTime) return jarsStatistics;
+    return "lookups: " + myLookups + " (" + myLookupTime / 1000000 + " ms), probes: " + myProbes + " (failed: " + myFailedProbes + "), " +
+           jarsStatistics;
   }
 
   public Enumeration<URL> getResources(final String name, final boolean check) {
@@ -206,11 +265,11 @@ public class ClassPath {
     Loader loader = null;
     if (s != null  && new File(s).isDirectory()) {
       if (FILE_PROTOCOL.equals(url.getProtocol())) {
-        loader = new FileLoader(url, index);
+        loader = new FileLoader(url, index, myUseClasspathIndex);
       }
     }
     else {
-      JarLoader jarLoader = new JarLoader(url, myCanLockJars, index);
+      JarLoader jarLoader = new JarLoader(url, myCanLockJars, index, myLoadingIndex);
       if (myPreloadJarContents) {
         jarLoader.preLoadClasses();
       }
@@ -276,14 +335,14 @@ public class ClassPath {
               myRes = null;
               continue;
             }
-            myRes = loader.getResource(myName, myCheck);
+            myRes = probe(loader, myName, myCheck);
             if (myRes != null) return true;
           }
         }
         else {
           while ((loader = getLoader(myIndex++)) != null) {
             if (!myCache.loaderHasName(myName, loader)) continue;
-            myRes = loader.getResource(myName, myCheck);
+            myRes = probe(loader, myName, myCheck);
             if (myRes != null) return true;
           }
         }
@@ -334,7 +393,7 @@ public class ClassPath {
     @Override
     Resource process(Loader loader, String s, ClassPath classPath) {
       if (!classPath.myCache.loaderHasName(s, loader)) return null;
-      final Resource resource = loader.getResource(s, myFlag);
+      final Resource resource = classPath.probe(loader, s, myFlag);
       if (resource != null) {
         if (ourDumpOrder) {
           printOrder(loader, s, resource);
@@ -53,10 +53,14 @@ public class ClasspathCache {
 
   public void addResourceEntry(String resourcePath, Loader loader) {
     myDebugInfo.addResourceEntry(resourcePath, loader);
+    addPackageEntry(getPackageName(resourcePath), resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION), loader);
+  }
 
-    String packageName = getPackageName(resourcePath);
-    TIntObjectHashMap<Object> map = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION) ?
-                                    myClassPackagesCache : myResourcePackagesCache;
+  /**
+   * Same as {@link #addResourceEntry(String, Loader)} for all the classes (or all the resources) of the package at once.
+   */
+  void addPackageEntry(String packageName, boolean classes, Loader loader) {
+    TIntObjectHashMap<Object> map = classes ? myClassPackagesCache : myResourcePackagesCache;
     int hash = packageName.hashCode();
     Object o = map.get(hash);
     if (o == null) map.put(hash, loader);
@@ -99,7 +103,7 @@ public class ClasspathCache {
     return null;
   }
 
-  private static String getPackageName(String resourcePath) {
+  static String getPackageName(String resourcePath) {
     final int idx = resourcePath.lastIndexOf('/');
     return idx > 0 ? resourcePath.substring(0, idx) : "";
   }
@@ -108,7 +112,13 @@ public class ClasspathCache {
   private int registeredAfterClose;
 
   public void addNameEntry(String name, Loader loader) {
-    name = transformName(name);
+    addTransformedNameEntry(transformName(name), loader);
+  }
+
+  /**
+   * @param name the name as returned by {@link #transformName(String)}
+   */
+  void addTransformedNameEntry(String name, Loader loader) {
     myDebugInfo.addNameEntry(name, loader);
     if (myTempMapMode) {
       Set<Loader> loaders = myResources2LoadersTempMap.get(name);
@@ -184,7 +194,7 @@ public class ClasspathCache {
     return result;
   }
   
-  private static String transformName(String name) {
+  static String transformName(String name) {
     if (name.endsWith("/")) {
       name = name.substring(0, name.length() - 1);
     }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index of a directory with compiled classes, stored in the directory itself. For every directory under the root it keeps the names of
+ * the files in it, so a class loader can tell that a class or a resource is absent without touching the disk.
+ * <p/>
+ * The build process updates the index only for the directories it has written to or deleted from (see {@link #update}),
+ * so the files written to the root by other tools are not known to the index until their directories are changed by a build.
+ * While a build is writing to the root, the index is marked dirty (see {@link #markDirty}) and is not loaded,
+ * so an index left behind by an interrupted build is not trusted.
+ */
+public class ClasspathIndex {
+  public static final String FILE_NAME = "classpath.index";
+  private static final String DIRTY_MARKER_NAME = FILE_NAME + ".dirty";
+  private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+  private static final int MAGIC = 0x43504958;
+  private static final int VERSION = 1;
+  /**
+   * key: path of a directory relative to the root ("" for the root itself); value: sorted names of the files in the directory
+   */
+  private final Map<String, String[]> myDirectories;
+
+  private ClasspathIndex(@NotNull Map<String, String[]> directories) {
+    myDirectories = directories;
+  }
+
+  /**
+   * @return null if the root has no index or its index is written in the old text format or cannot be read or is marked dirty
+   */
+  @Nullable
+  public static ClasspathIndex load(@NotNull File root) {
+    return load(root, false);
+  }
+
+  /**
+   * @param ignoreDirtyMarker true to load the index marked dirty by the caller itself
+   */
+  @Nullable
+  public static ClasspathIndex load(@NotNull File root, boolean ignoreDirtyMarker) {
+    final File file = new File(root, FILE_NAME);
+    if (!file.isFile() || !ignoreDirtyMarker && isDirty(root)) {
+      return null;
+    }
+    try {
+      final DataInputStream input = new DataInputStream(new ByteArrayInputStream(FileUtil.loadFileBytes(file)));
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        return null;
+      }
+      final int count = input.readInt();
+      final Map<String, String[]> directories = new THashMap<String, String[]>(count);
+      for (int i = 0; i < count; i++) {
+        final String directory = input.readUTF();
+        final String[] names = new String[input.readInt()];
+        for (int j = 0; j < names.length; j++) {
+          names[j] = input.readUTF();
+        }
+        directories.put(directory, names);
+      }
+      return new ClasspathIndex(directories);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return whether the file is written in the binary format of this index rather than in the old text format
+   */
+  static boolean isBinaryIndex(@NotNull File file) {
+    try {
+      final DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        return input.readInt() == MAGIC;
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  public static boolean isDirty(@NotNull File root) {
+    return new File(root, DIRTY_MARKER_NAME).exists();
+  }
+
+  /**
+   * Marks the index of the root as possibly not matching the files under it, until {@link #clearDirty} is called
+   */
+  public static void markDirty(@NotNull File root) throws IOException {
+    final File marker = new File(root, DIRTY_MARKER_NAME);
+    if (!marker.createNewFile() && !marker.isFile()) {
+      throw new IOException("Cannot create " + marker.getPath());
+    }
+  }
+
+  public static void clearDirty(@NotNull File root) {
+    FileUtil.delete(new File(root, DIRTY_MARKER_NAME));
+  }
+
+  @NotNull
+  public static ClasspathIndex build(@NotNull File root) {
+    final ClasspathIndex index = new ClasspathIndex(new THashMap<String, String[]>());
+    index.scan(root, "", true);
+    return index;
+  }
+
+  /**
+   * Lists the directories again, together with their parent directories not known to the index yet
+   *
+   * @param directories paths of the changed directories relative to the root
+   */
+  public void update(@NotNull File root, @NotNull Collection<String> directories) {
+    final Set<String> toList = new HashSet<String>();
+    for (String directory : directories) {
+      toList.add(directory);
+      String parent = getParentPath(directory);
+      while (parent != null && !myDirectories.containsKey(parent) && toList.add(parent)) {
+        parent = getParentPath(parent);
+      }
+    }
+    for (String directory : toList) {
+      scan(root, directory, false);
+    }
+  }
+
+  private void scan(@NotNull File root, @NotNull String directory, boolean recursive) {
+    final File[] children = (directory.isEmpty() ? root : new File(root, directory)).listFiles();
+    if (children == null) {
+      removeDirectory(directory);
+      return;
+    }
+    final List<String> names = new ArrayList<String>();
+    for (File child : children) {
+      final String name = child.getName();
+      if (child.isDirectory()) {
+        if (recursive) {
+          scan(root, directory.isEmpty() ? name : directory + "/" + name, true);
+        }
+      }
+      else if (!directory.isEmpty() || !name.startsWith(FILE_NAME)) {
+        names.add(name);
+      }
+    }
+    final String[] array = ArrayUtil.toStringArray(names);
+    Arrays.sort(array);
+    myDirectories.put(directory, array);
+  }
+
+  private void removeDirectory(@NotNull String directory) {
+    myDirectories.remove(directory);
+    final String prefix = directory + "/";
+    for (Iterator<String> iterator = myDirectories.keySet().iterator(); iterator.hasNext(); ) {
+      if (iterator.next().startsWith(prefix)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Writes the index to a temporary file first, so that a class loader never reads a partially written index
+   */
+  public void save(@NotNull File root) throws IOException {
+    final String[] directories = ArrayUtil.toStringArray(myDirectories.keySet());
+    Arrays.sort(directories);
+    final File tempFile = new File(root, TEMP_FILE_NAME);
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(directories.length);
+      for (String directory : directories) {
+        output.writeUTF(directory);
+        final String[] names = myDirectories.get(directory);
+        output.writeInt(names.length);
+        for (String name : names) {
+          output.writeUTF(name);
+        }
+      }
+    }
+    finally {
+      output.close();
+    }
+    final File file = new File(root, FILE_NAME);
+    if (!tempFile.renameTo(file)) {
+      // the target cannot be replaced on Windows
+      FileUtil.delete(file);
+      FileUtil.rename(tempFile, file);
+    }
+  }
+
+  public boolean containsDirectory(@NotNull String relativePath) {
+    return myDirectories.containsKey(relativePath);
+  }
+
+  /**
+   * @param resourcePath path of a class file or a resource relative to the root, e.g. "java/lang/Object.class"
+   * @return false if the file is definitely absent
+   */
+  public boolean mayContain(@NotNull String resourcePath) {
+    final String path = resourcePath.endsWith("/") ? resourcePath.substring(0, resourcePath.length() - 1) : resourcePath;
+    if (myDirectories.containsKey(path)) {
+      return true;
+    }
+    final int idx = path.lastIndexOf('/');
+    final String[] names = myDirectories.get(idx > 0 ? path.substring(0, idx) : "");
+    return names != null && Arrays.binarySearch(names, path.substring(idx + 1)) >= 0;
+  }
+
+  /**
+   * @return directories relative to the root mapped to the names of the files in them
+   */
+  @NotNull
+  Map<String, String[]> getDirectories() {
+    return Collections.unmodifiableMap(myDirectories);
+  }
+
+  @Nullable
+  private static String getParentPath(@NotNull String directory) {
+    if (directory.isEmpty()) {
+      return null;
+    }
+    final int idx = directory.lastIndexOf('/');
+    return idx > 0 ? directory.substring(0, idx) : "";
+  }
+}
@@ -23,16 +23,24 @@ import sun.misc.Resource;
 
 import java.io.*;
 import java.net.URL;
+import java.util.Map;
 
 class FileLoader extends Loader {
   private final File myRootDir;
   private final String myRootDirAbsolutePath;
+  private final boolean myUseIndex;
+  private volatile ClasspathIndex myIndex;
+  private volatile boolean myIndexLoaded;
   private static int misses;
   private static int hits;
 
+  /**
+   * @param useIndex whether the resources absent from the {@link ClasspathIndex} of the directory are not looked for on disk
+   */
   @SuppressWarnings({"HardCodedStringLiteral"})
-  FileLoader(URL url, int index) throws IOException {
+  FileLoader(URL url, int index, boolean useIndex) throws IOException {
     super(url, index);
+    myUseIndex = useIndex;
     if (!"file".equals(url.getProtocol())) {
       throw new IllegalArgumentException("url");
     }
@@ -75,8 +83,24 @@ class FileLoader extends Loader {
     return relativePath;
   }
 
+  @Nullable
+  private ClasspathIndex getClasspathIndex() {
+    if (!myIndexLoaded) {
+      myIndex = ClasspathIndex.load(myRootDir);
+      myIndexLoaded = true;
+    }
+    return myIndex;
+  }
+
   @Nullable
   Resource getResource(final String name, boolean check) {
+    if (myUseIndex) {
+      final ClasspathIndex index = getClasspathIndex();
+      if (index != null && !index.mayContain(name)) {
+        return null;
+      }
+    }
+
     URL url = null;
     File file = null;
 
@@ -117,8 +141,24 @@ class FileLoader extends Loader {
   }
 
   void buildCache(final ClasspathCache cache) throws IOException {
-    File index = new File(myRootDir, "classpath.index");
-    if (index.exists()) {
+    final ClasspathIndex classpathIndex = myUseIndex ? getClasspathIndex() : null;
+    if (classpathIndex != null) {
+      for (Map.Entry<String, String[]> entry : classpathIndex.getDirectories().entrySet()) {
+        final String directory = entry.getKey();
+        cache.addResourceEntry(directory, this);
+        cache.addNameEntry(directory, this);
+        for (String name : entry.getValue()) {
+          final String path = directory.isEmpty() ? name : directory + "/" + name;
+          cache.addResourceEntry(path, this);
+          cache.addNameEntry(path, this);
+        }
+      }
+      return;
+    }
+
+    File index = new File(myRootDir, ClasspathIndex.FILE_NAME);
+    // the binary index written by the build process may miss the files written by other tools, it is trusted only when asked to
+    if (index.exists() && !ClasspathIndex.isBinaryIndex(index)) {
       BufferedReader reader = new BufferedReader(new FileReader(index));
       try {
         do {
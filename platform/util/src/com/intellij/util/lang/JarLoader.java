@@ -35,6 +35,8 @@ class JarLoader extends Loader {
   private final URL myURL;
   private SoftReference<JarMemoryLoader> myMemoryLoader;
   private final boolean myCanLockJar;
+  @Nullable private final ClassLoadingIndex myLoadingIndex;
+  private boolean myCacheBuiltFromIndex;
   private static final boolean myDebugTime = false;
   private static int misses;
   private static int hits;
@@ -61,12 +63,20 @@ class JarLoader extends Loader {
   private static final long NS_THRESHOLD = 10000000;
 
   JarLoader(URL url, boolean canLockJar, int index) throws IOException {
+    this(url, canLockJar, index, null);
+  }
+
+  JarLoader(URL url, boolean canLockJar, int index, @Nullable ClassLoadingIndex loadingIndex) throws IOException {
     super(new URL(JAR_PROTOCOL, "", -1, url + "!/"), index);
     myURL = url;
     myCanLockJar = canLockJar;
+    myLoadingIndex = loadingIndex;
   }
 
   void preLoadClasses() {
+    final ClassLoadingIndex.JarRecord record = getIndexRecord();
+    if (record != null && !record.hasPreloadedContent()) return;
+
     ZipFile zipFile = null;
     try {
       zipFile = acquireZipFile();
@@ -111,25 +121,50 @@ class JarLoader extends Loader {
 
   @Nullable
   private ZipFile doGetZipFile() throws IOException {
-    if (FILE_PROTOCOL.equals(myURL.getProtocol())) {
-      String s = FileUtil.unquote(myURL.getFile());
-      if (!new File(s).exists()) {
-        throw new FileNotFoundException(s);
+    File file = getJarFile();
+    if (file != null) {
+      if (!file.exists()) {
+        throw new FileNotFoundException(file.getPath());
       }
       else {
-        return new ZipFile(s);
+        return new ZipFile(file);
       }
     }
 
     return null;
   }
 
+  @Nullable
+  private File getJarFile() {
+    return FILE_PROTOCOL.equals(myURL.getProtocol()) ? new File(FileUtil.unquote(myURL.getFile())) : null;
+  }
+
+  @Nullable
+  private ClassLoadingIndex.JarRecord getIndexRecord() {
+    if (myLoadingIndex == null) return null;
+    File file = getJarFile();
+    return file != null ? myLoadingIndex.getRecord(file) : null;
+  }
+
+  boolean isCacheBuiltFromIndex() {
+    return myCacheBuiltFromIndex;
+  }
+
   @Override
   void buildCache(final ClasspathCache cache) throws IOException {
+    ClassLoadingIndex.JarRecord record = getIndexRecord();
+    if (record != null) {
+      record.fillCache(cache, this);
+      myCacheBuiltFromIndex = true;
+      return;
+    }
+
     ZipFile zipFile = null;
     try {
       zipFile = acquireZipFile();
       if (zipFile == null) return;
+      File file = myLoadingIndex != null ? getJarFile() : null;
+      ClassLoadingIndex.JarRecordBuilder recordBuilder = file != null ? new ClassLoadingIndex.JarRecordBuilder(file) : null;
       final Enumeration<? extends ZipEntry> entries = zipFile.entries();
 
       while (entries.hasMoreElements()) {
@@ -137,6 +172,11 @@ class JarLoader extends Loader {
         String name = zipEntry.getName();
         cache.addResourceEntry(name, this);
         cache.addNameEntry(name, this);
+        if (recordBuilder != null) recordBuilder.addEntry(name);
+      }
+
+      if (recordBuilder != null) {
+        myLoadingIndex.putRecord(file, recordBuilder.build());
       }
     }
     finally {
@@ -58,6 +58,15 @@ public class UrlClassLoader extends ClassLoader {
   }
 
   public UrlClassLoader(List<URL> urls, @Nullable ClassLoader parent, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, final boolean preloadJarContents) {
+    this(urls, parent, canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents, false);
+  }
+
+  /**
+   * @param useClasspathIndex if true, the classes and resources absent from the {@link ClasspathIndex} written by the build process
+   *                          into a directory are not looked for in that directory
+   */
+  public UrlClassLoader(List<URL> urls, @Nullable ClassLoader parent, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls,
+                        final boolean preloadJarContents, boolean useClasspathIndex) {
     super(parent);
 
     List<URL> list = ContainerUtil.map(urls, new Function<URL, URL>() {
@@ -66,7 +75,8 @@ public class UrlClassLoader extends ClassLoader {
         return internProtocol(url);
       }
     });
-    myClassPath = new ClassPath(list.toArray(new URL[list.size()]), canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents);
+    myClassPath = new ClassPath(list.toArray(new URL[list.size()]), canLockJars, canUseCache, acceptUnescapedUrls, preloadJarContents,
+                                useClasspathIndex);
     myURLs = list;
   }
 
@@ -94,6 +104,13 @@ public class UrlClassLoader extends ClassLoader {
     return Collections.unmodifiableList(myURLs);
   }
 
+  /**
+   * @see ClassPath#getLoadingStatistics()
+   */
+  public String getLoadingStatistics() {
+    return myClassPath.getLoadingStatistics();
+  }
+
   @Override
   protected Class findClass(final String name) throws ClassNotFoundException {
     Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
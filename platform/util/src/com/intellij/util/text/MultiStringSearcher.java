@@ -0,0 +1,196 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds occurrences of several patterns in a single pass over the text (Aho-Corasick automaton).
+ * The patterns are described by forward {@link StringSearcher}s; each of them keeps its own case sensitivity.
+ * Word boundaries and escape sequences are not checked here, see {@code LowLevelSearchUtil}.
+ */
+public class MultiStringSearcher {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.text.MultiStringSearcher");
+  private static final int ROOT = 0;
+
+  private final StringSearcher[] mySearchers;
+  private final char[][] myPatterns;
+  // (state << 16 | lower-cased char) -> next state; 0 means there is no transition because the root is never a target
+  private final TLongIntHashMap myTransitions = new TLongIntHashMap();
+  private final int[] myFailures;
+  // searcher indices of all the patterns ending in the state, including those reachable by failure links
+  private final int[][] myOutputs;
+
+  public interface OccurrenceConsumer {
+    /**
+     * @return false to stop the scanning
+     */
+    boolean consume(int searcherIndex, int startOffset);
+  }
+
+  public MultiStringSearcher(@NotNull List<StringSearcher> searchers) {
+    LOG.assertTrue(!searchers.isEmpty());
+    mySearchers = searchers.toArray(new StringSearcher[searchers.size()]);
+    myPatterns = new char[mySearchers.length][];
+
+    TIntArrayList parents = new TIntArrayList();
+    TIntArrayList depths = new TIntArrayList();
+    StringBuilder incoming = new StringBuilder();
+    List<TIntArrayList> outputs = new ArrayList<TIntArrayList>();
+    parents.add(ROOT);
+    depths.add(0);
+    incoming.append((char)0);
+    outputs.add(null);
+
+    for (int i = 0; i < mySearchers.length; i++) {
+      StringSearcher searcher = mySearchers[i];
+      LOG.assertTrue(searcher.isForwardDirection(), searcher.getPattern());
+      char[] pattern = searcher.getPattern().toCharArray();
+      myPatterns[i] = pattern;
+
+      int state = ROOT;
+      for (char c : pattern) {
+        char lower = StringUtil.toLowerCase(c);
+        long key = key(state, lower);
+        int next = myTransitions.get(key);
+        if (next == ROOT) {
+          next = parents.size();
+          parents.add(state);
+          depths.add(depths.get(state) + 1);
+          incoming.append(lower);
+          outputs.add(null);
+          myTransitions.put(key, next);
+        }
+        state = next;
+      }
+      TIntArrayList output = outputs.get(state);
+      if (output == null) outputs.set(state, output = new TIntArrayList(1));
+      output.add(i);
+    }
+
+    myFailures = new int[parents.size()];
+    myOutputs = new int[parents.size()][];
+    buildFailureLinks(parents.toNativeArray(), depths.toNativeArray(), incoming, outputs);
+  }
+
+  private void buildFailureLinks(@NotNull int[] parents,
+                                 @NotNull final int[] depths,
+                                 @NotNull CharSequence incoming,
+                                 @NotNull List<TIntArrayList> outputs) {
+    // states are visited by increasing depth, so the failure target of a state is always finished before the state itself
+    Integer[] order = new Integer[parents.length];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return depths[o1] - depths[o2];
+      }
+    });
+
+    for (int state : order) {
+      int failure = ROOT;
+      int parent = parents[state];
+      if (state != ROOT && parent != ROOT) {
+        char c = incoming.charAt(state);
+        int candidate = myFailures[parent];
+        while (true) {
+          int next = myTransitions.get(key(candidate, c));
+          if (next != ROOT) {
+            failure = next;
+            break;
+          }
+          if (candidate == ROOT) break;
+          candidate = myFailures[candidate];
+        }
+      }
+      myFailures[state] = failure;
+
+      TIntArrayList own = outputs.get(state);
+      int[] inherited = state == ROOT ? ArrayUtil.EMPTY_INT_ARRAY : myOutputs[failure];
+      if (own == null) {
+        myOutputs[state] = inherited;
+      }
+      else {
+        own.add(inherited);
+        myOutputs[state] = own.toNativeArray();
+      }
+    }
+  }
+
+  private static long key(int state, char c) {
+    return ((long)state << 16) | c;
+  }
+
+  @NotNull
+  public StringSearcher getSearcher(int searcherIndex) {
+    return mySearchers[searcherIndex];
+  }
+
+  public int getSearcherCount() {
+    return mySearchers.length;
+  }
+
+  /**
+   * Reports every occurrence of every pattern inside [start, end) in the order of occurrence ends.
+   *
+   * @return false if the consumer has stopped the scanning
+   */
+  public boolean scan(@NotNull CharSequence text, @Nullable char[] textArray, int start, int end, @NotNull OccurrenceConsumer consumer) {
+    LOG.assertTrue(start <= end, start - end);
+    LOG.assertTrue(end <= text.length(), text.length() - end);
+
+    int state = ROOT;
+    for (int offset = start; offset < end; offset++) {
+      char c = StringUtil.toLowerCase(textArray != null ? textArray[offset] : text.charAt(offset));
+      while (true) {
+        int next = myTransitions.get(key(state, c));
+        if (next != ROOT) {
+          state = next;
+          break;
+        }
+        if (state == ROOT) break;
+        state = myFailures[state];
+      }
+
+      for (int searcherIndex : myOutputs[state]) {
+        char[] pattern = myPatterns[searcherIndex];
+        int occurrenceStart = offset - pattern.length + 1;
+        if (mySearchers[searcherIndex].isCaseSensitive() && !matchesExactly(text, textArray, occurrenceStart, pattern)) continue;
+        if (!consumer.consume(searcherIndex, occurrenceStart)) return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesExactly(@NotNull CharSequence text, @Nullable char[] textArray, int start, @NotNull char[] pattern) {
+    for (int i = 0; i < pattern.length; i++) {
+      char c = textArray != null ? textArray[start + i] : text.charAt(start + i);
+      if (c != pattern[i]) return false;
+    }
+    return true;
+  }
+}
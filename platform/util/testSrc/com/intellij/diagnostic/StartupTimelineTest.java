@@ -0,0 +1,43 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.diagnostic;
+
+import junit.framework.TestCase;
+
+public class StartupTimelineTest extends TestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    StartupTimeline.getReport("");
+  }
+
+  public void testNestedActivitiesAreNotCountedTwice() throws InterruptedException {
+    StartupTimeline.Activity outer = StartupTimeline.start("component", "Outer", "a");
+    Thread.sleep(30);
+    StartupTimeline.Activity inner = StartupTimeline.start("component", "Inner", null);
+    Thread.sleep(100);
+    inner.end("b");
+    outer.end();
+
+    String report = StartupTimeline.getReport("test");
+    assertNotNull(report);
+    assertTrue(report, report.startsWith("test: 2 activities took "));
+    // the inner activity is the slowest one as the outer one owns only the time outside of it
+    assertTrue(report, report.indexOf("component Inner [b]") < report.indexOf("component Outer [a]"));
+    assertTrue(report, report.indexOf("\n  b: ") < report.indexOf("\n  a: "));
+    assertNull(StartupTimeline.getReport("test"));
+  }
+}
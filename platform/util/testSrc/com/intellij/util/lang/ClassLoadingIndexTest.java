@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ClassLoadingIndexTest {
+  private File myTempDirectory;
+  private File myIndexFile;
+  private File myJar1;
+  private File myJar2;
+
+  @Before
+  public void setUp() throws Exception {
+    myTempDirectory = FileUtil.createTempDirectory("__", "__");
+    myIndexFile = new File(myTempDirectory, "classloading.index");
+    myJar1 = createJar("1.jar", "a/A.class", "a/A$Inner.class", "a/res.txt");
+    myJar2 = createJar("2.jar", "b/B.class");
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.delete(myTempDirectory);
+  }
+
+  @Test
+  public void testCacheIsFilledFromIndex() throws IOException {
+    ClassLoadingIndex index = new ClassLoadingIndex(myIndexFile);
+    ClassPath classPath = createClassPath(index);
+    assertNotNull(classPath.getResource("b/B.class", false));
+    assertTrue(classPath.getLoadingStatistics(), classPath.getLoadingStatistics().contains("jars: 2 (0 from index)"));
+    index.save();
+
+    index = new ClassLoadingIndex(myIndexFile);
+    assertNotNull(index.getRecord(myJar1));
+    assertNotNull(index.getRecord(myJar2));
+    classPath = createClassPath(index);
+    assertNotNull(classPath.getResource("b/B.class", false));
+    assertNotNull(classPath.getResource("a/A$Inner.class", false));
+    assertNotNull(classPath.getResource("a/res.txt", false));
+    assertNull(classPath.getResource("a/B.class", false));
+    assertNull(classPath.getResource("c/C.class", false));
+    String statistics = classPath.getLoadingStatistics();
+    assertTrue(statistics, statistics.contains("jars: 2 (2 from index)"));
+  }
+
+  @Test
+  public void testChangedJarIsScannedAgain() throws IOException {
+    ClassLoadingIndex index = new ClassLoadingIndex(myIndexFile);
+    createClassPath(index).getResource("b/B.class", false);
+    index.save();
+
+    createJar("2.jar", "b/B.class", "b/C.class");
+    assertTrue(myJar2.setLastModified(myJar2.lastModified() + 2000));
+    index = new ClassLoadingIndex(myIndexFile);
+    assertNotNull(index.getRecord(myJar1));
+    assertNull(index.getRecord(myJar2));
+    ClassPath classPath = createClassPath(index);
+    assertNotNull(classPath.getResource("b/C.class", false));
+    assertTrue(classPath.getLoadingStatistics(), classPath.getLoadingStatistics().contains("jars: 2 (1 from index)"));
+    assertNotNull(index.getRecord(myJar2));
+  }
+
+  private ClassPath createClassPath(ClassLoadingIndex index) throws IOException {
+    URL[] urls = {myJar1.toURI().toURL(), myJar2.toURI().toURL()};
+    return new ClassPath(urls, false, true, false, false, false, index);
+  }
+
+  private File createJar(String name, String... entries) throws IOException {
+    File jar = new File(myTempDirectory, name);
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        output.putNextEntry(new ZipEntry(entry));
+        output.write(entry.getBytes());
+        output.closeEntry();
+      }
+    }
+    finally {
+      output.close();
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiStringSearcherTest extends TestCase {
+  public void testOverlappingPatterns() {
+    assertEquals("[1:1, 0:2, 2:2, 3:4]", doTest("he", "she", "hers", "rs", "ushers"));
+  }
+
+  public void testCaseSensitivity() {
+    MultiStringSearcher searcher = new MultiStringSearcher(Arrays.asList(new StringSearcher("Foo", true, true),
+                                                                         new StringSearcher("foo", false, true)));
+    assertEquals("[0:0, 1:0, 1:4]", collect(searcher, "Foo foo"));
+  }
+
+  public void testSamePatternTwice() {
+    assertEquals("[0:2, 1:2]", doTest("ab", "ab", "xxab"));
+  }
+
+  public void testEachOccurrenceOfSinglePatternIsFound() {
+    String text = "zoo TargetWord foo bar TargetWord\nTargetWordTargetWord";
+    StringSearcher single = new StringSearcher("TargetWord", true, true);
+    List<String> expected = new ArrayList<String>();
+    for (int i = single.scan(text); i >= 0; i = single.scan(text, i + 1, text.length())) {
+      expected.add("0:" + i);
+    }
+    assertEquals(expected.toString(), doTest("TargetWord", text));
+  }
+
+  private static String doTest(String... patternsAndText) {
+    List<StringSearcher> searchers = new ArrayList<StringSearcher>();
+    for (int i = 0; i < patternsAndText.length - 1; i++) {
+      searchers.add(new StringSearcher(patternsAndText[i], true, true));
+    }
+    return collect(new MultiStringSearcher(searchers), patternsAndText[patternsAndText.length - 1]);
+  }
+
+  private static String collect(MultiStringSearcher searcher, String text) {
+    final List<String> result = new ArrayList<String>();
+    searcher.scan(text, null, 0, text.length(), new MultiStringSearcher.OccurrenceConsumer() {
+      @Override
+      public boolean consume(int searcherIndex, int startOffset) {
+        result.add(searcherIndex + ":" + startOffset);
+        return true;
+      }
+    });
+    return result.toString();
+  }
+}
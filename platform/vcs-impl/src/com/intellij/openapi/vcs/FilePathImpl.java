@@ -219,6 +219,17 @@ public class FilePathImpl implements FilePath {
     return virtualFile;
   }
 
+  /**
+   * Unlike {@link #getVirtualFile()}, doesn't look the virtual file up and doesn't detect its file type.
+   *
+   * @return the virtual file this path has already been resolved to, if it is still valid
+   */
+  @Nullable
+  public VirtualFile getCachedVirtualFile() {
+    VirtualFile virtualFile = myVirtualFile;
+    return virtualFile != null && virtualFile.isValid() ? virtualFile : null;
+  }
+
   @Override
   @Nullable
   public VirtualFile getVirtualFileParent() {
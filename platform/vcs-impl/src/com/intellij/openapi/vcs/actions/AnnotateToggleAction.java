@@ -210,7 +210,8 @@ public class AnnotateToggleAction extends ToggleAction implements DumbAware, Ann
                                 final VirtualFile file,
                                 final FileAnnotation fileAnnotation,
                                 final AbstractVcs vcs, final boolean onCurrentRevision) {
-    final UpToDateLineNumberProvider getUpToDateLineNumber = new UpToDateLineNumberProviderImpl(editor.getDocument(), project);
+    final UpToDateLineNumberProvider getUpToDateLineNumber =
+      new UpToDateLineNumberProviderImpl(editor.getDocument(), project, fileAnnotation.getAnnotatedContent());
     editor.getGutter().closeAllAnnotations();
     final VcsAnnotationLocalChangesListener listener = ProjectLevelVcsManager.getInstance(project).getAnnotationLocalChangesListener();
 
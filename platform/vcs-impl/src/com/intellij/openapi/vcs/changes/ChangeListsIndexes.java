@@ -17,45 +17,136 @@ package com.intellij.openapi.vcs.changes;
 
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.BaseRevision;
 import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.FilePathImpl;
 import com.intellij.openapi.vcs.FileStatus;
 import com.intellij.openapi.vcs.VcsKey;
 import com.intellij.openapi.vcs.history.VcsRevisionNumber;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.util.BeforeAfter;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.*;
 
+/**
+ * The copy made by {@link #ChangeListsIndexes(ChangeListsIndexes)} shares the indexes with the original until either of them is modified.
+ */
 public class ChangeListsIndexes {
-  private final TreeMap<String, FileStatus> myFileToStatus;
-  private final Map<String, Pair<VcsKey, VcsRevisionNumber>> myFileToVcs;
+  private TreeMap<String, FileStatus> myFileToStatus;
+  private Map<String, Pair<VcsKey, VcsRevisionNumber>> myFileToVcs;
+  // statuses of the files having a virtual file, so that the status of a virtual file is found without building its path
+  private TIntObjectHashMap<FileStatus> myIdToStatus;
+  private TObjectIntHashMap<String> myFileToId;
+  // the file owning each id: a moved file's old and new paths may both refer to the same virtual file
+  private TIntObjectHashMap<String> myIdToFile;
+  // names of the files having no virtual file (e.g. deleted) -> number of such files
+  private TObjectIntHashMap<String> myNamesWithoutId;
+  // whether the indexes are shared with a copy and must be copied before modification
+  private boolean myShared;
 
   ChangeListsIndexes() {
     myFileToStatus = new TreeMap<String, FileStatus>();
     myFileToVcs = new HashMap<String, Pair<VcsKey, VcsRevisionNumber>>();
+    myIdToStatus = new TIntObjectHashMap<FileStatus>();
+    myFileToId = new TObjectIntHashMap<String>();
+    myIdToFile = new TIntObjectHashMap<String>();
+    myNamesWithoutId = new TObjectIntHashMap<String>();
   }
 
   ChangeListsIndexes(final ChangeListsIndexes idx) {
-    myFileToStatus = new TreeMap<String, FileStatus>(idx.myFileToStatus);
-    myFileToVcs = new HashMap<String, Pair<VcsKey, VcsRevisionNumber>>(idx.myFileToVcs);
+    myFileToStatus = idx.myFileToStatus;
+    myFileToVcs = idx.myFileToVcs;
+    myIdToStatus = idx.myIdToStatus;
+    myFileToId = idx.myFileToId;
+    myIdToFile = idx.myIdToFile;
+    myNamesWithoutId = idx.myNamesWithoutId;
+    myShared = true;
+    idx.myShared = true;
+  }
+
+  private void beforeModification() {
+    if (myShared) {
+      myFileToStatus = new TreeMap<String, FileStatus>(myFileToStatus);
+      myFileToVcs = new HashMap<String, Pair<VcsKey, VcsRevisionNumber>>(myFileToVcs);
+      myIdToStatus = myIdToStatus.clone();
+      myFileToId = (TObjectIntHashMap<String>)myFileToId.clone();
+      myIdToFile = myIdToFile.clone();
+      myNamesWithoutId = (TObjectIntHashMap<String>)myNamesWithoutId.clone();
+      myShared = false;
+    }
   }
 
   void add(final FilePath file, final FileStatus status, final VcsKey key, VcsRevisionNumber number) {
+    beforeModification();
     final String fileKey = file.getIOFile().getAbsolutePath();
+    removeId(fileKey);
     myFileToStatus.put(fileKey, status);
     myFileToVcs.put(fileKey, Pair.create(key, number));
+
+    // called under the change list manager's lock: the virtual file is not looked up, its id is taken only if the path already holds it
+    final VirtualFile virtualFile = file instanceof FilePathImpl ? ((FilePathImpl)file).getCachedVirtualFile() : null;
+    // the virtual file of a moved file's old path may have moved along, file.getPath() would follow it
+    if (virtualFile instanceof VirtualFileWithId && FileUtil.filesEqual(new File(virtualFile.getPath()), file.getIOFile())) {
+      final int id = ((VirtualFileWithId)virtualFile).getId();
+      final String previousOwner = myIdToFile.put(id, fileKey);
+      if (previousOwner != null) {
+        // the file has been moved since the previous path was added, it is looked up by the path from now on
+        myFileToId.remove(previousOwner);
+        addNameWithoutId(new File(previousOwner).getName());
+      }
+      myIdToStatus.put(id, status);
+      myFileToId.put(fileKey, id);
+    }
+    else {
+      addNameWithoutId(file.getName());
+    }
+  }
+
+  private void addNameWithoutId(final String name) {
+    myNamesWithoutId.put(name, myNamesWithoutId.get(name) + 1);
   }
 
   void remove(final FilePath file) {
     final String fileKey = file.getIOFile().getAbsolutePath();
+    if (!myFileToStatus.containsKey(fileKey)) return;
+    beforeModification();
+    removeId(fileKey);
     myFileToStatus.remove(fileKey);
     myFileToVcs.remove(fileKey);
   }
 
+  private void removeId(final String fileKey) {
+    if (myFileToId.containsKey(fileKey)) {
+      final int id = myFileToId.remove(fileKey);
+      if (fileKey.equals(myIdToFile.get(id))) {
+        myIdToStatus.remove(id);
+        myIdToFile.remove(id);
+      }
+    }
+    else if (myFileToStatus.containsKey(fileKey)) {
+      final String name = new File(fileKey).getName();
+      final int count = myNamesWithoutId.get(name);
+      if (count > 1) {
+        myNamesWithoutId.put(name, count - 1);
+      }
+      else {
+        myNamesWithoutId.remove(name);
+      }
+    }
+  }
+
   public FileStatus getStatus(final VirtualFile file) {
+    if (file instanceof VirtualFileWithId) {
+      final FileStatus status = myIdToStatus.get(((VirtualFileWithId)file).getId());
+      // the file could have had no virtual file when it was added
+      if (status != null || !myNamesWithoutId.containsKey(file.getName())) return status;
+    }
     return myFileToStatus.get(new File(file.getPath()).getAbsolutePath());
   }
   
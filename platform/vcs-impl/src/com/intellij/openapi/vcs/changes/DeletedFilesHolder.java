@@ -27,24 +27,36 @@ import java.util.Map;
  * @author max
  */
 public class DeletedFilesHolder implements FileHolder {
-  private final Map<String, LocallyDeletedChange> myFiles = new HashMap<String, LocallyDeletedChange>();
+  private Map<String, LocallyDeletedChange> myFiles = new HashMap<String, LocallyDeletedChange>();
+  // whether myFiles is shared with a copy of the holder and must be copied before modification
+  private boolean myShared;
 
   public void cleanAll() {
-    myFiles.clear();
+    myFiles = new HashMap<String, LocallyDeletedChange>();
+    myShared = false;
   }
   
   public void takeFrom(final DeletedFilesHolder holder) {
-    myFiles.clear();
-    myFiles.putAll(holder.myFiles);
+    myFiles = holder.myFiles;
+    myShared = true;
+    holder.myShared = true;
+  }
+
+  private void beforeModification() {
+    if (myShared) {
+      myFiles = new HashMap<String, LocallyDeletedChange>(myFiles);
+      myShared = false;
+    }
   }
 
   public void cleanAndAdjustScope(final VcsModifiableDirtyScope scope) {
     if (scope == null) {
-      myFiles.clear();
+      cleanAll();
     }
     final List<LocallyDeletedChange> currentFiles = new ArrayList<LocallyDeletedChange>(myFiles.values());
     for (LocallyDeletedChange change : currentFiles) {
       if (scope.belongsTo(change.getPath())) {
+        beforeModification();
         myFiles.remove(change.getPresentableUrl());
       }
     }
@@ -59,6 +71,7 @@ public class DeletedFilesHolder implements FileHolder {
   }
 
   public void addFile(final LocallyDeletedChange change) {
+    beforeModification();
     myFiles.put(change.getPresentableUrl(), change);
   }
 
@@ -71,9 +84,10 @@ public class DeletedFilesHolder implements FileHolder {
     return myFiles.containsKey(url);
   }
 
+  // the copy shares the files with this holder until either of them is modified
   public DeletedFilesHolder copy() {
     final DeletedFilesHolder copyHolder = new DeletedFilesHolder();
-    copyHolder.myFiles.putAll(myFiles);
+    copyHolder.takeFrom(this);
     return copyHolder;
   }
 
@@ -16,41 +16,38 @@
 package com.intellij.openapi.vcs.changes;
 
 import com.intellij.openapi.fileTypes.FileTypeManager;
-import com.intellij.openapi.vcs.FilePathImpl;
 import com.intellij.openapi.vcs.VcsRoot;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
 
 public class DirtBuilder implements DirtBuilderReader {
   private final VcsGuess myGuess;
   private final FileTypeManager myFileTypeManager;
 
-  private final Set<FilePathUnderVcs> myFiles;
-  private final Set<FilePathUnderVcs> myDirs;
+  private final DirtTrie myDirt;
   private boolean myEverythingDirty;
+  // number of the paths added since the last reset, including the ones which were covered by the other dirty paths
+  private int myAddedCount;
 
   public DirtBuilder(final VcsGuess guess) {
     myGuess = guess;
-    myDirs = new HashSet<FilePathUnderVcs>();
-    myFiles = new HashSet<FilePathUnderVcs>();
+    myDirt = new DirtTrie();
     myEverythingDirty = false;
     myFileTypeManager = FileTypeManager.getInstance();
   }
 
   public DirtBuilder(final DirtBuilder builder) {
     myGuess = builder.myGuess;
-    myDirs = new HashSet<FilePathUnderVcs>(builder.myDirs);
-    myFiles = new HashSet<FilePathUnderVcs>(builder.myFiles);
+    myDirt = new DirtTrie(builder.myDirt);
     myEverythingDirty = builder.myEverythingDirty;
+    myAddedCount = builder.myAddedCount;
     myFileTypeManager = FileTypeManager.getInstance();
   }
 
   public void reset() {
-    myFiles.clear();
-    myDirs.clear();
+    myDirt.clear();
     myEverythingDirty = false;
+    myAddedCount = 0;
   }
 
   public void everythingDirty() {
@@ -59,22 +56,26 @@ public class DirtBuilder implements DirtBuilderReader {
 
   public void addDirtyFile(final VcsRoot root) {
     if (myFileTypeManager.isFileIgnored(root.getPath().getName())) return;
-    myFiles.add(new FilePathUnderVcs(new FilePathImpl(root.getPath()), root.getVcs()));
+    myAddedCount++;
+    myDirt.addFile(root);
   }
 
   public void addDirtyDirRecursively(final VcsRoot root) {
     if (myFileTypeManager.isFileIgnored(root.getPath().getName())) return;
-    myDirs.add(new FilePathUnderVcs(new FilePathImpl(root.getPath()), root.getVcs()));
+    myAddedCount++;
+    myDirt.addDirRecursively(root);
   }
 
   public void addDirtyFile(final FilePathUnderVcs root) {
     if (myFileTypeManager.isFileIgnored(root.getPath().getName())) return;
-    myFiles.add(root);
+    myAddedCount++;
+    myDirt.addFile(root);
   }
 
   public void addDirtyDirRecursively(final FilePathUnderVcs root) {
     if (myFileTypeManager.isFileIgnored(root.getPath().getName())) return;
-    myDirs.add(root);
+    myAddedCount++;
+    myDirt.addDirRecursively(root);
   }
 
   public boolean isEverythingDirty() {
@@ -82,14 +83,28 @@ public class DirtBuilder implements DirtBuilderReader {
   }
 
   public Collection<FilePathUnderVcs> getFilesForVcs() {
-    return myFiles;
+    return myDirt.getFiles();
   }
 
   public Collection<FilePathUnderVcs> getDirsForVcs() {
-    return myDirs;
+    return myDirt.getDirs();
   }
 
   public boolean isEmpty() {
-    return myFiles.isEmpty() && myDirs.isEmpty();
+    return myDirt.isEmpty();
+  }
+
+  /**
+   * @return number of the dirty files and recursively dirty directories, the paths under recursively dirty directories excluded
+   */
+  public int getSize() {
+    return myDirt.size();
+  }
+
+  /**
+   * @return number of the paths marked dirty since the last reset
+   */
+  public int getAddedCount() {
+    return myAddedCount;
   }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.VcsRoot;
+import com.intellij.openapi.vfs.VirtualFile;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dirty files and recursively dirty directories kept as a tree of path components, a tree per VCS.
+ * <p/>
+ * Adding a path takes time proportional to the length of the path: a path under a recursively dirty directory is not added,
+ * and a directory marked dirty recursively drops the dirty paths under it, so the tree stays as small as the resulting dirty scope.
+ * Paths added as {@link VcsRoot} are converted to {@link FilePathUnderVcs} only when the dirt is taken, and only if they are still there.
+ */
+class DirtTrie {
+  // vcs name -> the root of the tree
+  private final Map<String, Node> myRoots;
+  private int mySize;
+
+  DirtTrie() {
+    myRoots = new HashMap<String, Node>();
+  }
+
+  DirtTrie(@NotNull DirtTrie trie) {
+    myRoots = new HashMap<String, Node>(trie.myRoots.size());
+    for (Map.Entry<String, Node> entry : trie.myRoots.entrySet()) {
+      myRoots.put(entry.getKey(), new Node(entry.getValue()));
+    }
+    mySize = trie.mySize;
+  }
+
+  void addFile(@NotNull VcsRoot root) {
+    VirtualFile file = root.getPath();
+    if (file != null) {
+      add(root.getVcs(), file.getPath(), root, false);
+    }
+  }
+
+  void addFile(@NotNull FilePathUnderVcs path) {
+    add(path.getVcs(), path.getPath().getIOFile().getPath(), path, false);
+  }
+
+  void addDirRecursively(@NotNull VcsRoot root) {
+    VirtualFile file = root.getPath();
+    if (file != null) {
+      add(root.getVcs(), file.getPath(), root, true);
+    }
+  }
+
+  void addDirRecursively(@NotNull FilePathUnderVcs path) {
+    add(path.getVcs(), path.getPath().getIOFile().getPath(), path, true);
+  }
+
+  /**
+   * @return number of the dirty files and recursively dirty directories
+   */
+  int size() {
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  void clear() {
+    myRoots.clear();
+    mySize = 0;
+  }
+
+  @NotNull
+  List<FilePathUnderVcs> getFiles() {
+    List<FilePathUnderVcs> result = new ArrayList<FilePathUnderVcs>();
+    for (Node root : myRoots.values()) {
+      root.collect(false, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  List<FilePathUnderVcs> getDirs() {
+    List<FilePathUnderVcs> result = new ArrayList<FilePathUnderVcs>();
+    for (Node root : myRoots.values()) {
+      root.collect(true, result);
+    }
+    return result;
+  }
+
+  private void add(@Nullable AbstractVcs vcs, @NotNull String path, @NotNull Object dirt, boolean recursive) {
+    String vcsName = vcs == null ? "" : vcs.getName();
+    Node node = myRoots.get(vcsName);
+    if (node == null) {
+      node = new Node();
+      myRoots.put(vcsName, node);
+    }
+
+    path = FileUtil.toSystemIndependentName(path);
+    int start = 0;
+    while (start <= path.length()) {
+      if (node.myDir != null) return; // under a recursively dirty directory
+      int end = path.indexOf('/', start);
+      if (end < 0) end = path.length();
+      if (end > start) {
+        node = node.getOrCreateChild(path.substring(start, end));
+      }
+      start = end + 1;
+    }
+    if (node.myDir != null) return;
+
+    if (recursive) {
+      mySize -= node.count();
+      node.myChildren = null;
+      node.myFile = null;
+      node.myDir = dirt;
+      mySize++;
+    }
+    else if (node.myFile == null) {
+      node.myFile = dirt;
+      mySize++;
+    }
+  }
+
+  private static class Node {
+    @Nullable private Map<String, Node> myChildren;
+    // FilePathUnderVcs or VcsRoot
+    @Nullable private Object myFile;
+    @Nullable private Object myDir;
+
+    private Node() {
+    }
+
+    private Node(@NotNull Node node) {
+      myFile = node.myFile;
+      myDir = node.myDir;
+      if (node.myChildren != null) {
+        myChildren = new THashMap<String, Node>(node.myChildren.size(), FileUtil.PATH_HASHING_STRATEGY);
+        for (Map.Entry<String, Node> entry : node.myChildren.entrySet()) {
+          myChildren.put(entry.getKey(), new Node(entry.getValue()));
+        }
+      }
+    }
+
+    @NotNull
+    private Node getOrCreateChild(@NotNull String name) {
+      if (myChildren == null) {
+        myChildren = new THashMap<String, Node>(2, FileUtil.PATH_HASHING_STRATEGY);
+      }
+      Node child = myChildren.get(name);
+      if (child == null) {
+        child = new Node();
+        myChildren.put(name, child);
+      }
+      return child;
+    }
+
+    /**
+     * @return number of the dirty paths in the subtree
+     */
+    private int count() {
+      int result = (myFile != null ? 1 : 0) + (myDir != null ? 1 : 0);
+      if (myChildren != null) {
+        for (Node child : myChildren.values()) {
+          result += child.count();
+        }
+      }
+      return result;
+    }
+
+    private void collect(boolean dirs, @NotNull Collection<FilePathUnderVcs> result) {
+      if (dirs && myDir != null) {
+        result.add(toPath(myDir));
+      }
+      if (!dirs && myFile != null) {
+        result.add(toPath(myFile));
+      }
+      if (myChildren != null) {
+        for (Node child : myChildren.values()) {
+          child.collect(dirs, result);
+        }
+      }
+    }
+
+    @NotNull
+    private static FilePathUnderVcs toPath(@NotNull Object dirt) {
+      return dirt instanceof VcsRoot ? new FilePathUnderVcs((VcsRoot)dirt) : (FilePathUnderVcs)dirt;
+    }
+  }
+}
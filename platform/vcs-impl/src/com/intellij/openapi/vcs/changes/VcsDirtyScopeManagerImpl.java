@@ -24,6 +24,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupManager;
 import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.ProjectLevelVcsManager;
@@ -31,6 +32,7 @@ import com.intellij.openapi.vcs.VcsRoot;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Consumer;
 import com.intellij.util.ReflectionUtil;
+import com.intellij.util.TimeoutUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -43,6 +45,8 @@ import java.util.Collection;
  */
 public class VcsDirtyScopeManagerImpl extends VcsDirtyScopeManager implements ProjectComponent {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vcs.changes.VcsDirtyScopeManagerImpl");
+  // files marked dirty with shorter pauses are taken as a burst, like a build writing its output or a checkout of a branch
+  private static final int BURST_PAUSE = 200;
 
   private final Project myProject;
   private final ChangeListManager myChangeListManager;
@@ -54,6 +58,11 @@ public class VcsDirtyScopeManagerImpl extends VcsDirtyScopeManager implements Pr
 
   private final MyProgressHolder myProgressHolder;
 
+  // when the first and the last dirt since the last update came; guarded by myLife
+  private long myFirstDirtTime;
+  private long myLastDirtTime;
+  private int myUpdateCount;
+
   public VcsDirtyScopeManagerImpl(Project project, ChangeListManager changeListManager, ProjectLevelVcsManager vcsManager) {
     myProject = project;
     myChangeListManager = changeListManager;
@@ -194,6 +203,11 @@ public class VcsDirtyScopeManagerImpl extends VcsDirtyScopeManager implements Pr
     final Ref<Boolean> wasNotEmptyRef = new Ref<Boolean>();
     final Runnable runnable = new Runnable() {
       public void run() {
+        final long now = System.currentTimeMillis();
+        if (myDirtBuilder.isEmpty()) {
+          myFirstDirtTime = now;
+        }
+        myLastDirtTime = now;
         filler.consume(myDirtBuilder);
         wasNotEmptyRef.set(!myDirtBuilder.isEmpty());
       }
@@ -373,14 +387,23 @@ public class VcsDirtyScopeManagerImpl extends VcsDirtyScopeManager implements Pr
 
   @Nullable
   public VcsInvalidated retrieveScopes() {
+    waitForBurstEnd();
+
+    final int[] stats = new int[3];
     final LifeDrop lifeDrop = myLife.doIfAlive(new Runnable() {
       public void run() {
+        stats[0] = ++myUpdateCount;
+        stats[1] = myDirtBuilder.getAddedCount();
+        stats[2] = myDirtBuilder.getSize();
         myProgressHolder.takeNext(new DirtBuilder(myDirtBuilder));
         myDirtBuilder.reset();
       }
     });
 
     if (lifeDrop.isDone()) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("update #" + stats[0] + ": " + stats[1] + " paths marked dirty, " + stats[2] + " after merging");
+      }
       final VcsInvalidated invalidated = myProgressHolder.calculateInvalidated();
 
       myLife.doIfAlive(new Runnable() {
@@ -393,6 +416,32 @@ public class VcsDirtyScopeManagerImpl extends VcsDirtyScopeManager implements Pr
     return null;
   }
 
+  /**
+   * While the files keep being marked dirty, waits for them to stop, so that one update processes the whole burst;
+   * but no longer than "vcs.dirty.scope.burst.max.delay" since the first dirty file.
+   */
+  private void waitForBurstEnd() {
+    if (ApplicationManager.getApplication().isUnitTestMode()) return;
+    final int maxDelay = Registry.intValue("vcs.dirty.scope.burst.max.delay");
+    if (maxDelay <= 0) return;
+
+    final long[] times = new long[2];
+    while (true) {
+      final LifeDrop lifeDrop = myLife.doIfAlive(new Runnable() {
+        public void run() {
+          times[0] = myDirtBuilder.isEmpty() ? -1 : myFirstDirtTime;
+          times[1] = myLastDirtTime;
+        }
+      });
+      if (!lifeDrop.isDone() || times[0] < 0) return;
+
+      final long now = System.currentTimeMillis();
+      final long wait = Math.min(times[1] + BURST_PAUSE - now, times[0] + maxDelay - now);
+      if (wait <= 0) return;
+      TimeoutUtil.sleep(wait);
+    }
+  }
+
   public void changesProcessed() {
     myLife.doIfAlive(new Runnable() {
       public void run() {
@@ -29,14 +29,19 @@ import java.util.*;
  * @author max
  */
 public class VirtualFileHolder implements FileHolder {
-  private final Set<VirtualFile> myFiles = new HashSet<VirtualFile>();
+  private final VirtualFileIdSet myFiles;
   private final Project myProject;
   private final HolderType myType;
   private int myNumDirs;
 
   public VirtualFileHolder(Project project, final HolderType type) {
+    this(project, type, new VirtualFileIdSet());
+  }
+
+  private VirtualFileHolder(Project project, final HolderType type, final VirtualFileIdSet files) {
     myProject = project;
     myType = type;
+    myFiles = files;
   }
 
   public HolderType getType() {
@@ -130,9 +135,9 @@ public class VirtualFileHolder implements FileHolder {
     return new ArrayList<VirtualFile>(myFiles);
   }
 
+  // the copy shares the files with this holder until either of them is modified
   public VirtualFileHolder copy() {
-    final VirtualFileHolder copyHolder = new VirtualFileHolder(myProject, myType);
-    copyHolder.myFiles.addAll(myFiles);
+    final VirtualFileHolder copyHolder = new VirtualFileHolder(myProject, myType, myFiles.copy());
     copyHolder.myNumDirs = myNumDirs;
     return copyHolder;
   }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import gnu.trove.THashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Set of virtual files keyed by their ids, which takes much less memory than a hash set for tens of thousands of files.
+ * <p/>
+ * {@link #copy()} is cheap: the copies share their contents until one of them is modified.
+ */
+class VirtualFileIdSet extends AbstractSet<VirtualFile> {
+  private TIntObjectHashMap<VirtualFile> myFiles;
+  // files without id, i.e. not from the persistent file system
+  private Set<VirtualFile> myOtherFiles;
+  // whether the contents are shared with a copy and must be copied before modification
+  private boolean myShared;
+
+  VirtualFileIdSet() {
+    myFiles = new TIntObjectHashMap<VirtualFile>();
+    myOtherFiles = new THashSet<VirtualFile>();
+  }
+
+  private VirtualFileIdSet(@NotNull VirtualFileIdSet set) {
+    myFiles = set.myFiles;
+    myOtherFiles = set.myOtherFiles;
+    myShared = true;
+    set.myShared = true;
+  }
+
+  @NotNull
+  VirtualFileIdSet copy() {
+    return new VirtualFileIdSet(this);
+  }
+
+  private void beforeModification() {
+    if (myShared) {
+      myFiles = myFiles.clone();
+      myOtherFiles = new THashSet<VirtualFile>(myOtherFiles);
+      myShared = false;
+    }
+  }
+
+  @Override
+  public boolean add(@NotNull VirtualFile file) {
+    if (contains(file)) return false;
+    beforeModification();
+    if (file instanceof VirtualFileWithId) {
+      myFiles.put(((VirtualFileWithId)file).getId(), file);
+      return true;
+    }
+    return myOtherFiles.add(file);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!contains(o)) return false;
+    beforeModification();
+    if (o instanceof VirtualFileWithId) {
+      return myFiles.remove(((VirtualFileWithId)o).getId()) != null;
+    }
+    return myOtherFiles.remove(o);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (o instanceof VirtualFileWithId) {
+      return myFiles.get(((VirtualFileWithId)o).getId()) == o;
+    }
+    return myOtherFiles.contains(o);
+  }
+
+  @Override
+  public void clear() {
+    myFiles = new TIntObjectHashMap<VirtualFile>();
+    myOtherFiles = new THashSet<VirtualFile>();
+    myShared = false;
+  }
+
+  @Override
+  public int size() {
+    return myFiles.size() + myOtherFiles.size();
+  }
+
+  @NotNull
+  @Override
+  public Iterator<VirtualFile> iterator() {
+    final TIntObjectHashMap<VirtualFile> files = myFiles;
+    final TIntObjectIterator<VirtualFile> ids = files.iterator();
+    final Set<VirtualFile> otherFiles = myOtherFiles;
+    final Iterator<VirtualFile> others = otherFiles.iterator();
+    return new Iterator<VirtualFile>() {
+      private VirtualFile myCurrent;
+      private boolean myCurrentHasId;
+
+      @Override
+      public boolean hasNext() {
+        return ids.hasNext() || others.hasNext();
+      }
+
+      @Override
+      public VirtualFile next() {
+        if (ids.hasNext()) {
+          ids.advance();
+          myCurrentHasId = true;
+          myCurrent = ids.value();
+        }
+        else if (others.hasNext()) {
+          myCurrentHasId = false;
+          myCurrent = others.next();
+        }
+        else {
+          throw new NoSuchElementException();
+        }
+        return myCurrent;
+      }
+
+      @Override
+      public void remove() {
+        if (myCurrent == null) throw new IllegalStateException();
+        if (!myShared && files == myFiles && otherFiles == myOtherFiles) {
+          if (myCurrentHasId) {
+            ids.remove();
+          }
+          else {
+            others.remove();
+          }
+        }
+        else {
+          // the iterated contents are shared: leave them as they are and remove the file from the own copy
+          VirtualFileIdSet.this.remove(myCurrent);
+        }
+        myCurrent = null;
+      }
+    };
+  }
+}
@@ -219,6 +219,16 @@ public class LineStatusTracker {
     return myVirtualFile;
   }
 
+  /**
+   * @return false while the base revision is being loaded or if the changes couldn't be calculated,
+   *         that is if {@link #getRanges()} doesn't describe the changes of the document
+   */
+  public boolean isOperational() {
+    synchronized (myLock) {
+      return !myReleased && !myAnathemaThrown && BaseLoadState.LOADED.equals(myBaseLoaded);
+    }
+  }
+
   public List<Range> getRanges() {
     myApplication.assertReadAccessAllowed();
 
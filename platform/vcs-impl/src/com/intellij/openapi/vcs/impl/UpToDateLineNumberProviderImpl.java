@@ -18,9 +18,15 @@ package com.intellij.openapi.vcs.impl;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.localVcs.UpToDateLineNumberProvider;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.ex.DocumentWrapper;
 import com.intellij.openapi.vcs.ex.LineStatusTracker;
 import com.intellij.openapi.vcs.ex.Range;
+import com.intellij.openapi.vcs.ex.RangesBuilder;
+import com.intellij.util.diff.FilesTooBigForDiffException;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -30,27 +36,64 @@ public class UpToDateLineNumberProviderImpl implements UpToDateLineNumberProvide
   private final Document myDocument;
   private final Project myProject;
   private final LineStatusTrackerManagerI myLineStatusTrackerManagerI;
+  @Nullable private final String myUpToDateContent;
+  // changes of the document against the up-to-date content, calculated when the document had the modification stamp
+  private List<Range> myRanges;
+  private long myRangesStamp;
 
   public UpToDateLineNumberProviderImpl(Document document, Project project) {
+    this(document, project, null);
+  }
+
+  /**
+   * @param upToDateContent content the line numbers are mapped to, e.g. the annotated content:
+   *                        while the line status tracker of the document can't tell the changes of the document (it isn't there,
+   *                        or the base revision is being loaded), they are calculated by comparing the document with the content
+   */
+  public UpToDateLineNumberProviderImpl(Document document, Project project, @Nullable String upToDateContent) {
     myDocument = document;
     myProject = project;
+    myUpToDateContent = upToDateContent;
     myLineStatusTrackerManagerI = LineStatusTrackerManager.getInstance(myProject);
   }
 
-  public int getLineNumber(int currentNumber) {
+  @Nullable
+  private List<Range> getRanges() {
     LineStatusTracker tracker = myLineStatusTrackerManagerI.getLineStatusTracker(myDocument);
-    if (tracker == null) {
+    if (tracker != null && (myUpToDateContent == null || tracker.isOperational())) {
+      return tracker.getRanges();
+    }
+    if (myUpToDateContent == null) {
+      return null;
+    }
+    long stamp = myDocument.getModificationStamp();
+    if (myRanges == null || myRangesStamp != stamp) {
+      List<String> upToDateLines = StringUtil.split(StringUtil.convertLineSeparators(myUpToDateContent), "\n", true, false);
+      try {
+        myRanges = new RangesBuilder(new DocumentWrapper(myDocument).getLines(), upToDateLines, 0, 0).getRanges();
+      }
+      catch (FilesTooBigForDiffException e) {
+        myRanges = Collections.emptyList();
+      }
+      myRangesStamp = stamp;
+    }
+    return myRanges;
+  }
+
+  public int getLineNumber(int currentNumber) {
+    List<Range> ranges = getRanges();
+    if (ranges == null) {
       return currentNumber;
     }
-    return calcLineNumber(tracker, currentNumber);
+    return calcLineNumber(ranges, currentNumber);
   }
   
   public boolean isRangeChanged(final int start, final int end) {
-    LineStatusTracker tracker = LineStatusTrackerManager.getInstance(myProject).getLineStatusTracker(myDocument);
-    if (tracker == null) {
+    List<Range> ranges = getRanges();
+    if (ranges == null) {
       return false;
     }
-    for (Range range : tracker.getRanges()) {
+    for (Range range : ranges) {
       if (lineInRange(range, start) || lineInRange(range, end)) {
         return true;
       }
@@ -67,11 +110,11 @@ public class UpToDateLineNumberProviderImpl implements UpToDateLineNumberProvide
 
   @Override
   public boolean isLineChanged(int currentNumber) {
-    LineStatusTracker tracker = LineStatusTrackerManager.getInstance(myProject).getLineStatusTracker(myDocument);
-    if (tracker == null) {
+    List<Range> ranges = getRanges();
+    if (ranges == null) {
       return false;
     }
-    for (Range range : tracker.getRanges()) {
+    for (Range range : ranges) {
       if (range.getOffset1() <= currentNumber && range.getOffset2() >= currentNumber) {
         return true;
       }
@@ -104,13 +147,10 @@ public class UpToDateLineNumberProviderImpl implements UpToDateLineNumberProvide
     return content;
   }
 
-  private static int calcLineNumber(LineStatusTracker tracker, int currentNumber){
-    if (tracker == null) return -1;
-    List ranges = tracker.getRanges();
+  private static int calcLineNumber(List<Range> ranges, int currentNumber){
     int result = currentNumber;
 
-    for (final Object range1 : ranges) {
-      Range range = (Range)range1;
+    for (Range range : ranges) {
       int startOffset = range.getOffset1();
       int endOffset = range.getOffset2();
 
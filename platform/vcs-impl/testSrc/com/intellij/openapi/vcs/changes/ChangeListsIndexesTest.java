@@ -0,0 +1,162 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.FilePathImpl;
+import com.intellij.openapi.vcs.FileStatus;
+import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.testFramework.LightVirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ChangeListsIndexesTest {
+  @Test
+  public void statusIsFoundByIdAndByPath() {
+    ChangeListsIndexes indexes = new ChangeListsIndexes();
+    FileWithId a = new FileWithId("/a", 1);
+    VirtualFile b = new TestFile("/b");
+    add(indexes, new FilePathImpl(a), FileStatus.MODIFIED);
+    add(indexes, new FilePathImpl(b), FileStatus.ADDED);
+
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(a));
+    assertSame(FileStatus.ADDED, indexes.getStatus(b));
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(new File("/a")));
+
+    indexes.remove(new FilePathImpl(a));
+    assertNull(indexes.getStatus(a));
+    assertNull(indexes.getStatus(new File("/a")));
+  }
+
+  @Test
+  public void oldPathOfMovedFileDoesNotOwnTheId() {
+    ChangeListsIndexes indexes = new ChangeListsIndexes();
+    FileWithId file = new FileWithId("/old", 1);
+    FilePath before = new FilePathImpl(file);
+    file.setPath("/new");
+    FilePath after = new FilePathImpl(file);
+    assertSame(file, before.getVirtualFile());
+
+    add(indexes, after, FileStatus.MODIFIED);
+    add(indexes, before, FileStatus.DELETED);
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(file));
+    assertSame(FileStatus.DELETED, indexes.getStatus(new File("/old")));
+
+    indexes.remove(before);
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(file));
+    indexes.remove(after);
+    assertNull(indexes.getStatus(file));
+  }
+
+  @Test
+  public void removingPreviousOwnerKeepsTheIdOfNewOwner() {
+    ChangeListsIndexes indexes = new ChangeListsIndexes();
+    FileWithId file = new FileWithId("/old", 1);
+    FilePath before = new FilePathImpl(file);
+    add(indexes, before, FileStatus.MODIFIED);
+
+    file.setPath("/new");
+    FilePath after = new FilePathImpl(file);
+    add(indexes, after, FileStatus.ADDED);
+    assertSame(FileStatus.ADDED, indexes.getStatus(file));
+
+    indexes.remove(before);
+    assertSame(FileStatus.ADDED, indexes.getStatus(file));
+    assertNull(indexes.getStatus(new File("/old")));
+  }
+
+  @Test
+  public void pathNotHoldingVirtualFileIsFoundByPath() {
+    ChangeListsIndexes indexes = new ChangeListsIndexes();
+    FileWithId file = new FileWithId("/c", 3);
+    add(indexes, new FilePathImpl(new File("/c"), false), FileStatus.MODIFIED);
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(file));
+
+    indexes.remove(new FilePathImpl(file));
+    assertNull(indexes.getStatus(file));
+  }
+
+  @Test
+  public void copiesDoNotSeeModificationsOfEachOther() {
+    ChangeListsIndexes indexes = new ChangeListsIndexes();
+    FileWithId a = new FileWithId("/a", 1);
+    FileWithId b = new FileWithId("/b", 2);
+    add(indexes, new FilePathImpl(a), FileStatus.MODIFIED);
+
+    ChangeListsIndexes copy = new ChangeListsIndexes(indexes);
+    add(copy, new FilePathImpl(b), FileStatus.ADDED);
+    copy.remove(new FilePathImpl(a));
+    assertSame(FileStatus.MODIFIED, indexes.getStatus(a));
+    assertNull(indexes.getStatus(b));
+    assertNull(copy.getStatus(a));
+    assertSame(FileStatus.ADDED, copy.getStatus(b));
+
+    add(indexes, new FilePathImpl(a), FileStatus.DELETED);
+    assertSame(FileStatus.DELETED, indexes.getStatus(a));
+    assertNull(copy.getStatus(a));
+  }
+
+  private static void add(ChangeListsIndexes indexes, FilePath file, FileStatus status) {
+    indexes.add(file, status, null, VcsRevisionNumber.NULL);
+  }
+
+  private static class TestFile extends LightVirtualFile {
+    private String myPath;
+
+    private TestFile(String path) {
+      super(new File(path).getName());
+      myPath = path;
+    }
+
+    protected void setPath(String path) {
+      myPath = path;
+    }
+
+    @NotNull
+    @Override
+    public String getPath() {
+      return myPath;
+    }
+
+    @NotNull
+    @Override
+    public FileType getFileType() {
+      return PlainTextFileType.INSTANCE;
+    }
+  }
+
+  private static class FileWithId extends TestFile implements VirtualFileWithId {
+    private final int myId;
+
+    private FileWithId(String path, int id) {
+      super(path);
+      myId = id;
+    }
+
+    @Override
+    public int getId() {
+      return myId;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.FilePathImpl;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class DirtTrieTest {
+  @Test
+  public void filesUnderRecursiveDirAreDropped() {
+    DirtTrie trie = new DirtTrie();
+    trie.addFile(path("/p/a/1.txt"));
+    trie.addFile(path("/p/b/2.txt"));
+    trie.addDirRecursively(path("/p/a"));
+    trie.addFile(path("/p/a/c/3.txt"));
+    trie.addDirRecursively(path("/p/a/c"));
+
+    assertEquals(2, trie.size());
+    assertPaths(trie.getFiles(), "/p/b/2.txt");
+    assertPaths(trie.getDirs(), "/p/a");
+  }
+
+  @Test
+  public void recursiveMarkWinsOverFileMark() {
+    DirtTrie trie = new DirtTrie();
+    trie.addFile(path("/p/a"));
+    trie.addDirRecursively(path("/p/a"));
+    trie.addFile(path("/p/a"));
+
+    assertEquals(1, trie.size());
+    assertPaths(trie.getFiles());
+    assertPaths(trie.getDirs(), "/p/a");
+  }
+
+  @Test
+  public void nestedDirsAreMergedIntoTheOuterOne() {
+    DirtTrie trie = new DirtTrie();
+    trie.addDirRecursively(path("/p/a/b"));
+    trie.addDirRecursively(path("/p/a/c"));
+    trie.addFile(path("/p/a/d.txt"));
+    trie.addDirRecursively(path("/p/a/"));
+    trie.addDirRecursively(path("/p/ab"));
+
+    assertEquals(2, trie.size());
+    assertPaths(trie.getDirs(), "/p/a", "/p/ab");
+  }
+
+  @Test
+  public void copyIsIndependent() {
+    DirtTrie trie = new DirtTrie();
+    trie.addFile(path("/p/a/1.txt"));
+    DirtTrie copy = new DirtTrie(trie);
+    trie.addDirRecursively(path("/p"));
+    copy.addFile(path("/p/a/2.txt"));
+
+    assertPaths(trie.getFiles());
+    assertPaths(copy.getFiles(), "/p/a/1.txt", "/p/a/2.txt");
+    assertEquals(2, copy.size());
+
+    trie.clear();
+    assertEquals(0, trie.size());
+    assertEquals(2, copy.size());
+  }
+
+  private static FilePathUnderVcs path(String path) {
+    return new FilePathUnderVcs(new FilePathImpl(new File(path), false), null);
+  }
+
+  private static void assertPaths(Collection<FilePathUnderVcs> actual, String... expected) {
+    List<String> paths = new ArrayList<String>();
+    for (FilePathUnderVcs path : actual) {
+      paths.add(FileUtil.toSystemIndependentName(path.getPath().getIOFile().getPath()));
+    }
+    Collections.sort(paths);
+    assertEquals(Arrays.asList(expected), paths);
+  }
+}
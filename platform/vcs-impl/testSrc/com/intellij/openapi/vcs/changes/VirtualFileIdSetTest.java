@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.testFramework.LightVirtualFile;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class VirtualFileIdSetTest {
+  @Test
+  public void filesWithAndWithoutId() {
+    VirtualFileIdSet set = new VirtualFileIdSet();
+    VirtualFile a = new FileWithId("a", 1);
+    VirtualFile b = new LightVirtualFile("b");
+    assertTrue(set.add(a));
+    assertTrue(set.add(b));
+    assertFalse(set.add(a));
+
+    assertEquals(2, set.size());
+    assertTrue(set.contains(a));
+    assertTrue(set.contains(b));
+    assertFalse(set.contains(new FileWithId("c", 2)));
+    assertEquals(new HashSet<VirtualFile>(Arrays.asList(a, b)), set);
+
+    assertTrue(set.remove(a));
+    assertFalse(set.remove(a));
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  public void copiesDoNotSeeModificationsOfEachOther() {
+    VirtualFileIdSet set = new VirtualFileIdSet();
+    VirtualFile a = new FileWithId("a", 1);
+    VirtualFile b = new FileWithId("b", 2);
+    set.add(a);
+
+    VirtualFileIdSet copy = set.copy();
+    copy.add(b);
+    assertEquals(1, set.size());
+    assertEquals(2, copy.size());
+
+    set.remove(a);
+    assertTrue(set.isEmpty());
+    assertTrue(copy.contains(a));
+
+    copy.clear();
+    set.add(b);
+    assertTrue(copy.isEmpty());
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  public void removingThroughIteratorOfSharedSetKeepsTheCopy() {
+    VirtualFileIdSet set = new VirtualFileIdSet();
+    for (int i = 1; i <= 10; i++) {
+      set.add(new FileWithId(String.valueOf(i), i));
+    }
+    set.add(new LightVirtualFile("other"));
+    VirtualFileIdSet copy = set.copy();
+
+    for (Iterator<VirtualFile> iterator = set.iterator(); iterator.hasNext();) {
+      VirtualFile file = iterator.next();
+      if (!(file instanceof FileWithId) || ((FileWithId)file).getId() % 2 == 0) {
+        iterator.remove();
+      }
+    }
+    assertEquals(5, set.size());
+    assertEquals(11, copy.size());
+
+    for (Iterator<VirtualFile> iterator = set.iterator(); iterator.hasNext();) {
+      iterator.next();
+      iterator.remove();
+    }
+    assertTrue(set.isEmpty());
+    assertEquals(11, copy.size());
+  }
+
+  private static class FileWithId extends LightVirtualFile implements VirtualFileWithId {
+    private final int myId;
+
+    private FileWithId(String name, int id) {
+      super(name);
+      myId = id;
+    }
+
+    @Override
+    public int getId() {
+      return myId;
+    }
+  }
+}
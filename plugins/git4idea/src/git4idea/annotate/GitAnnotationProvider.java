@@ -20,6 +20,8 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.FilePathImpl;
@@ -29,20 +31,21 @@ import com.intellij.openapi.vcs.history.VcsAbstractHistorySession;
 import com.intellij.openapi.vcs.history.VcsFileRevision;
 import com.intellij.openapi.vcs.history.VcsRevisionNumber;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsFileUtil;
 import com.intellij.vcsUtil.VcsUtil;
 import git4idea.GitFileRevision;
 import git4idea.GitRevisionNumber;
 import git4idea.GitUtil;
 import git4idea.commands.GitCommand;
 import git4idea.commands.GitSimpleHandler;
-import git4idea.util.StringScanner;
 import git4idea.history.GitHistoryUtils;
 import git4idea.i18n.GitBundle;
-import org.jetbrains.annotations.NonNls;
+import git4idea.util.GitFileUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -56,14 +59,6 @@ public class GitAnnotationProvider implements AnnotationProvider, VcsCacheableAn
    * the context project
    */
   private final Project myProject;
-  /**
-   * The author key for annotations
-   */
-  @NonNls private static final String AUTHOR_KEY = "author";
-  /**
-   * The committer time key for annotations
-   */
-  @NonNls private static final String COMMITTER_TIME_KEY = "committer-time";
   private static final Logger LOG = Logger.getInstance(GitAnnotationProvider.class);
 
   /**
@@ -133,7 +128,11 @@ public class GitAnnotationProvider implements AnnotationProvider, VcsCacheableAn
   }
 
   /**
-   * Calculate annotations
+   * Calculate annotations.
+   * <p/>
+   * The results of 'git blame' are kept in {@link GitBlameCache}: a revision which has been annotated already is not annotated again,
+   * and a newer revision of the file is annotated starting from the revision it has been annotated at last time,
+   * so that only the commits made since then are looked through.
    *
    * @param repositoryFilePath the file path in the repository
    * @param revision           the revision to checkout
@@ -146,72 +145,93 @@ public class GitAnnotationProvider implements AnnotationProvider, VcsCacheableAn
                                      final VcsFileRevision revision,
                                      final List<VcsFileRevision> revisions,
                                      final VirtualFile file) throws VcsException {
-    GitSimpleHandler h = new GitSimpleHandler(myProject, GitUtil.getGitRoot(repositoryFilePath), GitCommand.BLAME);
-    h.setStdoutSuppressed(true);
-    h.setCharset(file.getCharset());
-    h.addParameters("-p", "-l", "-t", "-w");
-    if (revision == null) {
-      h.addParameters("HEAD");
-    }
-    else {
-      h.addParameters(revision.getRevisionNumber().asString());
-    }
-    h.endOptions();
-    h.addRelativePaths(repositoryFilePath);
-    String output = h.run();
-    GitFileAnnotation annotation = new GitFileAnnotation(myProject, file, revision == null, revision == null ? null : revision.getRevisionNumber());
-    class CommitInfo {
-      Date date;
-      String author;
-      GitRevisionNumber revision;
-    }
-    HashMap<String, CommitInfo> commits = new HashMap<String, CommitInfo>();
-    for (StringScanner s = new StringScanner(output); s.hasMoreData();) {
-      // parse header line
-      String commitHash = s.spaceToken();
-      if (commitHash.equals(GitRevisionNumber.NOT_COMMITTED_HASH)) {
-        commitHash = null;
-      }
-      s.spaceToken(); // skip revision line number
-      String s1 = s.spaceToken();
-      int lineNum = Integer.parseInt(s1);
-      s.nextLine();
-      // parse commit information
-      CommitInfo commit = commits.get(commitHash);
-      if (commit != null) {
-        while (s.hasMoreData() && !s.startsWith('\t')) {
-          s.nextLine();
+    VirtualFile root = GitUtil.getGitRoot(repositoryFilePath);
+    String revisionName = revision == null ? "HEAD" : revision.getRevisionNumber().asString();
+    List<String> lines = new ArrayList<String>();
+    GitBlame blame = null;
+    String[] ids = Registry.is("git.annotate.use.cache") ? resolve(root, revisionName, repositoryFilePath) : null;
+    if (ids != null) {
+      String commit = ids[0];
+      String blob = ids[1];
+      String path = VcsFileUtil.relativePath(root, repositoryFilePath);
+      GitBlameCache cache = GitBlameCache.getInstance();
+      blame = cache.get(root, path, commit, blob);
+      if (blame != null) {
+        String content = new String(GitFileUtils.getFileContent(myProject, root, commit, path), file.getCharset());
+        lines.addAll(StringUtil.split(StringUtil.convertLineSeparators(content), "\n", false, true));
+        if (lines.size() != blame.getLineCount()) {
+          lines.clear();
+          blame = null;
         }
       }
       else {
-        commit = new CommitInfo();
-        while (s.hasMoreData() && !s.startsWith('\t')) {
-          String key = s.spaceToken();
-          String value = s.line();
-          if (commitHash != null && AUTHOR_KEY.equals(key)) {
-            commit.author = value;
-          }
-          if (commitHash != null && COMMITTER_TIME_KEY.equals(key)) {
-            commit.date = GitUtil.parseTimestampWithNFEReport(value, h, output);
-            commit.revision = new GitRevisionNumber(commitHash, commit.date);
+        Pair<String, GitBlame> latest = cache.getLatest(root, path);
+        if (latest != null && !latest.first.equals(commit)) {
+          blame = GitBlame.parse(blame(root, latest.first + ".." + commit, repositoryFilePath, file), latest.first, latest.second, lines);
+          if (blame == null) {
+            lines.clear();
           }
         }
-        commits.put(commitHash, commit);
+        if (blame == null) {
+          blame = GitBlame.parse(blame(root, commit, repositoryFilePath, file), lines);
+        }
+        cache.put(root, path, commit, blob, blame);
       }
-      // parse line
-      if (!s.hasMoreData()) {
-        // if the file is empty, the next line will not start with tab and it will be
-        // empty.  
+    }
+    if (blame == null) {
+      blame = GitBlame.parse(blame(root, revisionName, repositoryFilePath, file), lines);
+    }
+
+    GitFileAnnotation annotation = new GitFileAnnotation(myProject, file, revision == null, revision == null ? null : revision.getRevisionNumber());
+    GitRevisionNumber[] numbers = new GitRevisionNumber[blame.getCommitCount()];
+    for (int i = 0; i < blame.getLineCount(); i++) {
+      int commit = blame.getCommit(i);
+      if (commit < 0) {
+        annotation.appendLineInfo(null, null, null, lines.get(i), i + 1);
         continue;
       }
-      s.skipChars(1);
-      String line = s.line(true);
-      annotation.appendLineInfo(commit.date, commit.revision, commit.author, line, lineNum);
+      if (numbers[commit] == null) {
+        numbers[commit] = new GitRevisionNumber(blame.getHash(commit), new Date(blame.getTime(commit)));
+      }
+      annotation.appendLineInfo(numbers[commit].getTimestamp(), numbers[commit], blame.getAuthor(commit), lines.get(i), i + 1);
     }
     annotation.addLogEntries(revisions);
     return annotation;
   }
 
+  /**
+   * @return the output of 'git blame --porcelain' for the file at the revision or revision range
+   */
+  @NotNull
+  private String blame(@NotNull VirtualFile root, @NotNull String revisions, @NotNull FilePath repositoryFilePath, @NotNull VirtualFile file)
+    throws VcsException {
+    GitSimpleHandler h = new GitSimpleHandler(myProject, root, GitCommand.BLAME);
+    h.setStdoutSuppressed(true);
+    h.setCharset(file.getCharset());
+    h.addParameters("-p", "-l", "-t", "-w", revisions);
+    h.endOptions();
+    h.addRelativePaths(repositoryFilePath);
+    return h.run();
+  }
+
+  /**
+   * @return hashes of the commit and of the blob of the file in that commit, or null if the revision or the file is not there
+   */
+  @Nullable
+  private String[] resolve(@NotNull VirtualFile root, @NotNull String revisionName, @NotNull FilePath repositoryFilePath) {
+    GitSimpleHandler h = new GitSimpleHandler(myProject, root, GitCommand.REV_PARSE);
+    h.setSilent(true);
+    h.addParameters(revisionName, revisionName + ":" + VcsFileUtil.relativePath(root, repositoryFilePath));
+    try {
+      String[] ids = StringUtil.splitByLines(h.run().trim());
+      return ids.length == 2 ? new String[]{ids[0].trim(), ids[1].trim()} : null;
+    }
+    catch (VcsException e) {
+      LOG.info("Couldn't resolve " + revisionName + " of " + repositoryFilePath, e);
+      return null;
+    }
+  }
+
   @Override
   public VcsAnnotation createCacheable(FileAnnotation fileAnnotation) {
     final GitFileAnnotation gitFileAnnotation = (GitFileAnnotation) fileAnnotation;
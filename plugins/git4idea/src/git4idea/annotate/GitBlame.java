@@ -0,0 +1,259 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.annotate;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import git4idea.GitRevisionNumber;
+import git4idea.util.StringScanner;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Result of 'git blame' for a file at some revision: the commit, the committer time and the author of every line.
+ */
+class GitBlame {
+  @NonNls private static final String AUTHOR_KEY = "author";
+  @NonNls private static final String COMMITTER_TIME_KEY = "committer-time";
+  @NonNls private static final String BOUNDARY_KEY = "boundary";
+
+  static final DataExternalizer<GitBlame> EXTERNALIZER = new DataExternalizer<GitBlame>() {
+    @Override
+    public void save(DataOutput out, GitBlame value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.myHashes.length);
+      for (int i = 0; i < value.myHashes.length; i++) {
+        out.writeUTF(value.myHashes[i]);
+        out.writeLong(value.myTimes[i]);
+        out.writeUTF(value.myAuthors[i]);
+      }
+      DataInputOutputUtil.writeINT(out, value.myLines.length);
+      for (int line : value.myLines) {
+        DataInputOutputUtil.writeINT(out, line + 1);
+      }
+    }
+
+    @Override
+    public GitBlame read(DataInput in) throws IOException {
+      int commits = DataInputOutputUtil.readINT(in);
+      String[] hashes = new String[commits];
+      long[] times = new long[commits];
+      String[] authors = new String[commits];
+      for (int i = 0; i < commits; i++) {
+        hashes[i] = in.readUTF();
+        times[i] = in.readLong();
+        authors[i] = in.readUTF();
+      }
+      int[] lines = new int[DataInputOutputUtil.readINT(in)];
+      for (int i = 0; i < lines.length; i++) {
+        lines[i] = DataInputOutputUtil.readINT(in) - 1;
+      }
+      return new GitBlame(hashes, times, authors, lines);
+    }
+  };
+
+  private final String[] myHashes;
+  private final long[] myTimes;
+  private final String[] myAuthors;
+  // index of the commit of every line, or -1 if the line is not committed
+  private final int[] myLines;
+
+  private GitBlame(@NotNull String[] hashes, @NotNull long[] times, @NotNull String[] authors, @NotNull int[] lines) {
+    myHashes = hashes;
+    myTimes = times;
+    myAuthors = authors;
+    myLines = lines;
+  }
+
+  int getCommitCount() {
+    return myHashes.length;
+  }
+
+  int getLineCount() {
+    return myLines.length;
+  }
+
+  /**
+   * @return number of the commit the line comes from (the same for the lines of the same commit), or -1 if the line is not committed
+   */
+  int getCommit(int line) {
+    return myLines[line];
+  }
+
+  @NotNull
+  String getHash(int commit) {
+    return myHashes[commit];
+  }
+
+  /**
+   * @return committer time in milliseconds
+   */
+  long getTime(int commit) {
+    return myTimes[commit];
+  }
+
+  @NotNull
+  String getAuthor(int commit) {
+    return myAuthors[commit];
+  }
+
+  /**
+   * Parses the output of 'git blame --porcelain' covering the whole history of the file.
+   *
+   * @param content if not null, the annotated lines with their line separators are added to it
+   */
+  @NotNull
+  static GitBlame parse(@NotNull String output, @Nullable List<String> content) throws VcsException {
+    GitBlame blame = parse(output, null, null, content);
+    assert blame != null;
+    return blame;
+  }
+
+  /**
+   * Parses the output of 'git blame --porcelain'.
+   * <p/>
+   * The output of 'git blame base..revision' attributes the lines which haven't changed since the base revision to the base revision,
+   * giving their line numbers in the base revision: such lines are taken from the blame of the base revision.
+   *
+   * @param baseCommit hash of the revision the blame has been started from, or null if the blame covers the whole history
+   * @param base       blame of the base revision
+   * @param content    if not null, the annotated lines with their line separators are added to it
+   * @return the blame, or null if a line comes from a boundary commit other than the base revision,
+   *         that is if the base revision is not an ancestor of the annotated one
+   */
+  @Nullable
+  static GitBlame parse(@NotNull String output, @Nullable String baseCommit, @Nullable GitBlame base, @Nullable List<String> content)
+    throws VcsException {
+    Builder builder = new Builder();
+    TObjectIntHashMap<String> commits = new TObjectIntHashMap<String>();
+    Set<String> boundaries = new HashSet<String>();
+    for (StringScanner s = new StringScanner(output); s.hasMoreData();) {
+      // parse header line
+      String commitHash = s.spaceToken();
+      int originalLineNum = parseInt(s.spaceToken(), output);
+      s.spaceToken(); // skip the final line number, as the lines go in order
+      s.nextLine();
+      // parse commit information
+      if (commits.containsKey(commitHash)) {
+        while (s.hasMoreData() && !s.startsWith('\t')) {
+          s.nextLine();
+        }
+      }
+      else {
+        String author = "";
+        long time = 0;
+        while (s.hasMoreData() && !s.startsWith('\t')) {
+          String key = s.spaceToken();
+          String value = s.line();
+          if (AUTHOR_KEY.equals(key)) {
+            author = value;
+          }
+          else if (COMMITTER_TIME_KEY.equals(key)) {
+            time = parseLong(value, output) * 1000;
+          }
+          else if (BOUNDARY_KEY.equals(key)) {
+            boundaries.add(commitHash);
+          }
+        }
+        boolean fromBase = baseCommit != null && boundaries.contains(commitHash);
+        boolean committed = !GitRevisionNumber.NOT_COMMITTED_HASH.equals(commitHash);
+        commits.put(commitHash, committed && !fromBase ? builder.addCommit(commitHash, time, author) : -1);
+      }
+      // parse line
+      if (!s.hasMoreData()) {
+        // if the file is empty, the next line will not start with tab and it will be empty.
+        continue;
+      }
+      s.skipChars(1);
+      String line = s.line(true);
+      if (content != null) {
+        content.add(line);
+      }
+
+      if (baseCommit != null && boundaries.contains(commitHash)) {
+        if (!baseCommit.equals(commitHash) || base == null || originalLineNum > base.getLineCount()) return null;
+        builder.addLine(base, originalLineNum - 1);
+      }
+      else {
+        builder.addLine(commits.get(commitHash));
+      }
+    }
+    return builder.build();
+  }
+
+  private static int parseInt(@NotNull String value, @NotNull String output) throws VcsException {
+    return (int)parseLong(value, output);
+  }
+
+  private static long parseLong(@NotNull String value, @NotNull String output) throws VcsException {
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e) {
+      throw new VcsException("Unexpected output of git blame: " + StringUtil.first(output, 1000, true));
+    }
+  }
+
+  /**
+   * Collects the commits in the order of their first lines.
+   */
+  private static class Builder {
+    private final List<String> myHashes = new ArrayList<String>();
+    private final TLongArrayList myTimes = new TLongArrayList();
+    private final List<String> myAuthors = new ArrayList<String>();
+    private final TObjectIntHashMap<String> myCommits = new TObjectIntHashMap<String>();
+    private final TIntArrayList myLines = new TIntArrayList();
+
+    private int addCommit(@NotNull String hash, long time, @NotNull String author) {
+      if (myCommits.containsKey(hash)) return myCommits.get(hash);
+      int commit = myHashes.size();
+      myHashes.add(hash);
+      myTimes.add(time);
+      myAuthors.add(author);
+      myCommits.put(hash, commit);
+      return commit;
+    }
+
+    private void addLine(int commit) {
+      myLines.add(commit);
+    }
+
+    private void addLine(@NotNull GitBlame blame, int line) {
+      int commit = blame.getCommit(line);
+      addLine(commit < 0 ? -1 : addCommit(blame.getHash(commit), blame.getTime(commit), blame.getAuthor(commit)));
+    }
+
+    @NotNull
+    private GitBlame build() {
+      return new GitBlame(ArrayUtil.toStringArray(myHashes), myTimes.toNativeArray(), ArrayUtil.toStringArray(myAuthors),
+                          myLines.toNativeArray());
+    }
+  }
+}
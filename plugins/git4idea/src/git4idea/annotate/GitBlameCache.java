@@ -0,0 +1,231 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.annotate;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * !! application-level
+ * <p/>
+ * Keeps the results of 'git blame' in the system directory.
+ * A blame is identified by the path of the file, the annotated commit and the blob of the file in that commit
+ * (files with the same content share the blob, but not the history), and the last blame of every path
+ * is remembered, so that a newer revision of the file can be annotated starting from it.
+ * Only the last blame of a path is kept.
+ */
+public class GitBlameCache implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#git4idea.annotate.GitBlameCache");
+
+  private static final String BLAMES = "blames";
+  private static final String LATEST = "latest";
+  private static final String VERSION_FILE = "version";
+  private static final String VERSION = "2";
+
+  private final File myDir;
+  private final Object myLock = new Object();
+  // root path -> storage
+  private final Map<String, Storage> myStorages = new HashMap<String, Storage>();
+
+  public GitBlameCache() {
+    this(new File(new File(PathManager.getSystemPath(), "vcs"), "git_blame"));
+    Disposer.register(ApplicationManager.getApplication(), this);
+  }
+
+  GitBlameCache(@NotNull File dir) {
+    myDir = dir;
+  }
+
+  public static GitBlameCache getInstance() {
+    return ServiceManager.getService(GitBlameCache.class);
+  }
+
+  /**
+   * @param path path of the file relative to the root
+   */
+  @Nullable
+  GitBlame get(@NotNull VirtualFile root, @NotNull String path, @NotNull String commit, @NotNull String blob) {
+    synchronized (myLock) {
+      Storage storage = getStorage(root);
+      try {
+        return storage != null ? storage.myBlames.get(getKey(path, commit, blob)) : null;
+      }
+      catch (IOException e) {
+        drop(root, e);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @param path path of the file relative to the root
+   * @return the commit the file has been annotated at last time, and the blame
+   */
+  @Nullable
+  Pair<String, GitBlame> getLatest(@NotNull VirtualFile root, @NotNull String path) {
+    synchronized (myLock) {
+      Storage storage = getStorage(root);
+      try {
+        String key = storage != null ? storage.myLatest.get(path) : null;
+        GitBlame blame = key != null ? storage.myBlames.get(key) : null;
+        return blame != null ? Pair.create(key.substring(0, key.indexOf(':')), blame) : null;
+      }
+      catch (IOException e) {
+        drop(root, e);
+        return null;
+      }
+    }
+  }
+
+  void put(@NotNull VirtualFile root, @NotNull String path, @NotNull String commit, @NotNull String blob, @NotNull GitBlame blame) {
+    synchronized (myLock) {
+      Storage storage = getStorage(root);
+      if (storage == null) return;
+      try {
+        String key = getKey(path, commit, blob);
+        // the key includes the path, so the previous blame is not used by any other path
+        String previous = storage.myLatest.get(path);
+        if (previous != null && !previous.equals(key)) {
+          storage.myBlames.remove(previous);
+        }
+        storage.myBlames.put(key, blame);
+        storage.myLatest.put(path, key);
+      }
+      catch (IOException e) {
+        drop(root, e);
+      }
+    }
+  }
+
+  @NotNull
+  private static String getKey(@NotNull String path, @NotNull String commit, @NotNull String blob) {
+    return commit + ":" + blob + ":" + path;
+  }
+
+  @Nullable
+  private Storage getStorage(@NotNull VirtualFile root) {
+    Storage storage = myStorages.get(root.getPath());
+    if (storage == null) {
+      File dir = getDir(root);
+      checkVersion(dir);
+      try {
+        storage = new Storage(dir);
+      }
+      catch (IOException e) {
+        LOG.info("Rebuilding the blame cache in " + dir + ": " + e.getMessage());
+        FileUtil.delete(dir);
+        checkVersion(dir);
+        try {
+          storage = new Storage(dir);
+        }
+        catch (IOException e1) {
+          LOG.info("Couldn't open the blame cache in " + dir, e1);
+          return null;
+        }
+      }
+      myStorages.put(root.getPath(), storage);
+    }
+    return storage;
+  }
+
+  private static void checkVersion(@NotNull File dir) {
+    File versionFile = new File(dir, VERSION_FILE);
+    try {
+      if (versionFile.exists() && VERSION.equals(FileUtil.loadFile(versionFile).trim())) return;
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    FileUtil.delete(dir);
+    try {
+      FileUtil.writeToFile(versionFile, VERSION);
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  @NotNull
+  private File getDir(@NotNull VirtualFile root) {
+    return new File(myDir, root.getName() + "." + Integer.toHexString(FileUtil.pathHashCode(root.getPath())));
+  }
+
+  private void drop(@NotNull VirtualFile root, @NotNull IOException e) {
+    LOG.info("Dropping the blame cache of " + root, e);
+    Storage storage = myStorages.remove(root.getPath());
+    if (storage != null) {
+      storage.close();
+    }
+    FileUtil.delete(getDir(root));
+  }
+
+  @Override
+  public void dispose() {
+    synchronized (myLock) {
+      for (Storage storage : myStorages.values()) {
+        storage.close();
+      }
+      myStorages.clear();
+    }
+  }
+
+  private static class Storage {
+    private final PersistentHashMap<String, GitBlame> myBlames;
+    /**
+     * key: path relative to the root; value: key of the last blame of the file
+     */
+    private final PersistentHashMap<String, String> myLatest;
+
+    private Storage(@NotNull File dir) throws IOException {
+      myBlames = new PersistentHashMap<String, GitBlame>(new File(dir, BLAMES), new EnumeratorStringDescriptor(), GitBlame.EXTERNALIZER);
+      try {
+        myLatest = new PersistentHashMap<String, String>(new File(dir, LATEST), new EnumeratorStringDescriptor(),
+                                                         new EnumeratorStringDescriptor());
+      }
+      catch (IOException e) {
+        myBlames.close();
+        throw e;
+      }
+    }
+
+    private void close() {
+      for (PersistentHashMap<String, ?> map : new PersistentHashMap[]{myBlames, myLatest}) {
+        try {
+          map.close();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+    }
+  }
+}
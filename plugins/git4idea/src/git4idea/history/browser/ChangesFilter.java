@@ -128,6 +128,11 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    @NotNull
+    public Filter[] getFilters() {
+      return myFilters;
+    }
+
     @Nullable
     @Override
     public CommandParametersFilter getCommandParametersFilter() {
@@ -303,6 +308,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public String getRegexp() {
+      return myRegexp;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -355,6 +364,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public String getRegexp() {
+      return myRegexp;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -405,6 +418,13 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    /**
+     * @return the date the commits have to be before
+     */
+    public Date getDate() {
+      return myDate;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -455,6 +475,13 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    /**
+     * @return the date the commits have to be after
+     */
+    public Date getDate() {
+      return myDate;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
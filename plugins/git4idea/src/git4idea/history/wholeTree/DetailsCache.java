@@ -91,6 +91,12 @@ public class DetailsCache {
     });
   }
 
+  public void acceptAnswer(final AbstractHash hash, final GitHeavyCommit commit, final VirtualFile root) {
+    synchronized (myLock) {
+      myCache.put(new Pair<VirtualFile, AbstractHash>(root, hash), commit);
+    }
+  }
+
   public void rootsChanged(final Collection<VirtualFile> roots) {
     myDetailsLoader.setRoots(roots);
   }
@@ -156,10 +156,19 @@ public class DetailsLoaderImpl implements DetailsLoader {
       if (! hashes.isEmpty()) {
           final Collection<GitHeavyCommit> result = myAccess.getCommitDetails(converted, refs);
           if (result != null && (! result.isEmpty())) {
-            myDetailsCache.acceptAnswer(result, myAccess.getRoot());
             for (GitHeavyCommit gitCommit : result) {
-              converted.remove(gitCommit.getShortHash().getString());
+              if (converted.remove(gitCommit.getShortHash().getString())) continue;
+              // the hash was asked abbreviated to another length than Git abbreviates it now
+              final String fullHash = gitCommit.getHash().getValue();
+              for (Iterator<String> iterator = converted.iterator(); iterator.hasNext(); ) {
+                final String asked = iterator.next();
+                if (fullHash.startsWith(asked)) {
+                  myDetailsCache.acceptAnswer(AbstractHash.create(asked), gitCommit, myAccess.getRoot());
+                  iterator.remove();
+                }
+              }
             }
+            myDetailsCache.acceptAnswer(result, myAccess.getRoot());
           }
           if (! converted.isEmpty()) {
             // todo this is bad
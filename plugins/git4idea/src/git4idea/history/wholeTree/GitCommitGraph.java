@@ -0,0 +1,386 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.*;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Commit graph of a repository kept on disk: the hashes, the parents, the authors, the committers and the times of the commits
+ * in memory-mapped columns, and the index of the paths changed by the commits.
+ * <p/>
+ * Commits are numbered from 1 in the order they are added, and a commit is added after its parents,
+ * so the numbers in the descending order give a topological order of the commits.
+ */
+public class GitCommitGraph {
+  private static final Logger LOG = Logger.getInstance("#git4idea.history.wholeTree.GitCommitGraph");
+
+  private static final int VERSION = 2;
+  private static final String COMMITS = "commits";
+  private static final String PARENTS = "parents";
+  private static final String HASHES = "hashes";
+  private static final String USERS = "users";
+  private static final String PATHS = "paths";
+  private static final int HASH_LENGTH = 20;
+  private static final int DEFAULT_ABBREVIATION = 7;
+
+  // the first record is the header: version, number of commits, number of parent links, connection status
+  private static final int HEADER_VERSION_OFFSET = 0;
+  private static final int HEADER_COUNT_OFFSET = 4;
+  private static final int HEADER_PARENTS_OFFSET = 8;
+  private static final int HEADER_STATUS_OFFSET = 12;
+  private static final int CONNECTED = 1;
+  private static final int CLOSED = 2;
+
+  // record of a commit: hash, time, author, committer, offset and number of the parent links
+  private static final int RECORD_SIZE = 44;
+  private static final int TIME_OFFSET = 20;
+  private static final int AUTHOR_OFFSET = 28;
+  private static final int COMMITTER_OFFSET = 32;
+  private static final int PARENTS_OFFSET = 36;
+  private static final int PARENT_COUNT_OFFSET = 40;
+
+  private static final int MAX_PENDING_PATHS = 100000;
+
+  private static final KeyDescriptor<byte[]> HASH_DESCRIPTOR = new KeyDescriptor<byte[]>() {
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      byte[] result = new byte[HASH_LENGTH];
+      in.readFully(result);
+      return result;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  };
+
+  private static final DataExternalizer<TIntHashSet> COMMITS_EXTERNALIZER = new DataExternalizer<TIntHashSet>() {
+    @Override
+    public void save(DataOutput out, TIntHashSet value) throws IOException {
+      for (int commit : value.toArray()) {
+        out.writeInt(commit);
+      }
+    }
+
+    @Override
+    public TIntHashSet read(DataInput in) throws IOException {
+      TIntHashSet result = new TIntHashSet();
+      DataInputStream stream = (DataInputStream)in;
+      while (stream.available() > 0) {
+        result.add(in.readInt());
+      }
+      return result;
+    }
+  };
+
+  private final File myDir;
+  private final Object myLock = new Object();
+  private ResizeableMappedFile myCommits;
+  private ResizeableMappedFile myParents;
+  private PersistentHashMap<byte[], Integer> myHashes;
+  private PersistentStringEnumerator myUsers;
+  /**
+   * key: path relative to the root, of a file or of a directory; value: commits changing the file or the files under the directory
+   */
+  private PersistentHashMap<String, TIntHashSet> myPaths;
+  private final Map<String, TIntArrayList> myPendingPaths = new HashMap<String, TIntArrayList>();
+  private int myPendingPathCount;
+  private int myCount;
+  private int myParentLinkCount;
+  private volatile int myAbbreviation = DEFAULT_ABBREVIATION;
+
+  public GitCommitGraph(@NotNull File dir) throws IOException {
+    myDir = dir;
+    try {
+      open();
+    }
+    catch (IOException e) {
+      LOG.info("Rebuilding the commit graph in " + dir + ": " + e.getMessage());
+      closeFiles();
+      FileUtil.delete(dir);
+      open();
+    }
+  }
+
+  private void open() throws IOException {
+    PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLockContext(false);
+    myCommits = new ResizeableMappedFile(new File(myDir, COMMITS), RECORD_SIZE * 1024, context, PagedFileStorage.MB, false);
+    myParents = new ResizeableMappedFile(new File(myDir, PARENTS), 4 * 1024, context, PagedFileStorage.MB, true);
+    if (myCommits.length() == 0) {
+      myCommits.putInt(HEADER_VERSION_OFFSET, VERSION);
+      myCommits.putInt(HEADER_COUNT_OFFSET, 0);
+      myCommits.putInt(HEADER_PARENTS_OFFSET, 0);
+      myCommits.putInt(HEADER_STATUS_OFFSET, CLOSED);
+      myCommits.putInt(RECORD_SIZE - 4, 0); // the whole first record is taken by the header
+    }
+    if (myCommits.getInt(HEADER_VERSION_OFFSET) != VERSION) {
+      throw new IOException("Version mismatch");
+    }
+    if (myCommits.getInt(HEADER_STATUS_OFFSET) != CLOSED) {
+      throw new IOException("The storage wasn't closed properly");
+    }
+    myCount = myCommits.getInt(HEADER_COUNT_OFFSET);
+    myParentLinkCount = myCommits.getInt(HEADER_PARENTS_OFFSET);
+
+    myHashes = new PersistentHashMap<byte[], Integer>(new File(myDir, HASHES), HASH_DESCRIPTOR, EnumeratorIntegerDescriptor.INSTANCE);
+    myUsers = new PersistentStringEnumerator(new File(myDir, USERS), context);
+    myPaths = new PersistentHashMap<String, TIntHashSet>(new File(myDir, PATHS), new EnumeratorStringDescriptor(), COMMITS_EXTERNALIZER);
+
+    myCommits.putInt(HEADER_STATUS_OFFSET, CONNECTED);
+    myCommits.force();
+  }
+
+  public int getCommitCount() {
+    synchronized (myLock) {
+      return myCount;
+    }
+  }
+
+  /**
+   * @return number of the commit or 0 if the commit is not in the graph
+   */
+  public int findCommit(@NotNull String hash) throws IOException {
+    synchronized (myLock) {
+      Integer commit = myHashes.get(parseHash(hash));
+      return commit != null ? commit : 0;
+    }
+  }
+
+  @NotNull
+  public String getHash(int commit) {
+    byte[] hash = new byte[HASH_LENGTH];
+    synchronized (myLock) {
+      myCommits.get(getRecord(commit), hash, 0, HASH_LENGTH);
+    }
+    StringBuilder result = new StringBuilder(HASH_LENGTH * 2);
+    for (byte b : hash) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return the hash abbreviated to the length Git abbreviated the hashes of the repository with when the graph was last updated
+   */
+  @NotNull
+  public String getAbbreviatedHash(int commit) {
+    return getHash(commit).substring(0, myAbbreviation);
+  }
+
+  /**
+   * Git abbreviates the hashes longer as the repository grows, so the length is taken from Git on each update instead of being stored.
+   */
+  void setAbbreviation(int abbreviation) {
+    myAbbreviation = Math.max(4, Math.min(abbreviation, HASH_LENGTH * 2));
+  }
+
+  /**
+   * @return commit time in milliseconds
+   */
+  public long getTime(int commit) {
+    synchronized (myLock) {
+      return myCommits.getLong(getRecord(commit) + TIME_OFFSET);
+    }
+  }
+
+  public int getAuthor(int commit) {
+    synchronized (myLock) {
+      return myCommits.getInt(getRecord(commit) + AUTHOR_OFFSET);
+    }
+  }
+
+  public int getCommitter(int commit) {
+    synchronized (myLock) {
+      return myCommits.getInt(getRecord(commit) + COMMITTER_OFFSET);
+    }
+  }
+
+  /**
+   * @return the user as Git has written it, "Name &lt;email&gt;"
+   */
+  @NotNull
+  public String getUser(int user) throws IOException {
+    synchronized (myLock) {
+      return myUsers.valueOf(user);
+    }
+  }
+
+  @NotNull
+  public int[] getParents(int commit) {
+    synchronized (myLock) {
+      int record = getRecord(commit);
+      int offset = myCommits.getInt(record + PARENTS_OFFSET);
+      int[] result = new int[myCommits.getShort(record + PARENT_COUNT_OFFSET)];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = myParents.getInt((offset + i) * 4);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @param path path of a file or a directory relative to the root
+   * @return the commits which changed the file or the files under the directory; for merges, the files changed against all the parents
+   */
+  @NotNull
+  public TIntHashSet getCommitsChanging(@NotNull String path) throws IOException {
+    synchronized (myLock) {
+      flushPendingPaths();
+      TIntHashSet result = myPaths.get(path);
+      return result != null ? result : new TIntHashSet();
+    }
+  }
+
+  private int getRecord(int commit) {
+    assert commit > 0 && commit <= myCount : commit;
+    return commit * RECORD_SIZE;
+  }
+
+  /**
+   * @param parents parents of the commit, which have to be added before it
+   * @return number of the added commit
+   */
+  int addCommit(@NotNull String hash, long time, @NotNull String author, @NotNull String committer, @NotNull int[] parents)
+    throws IOException {
+    synchronized (myLock) {
+      int commit = myCount + 1;
+      int record = commit * RECORD_SIZE;
+      byte[] hashBytes = parseHash(hash);
+      myCommits.put(record, hashBytes, 0, HASH_LENGTH);
+      myCommits.putLong(record + TIME_OFFSET, time);
+      myCommits.putInt(record + AUTHOR_OFFSET, myUsers.enumerate(author));
+      myCommits.putInt(record + COMMITTER_OFFSET, myUsers.enumerate(committer));
+      myCommits.putInt(record + PARENTS_OFFSET, myParentLinkCount);
+      myCommits.putShort(record + PARENT_COUNT_OFFSET, (short)parents.length);
+      myCommits.put(record + RECORD_SIZE - 1, (byte)0);
+      for (int parent : parents) {
+        myParents.putInt(myParentLinkCount++ * 4, parent);
+      }
+      myHashes.put(hashBytes, commit);
+
+      myCount = commit;
+      myCommits.putInt(HEADER_COUNT_OFFSET, myCount);
+      myCommits.putInt(HEADER_PARENTS_OFFSET, myParentLinkCount);
+      return commit;
+    }
+  }
+
+  /**
+   * Indexes the files changed by the commit, under their own paths and under the paths of all their parent directories.
+   */
+  void addChangedPaths(int commit, @NotNull Collection<String> paths) throws IOException {
+    Set<String> keys = new HashSet<String>();
+    for (String path : paths) {
+      for (int end = path.length(); end > 0; end = path.lastIndexOf('/', end - 1)) {
+        if (!keys.add(path.substring(0, end))) break;
+      }
+    }
+    synchronized (myLock) {
+      for (String key : keys) {
+        TIntArrayList commits = myPendingPaths.get(key);
+        if (commits == null) {
+          myPendingPaths.put(key, commits = new TIntArrayList());
+        }
+        commits.add(commit);
+      }
+      myPendingPathCount += keys.size();
+      if (myPendingPathCount > MAX_PENDING_PATHS) {
+        flushPendingPaths();
+      }
+    }
+  }
+
+  private void flushPendingPaths() throws IOException {
+    for (Map.Entry<String, TIntArrayList> entry : myPendingPaths.entrySet()) {
+      final TIntArrayList commits = entry.getValue();
+      myPaths.appendData(entry.getKey(), new PersistentHashMap.ValueDataAppender() {
+        @Override
+        public void append(final DataOutput out) throws IOException {
+          for (int i = 0; i < commits.size(); i++) {
+            out.writeInt(commits.get(i));
+          }
+        }
+      });
+    }
+    myPendingPaths.clear();
+    myPendingPathCount = 0;
+  }
+
+  public void flush() throws IOException {
+    synchronized (myLock) {
+      flushPendingPaths();
+      myPaths.force();
+      myHashes.force();
+      myUsers.force();
+      myParents.force();
+      myCommits.force();
+    }
+  }
+
+  public void close() throws IOException {
+    synchronized (myLock) {
+      if (myCommits == null) return;
+      flushPendingPaths();
+      myCommits.putInt(HEADER_STATUS_OFFSET, CLOSED);
+      closeFiles();
+    }
+  }
+
+  private void closeFiles() throws IOException {
+    if (myPaths != null) myPaths.close();
+    if (myHashes != null) myHashes.close();
+    if (myUsers != null) myUsers.close();
+    if (myParents != null) myParents.close();
+    if (myCommits != null) myCommits.close();
+    myPaths = null;
+    myHashes = null;
+    myUsers = null;
+    myParents = null;
+    myCommits = null;
+  }
+
+  @NotNull
+  private static byte[] parseHash(@NotNull String hash) throws IOException {
+    if (hash.length() != HASH_LENGTH * 2) throw new IOException("Not a full hash: " + hash);
+    byte[] result = new byte[HASH_LENGTH];
+    for (int i = 0; i < HASH_LENGTH; i++) {
+      int high = Character.digit(hash.charAt(2 * i), 16);
+      int low = Character.digit(hash.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) throw new IOException("Not a full hash: " + hash);
+      result[i] = (byte)((high << 4) | low);
+    }
+    return result;
+  }
+}
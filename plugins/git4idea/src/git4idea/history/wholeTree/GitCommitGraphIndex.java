@@ -0,0 +1,351 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Processor;
+import git4idea.GitUtil;
+import git4idea.commands.GitCommand;
+import git4idea.commands.GitLineHandler;
+import git4idea.commands.GitLineHandlerListener;
+import git4idea.commands.GitSimpleHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * !! application-level
+ * <p/>
+ * Keeps the {@link GitCommitGraph commit graphs} of the repositories in the system directory and brings them up to date
+ * with the refs of the repositories: only the commits which are not reachable from the refs already in the graph are read from Git.
+ */
+public class GitCommitGraphIndex implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#git4idea.history.wholeTree.GitCommitGraphIndex");
+
+  private static final String RECORD_START = "\u0001";
+  private static final String ITEMS_SEPARATOR = "\u0002";
+  private static final String FORMAT = "%x01%H%x02%ct%x02%an <%ae>%x02%cn <%ce>%x02%P";
+  private static final String TIPS_FORMAT = "%H%x02%h";
+
+  private final File myDir;
+  private final Object myLock = new Object();
+  // root path -> graph
+  private final Map<String, GitCommitGraph> myGraphs = new HashMap<String, GitCommitGraph>();
+  // roots which graphs are being updated
+  private final Set<String> myUpdating = new HashSet<String>();
+
+  public GitCommitGraphIndex() {
+    myDir = new File(new File(PathManager.getSystemPath(), "vcs"), "git_graph");
+    Disposer.register(ApplicationManager.getApplication(), this);
+  }
+
+  public static GitCommitGraphIndex getInstance() {
+    return ServiceManager.getService(GitCommitGraphIndex.class);
+  }
+
+  /**
+   * Adds the new commits of the repository to its graph.
+   * The graph of a repository is built for the first time in background, so the graph is not available until it's built.
+   *
+   * @return the graph and the commits the refs of the repository point to,
+   *         or null if the graph is being built or updated by someone else, or if it couldn't be updated
+   */
+  @Nullable
+  public Pair<GitCommitGraph, int[]> getUpToDateGraph(@NotNull final Project project, @NotNull final VirtualFile root) {
+    final String key = root.getPath();
+    final GitCommitGraph graph;
+    synchronized (myLock) {
+      if (!myUpdating.add(key)) return null;
+      try {
+        graph = getGraph(root);
+      }
+      catch (IOException e) {
+        myUpdating.remove(key);
+        LOG.info("Couldn't open the commit graph of " + root, e);
+        return null;
+      }
+    }
+
+    if (graph.getCommitCount() == 0) {
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            update(project, root, graph);
+          }
+          finally {
+            release(key);
+          }
+        }
+      });
+      return null;
+    }
+
+    try {
+      return update(project, root, graph);
+    }
+    finally {
+      release(key);
+    }
+  }
+
+  @NotNull
+  private GitCommitGraph getGraph(@NotNull VirtualFile root) throws IOException {
+    GitCommitGraph graph = myGraphs.get(root.getPath());
+    if (graph == null) {
+      File dir = new File(myDir, root.getName() + "." + Integer.toHexString(FileUtil.pathHashCode(root.getPath())));
+      graph = new GitCommitGraph(dir);
+      myGraphs.put(root.getPath(), graph);
+    }
+    return graph;
+  }
+
+  private void release(@NotNull String key) {
+    synchronized (myLock) {
+      myUpdating.remove(key);
+    }
+  }
+
+  @Nullable
+  static Pair<GitCommitGraph, int[]> update(@NotNull Project project, @NotNull VirtualFile root, @NotNull GitCommitGraph graph) {
+    try {
+      List<String> tips = readTips(project, root, graph);
+      List<String> newTips = new ArrayList<String>();
+      List<String> knownTips = new ArrayList<String>();
+      for (String tip : tips) {
+        (graph.findCommit(tip) == 0 ? newTips : knownTips).add(tip);
+      }
+
+      if (!newTips.isEmpty()) {
+        long start = System.currentTimeMillis();
+        int count = graph.getCommitCount();
+        readNewCommits(project, root, graph, newTips, knownTips);
+        graph.flush();
+        LOG.info((graph.getCommitCount() - count) + " commits of " + root + " added to the commit graph in " +
+                 (System.currentTimeMillis() - start) + " ms");
+      }
+
+      int[] heads = new int[tips.size()];
+      for (int i = 0; i < heads.length; i++) {
+        heads[i] = graph.findCommit(tips.get(i));
+        if (heads[i] == 0) {
+          LOG.info("Commit " + tips.get(i) + " of " + root + " is not in the commit graph");
+          return null;
+        }
+      }
+      return Pair.create(graph, heads);
+    }
+    catch (VcsException e) {
+      LOG.info("Couldn't update the commit graph of " + root, e);
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't update the commit graph of " + root, e);
+    }
+    return null;
+  }
+
+  /**
+   * Takes the length Git abbreviates the hashes with now from the abbreviated hashes of the tips.
+   *
+   * @return hashes of the commits pointed by HEAD, the branches, the remote branches and the tags
+   */
+  @NotNull
+  private static List<String> readTips(@NotNull Project project, @NotNull VirtualFile root, @NotNull GitCommitGraph graph)
+    throws VcsException {
+    GitSimpleHandler h = new GitSimpleHandler(project, root, GitCommand.LOG);
+    h.setSilent(true);
+    h.addParameters("--no-walk", "--format=" + TIPS_FORMAT, "HEAD", "--branches", "--remotes", "--tags");
+    h.endOptions();
+    Set<String> result = new LinkedHashSet<String>();
+    int abbreviation = Integer.MAX_VALUE;
+    for (String line : StringUtil.splitByLines(h.run())) {
+      List<String> hashes = StringUtil.split(line.trim(), ITEMS_SEPARATOR);
+      if (hashes.size() != 2) throw new VcsException("Unexpected output: " + line);
+      result.add(hashes.get(0));
+      // a hash can be abbreviated longer than the others if its shortest prefix is ambiguous
+      abbreviation = Math.min(abbreviation, hashes.get(1).length());
+    }
+    if (!result.isEmpty()) {
+      graph.setAbbreviation(abbreviation);
+    }
+    return new ArrayList<String>(result);
+  }
+
+  /**
+   * Reads the commits reachable from the new tips but not from the known ones, parents before children.
+   * The revisions are passed through the standard input, as there may be too many of them for the command line.
+   */
+  private static void readNewCommits(@NotNull Project project, @NotNull VirtualFile root, @NotNull GitCommitGraph graph,
+                                     @NotNull final List<String> newTips, @NotNull final List<String> knownTips)
+    throws VcsException, IOException {
+    final GitLineHandler h = new GitLineHandler(project, root, GitCommand.LOG);
+    h.setSilent(true);
+    h.setStdoutSuppressed(true);
+    h.addParameters("--reverse", "--topo-order", "-c", "--name-only", "--encoding=UTF-8", "--stdin", "--format=" + FORMAT);
+    h.endOptions();
+    h.setInputProcessor(new Processor<OutputStream>() {
+      @Override
+      public boolean process(OutputStream stream) {
+        try {
+          StringBuilder revisions = new StringBuilder();
+          for (String tip : newTips) {
+            revisions.append(tip).append('\n');
+          }
+          for (String tip : knownTips) {
+            revisions.append('^').append(tip).append('\n');
+          }
+          stream.write(revisions.toString().getBytes(CharsetToolkit.UTF8_CHARSET));
+          stream.close();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+        return true;
+      }
+    });
+
+    CommitsReader reader = new CommitsReader(h, graph);
+    h.addLineListener(reader);
+    h.runInCurrentThread(null);
+    reader.checkErrors();
+  }
+
+  @Override
+  public void dispose() {
+    synchronized (myLock) {
+      for (GitCommitGraph graph : myGraphs.values()) {
+        try {
+          graph.close();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+      myGraphs.clear();
+    }
+  }
+
+  /**
+   * Adds the commits printed by 'git log' to the graph: a line with the commit information, and the changed paths after it.
+   */
+  private static class CommitsReader implements GitLineHandlerListener {
+    private final GitLineHandler myHandler;
+    private final GitCommitGraph myGraph;
+    private final List<String> myErrors = new ArrayList<String>();
+    @Nullable private String[] myCommit;
+    private final List<String> myPaths = new ArrayList<String>();
+    @Nullable private Exception myException;
+    private int myExitCode;
+
+    private CommitsReader(@NotNull GitLineHandler handler, @NotNull GitCommitGraph graph) {
+      myHandler = handler;
+      myGraph = graph;
+    }
+
+    @Override
+    public void onLineAvailable(String line, Key outputType) {
+      if (myException != null) return;
+      if (!ProcessOutputTypes.STDOUT.equals(outputType)) {
+        if (ProcessOutputTypes.STDERR.equals(outputType)) myErrors.add(line);
+        return;
+      }
+      try {
+        ProgressManager.checkCanceled();
+        if (line.startsWith(RECORD_START)) {
+          addCommit();
+          myCommit = line.substring(RECORD_START.length()).split(ITEMS_SEPARATOR, -1);
+          if (myCommit.length != 5) throw new VcsException("Unexpected output: " + line);
+        }
+        else if (line.length() > 0 && myCommit != null) {
+          myPaths.add(GitUtil.unescapePath(line));
+        }
+      }
+      catch (Exception e) { // ProcessCanceledException as well
+        myException = e;
+        myHandler.cancel();
+      }
+    }
+
+    private void addCommit() throws IOException {
+      String[] commit = myCommit;
+      if (commit == null) return;
+      myCommit = null;
+
+      // the commit has been added already if it was reachable from a ref which is not there anymore
+      if (myGraph.findCommit(commit[0]) == 0) {
+        List<String> parentHashes = StringUtil.split(commit[4], " ");
+        int[] parents = new int[parentHashes.size()];
+        int count = 0;
+        for (String parentHash : parentHashes) {
+          int parent = myGraph.findCommit(parentHash);
+          if (parent != 0) { // a parent beyond the boundary of a shallow clone
+            parents[count++] = parent;
+          }
+        }
+        int number = myGraph.addCommit(commit[0], Long.parseLong(commit[1]) * 1000, commit[2], commit[3],
+                                       count == parents.length ? parents : Arrays.copyOf(parents, count));
+        myGraph.addChangedPaths(number, myPaths);
+      }
+      myPaths.clear();
+    }
+
+    @Override
+    public void processTerminated(int exitCode) {
+      myExitCode = exitCode;
+      if (myException == null && exitCode == 0) {
+        try {
+          addCommit();
+        }
+        catch (Exception e) {
+          myException = e;
+        }
+      }
+    }
+
+    @Override
+    public void startFailed(Throwable exception) {
+      myException = new VcsException(exception);
+    }
+
+    private void checkErrors() throws VcsException, IOException {
+      if (myException instanceof ProcessCanceledException) throw (ProcessCanceledException)myException;
+      if (myException instanceof VcsException) throw (VcsException)myException;
+      if (myException instanceof IOException) throw (IOException)myException;
+      if (myException != null) throw new VcsException(myException);
+      if (myExitCode != 0) throw new VcsException(StringUtil.join(myErrors, "\n"));
+    }
+  }
+}
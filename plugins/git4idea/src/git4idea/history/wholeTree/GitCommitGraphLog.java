@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import git4idea.history.browser.ChangesFilter;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Skeleton of the log of a root taken from the {@link GitCommitGraph} instead of 'git log':
+ * the commits reachable from the refs are ordered and filtered in memory, and then given away portion by portion.
+ */
+class GitCommitGraphLog {
+  private static final Logger LOG = Logger.getInstance("#git4idea.history.wholeTree.GitCommitGraphLog");
+
+  private final GitCommitGraph myGraph;
+  private final int[] myCommits;
+  private int myPosition;
+  private final TIntObjectHashMap<String> myAuthorNames = new TIntObjectHashMap<String>();
+
+  private GitCommitGraphLog(@NotNull GitCommitGraph graph, @NotNull int[] commits) {
+    myGraph = graph;
+    myCommits = commits;
+  }
+
+  /**
+   * @return null if the graph is not available or some of the filters can't be applied to it; then the log is to be read from Git
+   */
+  @Nullable
+  static GitCommitGraphLog create(@NotNull Project project, @NotNull VirtualFile root, @NotNull Collection<ChangesFilter.Filter> filters,
+                                  boolean topoOrder) {
+    if (!Registry.is("git.log.use.commit.graph")) return null;
+    Filter filter = new Filter();
+    for (ChangesFilter.Filter each : filters) {
+      if (!filter.add(each, root)) return null;
+    }
+
+    Pair<GitCommitGraph, int[]> graph = GitCommitGraphIndex.getInstance().getUpToDateGraph(project, root);
+    if (graph == null) return null;
+    try {
+      long start = System.currentTimeMillis();
+      int[] commits = filter.apply(graph.first, order(graph.first, graph.second, topoOrder));
+      LOG.debug(commits.length + " commits of " + root + " taken from the commit graph in " + (System.currentTimeMillis() - start) + " ms");
+      return new GitCommitGraphLog(graph.first, commits);
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't read the commit graph of " + root, e);
+      return null;
+    }
+  }
+
+  /**
+   * Orders the commits reachable from the heads the way 'git log' does: no commit is shown before all of its children,
+   * otherwise the commits go by their time ('--date-order') or in the topological order ('--topo-order').
+   */
+  @NotNull
+  static int[] order(@NotNull GitCommitGraph graph, @NotNull int[] heads, boolean topoOrder) {
+    int count = graph.getCommitCount();
+    boolean[] reachable = new boolean[count + 1];
+    final int[] children = new int[count + 1];
+    TIntArrayList stack = new TIntArrayList();
+    for (int head : heads) {
+      if (!reachable[head]) {
+        reachable[head] = true;
+        stack.add(head);
+      }
+    }
+    int total = 0;
+    while (!stack.isEmpty()) {
+      int commit = stack.remove(stack.size() - 1);
+      total++;
+      for (int parent : graph.getParents(commit)) {
+        children[parent]++;
+        if (!reachable[parent]) {
+          reachable[parent] = true;
+          stack.add(parent);
+        }
+      }
+    }
+
+    int[] result = new int[total];
+    int n = 0;
+    if (topoOrder) {
+      // the parents are numbered before the children
+      for (int commit = count; commit > 0; commit--) {
+        if (reachable[commit]) result[n++] = commit;
+      }
+      return result;
+    }
+
+    final long[] times = new long[count + 1];
+    PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(heads.length, 1), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer commit1, Integer commit2) {
+        long time1 = times[commit1];
+        long time2 = times[commit2];
+        if (time1 != time2) return time1 > time2 ? -1 : 1;
+        return commit2 - commit1;
+      }
+    });
+    for (int commit = 1; commit <= count; commit++) {
+      if (reachable[commit]) {
+        times[commit] = graph.getTime(commit);
+        if (children[commit] == 0) queue.add(commit);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int commit = queue.poll();
+      result[n++] = commit;
+      for (int parent : graph.getParents(commit)) {
+        if (--children[parent] == 0) queue.add(parent);
+      }
+    }
+    return result;
+  }
+
+  boolean isOver() {
+    return myPosition >= myCommits.length;
+  }
+
+  @NotNull
+  List<CommitHashPlusParents> next(int count) throws IOException {
+    int end = Math.min(myCommits.length, myPosition + count);
+    List<CommitHashPlusParents> result = new ArrayList<CommitHashPlusParents>(end - myPosition);
+    for (; myPosition < end; myPosition++) {
+      int commit = myCommits[myPosition];
+      int[] parents = myGraph.getParents(commit);
+      String[] parentHashes = new String[parents.length];
+      for (int i = 0; i < parents.length; i++) {
+        parentHashes[i] = myGraph.getAbbreviatedHash(parents[i]);
+      }
+      result.add(new CommitHashPlusParents(myGraph.getAbbreviatedHash(commit), parentHashes, myGraph.getTime(commit),
+                                           getAuthorName(myGraph.getAuthor(commit))));
+    }
+    return result;
+  }
+
+  @NotNull
+  private String getAuthorName(int author) throws IOException {
+    String name = myAuthorNames.get(author);
+    if (name == null) {
+      String user = myGraph.getUser(author);
+      int email = user.lastIndexOf(" <");
+      name = email >= 0 ? user.substring(0, email) : user;
+      myAuthorNames.put(author, name);
+    }
+    return name;
+  }
+
+  /**
+   * The filters the graph knows how to apply: by the author or the committer (matched against "Name &lt;email&gt;" like Git does),
+   * by the date (the bounds included, to the second like '--since' and '--until'), and by the changed paths.
+   */
+  static class Filter {
+    private final List<Pattern> myAuthors = new ArrayList<Pattern>();
+    private final List<Pattern> myCommitters = new ArrayList<Pattern>();
+    private long myAfter = Long.MIN_VALUE;
+    private long myBefore = Long.MAX_VALUE;
+    @Nullable private Set<String> myPaths;
+
+    boolean add(@NotNull ChangesFilter.Filter filter, @NotNull VirtualFile root) {
+      if (filter instanceof ChangesFilter.And) {
+        for (ChangesFilter.Filter each : ((ChangesFilter.And)filter).getFilters()) {
+          if (!add(each, root)) return false;
+        }
+      }
+      else if (filter instanceof ChangesFilter.Author) {
+        myAuthors.add(Pattern.compile(((ChangesFilter.Author)filter).getRegexp()));
+      }
+      else if (filter instanceof ChangesFilter.Committer) {
+        myCommitters.add(Pattern.compile(((ChangesFilter.Committer)filter).getRegexp()));
+      }
+      else if (filter instanceof ChangesFilter.BeforeDate) {
+        myBefore = Math.min(myBefore, toGitTime(((ChangesFilter.BeforeDate)filter).getDate()));
+      }
+      else if (filter instanceof ChangesFilter.AfterDate) {
+        myAfter = Math.max(myAfter, toGitTime(((ChangesFilter.AfterDate)filter).getDate()));
+      }
+      else if (filter instanceof ChangesFilter.StructureFilter && myPaths == null) {
+        Collection<VirtualFile> files = new ArrayList<VirtualFile>();
+        filter.getCommandParametersFilter().applyToPaths(files);
+        Set<String> paths = new HashSet<String>();
+        for (VirtualFile file : files) {
+          String path = VfsUtilCore.getRelativePath(file, root, '/');
+          if (path == null) continue;
+          if (path.length() == 0) return true; // the whole root
+          paths.add(path);
+        }
+        myPaths = paths;
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    // Git is given the dates in seconds, and the commit times are in seconds too
+    private static long toGitTime(@NotNull Date date) {
+      return date.getTime() / 1000 * 1000;
+    }
+
+    @NotNull
+    int[] apply(@NotNull GitCommitGraph graph, @NotNull int[] commits) throws IOException {
+      if (myAuthors.isEmpty() && myCommitters.isEmpty() && myAfter == Long.MIN_VALUE && myBefore == Long.MAX_VALUE && myPaths == null) {
+        return commits;
+      }
+
+      TIntHashSet changing = null;
+      if (myPaths != null) {
+        changing = new TIntHashSet();
+        for (String path : myPaths) {
+          changing.addAll(graph.getCommitsChanging(path).toArray());
+        }
+      }
+      UserMatcher authors = new UserMatcher(graph, myAuthors);
+      UserMatcher committers = new UserMatcher(graph, myCommitters);
+
+      TIntArrayList result = new TIntArrayList();
+      for (int commit : commits) {
+        if (changing != null && !changing.contains(commit)) continue;
+        long time = graph.getTime(commit);
+        if (time < myAfter || time > myBefore) continue;
+        if (!authors.matches(graph.getAuthor(commit)) || !committers.matches(graph.getCommitter(commit))) continue;
+        result.add(commit);
+      }
+      return result.toNativeArray();
+    }
+  }
+
+  private static class UserMatcher {
+    private final GitCommitGraph myGraph;
+    private final List<Pattern> myPatterns;
+    private final TIntObjectHashMap<Boolean> myMatches = new TIntObjectHashMap<Boolean>();
+
+    private UserMatcher(@NotNull GitCommitGraph graph, @NotNull List<Pattern> patterns) {
+      myGraph = graph;
+      myPatterns = patterns;
+    }
+
+    private boolean matches(int user) throws IOException {
+      if (myPatterns.isEmpty()) return true;
+      Boolean result = myMatches.get(user);
+      if (result == null) {
+        String name = myGraph.getUser(user);
+        result = Boolean.TRUE;
+        for (Pattern pattern : myPatterns) {
+          if (!pattern.matcher(name).find()) {
+            result = Boolean.FALSE;
+            break;
+          }
+        }
+        myMatches.put(user, result);
+      }
+      return result;
+    }
+  }
+}
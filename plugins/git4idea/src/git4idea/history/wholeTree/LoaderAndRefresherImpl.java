@@ -28,7 +28,9 @@ import git4idea.history.browser.GitHeavyCommit;
 import git4idea.history.browser.LowLevelAccessImpl;
 import git4idea.history.browser.SymbolicRefsI;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -36,6 +38,7 @@ import java.util.*;
  */
 public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlusParents> {
   private final static int ourFirstLoadCount = 15;
+  private final static int ourGraphPortion = 5000;
   private final static int ourPreload = (! parameterCheck(Integer.getInteger("git.log.preload.size"))) ? 100 : Integer.getInteger("git.log.preload.size");
 
   private final Collection<String> myStartingPoints;
@@ -60,6 +63,9 @@ public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlus
   @NotNull
   private volatile StepType myStepType;
   private final boolean myTopoOrder;
+  private boolean myGraphLogChecked;
+  @Nullable private GitCommitGraphLog myGraphLog;
+  private CommitHashPlusParents myGraphLast;
 
   private static boolean parameterCheck(final Integer i) {
     return i != null && i > 0;
@@ -150,6 +156,16 @@ public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlus
       if (! checkStartingPoints()) return new LoadAlgorithm.Result<CommitHashPlusParents>(true, 0, myRepeatingLoadConsumer.getLast());
     }*/
 
+    if (! myGraphLogChecked) {
+      myGraphLogChecked = true;
+      if (myStartingPoints.isEmpty()) {
+        myGraphLog = GitCommitGraphLog.create(myProject, myRootHolder.getRoot(), myFilters, myTopoOrder);
+      }
+    }
+    if (myGraphLog != null) {
+      return loadFromGraph(loadType);
+    }
+
     myRepeatingLoadConsumer.reset();
     int count = 340;
     boolean shouldFull = ! myHaveStructureFilter;
@@ -191,6 +207,38 @@ public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlus
     return new LoadAlgorithm.Result<CommitHashPlusParents>(isOver, end - start, myRepeatingLoadConsumer.getLast());
   }
 
+  // the graph has already been ordered and filtered, so the commits are given one portion after another, ignoring the continuation
+  private LoadAlgorithm.Result<CommitHashPlusParents> loadFromGraph(final LoadAlgorithm.LoadType loadType) {
+    final long start = System.currentTimeMillis();
+    int count = ourGraphPortion;
+    if (LoadAlgorithm.LoadType.TEST.equals(loadType)) {
+      count = ourFirstLoadCount;
+    } else if (LoadAlgorithm.LoadType.FULL_PREVIEW.equals(loadType)) {
+      count = ourPreload;
+    }
+
+    boolean isOver;
+    try {
+      for (CommitHashPlusParents commit : myGraphLog.next(count)) {
+        myBufferConsumer.consumeOne(commit);
+        myGraphLast = commit;
+      }
+      isOver = myGraphLog.isOver();
+    }
+    catch (IOException e) {
+      myMediator.acceptException(new VcsException(e));
+      isOver = true;
+    }
+
+    if (isOver) {
+      myId.finished();
+      myStepType = StepType.FINISHED;
+    } else if (myGraphLast != null) {
+      myId.registerTime(myGraphLast.getTime());
+    }
+    return new LoadAlgorithm.Result<CommitHashPlusParents>(isOver, System.currentTimeMillis() - start, myGraphLast);
+  }
+
   private void step(final int count, final boolean shouldFull, final long continuation) {
     if (shouldFull) {
       loadFull(count, continuation);
@@ -37,6 +37,7 @@ import git4idea.config.GitVersionSpecialty;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Git repository change provider
@@ -50,6 +51,8 @@ public class GitChangeProvider implements ChangeProvider {
   @NotNull private final ChangeListManager myChangeListManager;
   @NotNull private final FileDocumentManager myFileDocumentManager;
   @NotNull private final ProjectLevelVcsManager myVcsManager;
+  @NotNull private final Map<VirtualFile, GitNewChangesCollector.IndexState> myIndexStates =
+    new ConcurrentHashMap<VirtualFile, GitNewChangesCollector.IndexState>();
 
   public GitChangeProvider(@NotNull Project project, @NotNull Git git, ChangeListManager changeListManager,
                            @NotNull FileDocumentManager fileDocumentManager, @NotNull ProjectLevelVcsManager vcsManager) {
@@ -83,7 +86,7 @@ public class GitChangeProvider implements ChangeProvider {
         debug("checking root: " + root.getPath());
         GitChangesCollector collector = isNewGitChangeProviderAvailable()
                                         ? GitNewChangesCollector.collect(myProject, myGit, myChangeListManager, myVcsManager,
-                                                                         vcs, dirtyScope, root)
+                                                                         vcs, dirtyScope, root, myIndexStates)
                                         : GitOldChangesCollector.collect(myProject, myChangeListManager, myVcsManager,
                                                                          vcs, dirtyScope, root);
         final Collection<Change> changes = collector.getChanges();
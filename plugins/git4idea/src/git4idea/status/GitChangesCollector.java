@@ -82,7 +82,7 @@ abstract class GitChangesCollector {
     }
 
     if (includeChanges) {
-      for (Change c : myChangeListManager.getChangesIn(myVcsRoot)) {
+      for (Change c : getChangesInRoot()) {
         switch (c.getType()) {
           case NEW:
           case DELETED:
@@ -112,6 +112,14 @@ abstract class GitChangesCollector {
     return paths;
   }
 
+  /**
+   * @return the changes which are currently known in the root
+   */
+  @NotNull
+  protected Collection<Change> getChangesInRoot() {
+    return myChangeListManager.getChangesIn(myVcsRoot);
+  }
+
   protected void addToPaths(FilePath pathToAdd, List<String> paths) {
     VcsRoot fileRoot = myVcsManager.getVcsRootObjectFor(pathToAdd);
     if (fileRoot != null && fileRoot.getVcs() != null && myVcs.equals(fileRoot.getVcs()) && myVcsRoot.equals(fileRoot.getPath())) {
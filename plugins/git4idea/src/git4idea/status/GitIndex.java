@@ -0,0 +1,253 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.status;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ *   The entries of the Git index file ({@code .git/index}) together with the stat data Git has recorded for them
+ *   when it checked the files in the working tree for the last time.
+ *   Versions 2, 3 and 4 of the index format are supported.
+ * </p>
+ * <p>
+ *   See <a href="https://github.com/git/git/blob/master/Documentation/technical/index-format.txt">index-format.txt</a> for details.
+ * </p>
+ */
+class GitIndex {
+  private static final int SIGNATURE = 0x44495243; // "DIRC"
+  private static final int ENTRY_FIXED_SIZE = 62;
+  private static final int EXTENDED_FLAG = 0x4000;
+  private static final int STAGE_MASK = 0x3000;
+  private static final int STAGE_SHIFT = 12;
+  private static final int NAME_MASK = 0xFFF;
+  private static final int TYPE_MASK = 0170000;
+  private static final int REGULAR_FILE_TYPE = 0100000;
+  private static final int HASH_LENGTH = 20;
+  private static final int EXTENSION_HEADER_SIZE = 8;
+  private static final int LINK_EXTENSION = 0x6C696E6B; // "link"
+
+  private final long myTimestamp;
+  private final long myLength;
+  @NotNull private final List<Entry> myEntries;
+  private final boolean mySplit;
+
+  private GitIndex(long timestamp, long length, @NotNull List<Entry> entries, boolean split) {
+    myTimestamp = timestamp;
+    myLength = length;
+    myEntries = entries;
+    mySplit = split;
+  }
+
+  @NotNull
+  static GitIndex read(@NotNull File indexFile) throws IOException {
+    long timestamp = indexFile.lastModified();
+    long length = indexFile.length();
+    byte[] bytes = FileUtil.loadFileBytes(indexFile);
+    DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
+
+    if (in.readInt() != SIGNATURE) throw new IOException("Not a Git index file: " + indexFile);
+    int version = in.readInt();
+    if (version < 2 || version > 4) throw new IOException("Unsupported version of Git index: " + version);
+    int count = in.readInt();
+
+    List<Entry> entries = new ArrayList<Entry>(count);
+    byte[] previousPath = new byte[0];
+    for (int i = 0; i < count; i++) {
+      in.skipBytes(8); // ctime
+      long mtime = in.readInt() & 0xFFFFFFFFL;
+      in.skipBytes(4 * 3); // mtime nanoseconds, dev, ino
+      int mode = in.readInt();
+      in.skipBytes(4 * 2); // uid, gid
+      int size = in.readInt();
+      byte[] hash = new byte[20];
+      in.readFully(hash);
+      int flags = in.readUnsignedShort();
+      int entrySize = ENTRY_FIXED_SIZE;
+      if ((flags & EXTENDED_FLAG) != 0) {
+        if (version < 3) throw new IOException("Extended flags in Git index of version " + version);
+        in.skipBytes(2);
+        entrySize += 2;
+      }
+
+      byte[] path;
+      if (version == 4) {
+        // the path is compressed against the previous one: the number of bytes to remove from its end is followed by the suffix
+        int strip = readOffset(in);
+        if (strip > previousPath.length) throw new IOException("Malformed path of Git index entry " + i);
+        path = concat(previousPath, previousPath.length - strip, readNullTerminated(in));
+      }
+      else {
+        int nameLength = flags & NAME_MASK;
+        if (nameLength < NAME_MASK) {
+          path = new byte[nameLength];
+          in.readFully(path);
+        }
+        else {
+          path = readNullTerminated(in);
+          nameLength = path.length;
+        }
+        // the entry is padded with 1-8 NUL bytes to the multiple of 8 bytes
+        in.skipBytes(((entrySize + nameLength + 8) & ~7) - entrySize - nameLength - (nameLength < NAME_MASK ? 0 : 1));
+      }
+      previousPath = path;
+
+      entries.add(new Entry(new String(path, "UTF-8"), mtime, size, mode, (flags & STAGE_MASK) >> STAGE_SHIFT, hash));
+    }
+
+    // the extensions go after the entries, the checksum of the file follows them
+    boolean split = false;
+    while (in.available() > HASH_LENGTH) {
+      if (in.available() < HASH_LENGTH + EXTENSION_HEADER_SIZE) throw new IOException("Malformed extension of Git index");
+      int signature = in.readInt();
+      int size = in.readInt();
+      if (signature == LINK_EXTENSION) split = true;
+      if (size < 0 || in.skipBytes(size) != size) throw new IOException("Malformed extension of Git index");
+    }
+    return new GitIndex(timestamp, length, Collections.unmodifiableList(entries), split);
+  }
+
+  private static int readOffset(@NotNull DataInputStream in) throws IOException {
+    int b = in.readUnsignedByte();
+    int result = b & 0x7F;
+    while ((b & 0x80) != 0) {
+      b = in.readUnsignedByte();
+      result = ((result + 1) << 7) | (b & 0x7F);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static byte[] readNullTerminated(@NotNull DataInputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.readUnsignedByte()) != 0) {
+      result.write(b);
+    }
+    return result.toByteArray();
+  }
+
+  @NotNull
+  private static byte[] concat(@NotNull byte[] prefix, int prefixLength, @NotNull byte[] suffix) {
+    byte[] result = new byte[prefixLength + suffix.length];
+    System.arraycopy(prefix, 0, result, 0, prefixLength);
+    System.arraycopy(suffix, 0, result, prefixLength, suffix.length);
+    return result;
+  }
+
+  /**
+   * @return true if the index file has not been changed since it was read
+   */
+  boolean isUpToDate(@NotNull File indexFile) {
+    return indexFile.lastModified() == myTimestamp && indexFile.length() == myLength;
+  }
+
+  /**
+   * @return true if the index is split (core.splitIndex), so the entries which are kept in the shared index file only are missing
+   */
+  boolean isSplit() {
+    return mySplit;
+  }
+
+  /**
+   * @return modification time of the index file when it was read
+   */
+  long getTimestamp() {
+    return myTimestamp;
+  }
+
+  /**
+   * @return the entries sorted by path, the unmerged paths having several entries, one for each stage
+   */
+  @NotNull
+  List<Entry> getEntries() {
+    return myEntries;
+  }
+
+  static class Entry {
+    @NotNull private final String myPath;
+    private final long myModificationTime;
+    private final int mySize;
+    private final int myMode;
+    private final int myStage;
+    @NotNull private final byte[] myHash;
+
+    Entry(@NotNull String path, long modificationTime, int size, int mode, int stage, @NotNull byte[] hash) {
+      myPath = path;
+      myModificationTime = modificationTime;
+      mySize = size;
+      myMode = mode;
+      myStage = stage;
+      myHash = hash;
+    }
+
+    /**
+     * @return path relative to the root of the working tree
+     */
+    @NotNull
+    String getPath() {
+      return myPath;
+    }
+
+    /**
+     * @return modification time of the file in seconds, as it was when Git checked the file
+     */
+    long getModificationTime() {
+      return myModificationTime;
+    }
+
+    /**
+     * @return size of the file truncated to 32 bits, as it was when Git checked the file
+     */
+    int getSize() {
+      return mySize;
+    }
+
+    boolean isRegularFile() {
+      return (myMode & TYPE_MASK) == REGULAR_FILE_TYPE;
+    }
+
+    /**
+     * @return 0 for a merged path, 1-3 for the base, "ours" and "theirs" versions of an unmerged path
+     */
+    int getStage() {
+      return myStage;
+    }
+
+    /**
+     * @return true if the entry describes the same staged object as the given one
+     */
+    boolean isSameStaged(@NotNull Entry entry) {
+      return myMode == entry.myMode && myStage == entry.myStage && Arrays.equals(myHash, entry.myHash);
+    }
+
+    @Override
+    public String toString() {
+      return myPath;
+    }
+  }
+}
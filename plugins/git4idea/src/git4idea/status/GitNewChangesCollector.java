@@ -17,6 +17,9 @@ package git4idea.status;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.changes.Change;
@@ -25,6 +28,7 @@ import com.intellij.openapi.vcs.changes.ContentRevision;
 import com.intellij.openapi.vcs.changes.VcsDirtyScope;
 import com.intellij.openapi.vcs.history.VcsRevisionNumber;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import git4idea.GitContentRevision;
 import git4idea.GitFormatException;
 import git4idea.GitRevisionNumber;
@@ -35,12 +39,14 @@ import git4idea.commands.GitCommand;
 import git4idea.commands.GitHandler;
 import git4idea.commands.GitSimpleHandler;
 import git4idea.repo.GitRepository;
+import git4idea.repo.GitRepositoryFiles;
 import git4idea.repo.GitUntrackedFilesHolder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * <p>
@@ -49,6 +55,11 @@ import java.util.Set;
  *   Works only on Git 1.7.0 and later.
  * </p>
  * <p>
+ *   The status is asked only for the files which may have changed since the previous check of the whole root:
+ *   the stat data Git has cached in the index is compared with the one known to the VFS, so that after the whole root
+ *   has been marked dirty Git is called only for the files really touched (see {@link IndexState}).
+ * </p>
+ * <p>
  *   The class is immutable: collect changes and get the instance from where they can be retrieved by {@link #collect}.
  * </p>
  *
@@ -69,8 +80,9 @@ class GitNewChangesCollector extends GitChangesCollector {
   @NotNull
   static GitNewChangesCollector collect(@NotNull Project project, @NotNull Git git, @NotNull ChangeListManager changeListManager,
                                         @NotNull ProjectLevelVcsManager vcsManager, @NotNull AbstractVcs vcs,
-                                        @NotNull VcsDirtyScope dirtyScope, @NotNull VirtualFile vcsRoot) throws VcsException {
-    return new GitNewChangesCollector(project, git, changeListManager, vcsManager, vcs, dirtyScope, vcsRoot);
+                                        @NotNull VcsDirtyScope dirtyScope, @NotNull VirtualFile vcsRoot,
+                                        @NotNull Map<VirtualFile, IndexState> indexStates) throws VcsException {
+    return new GitNewChangesCollector(project, git, changeListManager, vcsManager, vcs, dirtyScope, vcsRoot, indexStates);
   }
 
   @Override
@@ -87,7 +99,8 @@ class GitNewChangesCollector extends GitChangesCollector {
 
   private GitNewChangesCollector(@NotNull Project project, @NotNull Git git, @NotNull ChangeListManager changeListManager,
                                  @NotNull ProjectLevelVcsManager vcsManager, @NotNull AbstractVcs vcs,
-                                 @NotNull VcsDirtyScope dirtyScope, @NotNull VirtualFile vcsRoot) throws VcsException
+                                 @NotNull VcsDirtyScope dirtyScope, @NotNull VirtualFile vcsRoot,
+                                 @NotNull Map<VirtualFile, IndexState> indexStates) throws VcsException
   {
     super(project, changeListManager, vcsManager, vcs, dirtyScope, vcsRoot);
     myGit = git;
@@ -95,16 +108,166 @@ class GitNewChangesCollector extends GitChangesCollector {
 
     Collection<FilePath> dirtyPaths = dirtyPaths(true);
     if (!dirtyPaths.isEmpty()) {
-      collectChanges(dirtyPaths);
+      VcsRevisionNumber head = getHead();
+      Set<String> relativeDirtyPaths = getRelativePaths(dirtyPaths);
+      IndexState previousState = indexStates.get(vcsRoot);
+      IndexState state = relativeDirtyPaths != null ? readIndexState(head, previousState) : null;
+
+      Collection<FilePath> pathsToCheck = dirtyPaths;
+      if (state != null && previousState != null && previousState.myHead.equals(state.myHead)) {
+        pathsToCheck = findPathsToCheck(relativeDirtyPaths, previousState, state);
+        LOG.debug("checking " + pathsToCheck.size() + " paths found by the index instead of " + dirtyPaths.size() + " dirty paths");
+      }
+
+      if (!pathsToCheck.isEmpty()) {
+        collectChanges(pathsToCheck, head);
+      }
       collectUnversionedFiles();
+
+      // the state may be relied upon only after the whole root has been checked
+      if (state != null && relativeDirtyPaths.contains("")) {
+        indexStates.put(vcsRoot, state);
+      }
     }
   }
 
   // calls 'git status' and parses the output, feeding myChanges.
-  private void collectChanges(Collection<FilePath> dirtyPaths) throws VcsException {
+  private void collectChanges(Collection<FilePath> dirtyPaths, @NotNull VcsRevisionNumber head) throws VcsException {
     GitSimpleHandler handler = statusHandler(dirtyPaths);
     String output = handler.run();
-    parseOutput(output, handler);
+    parseOutput(output, handler, head);
+  }
+
+  @Nullable
+  private IndexState readIndexState(@NotNull VcsRevisionNumber head, @Nullable IndexState previousState) {
+    if (!Registry.is("git.status.use.index") || head == VcsRevisionNumber.NULL) return null;
+
+    VirtualFile gitDir = GitUtil.findGitDir(myVcsRoot);
+    if (gitDir == null) return null;
+    File indexFile = new File(gitDir.getPath(), GitRepositoryFiles.INDEX);
+    if (!indexFile.isFile()) return null;
+
+    try {
+      GitIndex index = previousState != null && previousState.myIndex.isUpToDate(indexFile)
+                       ? previousState.myIndex
+                       : GitIndex.read(indexFile);
+      if (index.isSplit()) {
+        LOG.debug("The index of " + myVcsRoot + " is split, the shared index is not read");
+        return null;
+      }
+      return new IndexState(index, head.asString());
+    }
+    catch (IOException e) {
+      LOG.info("Couldn't read the index of " + myVcsRoot, e);
+      return null;
+    }
+  }
+
+  /**
+   * Finds the files in the dirty paths which may differ from their state at the previous check of the whole root:
+   * the files whose stat data differs from the one cached in the index, the files staged differently since then,
+   * and the files which were changed then.
+   */
+  @NotNull
+  private Collection<FilePath> findPathsToCheck(@NotNull Set<String> dirtyPaths, @NotNull IndexState previousState,
+                                                @NotNull IndexState state) {
+    Set<String> result = new LinkedHashSet<String>();
+
+    // the index is the same object while the index file is not modified
+    Map<String, GitIndex.Entry> previousEntries = null;
+    if (previousState.myIndex != state.myIndex) {
+      previousEntries = new HashMap<String, GitIndex.Entry>();
+      for (GitIndex.Entry entry : previousState.myIndex.getEntries()) {
+        if (entry.getStage() == 0) previousEntries.put(entry.getPath(), entry);
+      }
+    }
+
+    CachedFiles files = new CachedFiles(myVcsRoot);
+    for (GitIndex.Entry entry : state.myIndex.getEntries()) {
+      String path = entry.getPath();
+      GitIndex.Entry previousEntry = previousEntries != null ? previousEntries.remove(path) : null;
+      if (!isUnder(path, dirtyPaths)) continue;
+
+      boolean stagedAsBefore = previousEntries == null || previousEntry != null && previousEntry.isSameStaged(entry);
+      if (!stagedAsBefore || mayBeModified(entry, state.myIndex, files)) {
+        result.add(path);
+      }
+    }
+    if (previousEntries != null) {
+      for (String path : previousEntries.keySet()) { // removed from the index since then
+        if (isUnder(path, dirtyPaths)) result.add(path);
+      }
+    }
+
+    for (Change change : getChangesInRoot()) {
+      for (ContentRevision revision : new ContentRevision[]{change.getBeforeRevision(), change.getAfterRevision()}) {
+        if (revision == null) continue;
+        String path = getRelativePath(revision.getFile());
+        if (path != null && isUnder(path, dirtyPaths)) result.add(path);
+      }
+    }
+
+    List<FilePath> paths = new ArrayList<FilePath>(result.size());
+    for (String path : result) {
+      paths.add(new FilePathImpl(new File(myVcsRoot.getPath(), path), false));
+    }
+    return paths;
+  }
+
+  /**
+   * Compares the stat data cached in the index with the one known to the VFS, or to the file system for the files not cached by the VFS.
+   * A change of the executable bit alone is not noticed here, as the VFS does not know it.
+   */
+  private static boolean mayBeModified(@NotNull GitIndex.Entry entry, @NotNull GitIndex index, @NotNull CachedFiles files) {
+    if (entry.getStage() != 0 || !entry.isRegularFile()) return true;
+    // "racily clean" entry: the file may have been modified in the same second after Git had checked it
+    if (entry.getModificationTime() >= index.getTimestamp() / 1000) return true;
+
+    long timestamp;
+    long length;
+    VirtualFile file = files.find(entry.getPath());
+    if (file != null) {
+      if (!file.isValid() || file.isDirectory()) return true;
+      timestamp = file.getTimeStamp();
+      length = file.getLength();
+    }
+    else {
+      File ioFile = new File(files.myRoot.getPath(), entry.getPath());
+      if (!ioFile.isFile()) return true;
+      timestamp = ioFile.lastModified();
+      length = ioFile.length();
+    }
+    return timestamp / 1000 != entry.getModificationTime() || (int)length != entry.getSize();
+  }
+
+  /**
+   * @return paths relative to the root, "" standing for the root itself, or null if some of the paths are not under the root
+   */
+  @Nullable
+  private Set<String> getRelativePaths(@NotNull Collection<FilePath> paths) {
+    Set<String> result = new HashSet<String>();
+    for (FilePath each : paths) {
+      String path = getRelativePath(each);
+      if (path == null) return null;
+      result.add(SystemInfo.isFileSystemCaseSensitive ? path : path.toLowerCase());
+    }
+    return result;
+  }
+
+  @Nullable
+  private String getRelativePath(@NotNull FilePath path) {
+    String result = FileUtil.getRelativePath(myVcsRoot.getPath(), FileUtil.toSystemIndependentName(path.getPath()), '/');
+    if (result == null || result.startsWith("..")) return null;
+    return result.equals(".") ? "" : result;
+  }
+
+  private static boolean isUnder(@NotNull String path, @NotNull Set<String> relativePaths) {
+    if (relativePaths.contains("")) return true;
+    if (!SystemInfo.isFileSystemCaseSensitive) path = path.toLowerCase();
+    for (int end = path.length(); end > 0; end = path.lastIndexOf('/', end - 1)) {
+      if (relativePaths.contains(path.substring(0, end))) return true;
+    }
+    return false;
   }
 
   private void collectUnversionedFiles() throws VcsException {
@@ -141,9 +304,7 @@ class GitNewChangesCollector extends GitChangesCollector {
    * See <a href=http://www.kernel.org/pub/software/scm/git/docs/git-status.html#_output">Git man</a> for details.
    */
   // handler is here for debugging purposes in the case of parse error
-  private void parseOutput(@NotNull String output, @NotNull GitHandler handler) throws VcsException {
-    VcsRevisionNumber head = getHead();
-
+  private void parseOutput(@NotNull String output, @NotNull GitHandler handler, @NotNull VcsRevisionNumber head) throws VcsException {
     final String[] split = output.split("\u0000");
 
     for (int pos = 0; pos < split.length; pos++) {
@@ -343,4 +504,53 @@ class GitNewChangesCollector extends GitChangesCollector {
     myChanges.add(new Change(before, after, status));
   }
 
+  /**
+   * The index of a root as it was when the whole root was checked for the last time, and the HEAD revision at that moment.
+   * Until HEAD moves, a file which is staged as it was then and whose stat data matches the one cached in the index
+   * is known to have the same status as then.
+   */
+  static class IndexState {
+    @NotNull private final GitIndex myIndex;
+    @NotNull private final String myHead;
+
+    private IndexState(@NotNull GitIndex index, @NotNull String head) {
+      myIndex = index;
+      myHead = head;
+    }
+  }
+
+  /**
+   * Finds the files cached by the VFS, remembering the last directory as the index entries of the same directory go together.
+   */
+  private static class CachedFiles {
+    @NotNull private final VirtualFile myRoot;
+    @Nullable private String myDirPath;
+    @Nullable private VirtualFile myDir;
+
+    private CachedFiles(@NotNull VirtualFile root) {
+      myRoot = root;
+    }
+
+    @Nullable
+    private VirtualFile find(@NotNull String relativePath) {
+      int slash = relativePath.lastIndexOf('/');
+      String dirPath = slash < 0 ? "" : relativePath.substring(0, slash);
+      if (!dirPath.equals(myDirPath)) {
+        myDirPath = dirPath;
+        myDir = findChild(myRoot, dirPath);
+      }
+      return myDir != null ? findChild(myDir, relativePath.substring(slash + 1)) : null;
+    }
+
+    @Nullable
+    private static VirtualFile findChild(@NotNull VirtualFile dir, @NotNull String relativePath) {
+      VirtualFile result = dir;
+      for (String name : StringUtil.split(relativePath, "/")) {
+        result = result instanceof NewVirtualFile ? ((NewVirtualFile)result).findChildIfCached(name) : null;
+        if (result == null) return null;
+      }
+      return result;
+    }
+  }
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.annotate;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GitBlameCacheTest {
+  private File myRepo;
+  private File myCacheDir;
+  private GitBlameCache myCache;
+  private final VirtualFile myRoot = new LightVirtualFile("repo");
+
+  @Before
+  public void setUp() throws IOException {
+    myRepo = FileUtil.createTempDirectory("blame", "repo");
+    myCacheDir = FileUtil.createTempDirectory("blame", "cache");
+    myCache = new GitBlameCache(myCacheDir);
+    git("init");
+  }
+
+  @After
+  public void tearDown() {
+    myCache.dispose();
+    FileUtil.delete(myRepo);
+    FileUtil.delete(myCacheDir);
+  }
+
+  @Test
+  public void filesWithTheSameContentKeepTheirOwnBlames() throws Exception {
+    write("a.txt", "1\n2\n");
+    commit("Alice");
+    write("a.txt", "1\n3\n");
+    commit("Bob");
+    write("b.txt", "1\n3\n");
+    commit("Carol");
+
+    String head = git("rev-parse", "HEAD");
+    String blob = git("rev-parse", "HEAD:a.txt");
+    assertEquals(blob, git("rev-parse", "HEAD:b.txt"));
+
+    myCache.put(myRoot, "a.txt", head, blob, blame("a.txt"));
+    myCache.put(myRoot, "b.txt", head, blob, blame("b.txt"));
+    assertAuthors(myCache.get(myRoot, "a.txt", head, blob), "Alice", "Bob");
+    assertAuthors(myCache.get(myRoot, "b.txt", head, blob), "Carol", "Carol");
+
+    // replacing the blame of a.txt must not drop the blame of b.txt
+    write("a.txt", "1\n4\n");
+    commit("Dave");
+    String newHead = git("rev-parse", "HEAD");
+    myCache.put(myRoot, "a.txt", newHead, git("rev-parse", "HEAD:a.txt"), blame("a.txt"));
+
+    assertNull(myCache.get(myRoot, "a.txt", head, blob));
+    assertAuthors(myCache.get(myRoot, "b.txt", head, blob), "Carol", "Carol");
+    assertEquals(newHead, myCache.getLatest(myRoot, "a.txt").first);
+    assertEquals(head, myCache.getLatest(myRoot, "b.txt").first);
+  }
+
+  private GitBlame blame(String path) throws IOException, VcsException {
+    return GitBlame.parse(git("blame", "-p", "-l", "-t", "-w", "HEAD", "--", path) + "\n", null);
+  }
+
+  private static void assertAuthors(GitBlame blame, String... authors) {
+    assertNotNull(blame);
+    List<String> actual = new ArrayList<String>();
+    for (int i = 0; i < blame.getLineCount(); i++) {
+      actual.add(blame.getAuthor(blame.getCommit(i)));
+    }
+    assertEquals(Arrays.asList(authors), actual);
+  }
+
+  private void write(String path, String content) throws IOException {
+    FileUtil.writeToFile(new File(myRepo, path), content);
+  }
+
+  private void commit(String author) throws IOException {
+    git("add", ".");
+    git("-c", "user.name=" + author, "-c", "user.email=" + author + "@example.com", "commit", "-m", author);
+  }
+
+  private String git(String... parameters) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add("git");
+    command.addAll(Arrays.asList(parameters));
+    Process process = new ProcessBuilder(command).directory(myRepo).redirectErrorStream(true).start();
+    String output = FileUtil.loadTextAndClose(process.getInputStream());
+    try {
+      assertEquals(output, 0, process.waitFor());
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    return output.trim();
+  }
+}
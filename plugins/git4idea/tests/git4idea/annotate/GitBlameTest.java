@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.annotate;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.VcsException;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GitBlameTest {
+  private static final String FIRST = StringUtil.repeat("1", 40);
+  private static final String SECOND = StringUtil.repeat("2", 40);
+  private static final String THIRD = StringUtil.repeat("3", 40);
+  private static final String FOURTH = StringUtil.repeat("4", 40);
+
+  // a, B, c, d: B comes from the second commit, the rest from the first one
+  private static final String BASE_OUTPUT =
+    commit(FIRST, 1, 1, "Alice", 1000, true) + "\ta\n" +
+    commit(SECOND, 2, 2, "Bob", 2000, false) + "\tB\n" +
+    line(FIRST, 3, 3) + "\tc\n" +
+    line(FIRST, 4, 4) + "\td\n";
+
+  @Test
+  public void wholeHistoryIsParsed() throws VcsException {
+    List<String> content = new ArrayList<String>();
+    GitBlame blame = GitBlame.parse(BASE_OUTPUT, content);
+
+    assertEquals(Arrays.asList("a\n", "B\n", "c\n", "d\n"), content);
+    assertEquals(2, blame.getCommitCount());
+    assertLines(blame, FIRST, SECOND, FIRST, FIRST);
+    assertEquals("Bob", blame.getAuthor(blame.getCommit(1)));
+    assertEquals(2000000, blame.getTime(blame.getCommit(1)));
+  }
+
+  @Test
+  public void unchangedLinesAreTakenFromBase() throws VcsException {
+    GitBlame base = GitBlame.parse(BASE_OUTPUT, null);
+    // 'git blame SECOND..FOURTH': z, a, B, c, x, d
+    String output =
+      commit(FOURTH, 1, 1, "Dave", 4000, false) + "\tz\n" +
+      commit(SECOND, 1, 2, "Bob", 2000, true) + "\ta\n" +
+      line(SECOND, 2, 3) + "\tB\n" +
+      line(SECOND, 3, 4) + "\tc\n" +
+      commit(THIRD, 4, 5, "Carol", 3000, false) + "\tx\n" +
+      line(SECOND, 4, 6) + "\td\n";
+    List<String> content = new ArrayList<String>();
+    GitBlame blame = GitBlame.parse(output, SECOND, base, content);
+
+    assertNotNull(blame);
+    assertEquals(Arrays.asList("z\n", "a\n", "B\n", "c\n", "x\n", "d\n"), content);
+    assertLines(blame, FOURTH, FIRST, SECOND, FIRST, THIRD, FIRST);
+    assertEquals("Alice", blame.getAuthor(blame.getCommit(1)));
+    assertEquals(4, blame.getCommitCount());
+  }
+
+  @Test
+  public void otherBoundaryCommitIsNotTakenFromBase() throws VcsException {
+    GitBlame base = GitBlame.parse(BASE_OUTPUT, null);
+    // the base is not an ancestor of the annotated revision
+    String output =
+      commit(THIRD, 1, 1, "Carol", 3000, false) + "\tz\n" +
+      commit(FIRST, 1, 2, "Alice", 1000, true) + "\ta\n";
+
+    assertNull(GitBlame.parse(output, SECOND, base, null));
+  }
+
+  @Test
+  public void blameIsSaved() throws Exception {
+    GitBlame blame = GitBlame.parse(BASE_OUTPUT, null);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GitBlame.EXTERNALIZER.save(new DataOutputStream(bytes), blame);
+    GitBlame read = GitBlame.EXTERNALIZER.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertLines(read, FIRST, SECOND, FIRST, FIRST);
+    assertEquals("Alice", read.getAuthor(read.getCommit(0)));
+    assertEquals(1000000, read.getTime(read.getCommit(0)));
+  }
+
+  private static void assertLines(GitBlame blame, String... hashes) {
+    assertEquals(hashes.length, blame.getLineCount());
+    for (int i = 0; i < hashes.length; i++) {
+      assertEquals("line " + i, hashes[i], blame.getHash(blame.getCommit(i)));
+    }
+  }
+
+  private static String commit(String hash, int originalLine, int finalLine, String author, long time, boolean boundary) {
+    return hash + " " + originalLine + " " + finalLine + " 1\n" +
+           "author " + author + "\n" +
+           "author-mail <" + author.toLowerCase() + "@example.com>\n" +
+           "author-time " + time + "\n" +
+           "committer " + author + "\n" +
+           "committer-time " + time + "\n" +
+           "summary commit\n" +
+           (boundary ? "boundary\n" : "") +
+           "filename f\n";
+  }
+
+  private static String line(String hash, int originalLine, int finalLine) {
+    return hash + " " + originalLine + " " + finalLine + "\n";
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import git4idea.history.browser.ChangesFilter;
+import git4idea.test.GitTest;
+import gnu.trove.TIntHashSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.testng.Assert.*;
+
+/**
+ * Builds the {@link GitCommitGraph} of a real repository with {@link GitCommitGraphIndex#update}.
+ */
+public class GitCommitGraphIndexTest extends GitTest {
+  private static final String USER = MAIN_USER_NAME + " <" + MAIN_USER_EMAIL + ">";
+  // quoted by Git in the list of the changed files
+  private static final String QUOTED_PATH = "dir/\u00fc b.txt";
+
+  private File myGraphDir;
+  private GitCommitGraph myGraph;
+  private VirtualFile myRoot;
+
+  @BeforeMethod
+  @Override
+  public void setUp(Method testMethod) throws Exception {
+    super.setUp(testMethod);
+    myGraphDir = FileUtil.createTempDirectory("git-graph", null);
+    myGraph = new GitCommitGraph(myGraphDir);
+    myRoot = myRepo.getVFRootDir();
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    myGraph.close();
+    FileUtil.delete(myGraphDir);
+    super.tearDown();
+  }
+
+  @Test
+  public void graphIsBuiltFromRepository() throws Exception {
+    myRepo.createFile("a.txt", "a");
+    String first = myRepo.addCommit();
+    myRepo.createDir("dir");
+    myRepo.createFile(QUOTED_PATH, "b");
+    String second = myRepo.addCommit();
+    myRepo.createBranch("feature");
+    myRepo.createFile("feature.txt", "feature");
+    String feature = myRepo.addCommit();
+    myRepo.checkout("master");
+    myRepo.createFile("master.txt", "master");
+    String master = myRepo.addCommit();
+    myRepo.merge("--no-ff", "-m", "merge", "feature");
+    String merge = myRepo.lastCommit();
+
+    int[] heads = update();
+    assertEquals(myGraph.getCommitCount(), 5);
+    int mergeCommit = myGraph.findCommit(merge);
+    assertTrue(contains(heads, mergeCommit));
+    assertTrue(contains(heads, myGraph.findCommit(feature)));
+
+    assertEquals(myGraph.getParents(mergeCommit), new int[]{myGraph.findCommit(master), myGraph.findCommit(feature)});
+    assertEquals(myGraph.getParents(myGraph.findCommit(second)), new int[]{myGraph.findCommit(first)});
+    assertEquals(myGraph.getParents(myGraph.findCommit(first)), new int[0]);
+    assertEquals(myGraph.getHash(mergeCommit), merge);
+    assertEquals(myGraph.getAbbreviatedHash(mergeCommit), myRepo.log("-1", "--format=%h", merge).trim());
+    assertEquals(myGraph.getTime(mergeCommit), Long.parseLong(myRepo.log("-1", "--format=%ct", merge).trim()) * 1000);
+    assertEquals(myGraph.getUser(myGraph.getAuthor(mergeCommit)), USER);
+    assertEquals(myGraph.getUser(myGraph.getCommitter(mergeCommit)), USER);
+
+    assertCommits(myGraph.getCommitsChanging("dir"), myGraph.findCommit(second));
+    assertCommits(myGraph.getCommitsChanging(QUOTED_PATH), myGraph.findCommit(second));
+    assertCommits(myGraph.getCommitsChanging("feature.txt"), myGraph.findCommit(feature));
+  }
+
+  @Test
+  public void onlyNewCommitsAreRead() throws Exception {
+    String first = myRepo.createAddCommit();
+    update();
+    assertEquals(myGraph.getCommitCount(), 1);
+
+    String second = myRepo.createAddCommit();
+    int[] heads = update();
+    assertEquals(myGraph.getCommitCount(), 2);
+    int secondCommit = myGraph.findCommit(second);
+    assertTrue(contains(heads, secondCommit));
+    assertEquals(myGraph.getParents(secondCommit), new int[]{myGraph.findCommit(first)});
+
+    update();
+    assertEquals(myGraph.getCommitCount(), 2);
+  }
+
+  @Test
+  public void commitsOfDeletedBranchAreKept() throws Exception {
+    myRepo.createAddCommit();
+    myRepo.createBranch("feature");
+    String feature = myRepo.createAddCommit();
+    myRepo.checkout("master");
+    update();
+    myRepo.branch("-D", "feature");
+    String master = myRepo.createAddCommit();
+
+    int[] heads = update();
+    assertEquals(myGraph.getCommitCount(), 3);
+    assertFalse(contains(heads, myGraph.findCommit(feature)));
+    assertEquals(GitCommitGraphLog.order(myGraph, heads, false), new int[]{myGraph.findCommit(master), 1});
+  }
+
+  @Test
+  public void dateFilterIncludesBounds() throws Exception {
+    myRepo.createAddCommit();
+    String last = myRepo.createAddCommit();
+    int[] heads = update();
+    int lastCommit = myGraph.findCommit(last);
+    Date time = new Date(myGraph.getTime(lastCommit));
+
+    GitCommitGraphLog.Filter filter = new GitCommitGraphLog.Filter();
+    assertTrue(filter.add(new ChangesFilter.AfterDate(time), myRoot));
+    assertTrue(filter.add(new ChangesFilter.BeforeDate(time), myRoot));
+    assertTrue(contains(filter.apply(myGraph, GitCommitGraphLog.order(myGraph, heads, false)), lastCommit));
+  }
+
+  private int[] update() {
+    Pair<GitCommitGraph, int[]> result = GitCommitGraphIndex.update(myProject, myRoot, myGraph);
+    assertNotNull(result);
+    return result.second;
+  }
+
+  private static boolean contains(int[] commits, int commit) {
+    for (int each : commits) {
+      if (each == commit) return true;
+    }
+    return false;
+  }
+
+  private static void assertCommits(TIntHashSet actual, int... expected) {
+    int[] commits = actual.toArray();
+    Arrays.sort(commits);
+    assertEquals(commits, expected);
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.TIntHashSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class GitCommitGraphTest {
+  private static final String USER = "John Doe <john@example.com>";
+
+  private File myDir;
+  private GitCommitGraph myGraph;
+
+  @Before
+  public void setUp() throws IOException {
+    myDir = FileUtil.createTempDirectory("git-graph", null);
+    myGraph = new GitCommitGraph(myDir);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    myGraph.close();
+    FileUtil.delete(myDir);
+  }
+
+  @Test
+  public void commitsArePersisted() throws IOException {
+    int root = add(1, 1000);
+    int child = myGraph.addCommit(hash(2), 2000, USER, "Jane Roe <jane@example.com>", new int[]{root});
+    myGraph.addChangedPaths(child, Arrays.asList("dir/sub/a.txt", "dir/b.txt"));
+    reopen();
+
+    assertEquals(2, myGraph.getCommitCount());
+    assertEquals(child, myGraph.findCommit(hash(2)));
+    assertEquals(0, myGraph.findCommit(hash(3)));
+    assertEquals(hash(2), myGraph.getHash(child));
+    assertEquals(hash(2).substring(0, 7), myGraph.getAbbreviatedHash(child));
+    assertEquals(2000, myGraph.getTime(child));
+    assertArrayEquals(new int[]{root}, myGraph.getParents(child));
+    assertArrayEquals(new int[0], myGraph.getParents(root));
+    assertEquals(USER, myGraph.getUser(myGraph.getAuthor(child)));
+    assertEquals("Jane Roe <jane@example.com>", myGraph.getUser(myGraph.getCommitter(child)));
+
+    assertCommits(myGraph.getCommitsChanging("dir"), child);
+    assertCommits(myGraph.getCommitsChanging("dir/sub"), child);
+    assertCommits(myGraph.getCommitsChanging("dir/b.txt"), child);
+    assertCommits(myGraph.getCommitsChanging("other"));
+  }
+
+  @Test
+  public void hashesAreAbbreviatedWhenRead() throws IOException {
+    int commit = add(1, 1000);
+    myGraph.setAbbreviation(9);
+    assertEquals(hash(1).substring(0, 9), myGraph.getAbbreviatedHash(commit));
+    myGraph.setAbbreviation(12);
+    assertEquals(hash(1).substring(0, 12), myGraph.getAbbreviatedHash(commit));
+  }
+
+  @Test
+  public void pathsAreAppended() throws IOException {
+    int first = add(1, 1000);
+    myGraph.addChangedPaths(first, Collections.singletonList("a.txt"));
+    myGraph.flush();
+    int second = add(2, 2000, first);
+    myGraph.addChangedPaths(second, Collections.singletonList("a.txt"));
+
+    assertCommits(myGraph.getCommitsChanging("a.txt"), first, second);
+  }
+
+  @Test
+  public void dateOrderShowsChildrenFirst() throws IOException {
+    // the merged branch has a commit dated after the merge
+    int root = add(1, 1000);
+    int branch = add(2, 5000, root);
+    int master = add(3, 2000, root);
+    int merge = add(4, 3000, master, branch);
+
+    assertArrayEquals(new int[]{merge, branch, master, root}, GitCommitGraphLog.order(myGraph, new int[]{merge}, false));
+    assertArrayEquals(new int[]{merge, master, branch, root}, GitCommitGraphLog.order(myGraph, new int[]{merge}, true));
+  }
+
+  @Test
+  public void onlyReachableCommitsAreOrdered() throws IOException {
+    int root = add(1, 1000);
+    add(2, 3000, root); // the branch has been deleted
+    int kept = add(3, 2000, root);
+
+    assertArrayEquals(new int[]{kept, root}, GitCommitGraphLog.order(myGraph, new int[]{kept, kept}, false));
+  }
+
+  @Test
+  public void storageNotClosedIsRebuilt() throws IOException {
+    add(1, 1000);
+    myGraph.flush();
+    File copyDir = new File(myDir.getPath() + "-copy");
+    FileUtil.copyDir(myDir, copyDir);
+    GitCommitGraph copy = new GitCommitGraph(copyDir);
+    try {
+      assertEquals(0, copy.getCommitCount());
+    }
+    finally {
+      copy.close();
+      FileUtil.delete(copyDir);
+    }
+  }
+
+  private int add(int hash, long time, int... parents) throws IOException {
+    return myGraph.addCommit(hash(hash), time, USER, USER, parents);
+  }
+
+  private void reopen() throws IOException {
+    myGraph.close();
+    myGraph = new GitCommitGraph(myDir);
+  }
+
+  private static String hash(int n) {
+    String suffix = Integer.toHexString(n);
+    StringBuilder result = new StringBuilder();
+    while (result.length() + suffix.length() < 40) result.append('a');
+    return result.append(suffix).toString();
+  }
+
+  private static void assertCommits(TIntHashSet actual, int... expected) {
+    int[] commits = actual.toArray();
+    Arrays.sort(commits);
+    assertArrayEquals(expected, commits);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.status;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.intellij.dvcs.test.Executor.*;
+import static git4idea.test.GitExecutor.git;
+import static org.junit.Assert.*;
+
+public class GitIndexTest {
+  private File myRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    myRoot = FileUtil.createTempDirectory("git-index", null);
+    cd(myRoot.getPath());
+    git("init");
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void entriesAndStatData() throws IOException {
+    echo("a.txt", "content");
+    mkdir("dir");
+    touch("dir/b.txt", "another content");
+    git("add a.txt dir/b.txt");
+
+    GitIndex index = GitIndex.read(indexFile());
+    Map<String, GitIndex.Entry> entries = entries(index);
+    assertEquals(2, entries.size());
+
+    GitIndex.Entry a = entries.get("a.txt");
+    File file = new File(myRoot, "a.txt");
+    assertEquals(file.length(), a.getSize());
+    assertEquals(file.lastModified() / 1000, a.getModificationTime());
+    assertTrue(a.isRegularFile());
+    assertEquals(0, a.getStage());
+    assertNotNull(entries.get("dir/b.txt"));
+    assertTrue(index.isUpToDate(indexFile()));
+  }
+
+  @Test
+  public void stagedContentIsCompared() throws IOException {
+    echo("a.txt", "content");
+    git("add a.txt");
+    GitIndex.Entry before = entries(GitIndex.read(indexFile())).get("a.txt");
+
+    echo("a.txt", "more");
+    git("add a.txt");
+    GitIndex after = GitIndex.read(indexFile());
+    assertFalse(before.isSameStaged(entries(after).get("a.txt")));
+    assertTrue(before.isSameStaged(before));
+  }
+
+  @Test
+  public void version4() throws IOException {
+    git("config index.version 4");
+    mkdir("dir");
+    touch("dir/a.txt", "a");
+    touch("dir/ab.txt", "ab");
+    touch("b.txt", "b");
+    git("add .");
+    git("update-index --index-version 4");
+
+    Map<String, GitIndex.Entry> entries = entries(GitIndex.read(indexFile()));
+    assertEquals(3, entries.size());
+    assertEquals(2, entries.get("dir/ab.txt").getSize());
+    assertNotNull(entries.get("dir/a.txt"));
+    assertNotNull(entries.get("b.txt"));
+  }
+
+  @Test
+  public void splitIndex() throws IOException {
+    echo("a.txt", "content");
+    git("add a.txt");
+    assertFalse(GitIndex.read(indexFile()).isSplit());
+
+    git("update-index --split-index");
+    echo("b.txt", "another content");
+    git("add b.txt");
+    assertTrue(GitIndex.read(indexFile()).isSplit());
+  }
+
+  private File indexFile() {
+    return new File(new File(myRoot, ".git"), "index");
+  }
+
+  private static Map<String, GitIndex.Entry> entries(GitIndex index) {
+    Map<String, GitIndex.Entry> result = new HashMap<String, GitIndex.Entry>();
+    for (GitIndex.Entry entry : index.getEntries()) {
+      result.put(entry.getPath(), entry);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.tests;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.FilePathImpl;
+import com.intellij.openapi.vcs.FileStatus;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.vcs.MockDirtyScope;
+import git4idea.GitVcs;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static com.intellij.openapi.vcs.FileStatus.DELETED;
+import static com.intellij.openapi.vcs.FileStatus.MODIFIED;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks the changes found when only the files differing from the index read at the previous check of the whole root are asked
+ * from Git: each test checks the whole root first, then changes the index or the working tree and checks a single file.
+ */
+public class GitChangeProviderIndexTest extends GitChangeProviderTest {
+
+  @Test
+  public void testStagedThenUnstagedChange() throws Exception {
+    edit(afile, "new content");
+    myRepo.add("a.txt");
+    checkWholeRoot();
+
+    myRepo.run("reset", "-q", "--", "a.txt");
+    assertChangesAfterGit(afile, MODIFIED);
+  }
+
+  @Test
+  public void testCheckoutFromIndex() throws Exception {
+    edit(afile, "new content");
+    checkWholeRoot();
+
+    myRepo.run("checkout", "--", "a.txt");
+    assertChangesAfterGit(afile, null);
+  }
+
+  @Test
+  public void testCheckoutFromPreviousRevision() throws Exception {
+    edit(afile, "second version");
+    myRepo.add("a.txt");
+    myRepo.commit("second version");
+    checkWholeRoot();
+
+    myRepo.run("checkout", "HEAD~1", "--", "a.txt");
+    assertChangesAfterGit(afile, MODIFIED);
+  }
+
+  @Test
+  public void testRacilyCleanEntry() throws Exception {
+    checkWholeRoot();
+
+    // the content is changed keeping the size and the timestamp, and the index is written in the same second as the file
+    File file = new File(afile.getPath());
+    long timestamp = file.lastModified();
+    FileUtil.writeToFile(file, StringUtil.repeat("x", (int)file.length()));
+    assertTrue(file.setLastModified(timestamp));
+    assertTrue(new File(myRootDir.getPath(), ".git/index").setLastModified(timestamp));
+    assertChangesAfterGit(afile, MODIFIED);
+  }
+
+  @Test
+  public void testEntryRemovedFromIndex() throws Exception {
+    checkWholeRoot();
+
+    myRepo.run("rm", "-q", "--cached", "a.txt");
+    assertChangesAfterGit(afile, DELETED);
+  }
+
+  private void checkWholeRoot() throws VcsException {
+    myDirtyScope.addDirtyDirRecursively(new FilePathImpl(myRootDir));
+    getChanges();
+    myDirtyScope = new MockDirtyScope(myProject, GitVcs.getInstance(myProject));
+  }
+
+  private void assertChangesAfterGit(@NotNull VirtualFile file, @Nullable FileStatus status) throws VcsException {
+    myRepo.refresh();
+    myDirtyScope.addDirtyFile(new FilePathImpl(file));
+    assertChanges(file, status);
+  }
+}